@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Loads the test fixtures under /data and scales them up for benchmarks.
+ *
+ * Aug 8, 2022 2:14:05 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+final class BenchmarkData {
+
+    static final String SYNTHEA_BUNDLE = "/data/synthea/Aaron697_Brekke496_2fa15bc7-8866-461a-9000-f739e425860a.json";
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Read the data rows of a BrainAI TSV fixture, repeated the given number
+     * of times.
+     *
+     * @param fileName name of the file under /data/brainai
+     * @param scale number of copies of the rows
+     * @return data rows, without the header
+     */
+    static List<String> readBrainAiRows(String fileName, int scale) {
+        List<String> rows = readLines("/data/brainai/" + fileName);
+        rows.remove(0); // header
+
+        List<String> scaledRows = new ArrayList<>(rows.size() * scale);
+        for (int i = 0; i < scale; i++) {
+            scaledRows.addAll(rows);
+        }
+
+        return scaledRows;
+    }
+
+    /**
+     * Read the Synthea bundle fixture with its entries repeated the given
+     * number of times. Copies get new full URLs so the bundle stays valid.
+     *
+     * @param fhirContext FHIR context
+     * @param scale number of copies of the entries
+     * @return the scaled bundle
+     */
+    static Bundle readSyntheaBundle(FhirContext fhirContext, int scale) {
+        String json = String.join("\n", readLines(SYNTHEA_BUNDLE));
+        Bundle bundle = fhirContext.newJsonParser().parseResource(Bundle.class, json);
+
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        List<Bundle.BundleEntryComponent> scaledEntries = new ArrayList<>(entries.size() * scale);
+        for (int i = 0; i < scale; i++) {
+            for (Bundle.BundleEntryComponent entry : entries) {
+                Bundle.BundleEntryComponent copy = entry.copy();
+                if (i > 0) {
+                    copy.setFullUrl(entry.getFullUrl() + "-" + i);
+                }
+                scaledEntries.add(copy);
+            }
+        }
+        bundle.setEntry(scaledEntries);
+
+        return bundle;
+    }
+
+    private static List<String> readLines(String resourceName) {
+        try (InputStream inputStream = BenchmarkData.class.getResourceAsStream(resourceName)) {
+            if (inputStream == null) {
+                throw new IllegalStateException("Missing fixture " + resourceName);
+            }
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+                return reader.lines().collect(Collectors.toCollection(ArrayList::new));
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.pitt.dbmi.fhir.resource.mapper.r4.brainai.ObservationResourceMapper;
+import edu.pitt.dbmi.fhir.resource.mapper.util.Delimiters;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Transaction bundle assembly in
+ * {@link AbstractResourceClient#createTransactionBundle(List, String)}.
+ *
+ * Aug 8, 2022 2:52:10 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BundleAssemblyBenchmark {
+
+    @Param({"100", "500"})
+    private int batchSize;
+
+    // never sends a request; the client only supplies the FHIR context
+    private final AbstractResourceClient resourceClient = new AbstractResourceClient(FhirContext.forR4Cached().newRestfulGenericClient("http://localhost")) {
+    };
+
+    private List<Resource> resources;
+
+    @Setup
+    public void setup() throws ParseException {
+        List<String> rows = BenchmarkData.readBrainAiRows("observations.tsv", (batchSize / 50) + 1);
+
+        resources = new ArrayList<>(batchSize);
+        for (String row : rows.subList(0, batchSize)) {
+            resources.add(ObservationResourceMapper.getObservation(Delimiters.TAB_DELIM.split(row)));
+        }
+    }
+
+    @Benchmark
+    public Bundle createTransactionBundle() {
+        return resourceClient.createTransactionBundle(resources, "Observation");
+    }
+
+}
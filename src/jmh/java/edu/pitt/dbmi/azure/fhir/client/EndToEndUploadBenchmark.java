@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end upload throughput of {@link BundleUploader} against
+ * {@link StandInFhirServer} with injected server latency.
+ *
+ * Aug 9, 2022 4:38:20 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class EndToEndUploadBenchmark {
+
+    private static final int NUMBER_OF_PATIENTS = 1000;
+
+    @Param({"0", "20"})
+    private long latencyMillis;
+
+    @Param({"100"})
+    private int batchSize;
+
+    @Param({"1", "8"})
+    private int maxInFlight;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private StandInFhirServer server;
+    private PatientResourceClient patientClient;
+    private IGenericClient client;
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StandInFhirServer(fhirContext);
+        server.injectLatency(latencyMillis);
+        client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+        patientClient = new PatientResourceClient(client);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        server.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public UploadSummary uploadPatients() {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            List<Resource> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < NUMBER_OF_PATIENTS; i++) {
+                Patient patient = new Patient();
+                patient.addIdentifier().setSystem("urn:benchmark:patient").setValue(Integer.toString(i));
+                patient.addName().setFamily("Family" + i).addGiven("Given" + i);
+                batch.add(patient);
+
+                if (batch.size() == batchSize) {
+                    patientClient.addResources(batch, "Patient", uploader);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                patientClient.addResources(batch, "Patient", uploader);
+            }
+
+            return uploader.awaitCompletion();
+        }
+    }
+
+}
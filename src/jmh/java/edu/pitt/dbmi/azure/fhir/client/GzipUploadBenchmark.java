@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time and bytes on the wire to send the Synthea transaction bundle with and
+ * without gzip compression, over an unlimited and a bandwidth-limited link.
+ * The requestBytes and responseBytes counters report the bytes transferred.
+ *
+ * Aug 11, 2022 1:47:09 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class GzipUploadBenchmark {
+
+    @Param({"false", "true"})
+    private boolean compress;
+
+    /**
+     * 0 for loopback speed, 12500000 for a 100 Mbit/s link.
+     */
+    @Param({"0", "12500000"})
+    private long bytesPerSecond;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private StandInFhirServer server;
+    private IGenericClient client;
+    private Bundle bundle;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class TransferCounters {
+
+        public long requestBytes;
+        public long responseBytes;
+
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        server = new StandInFhirServer(fhirContext);
+        server.injectBandwidth(bytesPerSecond);
+        server.compressResponses(compress);
+
+        client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+        if (compress) {
+            GzipRequestInterceptor.register(client);
+        }
+
+        bundle = BenchmarkData.readSyntheaBundle(fhirContext, 1);
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        server.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Bundle sendTransaction(TransferCounters counters) {
+        long requestBytes = server.getRequestBytes();
+        long responseBytes = server.getResponseBytes();
+
+        Bundle response = client.transaction().withBundle(bundle).execute();
+
+        counters.requestBytes += server.getRequestBytes() - requestBytes;
+        counters.responseBytes += server.getResponseBytes() - responseBytes;
+
+        return response;
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Request latency and concurrent upload throughput of the HTTP transports
+ * against {@link StandInFhirServer}: HAPI's default Apache client, the Apache
+ * client with its pool sized for the uploads in flight, and the JDK client of
+ * {@link JdkRestfulClientFactory}.
+ *
+ * The stand-in server only speaks HTTP/1.1, so the JDK client runs on
+ * keep-alive connections here; HTTP/2 multiplexing needs a server that
+ * negotiates it.
+ *
+ * Aug 20, 2022 3:05:51 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class HttpTransportBenchmark {
+
+    private static final int NUMBER_OF_PATIENTS = 2000;
+
+    @Param({"apache", "apache-pooled", "jdk"})
+    private String transport;
+
+    @Param({"0", "20"})
+    private long latencyMillis;
+
+    @Param({"32"})
+    private int maxInFlight;
+
+    @Param({"50"})
+    private int batchSize;
+
+    private StandInFhirServer server;
+    private PatientResourceClient patientClient;
+    private IGenericClient client;
+    private String patientId;
+
+    @Setup
+    public void setup() throws IOException {
+        FhirContext fhirContext = FhirContext.forR4();
+        switch (transport) {
+            case "apache":
+                break;
+            case "apache-pooled":
+                fhirContext.getRestfulClientFactory().setPoolMaxPerRoute(maxInFlight);
+                fhirContext.getRestfulClientFactory().setPoolMaxTotal(maxInFlight);
+                break;
+            case "jdk":
+                IRestfulClientFactory factory = new JdkRestfulClientFactory(fhirContext);
+                factory.setPoolMaxPerRoute(maxInFlight);
+                fhirContext.setRestfulClientFactory(factory);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+
+        server = new StandInFhirServer(fhirContext, maxInFlight);
+        client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+        patientClient = new PatientResourceClient(client);
+        createReadPatient();
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        server.clear();
+        createReadPatient();
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    private void createReadPatient() {
+        server.injectLatency(0);
+
+        Patient patient = new Patient();
+        patient.addName().setFamily("Family").addGiven("Given");
+        patientId = client.create().resource(patient).execute().getId().getIdPart();
+
+        server.injectLatency(latencyMillis);
+    }
+
+    /**
+     * Latency of a single read.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Patient read() {
+        return client.read().resource(Patient.class).withId(patientId).execute();
+    }
+
+    /**
+     * Throughput of uploads with many bundles in flight.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public UploadSummary uploadPatients() {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight, Bundle.BundleType.BATCH)) {
+            List<Resource> batch = new ArrayList<>(batchSize);
+            for (int i = 0; i < NUMBER_OF_PATIENTS; i++) {
+                Patient patient = new Patient();
+                patient.addIdentifier().setSystem("urn:benchmark:patient").setValue(Integer.toString(i));
+                patient.addName().setFamily("Family" + i).addGiven("Given" + i);
+                batch.add(patient);
+
+                if (batch.size() == batchSize) {
+                    patientClient.addResources(batch, "Patient", uploader);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+            if (!batch.isEmpty()) {
+                patientClient.addResources(batch, "Patient", uploader);
+            }
+
+            return uploader.awaitCompletion();
+        }
+    }
+
+}
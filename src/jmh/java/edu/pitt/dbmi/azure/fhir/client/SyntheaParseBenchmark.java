@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import edu.pitt.dbmi.fhir.resource.mapper.util.JsonResourceConverterR4;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Synthea bundle parsing: the whole-bundle parse used by
+ * {@link SyntheaResourceClient#addAllResourceBundle} and the entry-by-entry
+ * {@link StreamingBundleReader}.
+ *
+ * Aug 8, 2022 3:10:42 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+public class SyntheaParseBenchmark {
+
+    @Param({"1", "10"})
+    private int scale;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private StreamingBundleReader bundleReader;
+    private String json;
+
+    @Setup
+    public void setup() {
+        bundleReader = new StreamingBundleReader(fhirContext);
+        json = fhirContext.newJsonParser().encodeResourceToString(BenchmarkData.readSyntheaBundle(fhirContext, scale));
+    }
+
+    @Benchmark
+    public IBaseResource parseBundle() {
+        return JsonResourceConverterR4.parseResource(new StringReader(json));
+    }
+
+    @Benchmark
+    public void streamBundle(Blackhole blackhole) throws IOException {
+        bundleReader.read(new StringReader(json), blackhole::consume);
+    }
+
+    @Benchmark
+    public Bundle parseBundleWithContext() {
+        return fhirContext.newJsonParser().parseResource(Bundle.class, json);
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import edu.pitt.dbmi.fhir.resource.mapper.r4.brainai.EncounterResourceMapper;
+import edu.pitt.dbmi.fhir.resource.mapper.r4.brainai.ObservationResourceMapper;
+import edu.pitt.dbmi.fhir.resource.mapper.r4.brainai.PatientResourceMapper;
+import edu.pitt.dbmi.fhir.resource.mapper.util.Delimiters;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * TSV row to resource mapping, as done per batch by the BrainAI loaders.
+ *
+ * Aug 8, 2022 2:31:48 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TsvMappingBenchmark {
+
+    @Param({"100"})
+    private int scale;
+
+    private List<String> patientRows;
+    private List<String> encounterRows;
+    private List<String> observationRows;
+
+    @Setup
+    public void setup() {
+        patientRows = BenchmarkData.readBrainAiRows("patients.tsv", scale);
+        encounterRows = BenchmarkData.readBrainAiRows("encounters.tsv", scale);
+        observationRows = BenchmarkData.readBrainAiRows("observations.tsv", scale);
+    }
+
+    @Benchmark
+    public List<Patient> mapPatients() throws ParseException {
+        List<Patient> patients = new ArrayList<>(patientRows.size());
+        for (String row : patientRows) {
+            patients.add(PatientResourceMapper.getPatient(Delimiters.TAB_DELIM.split(row)));
+        }
+
+        return patients;
+    }
+
+    @Benchmark
+    public List<Encounter> mapEncounters() throws ParseException {
+        List<Encounter> encounters = new ArrayList<>(encounterRows.size());
+        for (String row : encounterRows) {
+            encounters.add(EncounterResourceMapper.getEncounter(Delimiters.TAB_DELIM.split(row)));
+        }
+
+        return encounters;
+    }
+
+    @Benchmark
+    public List<Observation> mapObservations() throws ParseException {
+        List<Observation> observations = new ArrayList<>(observationRows.size());
+        for (String row : observationRows) {
+            observations.add(ObservationResourceMapper.getObservation(Delimiters.TAB_DELIM.split(row)));
+        }
+
+        return observations;
+    }
+
+}
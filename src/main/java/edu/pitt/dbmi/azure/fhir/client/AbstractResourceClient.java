@@ -18,12 +18,21 @@
  */
 package edu.pitt.dbmi.azure.fhir.client;
 
+import ca.uhn.fhir.rest.api.CacheControlDirective;
 import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
-import java.util.LinkedList;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import ca.uhn.fhir.util.FhirTerser;
+import ca.uhn.fhir.util.UrlUtil;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import org.hl7.fhir.instance.model.api.IBaseBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Resource;
 
 /**
@@ -34,14 +43,72 @@ import org.hl7.fhir.r4.model.Resource;
  */
 public abstract class AbstractResourceClient {
 
+    public static final int DEFAULT_DELETE_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_DELETE_BATCH_BYTES = 1024 * 1024;
+    public static final int DEFAULT_DELETE_PARALLELISM = 4;
+    public static final int DEFAULT_CONDITIONAL_DELETE_COUNT = 100;
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    // approximate JSON size of a delete entry, excluding the URL
+    private static final int DELETE_ENTRY_OVERHEAD_BYTES = 64;
+
     protected final IGenericClient client;
+    protected final MetricsRegistry metrics;
+    protected final UploadMode uploadMode;
+
+    private final FhirTerser terser;
 
     public AbstractResourceClient(IGenericClient client) {
+        this(client, MetricsRegistry.NONE);
+    }
+
+    public AbstractResourceClient(IGenericClient client, MetricsRegistry metrics) {
+        this(client, metrics, UploadMode.CREATE);
+    }
+
+    public AbstractResourceClient(IGenericClient client, MetricsRegistry metrics, UploadMode uploadMode) {
         this.client = client;
+        this.metrics = metrics;
+        this.uploadMode = uploadMode;
+        this.terser = client.getFhirContext().newTerser();
+
+        if (metrics != MetricsRegistry.NONE) {
+            MetricsInterceptor.register(client, metrics);
+        }
     }
 
     protected MethodOutcome addResource(Resource resource) {
-        return client.create().resource(resource).execute();
+        return addResource(resource, null);
+    }
+
+    /**
+     * Create the resource, or with a conditional upload mode, match it to the
+     * server resource having the same identifier.
+     *
+     * @param resource resource to upload
+     * @param identifierSystem system of the identifier to match on, or null
+     * for the first identifier
+     * @return outcome of the create or update
+     */
+    protected MethodOutcome addResource(Resource resource, String identifierSystem) {
+        try {
+            String condition = getIdentifierCondition(resource, identifierSystem);
+            if (condition == null) {
+                return client.create().resource(resource).execute();
+            }
+
+            String conditionalUrl = resource.fhirType() + "?" + condition;
+            switch (uploadMode) {
+                case CONDITIONAL_CREATE:
+                    return client.create().resource(resource).conditionalByUrl(conditionalUrl).execute();
+                case CONDITIONAL_UPDATE:
+                    return client.update().resource(resource).conditionalByUrl(conditionalUrl).execute();
+                default:
+                    return client.create().resource(resource).execute();
+            }
+        } finally {
+            resourcesWritten(Collections.singletonList(resource));
+        }
     }
 
     protected MethodOutcome deleteResource(Resource resource) {
@@ -49,82 +116,318 @@ public abstract class AbstractResourceClient {
     }
 
     protected Bundle addResources(List<Resource> resources, String url) {
-        Bundle bundle = new Bundle();
-        bundle.setType(Bundle.BundleType.TRANSACTION);
+        return addResources(resources, url, (String) null);
+    }
 
-        resources.forEach(resource -> bundle.addEntry()
-                .setResource(resource)
-                .getRequest()
-                .setUrl(url)
-                .setMethod(Bundle.HTTPVerb.POST));
+    protected Bundle addResources(List<Resource> resources, String url, String identifierSystem) {
+        long start = System.currentTimeMillis();
+        try {
+            return client.transaction().withBundle(createTransactionBundle(resources, url, identifierSystem)).execute();
+        } catch (BaseServerResponseException exception) {
+            metrics.recordError(MetricsRegistry.TRANSACTION, exception.getStatusCode());
 
-        return client.transaction().withBundle(bundle).execute();
+            throw exception;
+        } finally {
+            metrics.recordLatency(MetricsRegistry.TRANSACTION, System.currentTimeMillis() - start);
+            metrics.recordEntries(MetricsRegistry.TRANSACTION, resources.size());
+            resourcesWritten(resources);
+        }
     }
 
-    protected void deleteResources(Bundle searchBundle, int batchSize) {
-        List<Bundle.BundleEntryComponent> entries = new LinkedList<>();
-        searchBundle.getEntry().forEach(entries::add);
+    protected CompletableFuture<UploadResult> addResources(List<Resource> resources, String url, BundleUploader uploader) {
+        return addResources(resources, url, uploader, AbstractResourceClient::printFailure);
+    }
 
-        while (searchBundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            searchBundle = client
-                    .loadPage()
-                    .next(searchBundle)
-                    .execute();
+    protected CompletableFuture<UploadResult> addResources(List<Resource> resources, String url, BundleUploader uploader, Consumer<UploadResult> callback) {
+        return addResources(resources, url, null, uploader, callback);
+    }
+
+    protected CompletableFuture<UploadResult> addResources(List<Resource> resources, String url, String identifierSystem, BundleUploader uploader, Consumer<UploadResult> callback) {
+        return uploader.submit(createTransactionBundle(resources, url, identifierSystem), result -> {
+            recordBundle(MetricsRegistry.TRANSACTION, result);
+            resourcesWritten(resources);
+            callback.accept(result);
+        });
+    }
+
+    /**
+     * Called once resources have been sent to the server to be created or
+     * updated, whether or not they were stored. Does nothing by default.
+     *
+     * @param resources resources sent
+     */
+    protected void resourcesWritten(List<Resource> resources) {
+    }
+
+    protected Bundle createTransactionBundle(List<Resource> resources, String url) {
+        return createTransactionBundle(resources, url, null);
+    }
+
+    protected Bundle createTransactionBundle(List<Resource> resources, String url, String identifierSystem) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
 
-            searchBundle.getEntry()
-                    .forEach(entry -> {
-                        if (entries.size() == batchSize) {
-                            deleteResources(entries);
-                            entries.clear();
-                        }
+        resources.forEach(resource -> setRequest(bundle.addEntry().setResource(resource), url, identifierSystem));
 
-                        entries.add(entry);
-                    });
+        return bundle;
+    }
+
+    /**
+     * Set the request of a bundle entry that uploads its resource, according
+     * to the upload mode: POST, POST with If-None-Exist, or a conditional PUT
+     * on the identifier.
+     *
+     * @param entry bundle entry holding the resource
+     * @param url resource type of the resource
+     * @param identifierSystem system of the identifier to match on, or null
+     * for the first identifier
+     * @return the entry
+     */
+    protected Bundle.BundleEntryComponent setRequest(Bundle.BundleEntryComponent entry, String url, String identifierSystem) {
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        String condition = getIdentifierCondition(entry.getResource(), identifierSystem);
+        if (condition != null && uploadMode == UploadMode.CONDITIONAL_UPDATE) {
+            request.setUrl(url + "?" + condition).setMethod(Bundle.HTTPVerb.PUT);
+        } else if (condition != null && uploadMode == UploadMode.CONDITIONAL_CREATE) {
+            request.setUrl(url).setMethod(Bundle.HTTPVerb.POST).setIfNoneExist(condition);
+        } else {
+            request.setUrl(url).setMethod(Bundle.HTTPVerb.POST);
         }
 
-        deleteResources(entries);
+        return entry;
     }
 
-    private void deleteResources(List<Bundle.BundleEntryComponent> entries) {
-        if (entries.isEmpty()) {
-            return;
+    /**
+     * @return the search parameter identifier=system|value matching the
+     * resource, or null when uploads are not conditional or the resource has
+     * no such identifier
+     */
+    private String getIdentifierCondition(Resource resource, String identifierSystem) {
+        if (uploadMode == UploadMode.CREATE || resource == null) {
+            return null;
         }
 
-        Bundle deleteBundle = new Bundle();
-        deleteBundle.setType(Bundle.BundleType.BATCH);
+        return terser.getValues(resource, "identifier", Identifier.class).stream()
+                .filter(identifier -> identifierSystem == null || identifierSystem.equals(identifier.getSystem()))
+                .filter(identifier -> identifier.hasSystem() && identifier.hasValue())
+                .findFirst()
+                .map(identifier -> "identifier=" + UrlUtil.escapeUrlParam(identifier.getSystem() + "|" + identifier.getValue()))
+                .orElse(null);
+    }
 
-        entries.forEach(e -> deleteBundle
-                .addEntry()
-                .getRequest().setUrl(e.getFullUrl())
-                .setMethod(Bundle.HTTPVerb.DELETE));
+    protected void recordBundle(String operation, UploadResult result) {
+        metrics.recordLatency(operation, result.getElapsedMillis());
+        metrics.recordEntries(operation, result.getEntryCount());
+        metrics.recordRetries(operation, result.getRetries());
+        if (!result.isSuccess()) {
+            RuntimeException exception = result.getException();
+            metrics.recordError(operation, (exception instanceof BaseServerResponseException)
+                    ? ((BaseServerResponseException) exception).getStatusCode()
+                    : 0);
+        } else {
+            result.getFailedEntries()
+                    .forEach(index -> metrics.recordError(operation, UploadResult.getStatusCode(result.getResponse(), index)));
+        }
+    }
 
-        client.transaction().withBundle(deleteBundle).execute();
+    protected static void printFailure(UploadResult result) {
+        if (!result.isSuccess()) {
+            result.getException().printStackTrace(System.err);
+        } else {
+            result.getFailedEntries()
+                    .forEach(index -> System.err.printf("Entry %d of bundle %d failed: %s%n", index, result.getSequence(), result.getEntryError(index)));
+        }
     }
 
+    /**
+     * Delete all the resources of a search result in one TRANSACTION bundle,
+     * so that either all or none of them are deleted. Every search page is
+     * fetched before the bundle is sent, so memory grows with the size of the
+     * search result; use {@link #deleteResources(Bundle, int)} for large
+     * results.
+     *
+     * @param searchBundle first page of the search result
+     * @return the transaction response
+     */
     protected Bundle deleteResources(Bundle searchBundle) {
         Bundle deleteBundle = new Bundle();
         deleteBundle.setType(Bundle.BundleType.TRANSACTION);
 
-        searchBundle.getEntry()
-                .forEach(e -> deleteBundle
+        try (SearchPageIterator pages = new SearchPageIterator(client, searchBundle)) {
+            while (pages.hasNext()) {
+                pages.next().getEntry()
+                        .forEach(e -> deleteBundle
+                        .addEntry()
+                        .getRequest().setUrl(e.getFullUrl())
+                        .setMethod(Bundle.HTTPVerb.DELETE));
+            }
+        }
+
+        return client.transaction().withBundle(deleteBundle).execute();
+    }
+
+    protected UploadSummary deleteResources(Bundle searchBundle, int batchSize) {
+        return deleteResources(searchBundle, batchSize, DEFAULT_DELETE_PARALLELISM);
+    }
+
+    protected UploadSummary deleteResources(Bundle searchBundle, int batchSize, int parallelism) {
+        return deleteResources(searchBundle, batchSize, DEFAULT_MAX_DELETE_BATCH_BYTES, parallelism);
+    }
+
+    /**
+     * Delete all the resources of a search result in BATCH bundles. Each
+     * bundle is sent as soon as it is full, so memory does not grow with the
+     * size of the search result. Search pages are fetched in the background
+     * while earlier batches are being deleted.
+     *
+     * @param searchBundle first page of the search result
+     * @param batchSize maximum number of resources in each delete bundle
+     * @param maxBatchBytes maximum estimated size of each delete bundle
+     * @param parallelism maximum number of delete bundles in flight
+     * @return results of the delete bundles
+     */
+    protected UploadSummary deleteResources(Bundle searchBundle, int batchSize, int maxBatchBytes, int parallelism) {
+        try (BundleUploader uploader = new BundleUploader(client, parallelism)) {
+            return deleteResources(searchBundle, batchSize, maxBatchBytes, uploader);
+        }
+    }
+
+    /**
+     * Delete all the resources of a search result in BATCH bundles whose size
+     * and number in flight are adjusted by the throttle as the server
+     * responds.
+     *
+     * @param searchBundle first page of the search result
+     * @param throttle controls the batch size and the bundles in flight
+     * @return results of the delete bundles
+     */
+    protected UploadSummary deleteResources(Bundle searchBundle, AdaptiveThrottle throttle) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return deleteResources(searchBundle, Integer.MAX_VALUE, DEFAULT_MAX_DELETE_BATCH_BYTES, uploader);
+        }
+    }
+
+    private UploadSummary deleteResources(Bundle searchBundle, int batchSize, int maxBatchBytes, BundleUploader uploader) {
+        try (SearchPageIterator pages = new SearchPageIterator(client, searchBundle)) {
+            List<String> urls = new ArrayList<>();
+            int batchBytes = 0;
+            while (pages.hasNext()) {
+                for (Bundle.BundleEntryComponent entry : pages.next().getEntry()) {
+                    int entryBytes = DELETE_ENTRY_OVERHEAD_BYTES + entry.getFullUrl().length();
+                    if (!urls.isEmpty() && (urls.size() >= uploader.getBatchSize(batchSize) || batchBytes + entryBytes > maxBatchBytes)) {
+                        uploader.submit(createDeleteBundle(urls), this::recordDelete);
+                        urls = new ArrayList<>();
+                        batchBytes = 0;
+                    }
+
+                    urls.add(entry.getFullUrl());
+                    batchBytes += entryBytes;
+                }
+            }
+
+            if (!urls.isEmpty()) {
+                uploader.submit(createDeleteBundle(urls), this::recordDelete);
+            }
+
+            return uploader.awaitCompletion();
+        }
+    }
+
+    private void recordDelete(UploadResult result) {
+        recordBundle(MetricsRegistry.DELETE, result);
+        printFailure(result);
+    }
+
+    private Bundle createDeleteBundle(List<String> urls) {
+        Bundle deleteBundle = new Bundle();
+        deleteBundle.setType(Bundle.BundleType.BATCH);
+
+        urls.forEach(url -> deleteBundle
                 .addEntry()
-                .getRequest().setUrl(e.getFullUrl())
+                .getRequest().setUrl(url)
                 .setMethod(Bundle.HTTPVerb.DELETE));
 
-        while (searchBundle.getLink(IBaseBundle.LINK_NEXT) != null) {
-            searchBundle = client
-                    .loadPage()
-                    .next(searchBundle)
+        return deleteBundle;
+    }
+
+    /**
+     * Delete the resources matching the search parameters with conditional
+     * deletes (DELETE Patient?identifier=...), without fetching their IDs.
+     * Each request deletes up to the given number of resources and is
+     * repeated until no resources match.
+     *
+     * @param resourceType resource type to delete
+     * @param searchParameters URL-encoded search parameters, e.g.
+     * identifier=system|
+     * @param count maximum number of resources deleted per request
+     * @return number of resources deleted
+     */
+    protected long deleteResourcesConditionally(Class<? extends IBaseResource> resourceType, String searchParameters, int count) {
+        String resourceName = client.getFhirContext().getResourceType(resourceType);
+        String url = String.format("%s?%s&_count=%d", resourceName, searchParameters, count);
+
+        long total = countResources(resourceName, searchParameters);
+        long remaining = total;
+        while (remaining > 0) {
+            client.delete()
+                    .resourceConditionalByUrl(url)
                     .execute();
 
-            searchBundle.getEntry().stream()
-                    .forEach(e -> deleteBundle
-                    .addEntry()
-                    .getRequest().setUrl(e.getFullUrl())
-                    .setMethod(Bundle.HTTPVerb.DELETE));
+            long stillRemaining = countResources(resourceName, searchParameters);
+            if (stillRemaining >= remaining) {
+                System.err.printf("Conditional delete of %s removed no resources, %d remaining.%n", url, stillRemaining);
+                break;
+            }
+            remaining = stillRemaining;
         }
 
-        return client.transaction().withBundle(deleteBundle).execute();
+        return total - remaining;
+    }
+
+    private long countResources(String resourceName, String searchParameters) {
+        return client
+                .search()
+                .byUrl(resourceName + "?" + searchParameters)
+                .summaryMode(SummaryEnum.COUNT)
+                .returnBundle(Bundle.class)
+                .cacheControl(new CacheControlDirective().setNoCache(true))
+                .execute()
+                .getTotal();
+    }
+
+    /**
+     * Lazily iterate all resources of the given type, following the next
+     * links of the search. Pages are fetched in the background while the
+     * current page is consumed.
+     *
+     * @param <T> resource type
+     * @param resourceType resource type to search
+     * @param pageSize number of resources requested per page
+     * @param prefetchDepth maximum number of pages fetched ahead
+     * @return iterator to close when it is not fully consumed
+     */
+    protected <T extends Resource> ResourceIterator<T> iterateResources(Class<T> resourceType, int pageSize, int prefetchDepth) {
+        return new ResourceIterator<>(new SearchPageIterator(client, () -> client
+                .search()
+                .forResource(resourceType)
+                .count(pageSize)
+                .returnBundle(Bundle.class)
+                .cacheControl(new CacheControlDirective().setNoCache(true))
+                .execute(), prefetchDepth), resourceType);
+    }
+
+    /**
+     * Search for all resources of the given type, returning only their IDs.
+     * Use for searches whose results are only going to be deleted.
+     */
+    protected Bundle searchResourceIds(Class<? extends IBaseResource> resourceType) {
+        return client
+                .search()
+                .forResource(resourceType)
+                .elementsSubset("id")
+                .returnBundle(Bundle.class)
+                .cacheControl(new CacheControlDirective().setNoCache(true))
+                .execute();
     }
 
 }
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+/**
+ * Adjusts the batch size and the number of requests in flight from server
+ * feedback, additive-increase/multiplicative-decrease (AIMD) style. Both grow
+ * while requests complete within the target latency, shrink slightly when
+ * latency climbs above it, and are halved when the server throttles (429) or
+ * is unavailable (503).
+ *
+ * Decreases happen at most once per adjustment window: feedback on a request
+ * sent before the last decrease describes the load before it, so it does not
+ * decrease them again.
+ *
+ * Aug 5, 2022 11:37:20 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class AdaptiveThrottle {
+
+    public static final long DEFAULT_TARGET_LATENCY_MILLIS = 10_000;
+
+    private static final double LATENCY_BACKOFF = 0.9;
+    private static final double THROTTLE_BACKOFF = 0.5;
+
+    private final int minBatchSize;
+    private final int maxBatchSize;
+    private final int batchSizeIncrement;
+    private final int maxConcurrency;
+    private final long targetLatencyMillis;
+
+    private double batchSize;
+    private double concurrency;
+    private long lastDecreaseMillis = Long.MIN_VALUE;
+
+    public AdaptiveThrottle(int initialBatchSize, int maxBatchSize, int initialConcurrency, int maxConcurrency) {
+        this(1, initialBatchSize, maxBatchSize, initialConcurrency, maxConcurrency, DEFAULT_TARGET_LATENCY_MILLIS);
+    }
+
+    /**
+     * Create a throttle that grows the batch size by a tenth of the initial
+     * batch size per request.
+     */
+    public AdaptiveThrottle(int minBatchSize, int initialBatchSize, int maxBatchSize, int initialConcurrency, int maxConcurrency, long targetLatencyMillis) {
+        this(minBatchSize, initialBatchSize, maxBatchSize, Math.max(1, initialBatchSize / 10), initialConcurrency, maxConcurrency, targetLatencyMillis);
+    }
+
+    /**
+     * @param minBatchSize smallest batch size
+     * @param initialBatchSize starting batch size
+     * @param maxBatchSize largest batch size
+     * @param batchSizeIncrement number of resources the batch size grows by
+     * per request completed within the target latency
+     * @param initialConcurrency starting number of requests in flight
+     * @param maxConcurrency largest number of requests in flight
+     * @param targetLatencyMillis latency above which the throttle backs off
+     */
+    public AdaptiveThrottle(int minBatchSize, int initialBatchSize, int maxBatchSize, int batchSizeIncrement, int initialConcurrency, int maxConcurrency, long targetLatencyMillis) {
+        if (minBatchSize < 1 || initialBatchSize < minBatchSize || maxBatchSize < initialBatchSize) {
+            throw new IllegalArgumentException("Batch sizes must satisfy 1 <= minimum <= initial <= maximum.");
+        }
+        if (initialConcurrency < 1 || maxConcurrency < initialConcurrency) {
+            throw new IllegalArgumentException("Concurrency must satisfy 1 <= initial <= maximum.");
+        }
+        if (batchSizeIncrement < 1) {
+            throw new IllegalArgumentException("Batch size increment must be at least 1.");
+        }
+
+        this.minBatchSize = minBatchSize;
+        this.maxBatchSize = maxBatchSize;
+        this.batchSizeIncrement = batchSizeIncrement;
+        this.maxConcurrency = maxConcurrency;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.batchSize = initialBatchSize;
+        this.concurrency = initialConcurrency;
+    }
+
+    /**
+     * Record a request that completed successfully.
+     *
+     * @param latencyMillis time taken by the request
+     */
+    public synchronized void onSuccess(long latencyMillis) {
+        if (latencyMillis <= targetLatencyMillis) {
+            // grow by about one request in flight per round of requests
+            concurrency = Math.min(maxConcurrency, concurrency + (1.0 / concurrency));
+            batchSize = Math.min(maxBatchSize, batchSize + batchSizeIncrement);
+        } else {
+            decrease(System.currentTimeMillis() - latencyMillis, LATENCY_BACKOFF);
+        }
+    }
+
+    /**
+     * Record a request rejected because the server is overloaded.
+     *
+     * @param requestStartMillis time the request was sent
+     */
+    public synchronized void onThrottled(long requestStartMillis) {
+        decrease(requestStartMillis, THROTTLE_BACKOFF);
+    }
+
+    private void decrease(long requestStartMillis, double backoff) {
+        if (requestStartMillis <= lastDecreaseMillis) {
+            return;
+        }
+
+        concurrency = Math.max(1, concurrency * backoff);
+        batchSize = Math.max(minBatchSize, batchSize * backoff);
+        lastDecreaseMillis = System.currentTimeMillis();
+    }
+
+    public synchronized int getBatchSize() {
+        return (int) batchSize;
+    }
+
+    public synchronized int getConcurrency() {
+        return (int) concurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("batch size: %d, concurrency: %d", (int) batchSize, (int) concurrency);
+    }
+
+}
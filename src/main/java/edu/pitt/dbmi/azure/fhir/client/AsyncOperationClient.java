@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Runs asynchronous FHIR operations ($import, $export): kicks them off with
+ * {@code Prefer: respond-async} and polls the status URL returned in
+ * Content-Location until the operation completes, and downloads the files
+ * it outputs. Requests are sent with the client's HTTP client and
+ * interceptors, so authentication and metrics apply as for any other
+ * request.
+ *
+ * Aug 12, 2022 10:24:51 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class AsyncOperationClient {
+
+    public static final long DEFAULT_POLL_INTERVAL_MILLIS = 5000;
+    public static final long DEFAULT_MAX_POLL_INTERVAL_MILLIS = 60_000;
+
+    private final IGenericClient client;
+    private final long pollIntervalMillis;
+    private final long maxPollIntervalMillis;
+
+    public AsyncOperationClient(IGenericClient client) {
+        this(client, DEFAULT_POLL_INTERVAL_MILLIS, DEFAULT_MAX_POLL_INTERVAL_MILLIS);
+    }
+
+    /**
+     * @param client FHIR client
+     * @param pollIntervalMillis delay before the first poll when the server
+     * does not send Retry-After
+     * @param maxPollIntervalMillis the delay doubles after each poll up to
+     * this maximum
+     */
+    public AsyncOperationClient(IGenericClient client, long pollIntervalMillis, long maxPollIntervalMillis) {
+        this.client = client;
+        this.pollIntervalMillis = pollIntervalMillis;
+        this.maxPollIntervalMillis = maxPollIntervalMillis;
+    }
+
+    /**
+     * Start an asynchronous operation.
+     *
+     * @param method HTTP method, GET or POST
+     * @param url operation URL, relative to the server base or absolute
+     * @param body request body for POST, or null
+     * @return the status URL to poll
+     * @throws IOException if the server does not accept the request
+     */
+    public String kickOff(RequestTypeEnum method, String url, String body) throws IOException {
+        Response response = execute(method, resolve(url), body, true);
+        if (response.status != 202) {
+            throw new IOException(String.format("%s %s failed with HTTP %d: %s", method, url, response.status, response.body));
+        }
+        if (response.contentLocation == null) {
+            throw new IOException(String.format("%s %s returned no Content-Location.", method, url));
+        }
+
+        return response.contentLocation;
+    }
+
+    /**
+     * Poll the status URL until the operation completes.
+     *
+     * @param statusUrl URL returned by {@link #kickOff}
+     * @return the body of the completed status response
+     * @throws IOException if the operation fails
+     * @throws InterruptedException
+     */
+    public String awaitCompletion(String statusUrl) throws IOException, InterruptedException {
+        long delay = pollIntervalMillis;
+        while (true) {
+            Response response = execute(RequestTypeEnum.GET, statusUrl, null, false);
+            switch (response.status) {
+                case 200:
+                    return response.body;
+                case 202:
+                case 429:
+                case 503:
+                    Thread.sleep((response.retryAfterMillis >= 0) ? response.retryAfterMillis : delay);
+                    delay = Math.min(maxPollIntervalMillis, delay * 2);
+                    break;
+                default:
+                    throw new IOException(String.format("Operation %s failed with HTTP %d: %s", statusUrl, response.status, response.body));
+            }
+        }
+    }
+
+    /**
+     * Ask the server to cancel the operation.
+     *
+     * @param statusUrl URL returned by {@link #kickOff}
+     * @throws IOException
+     */
+    public void cancel(String statusUrl) throws IOException {
+        execute(RequestTypeEnum.DELETE, statusUrl, null, false);
+    }
+
+    private String resolve(String url) {
+        if (url.startsWith("http://") || url.startsWith("https://")) {
+            return url;
+        }
+
+        return client.getServerBase().replaceAll("/+$", "") + "/" + url.replaceAll("^/+", "");
+    }
+
+    /**
+     * Download a file, e.g. an output of a completed operation, and stream
+     * its body to the reader.
+     *
+     * @param url absolute URL, or relative to the server base
+     * @param accept media type to accept
+     * @param withInterceptors true to run the client interceptors, e.g. to
+     * authenticate; only for URLs that need it
+     * @param reader reads the body
+     * @throws IOException if the download fails or the reader throws it
+     */
+    public void download(String url, String accept, boolean withInterceptors, EntityReader reader) throws IOException {
+        IHttpRequest request = createRequest(RequestTypeEnum.GET, resolve(url), null);
+        request.removeHeaders(Constants.HEADER_ACCEPT);
+        request.addHeader(Constants.HEADER_ACCEPT, accept);
+
+        List<IClientInterceptor> interceptors = withInterceptors ? getInterceptors() : Collections.emptyList();
+        for (IClientInterceptor interceptor : interceptors) {
+            interceptor.interceptRequest(request);
+        }
+
+        IHttpResponse response = request.execute();
+        try {
+            for (IClientInterceptor interceptor : interceptors) {
+                interceptor.interceptResponse(response);
+            }
+
+            if (response.getStatus() != 200) {
+                throw new IOException(String.format("GET %s failed with HTTP %d: %s", url, response.getStatus(), readBody(response)));
+            }
+
+            try (InputStream entity = response.readEntity()) {
+                reader.read((entity == null) ? InputStream.nullInputStream() : entity);
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private IHttpRequest createRequest(RequestTypeEnum method, String url, String body) {
+        FhirContext fhirContext = client.getFhirContext();
+        IHttpClient httpClient = fhirContext.getRestfulClientFactory()
+                .getHttpClient(new StringBuilder(url), Collections.emptyMap(), null, method, Collections.emptyList());
+
+        return (body == null)
+                ? httpClient.createGetRequest(fhirContext, EncodingEnum.JSON)
+                : httpClient.createByteRequest(fhirContext, body, Constants.CT_FHIR_JSON_NEW, EncodingEnum.JSON);
+    }
+
+    private List<IClientInterceptor> getInterceptors() {
+        return client.getInterceptorService()
+                .getAllRegisteredInterceptors().stream()
+                .filter(IClientInterceptor.class::isInstance)
+                .map(IClientInterceptor.class::cast)
+                .collect(Collectors.toList());
+    }
+
+    private Response execute(RequestTypeEnum method, String url, String body, boolean respondAsync) throws IOException {
+        IHttpRequest request = createRequest(method, url, body);
+        request.addHeader(Constants.HEADER_ACCEPT, Constants.CT_FHIR_JSON_NEW);
+        if (respondAsync) {
+            request.addHeader(Constants.HEADER_PREFER, Constants.HEADER_PREFER_RESPOND_ASYNC);
+        }
+
+        List<IClientInterceptor> interceptors = getInterceptors();
+        for (IClientInterceptor interceptor : interceptors) {
+            interceptor.interceptRequest(request);
+        }
+
+        IHttpResponse response = request.execute();
+        try {
+            for (IClientInterceptor interceptor : interceptors) {
+                interceptor.interceptResponse(response);
+            }
+
+            return new Response(response.getStatus(),
+                    getFirstHeader(response, Constants.HEADER_CONTENT_LOCATION),
+                    RetryAfterInterceptor.getRetryAfterMillis(response),
+                    readBody(response));
+        } finally {
+            response.close();
+        }
+    }
+
+    private static String getFirstHeader(IHttpResponse response, String name) {
+        List<String> values = response.getHeaders(name);
+
+        return (values == null || values.isEmpty()) ? null : values.get(0);
+    }
+
+    private static String readBody(IHttpResponse response) throws IOException {
+        try (InputStream entity = response.readEntity()) {
+            return (entity == null) ? "" : new String(entity.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Reads a downloaded body as it arrives.
+     */
+    @FunctionalInterface
+    public interface EntityReader {
+
+        void read(InputStream entity) throws IOException;
+
+    }
+
+    private static class Response {
+
+        private final int status;
+        private final String contentLocation;
+        private final long retryAfterMillis;
+        private final String body;
+
+        private Response(int status, String contentLocation, long retryAfterMillis, String body) {
+            this.status = status;
+            this.contentLocation = contentLocation;
+            this.retryAfterMillis = retryAfterMillis;
+            this.body = body;
+        }
+
+    }
+
+}
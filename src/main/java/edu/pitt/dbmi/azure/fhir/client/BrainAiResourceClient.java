@@ -29,17 +29,25 @@ import edu.pitt.dbmi.fhir.resource.mapper.util.JsonResourceConverterR4;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.DiagnosticReport;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Reference;
@@ -53,8 +61,52 @@ import org.hl7.fhir.r4.model.Resource;
  */
 public class BrainAiResourceClient extends AbstractResourceClient {
 
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+
+    static final String PERSON_IDENTIFIER_SYSTEM = "urn:oid:2.16.840.1.113883.3.552";
+    static final String OBSERVATION_IDENTIFIER_SYSTEM = "https://fhir.cerner.com/ceuuid";
+
+    private final IdentifierResolver identifierResolver;
+    private final ReferenceRegistry referenceRegistry;
+    private final ResourceCache cache;
+
     public BrainAiResourceClient(IGenericClient client) {
-        super(client);
+        this(client, new ReferenceRegistry(client.getFhirContext()));
+    }
+
+    public BrainAiResourceClient(IGenericClient client, ReferenceRegistry referenceRegistry) {
+        this(client, referenceRegistry, MetricsRegistry.NONE);
+    }
+
+    public BrainAiResourceClient(IGenericClient client, ReferenceRegistry referenceRegistry, MetricsRegistry metrics) {
+        this(client, referenceRegistry, metrics, UploadMode.CREATE);
+    }
+
+    public BrainAiResourceClient(IGenericClient client, ReferenceRegistry referenceRegistry, MetricsRegistry metrics, UploadMode uploadMode) {
+        this(client, referenceRegistry, metrics, uploadMode, null);
+    }
+
+    /**
+     * @param client FHIR client
+     * @param referenceRegistry server IDs of the uploaded resources
+     * @param metrics registry receiving the metrics
+     * @param uploadMode how uploaded resources are matched to existing ones
+     * @param cache cache for the find methods and the reference lookups, or
+     * null to always search the server
+     */
+    public BrainAiResourceClient(IGenericClient client, ReferenceRegistry referenceRegistry, MetricsRegistry metrics, UploadMode uploadMode, ResourceCache cache) {
+        super(client, metrics, uploadMode);
+        this.identifierResolver = new IdentifierResolver(client, IdentifierResolver.DEFAULT_BATCH_SIZE, cache);
+        this.referenceRegistry = referenceRegistry;
+        this.cache = cache;
+    }
+
+    @Override
+    protected void resourcesWritten(List<Resource> resources) {
+        if (cache != null) {
+            cache.invalidate(resources);
+        }
     }
 
     public void addResources(Path resourceDirectory) throws IOException {
@@ -64,23 +116,147 @@ public class BrainAiResourceClient extends AbstractResourceClient {
 //        addObservations(Paths.get(resourceDirectory.toString(), "observations.tsv"));
 //        addDiagnosticReports(Paths.get(resourceDirectory.toString(), "diagnostic_report.tsv"));
 
-//        addPatients(Paths.get(resourceDirectory.toString(), "patients.tsv"), 500);
-//        addEncounters(Paths.get(resourceDirectory.toString(), "encounters.tsv"), 500);
-//        addObservations(Paths.get(resourceDirectory.toString(), "observations.tsv"), 500);
+//        addPatients(Paths.get(resourceDirectory.toString(), "patients.tsv"), 500, 8);
+//        addEncounters(Paths.get(resourceDirectory.toString(), "encounters.tsv"), 500, 8);
+//        addObservations(Paths.get(resourceDirectory.toString(), "observations.tsv"), 500, 8);
 //        addDiagnosticReports(Paths.get(resourceDirectory.toString(), "diagnostic_report.tsv"), 1);
         System.out.println("================================================================================");
     }
 
+    public UploadSummary loadResources(Path resourceDirectory) {
+        return loadResources(resourceDirectory, DEFAULT_BATCH_SIZE, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Load the patients, encounters, observations and diagnostic reports of
+     * the directory together. The files are read and uploaded at the same
+     * time, and a resource is uploaded as soon as the resources it references
+     * have been, e.g. the observations of a patient go as soon as the patient
+     * and encounter are on the server.
+     *
+     * @param resourceDirectory directory of the BrainAI TSV files
+     * @param batchSize number of resources in each bundle
+     * @param maxInFlight maximum number of bundles in flight
+     * @return results of the bundles
+     */
+    public UploadSummary loadResources(Path resourceDirectory, int batchSize, int maxInFlight) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            return createPipeline(resourceDirectory, batchSize).run(uploader);
+        }
+    }
+
+    public UploadSummary loadResources(Path resourceDirectory, AdaptiveThrottle throttle) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return createPipeline(resourceDirectory, throttle.getBatchSize()).run(uploader);
+        }
+    }
+
+    private LoadPipeline createPipeline(Path resourceDirectory, int batchSize) {
+        return new LoadPipeline(referenceRegistry, this::resolveReferences, this::addResources, batchSize)
+                .add("Patient", PERSON_IDENTIFIER_SYSTEM, Paths.get(resourceDirectory.toString(), "patients.tsv"),
+                        PatientResourceMapper::getPatient,
+                        resource -> Collections.emptyList(),
+                        resource -> {
+                        })
+                .add("Encounter", PERSON_IDENTIFIER_SYSTEM, Paths.get(resourceDirectory.toString(), "encounters.tsv"),
+                        EncounterResourceMapper::getEncounter,
+                        resource -> getDependencies((Encounter) resource),
+                        resource -> setReferences((Encounter) resource))
+                .add("Observation", OBSERVATION_IDENTIFIER_SYSTEM, Paths.get(resourceDirectory.toString(), "observations.tsv"),
+                        ObservationResourceMapper::getObservation,
+                        resource -> getDependencies((Observation) resource),
+                        resource -> setReferences((Observation) resource))
+                .add("DiagnosticReport", null, Paths.get(resourceDirectory.toString(), "diagnostic_report.tsv"),
+                        DiagnosticReportResourceMapper::getDiagnosticReport,
+                        resource -> getDependencies((DiagnosticReport) resource),
+                        resource -> setReferences((DiagnosticReport) resource));
+    }
+
+    /**
+     * Load the patients, encounters and observations of the directory with a
+     * checkpoint per file. Files already loaded are skipped, and a load
+     * interrupted by a failure or a crash resumes after the last committed
+     * batch when called again with the same checkpoint directory. For the
+     * references of the loaded resources to survive a restart as well, the
+     * reference registry should be backed by a {@link PersistentReferenceStore};
+     * otherwise they are searched again on the server.
+     *
+     * Rows after the checkpoint are loaded at least once: with several
+     * bundles in flight, bundles after a failed one may already be stored,
+     * and they are sent again on resume. Resuming a partly loaded file
+     * therefore requires a conditional upload mode, so that those rows are
+     * matched instead of duplicated.
+     *
+     * @param resourceDirectory directory of the BrainAI TSV files
+     * @param batchSize number of resources in each bundle
+     * @param maxInFlight maximum number of bundles in flight
+     * @param checkpointDirectory directory of the checkpoint files
+     * @return true if all the files have been loaded
+     * @throws IOException
+     * @throws IllegalStateException if a partly loaded file would be resumed
+     * in the CREATE upload mode
+     */
+    public boolean addResources(Path resourceDirectory, int batchSize, int maxInFlight, Path checkpointDirectory) throws IOException {
+        return addResources(resourceDirectory, batchSize, maxInFlight, checkpointDirectory, null);
+    }
+
+    /**
+     * Load the patients, encounters and observations of the directory with a
+     * checkpoint per file, as above. With a dead-letter directory, the
+     * bundles are sent as BATCH bundles: rows that can not be mapped or
+     * uploaded are written to a dead-letter file per source file instead of
+     * stopping the load, and only the entries that failed with a retryable
+     * status are sent again.
+     *
+     * @param resourceDirectory directory of the BrainAI TSV files
+     * @param batchSize number of resources in each bundle
+     * @param maxInFlight maximum number of bundles in flight
+     * @param checkpointDirectory directory of the checkpoint files
+     * @param deadLetterDirectory directory of the dead-letter files, or null
+     * to send transaction bundles
+     * @return true if all the files have been loaded
+     * @throws IOException
+     */
+    public boolean addResources(Path resourceDirectory, int batchSize, int maxInFlight, Path checkpointDirectory, Path deadLetterDirectory) throws IOException {
+        return addResources(Paths.get(resourceDirectory.toString(), "patients.tsv"), batchSize, maxInFlight, checkpointDirectory, deadLetterDirectory,
+                PatientResourceMapper::getPatient, this::submitPatients)
+                && addResources(Paths.get(resourceDirectory.toString(), "encounters.tsv"), batchSize, maxInFlight, checkpointDirectory, deadLetterDirectory,
+                        EncounterResourceMapper::getEncounter, this::submitEncounters)
+                && addResources(Paths.get(resourceDirectory.toString(), "observations.tsv"), batchSize, maxInFlight, checkpointDirectory, deadLetterDirectory,
+                        ObservationResourceMapper::getObservation, this::submitObservations);
+    }
+
+    private boolean addResources(Path tsvFile, int batchSize, int maxInFlight, Path checkpointDirectory, Path deadLetterDirectory, LoadPipeline.RowMapper mapper, BatchSubmitter submitter) throws IOException {
+        LoadCheckpoint checkpoint = LoadCheckpoint.of(checkpointDirectory, tsvFile);
+        if (checkpoint.isComplete()) {
+            return true;
+        }
+
+        if (deadLetterDirectory == null) {
+            try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+                addResources(tsvFile, batchSize, uploader, checkpoint, null, mapper, submitter);
+            }
+        } else {
+            try (DeadLetterFile deadLetters = DeadLetterFile.of(deadLetterDirectory, tsvFile);
+                    BundleUploader uploader = new BundleUploader(client, maxInFlight, Bundle.BundleType.BATCH)) {
+                addResources(tsvFile, batchSize, uploader, checkpoint, deadLetters, mapper, submitter);
+                if (deadLetters.getCount() > 0) {
+                    System.err.printf("%d rows of %s were written to %s.%n", deadLetters.getCount(), tsvFile, deadLetters.getFile());
+                }
+            }
+        }
+
+        return checkpoint.isComplete();
+    }
+
     public void addDiagnosticReports(Path tsvFile, int batchSize) {
         List<DiagnosticReport> diagnosticReports = DiagnosticReportResourceMapper.getDiagnosticReports(tsvFile, Delimiters.TAB_DELIM);
-        Map<String, Patient> patientReferences = fetchPatientsFromDiagnosticReports(diagnosticReports);
-        Map<String, Encounter> encounterReferences = fetchEncountersFromDiagnosticReports(diagnosticReports);
-        Map<String, Observation> observationReferences = fetchObservationEncounterFromDiagnosticReports(diagnosticReports);
+        resolveDiagnosticReportReferences(diagnosticReports);
 
         List<DiagnosticReport> batchList = new LinkedList<>();
         diagnosticReports.forEach(diagnosticReport -> {
             if (batchList.size() == batchSize) {
-                addDiagnosticReports(batchList, patientReferences, encounterReferences, observationReferences);
+                addDiagnosticReports(batchList);
                 batchList.clear();
             }
 
@@ -88,44 +264,22 @@ public class BrainAiResourceClient extends AbstractResourceClient {
         });
 
         if (!batchList.isEmpty()) {
-            addDiagnosticReports(batchList, patientReferences, encounterReferences, observationReferences);
+            addDiagnosticReports(batchList);
             batchList.clear();
         }
     }
 
     public Bundle addDiagnosticReports(Path tsvFile) {
         List<DiagnosticReport> diagnosticReports = DiagnosticReportResourceMapper.getDiagnosticReports(tsvFile, Delimiters.TAB_DELIM);
-        Map<String, Patient> patientReferences = fetchPatientsFromDiagnosticReports(diagnosticReports);
-        Map<String, Encounter> encounterReferences = fetchEncountersFromDiagnosticReports(diagnosticReports);
-        Map<String, Observation> observationReferences = fetchObservationEncounterFromDiagnosticReports(diagnosticReports);
+        resolveDiagnosticReportReferences(diagnosticReports);
 
-        return addDiagnosticReports(diagnosticReports, patientReferences, encounterReferences, observationReferences);
+        return addDiagnosticReports(diagnosticReports);
     }
 
-    private Bundle addDiagnosticReports(
-            List<DiagnosticReport> diagnosticReports,
-            Map<String, Patient> patientReferences,
-            Map<String, Encounter> encounterReferences,
-            Map<String, Observation> observationReferences) {
+    private Bundle addDiagnosticReports(List<DiagnosticReport> diagnosticReports) {
         List<Resource> resources = diagnosticReports.stream()
                 .map(diagnosticReport -> {
-                    Patient patient = patientReferences.get(diagnosticReport.getSubject().getReference());
-                    Encounter encounter = encounterReferences.get(diagnosticReport.getEncounter().getReference());
-                    if (!(patient == null || encounter == null)) {
-                        diagnosticReport.setSubject(new Reference()
-                                .setReference("Patient/" + patient.getIdElement().getIdPart())
-                                .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
-                        diagnosticReport.setEncounter(new Reference()
-                                .setReference("Encounter/" + encounter.getIdElement().getIdPart()));
-
-                        diagnosticReport.getResult()
-                                .forEach(reference -> {
-                                    Observation observation = observationReferences.get(reference.getReference());
-                                    if (observation != null) {
-                                        reference.setReference("Observation/" + observation.getIdElement().getIdPart());
-                                    }
-                                });
-                    }
+                    setReferences(diagnosticReport);
 
                     System.out.println(JsonResourceConverterR4.resourceToJson(diagnosticReport));
                     return (Resource) diagnosticReport;
@@ -137,160 +291,324 @@ public class BrainAiResourceClient extends AbstractResourceClient {
 
     public Bundle addObservations(Path tsvFile) {
         List<Observation> observations = ObservationResourceMapper.getObservations(tsvFile, Delimiters.TAB_DELIM);
-        Map<String, Patient> patientReferences = fetchPatientsFromObservations(observations);
-        Map<String, Encounter> encounterReferences = fetchEncountersFromObservations(observations);
+        resolveObservationReferences(observations);
 
         List<Resource> resources = observations.stream()
-                .map(observation -> {
-                    Patient patient = patientReferences.get(observation.getSubject().getReference());
-                    Encounter encounter = encounterReferences.get(observation.getEncounter().getReference());
-                    if (!(patient == null || encounter == null)) {
-                        observation.setSubject(new Reference()
-                                .setReference("Patient/" + patient.getIdElement().getIdPart())
-                                .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
-                        observation.setEncounter(new Reference()
-                                .setReference("Encounter/" + encounter.getIdElement().getIdPart()));
-                    }
-                    return (Resource) observation;
-                })
+                .map(this::setReferences)
                 .collect(Collectors.toList());
 
-        return addResources(resources, "Observation");
+        return addAndRegisterResources(resources, "Observation", OBSERVATION_IDENTIFIER_SYSTEM);
     }
 
-    public void addObservations(Path tsvFile, int batchSize) {
-        Map<String, Patient> patientReferences = new HashMap<>();
-        Map<String, Encounter> encounterReferences = new HashMap<>();
-        List<String> batch = new LinkedList<>();
-        try (BufferedReader reader = Files.newBufferedReader(tsvFile, Charset.defaultCharset())) {
-            reader.readLine(); // skip header
-            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-                if (batch.size() == batchSize) {
-                    addObservation(batch, patientReferences, encounterReferences);
-                    batch.clear();
-                }
+    public UploadSummary addObservations(Path tsvFile, int batchSize) {
+        return addObservations(tsvFile, batchSize, 1);
+    }
 
-                batch.add(line);
-            }
-        } catch (IOException | ParseException exception) {
-            exception.printStackTrace(System.err);
+    public UploadSummary addObservations(Path tsvFile, int batchSize, int maxInFlight) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            return addObservations(tsvFile, batchSize, uploader);
         }
+    }
 
-        try {
-            addObservation(batch, patientReferences, encounterReferences);
-            batch.clear();
-        } catch (ParseException exception) {
-            exception.printStackTrace(System.err);
+    public UploadSummary addObservations(Path tsvFile, AdaptiveThrottle throttle) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return addObservations(tsvFile, throttle.getBatchSize(), uploader);
         }
     }
 
-    public void addEncounters(Path tsvFile, int batchSize) {
-        Map<String, Patient> patientReferences = new HashMap<>();
-        List<String> batch = new LinkedList<>();
-        try (BufferedReader reader = Files.newBufferedReader(tsvFile, Charset.defaultCharset())) {
-            reader.readLine(); // skip header
-            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-                if (batch.size() == batchSize) {
-                    addEncounter(batch, patientReferences);
-                    batch.clear();
+    public UploadSummary addObservations(Path tsvFile, int batchSize, int maxInFlight, LoadCheckpoint checkpoint) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            return addResources(tsvFile, batchSize, uploader, checkpoint, null, ObservationResourceMapper::getObservation, this::submitObservations);
+        }
+    }
+
+    public UploadSummary addObservations(Path tsvFile, AdaptiveThrottle throttle, LoadCheckpoint checkpoint) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return addResources(tsvFile, throttle.getBatchSize(), uploader, checkpoint, null, ObservationResourceMapper::getObservation, this::submitObservations);
+        }
+    }
+
+    public UploadSummary addObservations(Path tsvFile, int batchSize, int maxInFlight, LoadCheckpoint checkpoint, DeadLetterFile deadLetters) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight, Bundle.BundleType.BATCH)) {
+            return addResources(tsvFile, batchSize, uploader, checkpoint, deadLetters, ObservationResourceMapper::getObservation, this::submitObservations);
+        }
+    }
+
+    public UploadSummary addObservations(Path tsvFile, Charset charset, int batchSize, int maxInFlight, ParallelTsvReader tsvReader) {
+        return addResources(tsvFile, charset, batchSize, maxInFlight, tsvReader,
+                ObservationResourceMapper::getObservation, this::submitObservations);
+    }
+
+    private UploadSummary addObservations(Path tsvFile, int batchSize, BundleUploader uploader) {
+        return addResources(tsvFile, batchSize, uploader, null, null, ObservationResourceMapper::getObservation, this::submitObservations);
+    }
+
+    public UploadSummary addEncounters(Path tsvFile, int batchSize) {
+        return addEncounters(tsvFile, batchSize, 1);
+    }
+
+    public UploadSummary addEncounters(Path tsvFile, int batchSize, int maxInFlight) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            return addEncounters(tsvFile, batchSize, uploader);
+        }
+    }
+
+    public UploadSummary addEncounters(Path tsvFile, AdaptiveThrottle throttle) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return addEncounters(tsvFile, throttle.getBatchSize(), uploader);
+        }
+    }
+
+    public UploadSummary addEncounters(Path tsvFile, int batchSize, int maxInFlight, LoadCheckpoint checkpoint) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            return addResources(tsvFile, batchSize, uploader, checkpoint, null, EncounterResourceMapper::getEncounter, this::submitEncounters);
+        }
+    }
+
+    public UploadSummary addEncounters(Path tsvFile, AdaptiveThrottle throttle, LoadCheckpoint checkpoint) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return addResources(tsvFile, throttle.getBatchSize(), uploader, checkpoint, null, EncounterResourceMapper::getEncounter, this::submitEncounters);
+        }
+    }
+
+    public UploadSummary addEncounters(Path tsvFile, int batchSize, int maxInFlight, LoadCheckpoint checkpoint, DeadLetterFile deadLetters) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight, Bundle.BundleType.BATCH)) {
+            return addResources(tsvFile, batchSize, uploader, checkpoint, deadLetters, EncounterResourceMapper::getEncounter, this::submitEncounters);
+        }
+    }
+
+    public UploadSummary addEncounters(Path tsvFile, Charset charset, int batchSize, int maxInFlight, ParallelTsvReader tsvReader) {
+        return addResources(tsvFile, charset, batchSize, maxInFlight, tsvReader,
+                EncounterResourceMapper::getEncounter, this::submitEncounters);
+    }
+
+    private UploadSummary addEncounters(Path tsvFile, int batchSize, BundleUploader uploader) {
+        return addResources(tsvFile, batchSize, uploader, null, null, EncounterResourceMapper::getEncounter, this::submitEncounters);
+    }
+
+    /**
+     * Upload the rows of the TSV file in batches. With a checkpoint, the load
+     * starts after the last committed batch, and the checkpoint is advanced
+     * once a batch and all the batches before it have been uploaded and their
+     * references stored. The load then stops at the first failed batch so
+     * that the checkpoint never skips over rows that were not uploaded.
+     * Batches after the failed one may already be stored, so a resume sends
+     * them again, and is refused in the CREATE upload mode.
+     *
+     * With a dead-letter file, rows that can not be mapped and the failed
+     * entries of BATCH bundles are written to it and the load goes on.
+     * Without one, the load stops at the first row that can not be mapped.
+     *
+     * @param checkpoint load position of the file, or null to load the whole
+     * file and continue past failed batches
+     * @param deadLetters receives the rows that were not loaded, or null
+     */
+    private UploadSummary addResources(Path tsvFile, int batchSize, BundleUploader uploader, LoadCheckpoint checkpoint, DeadLetterFile deadLetters, LoadPipeline.RowMapper mapper, BatchSubmitter submitter) {
+        if (checkpoint != null && checkpoint.getOffset() > 0 && !checkpoint.isComplete() && uploadMode == UploadMode.CREATE) {
+            throw new IllegalStateException(String.format(
+                    "Resuming %s at line %d would duplicate rows already stored; use a conditional upload mode.",
+                    tsvFile, checkpoint.getLineNumber() + 1));
+        }
+
+        AtomicBoolean stopped = new AtomicBoolean();
+        long offset = (checkpoint == null) ? 0 : checkpoint.getOffset();
+        long lineNumber = (checkpoint == null) ? 0 : checkpoint.getLineNumber();
+        try (OffsetLineReader reader = new OffsetLineReader(tsvFile, StandardCharsets.UTF_8, offset, lineNumber)) {
+            if (offset == 0) {
+                reader.readLine(); // skip header
+            }
+
+            List<SourceRow> rows = new ArrayList<>();
+            List<Resource> resources = new ArrayList<>();
+            for (String line = reader.readLine(); line != null && !stopped.get(); line = reader.readLine()) {
+                Resource resource = map(line, reader.getLineNumber(), mapper, deadLetters);
+                if (resource == null) {
+                    continue;
+                }
+
+                rows.add(new SourceRow(reader.getLineNumber(), line));
+                resources.add(resource);
+                if (resources.size() >= uploader.getBatchSize(batchSize)) {
+                    submitter.submit(resources, uploader, writeDeadLetters(rows, deadLetters)
+                            .andThen(commit(checkpoint, reader.getOffset(), reader.getLineNumber(), stopped, deadLetters)));
+                    rows = new ArrayList<>();
+                    resources = new ArrayList<>();
                 }
+            }
 
-                batch.add(line);
+            if (!stopped.get()) {
+                if (resources.isEmpty()) {
+                    // the last rows, if any, were all dead-lettered
+                    uploader.awaitCompletion();
+                    if (!stopped.get()) {
+                        save(checkpoint, reader.getOffset(), reader.getLineNumber(), stopped, deadLetters);
+                    }
+                } else {
+                    submitter.submit(resources, uploader, writeDeadLetters(rows, deadLetters)
+                            .andThen(commit(checkpoint, reader.getOffset(), reader.getLineNumber(), stopped, deadLetters)));
+                }
             }
         } catch (IOException | ParseException exception) {
             exception.printStackTrace(System.err);
         }
 
+        UploadSummary summary = uploader.awaitCompletion();
+        if (checkpoint != null && !checkpoint.isComplete()) {
+            System.err.printf("Load stopped at %s.%n", checkpoint);
+        }
+
+        return summary;
+    }
+
+    /**
+     * @return the resource, or null if the row could not be mapped and was
+     * written to the dead-letter file
+     */
+    private static Resource map(String line, long lineNumber, LoadPipeline.RowMapper mapper, DeadLetterFile deadLetters) throws IOException, ParseException {
         try {
-            addEncounter(batch, patientReferences);
-            batch.clear();
-        } catch (ParseException exception) {
-            exception.printStackTrace(System.err);
+            return mapper.map(Delimiters.TAB_DELIM.split(line));
+        } catch (ParseException | RuntimeException exception) {
+            if (deadLetters == null) {
+                throw exception;
+            }
+
+            deadLetters.write(lineNumber, "Invalid row: " + exception.getMessage(), line);
+
+            return null;
         }
     }
 
-    private void addObservation(
-            List<String> batch,
-            Map<String, Patient> patientReferences,
-            Map<String, Encounter> encounterReferences) throws ParseException {
-        List<Resource> resources = new LinkedList<>();
-        for (String line : batch) {
-            Observation observation = ObservationResourceMapper.getObservation(Delimiters.TAB_DELIM.split(line));
+    /**
+     * Write the rows of the failed entries of an uploaded bundle. Rows of a
+     * bundle that failed as a whole are not written; they are reported by the
+     * upload summary, and with a checkpoint they are loaded again on resume.
+     */
+    private static Consumer<UploadResult> writeDeadLetters(List<SourceRow> rows, DeadLetterFile deadLetters) {
+        return result -> {
+            if (deadLetters == null || !result.isSuccess()) {
+                return;
+            }
 
-            Patient patient = patientReferences.get(observation.getSubject().getReference());
-            if (patient == null) {
-                Resource resource = findPatientBySubject(observation.getSubject()).getEntryFirstRep().getResource();
-                if (resource != null) {
-                    patient = (Patient) resource;
-                    patientReferences.put(observation.getSubject().getReference(), patient);
+            for (int index : result.getFailedEntries()) {
+                SourceRow row = rows.get(index);
+                try {
+                    deadLetters.write(row.lineNumber, result.getEntryError(index), row.line);
+                } catch (IOException exception) {
+                    exception.printStackTrace(System.err);
                 }
             }
-            Encounter encounter = encounterReferences.get(observation.getEncounter().getReference());
-            if (encounter == null) {
-                Resource resource = findEncounterBySubject(observation.getEncounter()).getEntryFirstRep().getResource();
-                if (resource != null) {
-                    encounter = (Encounter) resource;
-                    encounterReferences.put(observation.getEncounter().getReference(), encounter);
-                }
+        };
+    }
+
+    private Consumer<UploadResult> commit(LoadCheckpoint checkpoint, long offset, long lineNumber, AtomicBoolean stopped, DeadLetterFile deadLetters) {
+        return result -> {
+            if (checkpoint == null || stopped.get()) {
+                return;
             }
 
-            if (!(patient == null || encounter == null)) {
-                observation.setSubject(new Reference()
-                        .setReference("Patient/" + patient.getIdElement().getIdPart())
-                        .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
-                observation.setEncounter(new Reference()
-                        .setReference("Encounter/" + encounter.getIdElement().getIdPart()));
+            if (!result.isSuccess()) {
+                stopped.set(true);
+
+                return;
             }
 
-            resources.add(observation);
+            save(checkpoint, offset, lineNumber, stopped, deadLetters);
+        };
+    }
+
+    /**
+     * Store the references and the dead letters of the rows before the
+     * offset, then commit the checkpoint.
+     */
+    private void save(LoadCheckpoint checkpoint, long offset, long lineNumber, AtomicBoolean stopped, DeadLetterFile deadLetters) {
+        if (checkpoint == null) {
+            return;
         }
 
-        addResources(resources, "Observation");
+        try {
+            referenceRegistry.flush();
+            if (deadLetters != null) {
+                deadLetters.flush();
+            }
+            checkpoint.commit(offset, lineNumber);
+        } catch (IOException exception) {
+            stopped.set(true);
+            exception.printStackTrace(System.err);
+        }
     }
 
-    private void addEncounter(List<String> batch, Map<String, Patient> patientReferences) throws ParseException {
-        List<Resource> resources = new LinkedList<>();
-        for (String line : batch) {
-            Encounter encounter = EncounterResourceMapper.getEncounter(Delimiters.TAB_DELIM.split(line));
+    private static final class SourceRow {
 
-            Patient patient = patientReferences.get(encounter.getSubject().getReference());
-            if (patient == null) {
-                Resource resource = findPatientBySubject(encounter.getSubject()).getEntryFirstRep().getResource();
-                if (resource != null) {
-                    patient = (Patient) resource;
-                    patientReferences.put(encounter.getSubject().getReference(), patient);
-                }
-            }
-            if (patient != null) {
-                encounter.setSubject(new Reference()
-                        .setReference("Patient/" + patient.getIdElement().getIdPart())
-                        .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
+        private final long lineNumber;
+        private final String line;
+
+        private SourceRow(long lineNumber, String line) {
+            this.lineNumber = lineNumber;
+            this.line = line;
+        }
+
+    }
+
+    /**
+     * Map the rows of the TSV file in parallel and upload the resources in
+     * batches. Batches are resolved and submitted one at a time, so a full
+     * uploader holds back the reader.
+     */
+    private UploadSummary addResources(Path tsvFile, Charset charset, int batchSize, int maxInFlight, ParallelTsvReader tsvReader, LoadPipeline.RowMapper mapper, BatchSubmitter submitter) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            try {
+                tsvReader.read(tsvFile, charset, batchSize, mapper, batch -> submitter.submit(batch, uploader, result -> {
+                }));
+            } catch (IOException exception) {
+                exception.printStackTrace(System.err);
             }
 
-            resources.add(encounter);
+            return uploader.awaitCompletion();
         }
+    }
+
+    @FunctionalInterface
+    private interface BatchSubmitter {
+
+        void submit(List<Resource> batch, BundleUploader uploader, Consumer<UploadResult> callback);
+
+    }
 
-        addResources(resources, "Encounter");
+    private void submitObservations(List<Resource> batch, BundleUploader uploader, Consumer<UploadResult> callback) {
+        List<Observation> observations = batch.stream()
+                .map(Observation.class::cast)
+                .collect(Collectors.toList());
+        resolveObservationReferences(observations);
+
+        List<Resource> resources = observations.stream()
+                .map(this::setReferences)
+                .collect(Collectors.toList());
+
+        addResources(resources, "Observation", OBSERVATION_IDENTIFIER_SYSTEM, uploader, registerReferences(OBSERVATION_IDENTIFIER_SYSTEM).andThen(callback));
+    }
+
+    private void submitEncounters(List<Resource> batch, BundleUploader uploader, Consumer<UploadResult> callback) {
+        List<Encounter> encounters = batch.stream()
+                .map(Encounter.class::cast)
+                .collect(Collectors.toList());
+        resolveEncounterReferences(encounters);
+
+        List<Resource> resources = encounters.stream()
+                .map(this::setReferences)
+                .collect(Collectors.toList());
+
+        addResources(resources, "Encounter", PERSON_IDENTIFIER_SYSTEM, uploader, registerReferences(PERSON_IDENTIFIER_SYSTEM).andThen(callback));
     }
 
     public Bundle addEncounters(Path tsvFile) {
         List<Encounter> encounters = EncounterResourceMapper.getEncounters(tsvFile, Delimiters.TAB_DELIM);
-        Map<String, Patient> patientReferences = fetchPatientsFromEncounters(encounters);
+        resolveEncounterReferences(encounters);
 
         List<Resource> resources = encounters.stream()
-                .map(encounter -> {
-                    Patient patient = patientReferences.get(encounter.getSubject().getReference());
-                    if (patient != null) {
-                        encounter.setSubject(new Reference()
-                                .setReference("Patient/" + patient.getIdElement().getIdPart())
-                                .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
-                    }
-
-                    return (Resource) encounter;
-                })
+                .map(this::setReferences)
                 .collect(Collectors.toList());
 
-        return addResources(resources, "Encounter");
+        return addAndRegisterResources(resources, "Encounter", PERSON_IDENTIFIER_SYSTEM);
     }
 
     public Bundle addPatients(Path tsvFile) {
@@ -298,187 +616,431 @@ public class BrainAiResourceClient extends AbstractResourceClient {
                 .getPatients(tsvFile, Delimiters.TAB_DELIM).stream()
                 .map(e -> (Resource) e).collect(Collectors.toList());
 
-        return addResources(patients, "Patient");
+        return addAndRegisterResources(patients, "Patient", PERSON_IDENTIFIER_SYSTEM);
     }
 
-    public void addPatients(Path tsvFile, int batchSize) {
-        List<String> batch = new LinkedList<>();
-        try (BufferedReader reader = Files.newBufferedReader(tsvFile, Charset.defaultCharset())) {
-            reader.readLine(); // skip header
-            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
-                if (batch.size() == batchSize) {
-                    addPatients(batch);
-                    batch.clear();
-                }
+    public UploadSummary addPatients(Path tsvFile, int batchSize) {
+        return addPatients(tsvFile, batchSize, 1);
+    }
 
-                batch.add(line);
-            }
-        } catch (IOException | ParseException exception) {
-            exception.printStackTrace(System.err);
+    public UploadSummary addPatients(Path tsvFile, int batchSize, int maxInFlight) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            return addPatients(tsvFile, batchSize, uploader);
         }
+    }
 
-        try {
-            addPatients(batch);
-            batch.clear();
-        } catch (ParseException exception) {
-            exception.printStackTrace(System.err);
+    public UploadSummary addPatients(Path tsvFile, AdaptiveThrottle throttle) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return addPatients(tsvFile, throttle.getBatchSize(), uploader);
+        }
+    }
+
+    public UploadSummary addPatients(Path tsvFile, int batchSize, int maxInFlight, LoadCheckpoint checkpoint) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight)) {
+            return addResources(tsvFile, batchSize, uploader, checkpoint, null, PatientResourceMapper::getPatient, this::submitPatients);
         }
     }
 
-    private void addPatients(List<String> batch) throws ParseException {
-        List<Resource> resources = new LinkedList<>();
-        for (String line : batch) {
-            resources.add(PatientResourceMapper.getPatient(Delimiters.TAB_DELIM.split(line)));
+    public UploadSummary addPatients(Path tsvFile, AdaptiveThrottle throttle, LoadCheckpoint checkpoint) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            return addResources(tsvFile, throttle.getBatchSize(), uploader, checkpoint, null, PatientResourceMapper::getPatient, this::submitPatients);
         }
+    }
 
-        addResources(resources, "Patient");
+    public UploadSummary addPatients(Path tsvFile, int batchSize, int maxInFlight, LoadCheckpoint checkpoint, DeadLetterFile deadLetters) {
+        try (BundleUploader uploader = new BundleUploader(client, maxInFlight, Bundle.BundleType.BATCH)) {
+            return addResources(tsvFile, batchSize, uploader, checkpoint, deadLetters, PatientResourceMapper::getPatient, this::submitPatients);
+        }
     }
 
-    private Map<String, Observation> fetchObservationEncounterFromDiagnosticReports(List<DiagnosticReport> diagnosticReports) {
-        Map<String, Observation> references = new HashMap<>();
+    public UploadSummary addPatients(Path tsvFile, Charset charset, int batchSize, int maxInFlight, ParallelTsvReader tsvReader) {
+        return addResources(tsvFile, charset, batchSize, maxInFlight, tsvReader,
+                PatientResourceMapper::getPatient, this::submitPatients);
+    }
 
-        diagnosticReports.stream()
-                .map(diagnosticReport -> diagnosticReport.getResult())
-                .forEach(results -> {
-                    results.forEach(reference -> {
-                        String key = reference.getReference();
-                        if (!references.containsKey(key)) {
-                            Resource resource = findObservationByObservationReference(reference).getEntryFirstRep().getResource();
-                            if (resource != null) {
-                                references.put(key, (Observation) resource);
-                            }
+    private UploadSummary addPatients(Path tsvFile, int batchSize, BundleUploader uploader) {
+        return addResources(tsvFile, batchSize, uploader, null, null, PatientResourceMapper::getPatient, this::submitPatients);
+    }
+
+    private void submitPatients(List<Resource> batch, BundleUploader uploader, Consumer<UploadResult> callback) {
+        addResources(batch, "Patient", PERSON_IDENTIFIER_SYSTEM, uploader, registerReferences(PERSON_IDENTIFIER_SYSTEM).andThen(callback));
+    }
+
+    /**
+     * Upload the resources and register the server IDs of the created
+     * resources.
+     */
+    private Bundle addAndRegisterResources(List<Resource> resources, String url, String identifierSystem) {
+        Bundle bundle = createTransactionBundle(resources, url, identifierSystem);
+        Bundle response;
+        try {
+            response = client.transaction().withBundle(bundle).execute();
+        } finally {
+            resourcesWritten(resources);
+        }
+        referenceRegistry.register(bundle, response, identifierSystem);
+
+        return response;
+    }
+
+    private Consumer<UploadResult> registerReferences(String identifierSystem) {
+        return result -> {
+            if (result.isSuccess()) {
+                referenceRegistry.register(result.getRequest(), result.getResponse(), identifierSystem);
+            } else {
+                printFailure(result);
+            }
+        };
+    }
+
+    private Resource setReferences(Observation observation) {
+        Reference patient = getPatientReference(observation.getSubject());
+        Reference encounter = getEncounterReference(observation.getEncounter());
+        if (!(patient == null || encounter == null)) {
+            observation.setSubject(patient);
+            observation.setEncounter(encounter);
+        }
+
+        return observation;
+    }
+
+    private Resource setReferences(DiagnosticReport diagnosticReport) {
+        Reference patient = getPatientReference(diagnosticReport.getSubject());
+        Reference encounter = getEncounterReference(diagnosticReport.getEncounter());
+        if (!(patient == null || encounter == null)) {
+            diagnosticReport.setSubject(patient);
+            diagnosticReport.setEncounter(encounter);
+
+            diagnosticReport.getResult()
+                    .forEach(reference -> {
+                        Reference observation = getObservationReference(reference);
+                        if (observation != null) {
+                            reference.setReference(observation.getReference());
                         }
                     });
-                });
+        }
 
-        return references;
+        return diagnosticReport;
     }
 
-    private Map<String, Encounter> fetchEncountersFromDiagnosticReports(List<DiagnosticReport> diagnosticReports) {
-        Map<String, Encounter> references = new HashMap<>();
+    private Resource setReferences(Encounter encounter) {
+        Reference patient = getPatientReference(encounter.getSubject());
+        if (patient != null) {
+            encounter.setSubject(patient);
+        }
 
-        diagnosticReports.stream()
-                .map(diagnosticReport -> diagnosticReport.getEncounter())
-                .forEach(reference -> {
-                    String key = reference.getReference();
-                    if (!references.containsKey(key)) {
-                        Resource resource = findEncounterByEncounterReference(reference).getEntryFirstRep().getResource();
-                        if (resource != null) {
-                            references.put(key, (Encounter) resource);
-                        }
-                    }
-                });
+        return encounter;
+    }
 
-        return references;
+    private Reference getPatientReference(Reference subject) {
+        return referenceRegistry.get("Patient", PERSON_IDENTIFIER_SYSTEM, subject.getReference());
     }
 
-    private Map<String, Encounter> fetchEncountersFromObservations(List<Observation> observations) {
-        Map<String, Encounter> references = new HashMap<>();
+    private Reference getEncounterReference(Reference encounter) {
+        return referenceRegistry.get("Encounter", PERSON_IDENTIFIER_SYSTEM, encounter.getReference());
+    }
 
-        observations.stream()
-                .map(observation -> observation.getEncounter())
-                .forEach(subject -> {
-                    String reference = subject.getReference();
-                    if (!references.containsKey(reference)) {
-                        Resource resource = findEncounterBySubject(subject).getEntryFirstRep().getResource();
-                        if (resource != null) {
-                            references.put(reference, (Encounter) resource);
-                        }
-                    }
-                });
+    private Reference getObservationReference(Reference result) {
+        return referenceRegistry.get("Observation", OBSERVATION_IDENTIFIER_SYSTEM, result.getReference());
+    }
 
-        return references;
+    private static List<LoadPipeline.Dependency> getDependencies(Encounter encounter) {
+        List<LoadPipeline.Dependency> dependencies = new LinkedList<>();
+        addDependency(dependencies, "Patient", PERSON_IDENTIFIER_SYSTEM, encounter.getSubject());
+
+        return dependencies;
     }
 
-    private Map<String, Patient> fetchPatientsFromDiagnosticReports(List<DiagnosticReport> diagnosticReports) {
-        Map<String, Patient> references = new HashMap<>();
+    private static List<LoadPipeline.Dependency> getDependencies(Observation observation) {
+        List<LoadPipeline.Dependency> dependencies = new LinkedList<>();
+        addDependency(dependencies, "Patient", PERSON_IDENTIFIER_SYSTEM, observation.getSubject());
+        addDependency(dependencies, "Encounter", PERSON_IDENTIFIER_SYSTEM, observation.getEncounter());
 
-        diagnosticReports.stream()
-                .map(diagnosticReport -> diagnosticReport.getSubject())
-                .forEach(subject -> {
-                    String reference = subject.getReference();
-                    if (!references.containsKey(reference)) {
-                        Resource resource = findPatientBySubject(subject).getEntryFirstRep().getResource();
-                        if (resource != null) {
-                            references.put(reference, (Patient) resource);
-                        }
-                    }
-                });
+        return dependencies;
+    }
+
+    private static List<LoadPipeline.Dependency> getDependencies(DiagnosticReport diagnosticReport) {
+        List<LoadPipeline.Dependency> dependencies = new LinkedList<>();
+        addDependency(dependencies, "Patient", PERSON_IDENTIFIER_SYSTEM, diagnosticReport.getSubject());
+        addDependency(dependencies, "Encounter", PERSON_IDENTIFIER_SYSTEM, diagnosticReport.getEncounter());
+        diagnosticReport.getResult()
+                .forEach(result -> addDependency(dependencies, "Observation", OBSERVATION_IDENTIFIER_SYSTEM, result));
+
+        return dependencies;
+    }
 
-        return references;
+    /**
+     * The mappers put the identifier value of the referenced resource in the
+     * reference.
+     */
+    private static void addDependency(List<LoadPipeline.Dependency> dependencies, String resourceType, String system, Reference reference) {
+        if (reference != null && reference.hasReference()) {
+            dependencies.add(new LoadPipeline.Dependency(resourceType, system, reference.getReference()));
+        }
     }
 
-    private Map<String, Patient> fetchPatientsFromObservations(List<Observation> observations) {
-        Map<String, Patient> references = new HashMap<>();
+    @SuppressWarnings("unchecked")
+    private void resolveReferences(String resourceType, String system, Set<String> values) {
+        Class<? extends Resource> resourceClass = (Class<? extends Resource>) client.getFhirContext()
+                .getResourceDefinition(resourceType)
+                .getImplementingClass();
+        resolveReferences(resourceClass, system, values.stream());
+    }
 
-        observations.stream()
-                .map(observation -> observation.getSubject())
-                .forEach(subject -> {
-                    String reference = subject.getReference();
-                    if (!references.containsKey(reference)) {
-                        Resource resource = findPatientBySubject(subject).getEntryFirstRep().getResource();
-                        if (resource != null) {
-                            references.put(reference, (Patient) resource);
-                        }
-                    }
-                });
+    private void resolveDiagnosticReportReferences(List<DiagnosticReport> diagnosticReports) {
+        resolveReferences(Patient.class, PERSON_IDENTIFIER_SYSTEM, diagnosticReports.stream()
+                .map(diagnosticReport -> diagnosticReport.getSubject().getReference()));
+        resolveReferences(Encounter.class, PERSON_IDENTIFIER_SYSTEM, diagnosticReports.stream()
+                .map(diagnosticReport -> diagnosticReport.getEncounter().getReference()));
+        resolveReferences(Observation.class, OBSERVATION_IDENTIFIER_SYSTEM, diagnosticReports.stream()
+                .flatMap(diagnosticReport -> diagnosticReport.getResult().stream())
+                .map(Reference::getReference));
+    }
 
-        return references;
+    private void resolveObservationReferences(List<Observation> observations) {
+        resolveReferences(Patient.class, PERSON_IDENTIFIER_SYSTEM, observations.stream()
+                .map(observation -> observation.getSubject().getReference()));
+        resolveReferences(Encounter.class, PERSON_IDENTIFIER_SYSTEM, observations.stream()
+                .map(observation -> observation.getEncounter().getReference()));
     }
 
-    private Map<String, Patient> fetchPatientsFromEncounters(List<Encounter> encounters) {
-        Map<String, Patient> references = new HashMap<>();
+    private void resolveEncounterReferences(List<Encounter> encounters) {
+        resolveReferences(Patient.class, PERSON_IDENTIFIER_SYSTEM, encounters.stream()
+                .map(encounter -> encounter.getSubject().getReference()));
+    }
 
-        encounters.stream()
-                .map(encounter -> encounter.getSubject())
-                .forEach(subject -> {
-                    String reference = subject.getReference();
-                    if (!references.containsKey(reference)) {
-                        Resource resource = findPatientBySubject(subject).getEntryFirstRep().getResource();
-                        if (resource != null) {
-                            references.put(reference, (Patient) resource);
-                        }
+    /**
+     * Search the server only for the identifiers that have not been
+     * registered yet, either by an earlier upload or an earlier search.
+     */
+    private <T extends Resource> void resolveReferences(Class<T> resourceType, String system, Stream<String> values) {
+        String type = resourceType.getSimpleName();
+        Set<String> missing = values
+                .filter(value -> value != null && !referenceRegistry.contains(type, system, value))
+                .collect(Collectors.toSet());
+        if (!missing.isEmpty()) {
+            long start = System.currentTimeMillis();
+            referenceRegistry.register(system, identifierResolver.resolve(resourceType, system, missing));
+            metrics.recordLatency(MetricsRegistry.RESOLVE, System.currentTimeMillis() - start);
+            metrics.recordEntries(MetricsRegistry.RESOLVE, missing.size());
+        }
+    }
+
+    /**
+     * Map the TSV files of the directory into NDJSON files for bulk import.
+     * Resource IDs are derived from the identifiers, so references are set
+     * without looking up server IDs and the resources can be imported in any
+     * order. Rows that cannot be mapped are skipped and reported.
+     *
+     * @param resourceDirectory directory of the BrainAI TSV files
+     * @param writer NDJSON output
+     * @throws IOException
+     */
+    public void writeResources(Path resourceDirectory, NdjsonWriter writer) throws IOException {
+        writeResources(resourceDirectory, writer, null);
+    }
+
+    /**
+     * Map the TSV files of the directory into NDJSON files for bulk import,
+     * writing the rows that cannot be mapped to dead-letter files.
+     *
+     * @param resourceDirectory directory of the BrainAI TSV files
+     * @param writer NDJSON output
+     * @param deadLetterDirectory directory of the dead-letter files, or null
+     * to report the rows to standard error
+     * @throws IOException
+     */
+    public void writeResources(Path resourceDirectory, NdjsonWriter writer, Path deadLetterDirectory) throws IOException {
+        writePatients(resourceDirectory.resolve("patients.tsv"), writer, deadLetterDirectory);
+        writeEncounters(resourceDirectory.resolve("encounters.tsv"), writer, deadLetterDirectory);
+        writeObservations(resourceDirectory.resolve("observations.tsv"), writer, deadLetterDirectory);
+        writeDiagnosticReports(resourceDirectory.resolve("diagnostic_report.tsv"), writer, deadLetterDirectory);
+    }
+
+    public long writePatients(Path tsvFile, NdjsonWriter writer) throws IOException {
+        return writePatients(tsvFile, writer, null);
+    }
+
+    public long writePatients(Path tsvFile, NdjsonWriter writer, Path deadLetterDirectory) throws IOException {
+        return writeResources(tsvFile, writer, deadLetterDirectory, fields -> {
+            Patient patient = PatientResourceMapper.getPatient(fields);
+            patient.setId(getBulkId("Patient", PERSON_IDENTIFIER_SYSTEM, patient.getIdentifier()));
+
+            return patient;
+        });
+    }
+
+    public long writeEncounters(Path tsvFile, NdjsonWriter writer) throws IOException {
+        return writeEncounters(tsvFile, writer, null);
+    }
+
+    public long writeEncounters(Path tsvFile, NdjsonWriter writer, Path deadLetterDirectory) throws IOException {
+        return writeResources(tsvFile, writer, deadLetterDirectory, fields -> {
+            Encounter encounter = EncounterResourceMapper.getEncounter(fields);
+            encounter.setId(getBulkId("Encounter", PERSON_IDENTIFIER_SYSTEM, encounter.getIdentifier()));
+            encounter.setSubject(getBulkReference("Patient", PERSON_IDENTIFIER_SYSTEM, encounter.getSubject()));
+
+            return encounter;
+        });
+    }
+
+    public long writeObservations(Path tsvFile, NdjsonWriter writer) throws IOException {
+        return writeObservations(tsvFile, writer, null);
+    }
+
+    public long writeObservations(Path tsvFile, NdjsonWriter writer, Path deadLetterDirectory) throws IOException {
+        return writeResources(tsvFile, writer, deadLetterDirectory, fields -> {
+            Observation observation = ObservationResourceMapper.getObservation(fields);
+            observation.setId(getBulkId("Observation", OBSERVATION_IDENTIFIER_SYSTEM, observation.getIdentifier()));
+            observation.setSubject(getBulkReference("Patient", PERSON_IDENTIFIER_SYSTEM, observation.getSubject()));
+            observation.setEncounter(getBulkReference("Encounter", PERSON_IDENTIFIER_SYSTEM, observation.getEncounter()));
+
+            return observation;
+        });
+    }
+
+    public long writeDiagnosticReports(Path tsvFile, NdjsonWriter writer) throws IOException {
+        return writeDiagnosticReports(tsvFile, writer, null);
+    }
+
+    public long writeDiagnosticReports(Path tsvFile, NdjsonWriter writer, Path deadLetterDirectory) throws IOException {
+        return writeResources(tsvFile, writer, deadLetterDirectory, fields -> {
+            DiagnosticReport diagnosticReport = DiagnosticReportResourceMapper.getDiagnosticReport(fields);
+            diagnosticReport.setId(getBulkId("DiagnosticReport", null, diagnosticReport.getIdentifier()));
+            diagnosticReport.setSubject(getBulkReference("Patient", PERSON_IDENTIFIER_SYSTEM, diagnosticReport.getSubject()));
+            diagnosticReport.setEncounter(getBulkReference("Encounter", PERSON_IDENTIFIER_SYSTEM, diagnosticReport.getEncounter()));
+            diagnosticReport.setResult(diagnosticReport.getResult().stream()
+                    .map(result -> getBulkReference("Observation", OBSERVATION_IDENTIFIER_SYSTEM, result))
+                    .collect(Collectors.toList()));
+
+            return diagnosticReport;
+        });
+    }
+
+    /**
+     * @return the number of resources written
+     */
+    private long writeResources(Path tsvFile, NdjsonWriter writer, Path deadLetterDirectory, LoadPipeline.RowMapper mapper) throws IOException {
+        long count = 0;
+        long skipped = 0;
+        try (BufferedReader reader = Files.newBufferedReader(tsvFile, StandardCharsets.UTF_8);
+                DeadLetterFile deadLetters = (deadLetterDirectory == null) ? null : DeadLetterFile.of(deadLetterDirectory, tsvFile)) {
+            reader.readLine(); // skip header
+            long lineNumber = 1;
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineNumber++;
+                Resource resource;
+                try {
+                    resource = mapper.map(Delimiters.TAB_DELIM.split(line));
+                } catch (ParseException | RuntimeException exception) {
+                    if (deadLetters == null) {
+                        System.err.printf("Invalid row %d of %s: %s%n", lineNumber, tsvFile, exception);
+                    } else {
+                        deadLetters.write(lineNumber, "Invalid row: " + exception.getMessage(), line);
                     }
-                });
+                    skipped++;
+                    continue;
+                }
 
-        return references;
+                writer.write(resource);
+                count++;
+            }
+
+            if (skipped > 0) {
+                System.err.printf("%d rows of %s were skipped%s.%n", skipped, tsvFile,
+                        (deadLetters == null) ? "" : " and written to " + deadLetters.getFile());
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * Derive a resource ID from the identifier of the given system, or from
+     * the first identifier if the system is null.
+     *
+     * @return the ID, or null if the resource has no such identifier
+     */
+    private static String getBulkId(String resourceType, String system, List<Identifier> identifiers) {
+        return identifiers.stream()
+                .filter(identifier -> system == null || system.equals(identifier.getSystem()))
+                .filter(Identifier::hasValue)
+                .findFirst()
+                .map(identifier -> getBulkId(resourceType, identifier.getSystem(), identifier.getValue()))
+                .orElse(null);
+    }
+
+    private static String getBulkId(String resourceType, String system, String value) {
+        return UUID.nameUUIDFromBytes(ResourceIndex.key(resourceType, system, value).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    /**
+     * The mappers put the identifier value of the referenced resource in the
+     * reference.
+     */
+    private static Reference getBulkReference(String resourceType, String system, Reference reference) {
+        if (reference == null || !reference.hasReference()) {
+            return reference;
+        }
+
+        return new Reference(resourceType + "/" + getBulkId(resourceType, system, reference.getReference()));
+    }
+
+    public ReferenceRegistry getReferenceRegistry() {
+        return referenceRegistry;
     }
 
     public Bundle findObservationByObservationReference(Reference reference) {
+        if (cache != null) {
+            return cache.searchByIdentifier(Observation.class, OBSERVATION_IDENTIFIER_SYSTEM, reference.getReference());
+        }
+
         return client
                 .search()
                 .forResource(Observation.class)
-                .where(Observation.IDENTIFIER.exactly().systemAndValues("https://fhir.cerner.com/ceuuid", reference.getReference()))
+                .where(Observation.IDENTIFIER.exactly().systemAndValues(OBSERVATION_IDENTIFIER_SYSTEM, reference.getReference()))
                 .returnBundle(Bundle.class)
                 .cacheControl(new CacheControlDirective().setNoCache(true))
                 .execute();
     }
 
     public Bundle findEncounterBySubject(Reference subject) {
+        if (cache != null) {
+            return cache.searchByIdentifier(Encounter.class, PERSON_IDENTIFIER_SYSTEM, subject.getReference());
+        }
+
         return client
                 .search()
                 .forResource(Encounter.class)
-                .where(Patient.IDENTIFIER.exactly().systemAndValues("urn:oid:2.16.840.1.113883.3.552", subject.getReference()))
+                .where(Patient.IDENTIFIER.exactly().systemAndValues(PERSON_IDENTIFIER_SYSTEM, subject.getReference()))
                 .returnBundle(Bundle.class)
                 .cacheControl(new CacheControlDirective().setNoCache(true))
                 .execute();
     }
 
     public Bundle findEncounterByEncounterReference(Reference encounter) {
+        if (cache != null) {
+            return cache.searchByIdentifier(Encounter.class, PERSON_IDENTIFIER_SYSTEM, encounter.getReference());
+        }
+
         return client
                 .search()
                 .forResource(Encounter.class)
-                .where(Encounter.IDENTIFIER.exactly().systemAndValues("urn:oid:2.16.840.1.113883.3.552", encounter.getReference()))
+                .where(Encounter.IDENTIFIER.exactly().systemAndValues(PERSON_IDENTIFIER_SYSTEM, encounter.getReference()))
                 .returnBundle(Bundle.class)
                 .cacheControl(new CacheControlDirective().setNoCache(true))
                 .execute();
     }
 
     public Bundle findPatientBySubject(Reference subject) {
+        if (cache != null) {
+            return cache.searchByIdentifier(Patient.class, PERSON_IDENTIFIER_SYSTEM, subject.getReference());
+        }
+
         return client
                 .search()
                 .forResource(Patient.class)
-                .where(Patient.IDENTIFIER.exactly().systemAndValues("urn:oid:2.16.840.1.113883.3.552", subject.getReference()))
+                .where(Patient.IDENTIFIER.exactly().systemAndValues(PERSON_IDENTIFIER_SYSTEM, subject.getReference()))
                 .returnBundle(Bundle.class)
                 .cacheControl(new CacheControlDirective().setNoCache(true))
                 .execute();
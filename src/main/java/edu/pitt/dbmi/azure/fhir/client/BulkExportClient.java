@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Extracts resources with the server's bulk $export operation instead of
+ * paging through searches. The export is kicked off at the system, patient
+ * or group level, its status is polled until it completes, and the NDJSON
+ * files it outputs are downloaded in parallel. Each file is parsed line by
+ * line as it is downloaded, so memory use does not grow with the export.
+ *
+ * Aug 24, 2022 11:03:27 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BulkExportClient {
+
+    public static final int DEFAULT_PARALLELISM = 4;
+
+    private static final String NDJSON = "application/fhir+ndjson";
+
+    private final IGenericClient client;
+    private final AsyncOperationClient asyncClient;
+    private final int parallelism;
+
+    public BulkExportClient(IGenericClient client) {
+        this(client, new AsyncOperationClient(client), DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * @param client FHIR client
+     * @param asyncClient polls the export status and downloads the files
+     * @param parallelism maximum number of files downloaded at once
+     */
+    public BulkExportClient(IGenericClient client, AsyncOperationClient asyncClient, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+
+        this.client = client;
+        this.asyncClient = asyncClient;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Start exporting all the resources of the server.
+     *
+     * @param resourceTypes types to export, or empty for all
+     * @param since only export resources updated since then, or null
+     * @return the status URL of the export
+     * @throws IOException if the server does not accept the request
+     */
+    public String kickOffSystemExport(List<String> resourceTypes, Date since) throws IOException {
+        return kickOff("$export", resourceTypes, since);
+    }
+
+    /**
+     * Start exporting the resources of all patients.
+     *
+     * @return the status URL of the export
+     * @throws IOException if the server does not accept the request
+     */
+    public String kickOffPatientExport(List<String> resourceTypes, Date since) throws IOException {
+        return kickOff("Patient/$export", resourceTypes, since);
+    }
+
+    /**
+     * Start exporting the resources of the patients of a group.
+     *
+     * @param groupId logical ID of the Group
+     * @return the status URL of the export
+     * @throws IOException if the server does not accept the request
+     */
+    public String kickOffGroupExport(String groupId, List<String> resourceTypes, Date since) throws IOException {
+        return kickOff("Group/" + groupId + "/$export", resourceTypes, since);
+    }
+
+    private String kickOff(String operation, List<String> resourceTypes, Date since) throws IOException {
+        StringBuilder url = new StringBuilder(operation)
+                .append("?_outputFormat=").append(encode(NDJSON));
+        if (!resourceTypes.isEmpty()) {
+            url.append("&_type=").append(encode(String.join(",", resourceTypes)));
+        }
+        if (since != null) {
+            url.append("&_since=").append(encode(new InstantType(since).getValueAsString()));
+        }
+
+        return asyncClient.kickOff(RequestTypeEnum.GET, url.toString(), null);
+    }
+
+    public BulkExportManifest awaitCompletion(String statusUrl) throws IOException, InterruptedException {
+        return BulkExportManifest.parse(asyncClient.awaitCompletion(statusUrl));
+    }
+
+    /**
+     * Ask the server to cancel the export, or to delete its files once they
+     * have been read.
+     *
+     * @param statusUrl URL returned by the kick-off
+     * @throws IOException
+     */
+    public void delete(String statusUrl) throws IOException {
+        asyncClient.cancel(statusUrl);
+    }
+
+    /**
+     * Read the exported resources of a type.
+     *
+     * @param <T> resource type
+     * @param manifest manifest of the completed export
+     * @param resourceType resource class
+     * @param consumer receives the resources, one at a time
+     * @return number of resources read
+     * @throws IOException if a file cannot be downloaded
+     * @throws InterruptedException
+     */
+    public <T extends Resource> long read(BulkExportManifest manifest, Class<T> resourceType, Consumer<T> consumer) throws IOException, InterruptedException {
+        String type = client.getFhirContext().getResourceType(resourceType);
+
+        return read(manifest.getOutputs(type), manifest.isRequiresAccessToken(), resource -> consumer.accept(resourceType.cast(resource)));
+    }
+
+    /**
+     * Read all the exported resources.
+     *
+     * @param manifest manifest of the completed export
+     * @param consumer receives the resources, one at a time
+     * @return number of resources read
+     * @throws IOException if a file cannot be downloaded
+     * @throws InterruptedException
+     */
+    public long read(BulkExportManifest manifest, Consumer<Resource> consumer) throws IOException, InterruptedException {
+        return read(manifest.getOutputs(), manifest.isRequiresAccessToken(), consumer);
+    }
+
+    private long read(List<BulkExportManifest.OutputFile> files, boolean requiresAccessToken, Consumer<Resource> consumer) throws IOException, InterruptedException {
+        if (files.isEmpty()) {
+            return 0;
+        }
+
+        Object consumerLock = new Object();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, files.size()), runnable -> {
+            Thread thread = new Thread(runnable, "bulk-export-download");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        try {
+            List<Future<Long>> downloads = new ArrayList<>();
+            for (BulkExportManifest.OutputFile file : files) {
+                downloads.add(executor.submit(() -> download(file, requiresAccessToken, resource -> {
+                    synchronized (consumerLock) {
+                        consumer.accept(resource);
+                    }
+                })));
+            }
+
+            long count = 0;
+            for (Future<Long> download : downloads) {
+                try {
+                    count += download.get();
+                } catch (ExecutionException exception) {
+                    Throwable cause = exception.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else {
+                        throw new IOException(cause);
+                    }
+                }
+            }
+
+            return count;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private long download(BulkExportManifest.OutputFile file, boolean requiresAccessToken, Consumer<Resource> consumer) throws IOException {
+        IParser parser = client.getFhirContext().newJsonParser();
+        AtomicLong count = new AtomicLong();
+        asyncClient.download(file.getUrl(), NDJSON, requiresAccessToken, entity -> {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(entity, StandardCharsets.UTF_8));
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedIOException("Download of " + file.getUrl() + " interrupted.");
+                }
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                consumer.accept((Resource) parser.parseResource(line));
+                count.incrementAndGet();
+            }
+        });
+
+        return count.get();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Manifest of a completed bulk $export: the NDJSON files of exported
+ * resources ({@code output}) and of OperationOutcomes for the errors
+ * ({@code error}), from the completed status response.
+ *
+ * Aug 24, 2022 10:12:49 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BulkExportManifest {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final String transactionTime;
+    private final boolean requiresAccessToken;
+    private final List<OutputFile> outputs;
+    private final List<OutputFile> errors;
+
+    private BulkExportManifest(String transactionTime, boolean requiresAccessToken, List<OutputFile> outputs, List<OutputFile> errors) {
+        this.transactionTime = transactionTime;
+        this.requiresAccessToken = requiresAccessToken;
+        this.outputs = outputs;
+        this.errors = errors;
+    }
+
+    public static BulkExportManifest parse(String json) throws IOException {
+        JsonNode manifest = OBJECT_MAPPER.readTree(json);
+
+        return new BulkExportManifest(
+                manifest.path("transactionTime").asText(null),
+                manifest.path("requiresAccessToken").asBoolean(false),
+                getFiles(manifest.path("output")),
+                getFiles(manifest.path("error")));
+    }
+
+    private static List<OutputFile> getFiles(JsonNode files) {
+        List<OutputFile> outputFiles = new ArrayList<>();
+        for (JsonNode file : files) {
+            outputFiles.add(new OutputFile(file.path("type").asText(null), file.path("url").asText(null), file.path("count").asLong(-1)));
+        }
+
+        return outputFiles;
+    }
+
+    public String getTransactionTime() {
+        return transactionTime;
+    }
+
+    /**
+     * @return true if the files must be downloaded with the access token
+     * used for the export
+     */
+    public boolean isRequiresAccessToken() {
+        return requiresAccessToken;
+    }
+
+    public List<OutputFile> getOutputs() {
+        return Collections.unmodifiableList(outputs);
+    }
+
+    /**
+     * @param resourceType resource type, e.g. Patient
+     * @return the files of resources of the type
+     */
+    public List<OutputFile> getOutputs(String resourceType) {
+        return outputs.stream()
+                .filter(output -> resourceType.equals(output.getResourceType()))
+                .collect(Collectors.toList());
+    }
+
+    public List<OutputFile> getErrors() {
+        return Collections.unmodifiableList(errors);
+    }
+
+    /**
+     * @return the number of exported resources, or -1 if the server did not
+     * count them
+     */
+    public long getCount() {
+        long count = 0;
+        for (OutputFile output : outputs) {
+            if (output.getCount() < 0) {
+                return -1;
+            }
+            count += output.getCount();
+        }
+
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("transactionTime=%s, files=%d, errors=%d", transactionTime, outputs.size(), errors.size()));
+        outputs.forEach(output -> builder.append(System.lineSeparator()).append(output));
+
+        return builder.toString();
+    }
+
+    public static class OutputFile {
+
+        private final String resourceType;
+        private final String url;
+        private final long count;
+
+        private OutputFile(String resourceType, String url, long count) {
+            this.resourceType = resourceType;
+            this.url = url;
+            this.count = count;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return number of resources in the file, or -1 if not given
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: %d", resourceType, url, count);
+        }
+
+    }
+
+}
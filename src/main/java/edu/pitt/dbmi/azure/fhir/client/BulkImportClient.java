@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.util.List;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
+
+/**
+ * Loads NDJSON files with the server's bulk $import operation. The files are
+ * published where the server can read them, the import is kicked off, and
+ * its status is polled until it completes.
+ *
+ * Aug 12, 2022 11:40:18 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BulkImportClient {
+
+    public static final String INITIAL_LOAD = "InitialLoad";
+    public static final String INCREMENTAL_LOAD = "IncrementalLoad";
+
+    private static final String NDJSON = "application/fhir+ndjson";
+
+    private final IGenericClient client;
+    private final AsyncOperationClient asyncClient;
+    private final String mode;
+
+    public BulkImportClient(IGenericClient client) {
+        this(client, INCREMENTAL_LOAD, new AsyncOperationClient(client));
+    }
+
+    /**
+     * @param client FHIR client
+     * @param mode {@link #INITIAL_LOAD} or {@link #INCREMENTAL_LOAD}
+     * @param asyncClient polls the import status
+     */
+    public BulkImportClient(IGenericClient client, String mode, AsyncOperationClient asyncClient) {
+        this.client = client;
+        this.mode = mode;
+        this.asyncClient = asyncClient;
+    }
+
+    /**
+     * Import the files and wait for the import to complete.
+     *
+     * @param files NDJSON files, e.g. from {@link NdjsonWriter#finish()}
+     * @param publisher makes the files readable by the server
+     * @return the outcome of each file
+     * @throws IOException if the import fails
+     * @throws InterruptedException
+     */
+    public BulkImportResult importFiles(List<NdjsonFile> files, NdjsonPublisher publisher) throws IOException, InterruptedException {
+        return awaitCompletion(kickOff(files, publisher));
+    }
+
+    /**
+     * Publish the files and start importing them.
+     *
+     * @return the status URL of the import
+     * @throws IOException
+     */
+    public String kickOff(List<NdjsonFile> files, NdjsonPublisher publisher) throws IOException {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName("inputFormat").setValue(new StringType(NDJSON));
+        parameters.addParameter().setName("mode").setValue(new StringType(mode));
+        for (NdjsonFile file : files) {
+            Parameters.ParametersParameterComponent input = parameters.addParameter().setName("input");
+            input.addPart().setName("type").setValue(new StringType(file.getResourceType()));
+            input.addPart().setName("url").setValue(new UriType(publisher.publish(file).toString()));
+        }
+
+        String body = client.getFhirContext().newJsonParser().encodeResourceToString(parameters);
+
+        return asyncClient.kickOff(RequestTypeEnum.POST, "$import", body);
+    }
+
+    public BulkImportResult awaitCompletion(String statusUrl) throws IOException, InterruptedException {
+        return BulkImportResult.parse(asyncClient.awaitCompletion(statusUrl));
+    }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Outcome of a bulk $import: the number of resources imported and failed
+ * for each input file, from the completed status response
+ * ({@code output} and {@code error} arrays).
+ *
+ * Aug 12, 2022 11:05:33 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BulkImportResult {
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final String transactionTime;
+    private final List<FileOutcome> fileOutcomes;
+
+    private BulkImportResult(String transactionTime, List<FileOutcome> fileOutcomes) {
+        this.transactionTime = transactionTime;
+        this.fileOutcomes = fileOutcomes;
+    }
+
+    public static BulkImportResult parse(String json) throws IOException {
+        JsonNode status = OBJECT_MAPPER.readTree(json);
+
+        Map<String, FileOutcome> outcomes = new LinkedHashMap<>();
+        for (JsonNode output : status.path("output")) {
+            getOutcome(outcomes, output).importedCount += output.path("count").asLong();
+        }
+        for (JsonNode error : status.path("error")) {
+            FileOutcome outcome = getOutcome(outcomes, error);
+            outcome.errorCount += error.path("count").asLong();
+            if (error.hasNonNull("url")) {
+                outcome.errorUrl = error.get("url").asText();
+            }
+        }
+
+        return new BulkImportResult(status.path("transactionTime").asText(null), new ArrayList<>(outcomes.values()));
+    }
+
+    private static FileOutcome getOutcome(Map<String, FileOutcome> outcomes, JsonNode node) {
+        String inputUrl = node.path("inputUrl").asText("");
+
+        return outcomes.computeIfAbsent(inputUrl, url -> new FileOutcome(node.path("type").asText(null), url));
+    }
+
+    public String getTransactionTime() {
+        return transactionTime;
+    }
+
+    public List<FileOutcome> getFileOutcomes() {
+        return Collections.unmodifiableList(fileOutcomes);
+    }
+
+    public long getImportedCount() {
+        return fileOutcomes.stream()
+                .mapToLong(FileOutcome::getImportedCount)
+                .sum();
+    }
+
+    public long getErrorCount() {
+        return fileOutcomes.stream()
+                .mapToLong(FileOutcome::getErrorCount)
+                .sum();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder(String.format("imported=%d, errors=%d", getImportedCount(), getErrorCount()));
+        fileOutcomes.forEach(outcome -> builder.append(System.lineSeparator()).append(outcome));
+
+        return builder.toString();
+    }
+
+    public static class FileOutcome {
+
+        private final String resourceType;
+        private final String inputUrl;
+        private long importedCount;
+        private long errorCount;
+        private String errorUrl;
+
+        private FileOutcome(String resourceType, String inputUrl) {
+            this.resourceType = resourceType;
+            this.inputUrl = inputUrl;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getInputUrl() {
+            return inputUrl;
+        }
+
+        public long getImportedCount() {
+            return importedCount;
+        }
+
+        public long getErrorCount() {
+            return errorCount;
+        }
+
+        /**
+         * @return URL of the NDJSON file of OperationOutcomes for the failed
+         * resources, or null
+         */
+        public String getErrorUrl() {
+            return errorUrl;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s %s: imported=%d, errors=%d%s", resourceType, inputUrl, importedCount, errorCount,
+                    (errorUrl == null) ? "" : ", error log " + errorUrl);
+        }
+
+    }
+
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Sends transaction bundles to the server with a bounded number of bundles
+ * in flight. Callbacks are invoked in the order the bundles were submitted.
+ *
+ * A bundle rejected with 429 or 503 is resent after the delay requested by
+ * the server, or after an exponential backoff if the server did not specify
+ * one. With an {@link AdaptiveThrottle}, the number of bundles in flight
+ * follows the throttle's concurrency.
+ *
+ * The entries of a BATCH bundle are processed independently by the server.
+ * Entries that failed with a retryable status (408, 429, 500, 502, 503 or
+ * 504) are resent on their own, and their responses replace the failed ones
+ * in the batch response. The other entries are not sent again.
+ *
+ * To read the delay requested by the server, the uploader registers a
+ * {@link RetryAfterInterceptor} on the client it is given, unless the client
+ * already has one. The interceptor stays registered after the uploader is
+ * closed; it only reads the headers of throttled responses.
+ *
+ * Jul 26, 2022 9:31:17 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BundleUploader implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final long INITIAL_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60_000;
+
+    private static final Set<Integer> RETRYABLE_ENTRY_STATUSES = Set.of(408, 429, 500, 502, 503, 504);
+
+    private static final Consumer<UploadResult> NO_CALLBACK = result -> {
+    };
+
+    private final IGenericClient client;
+    private final ExecutorService executor;
+    private final int maxInFlight;
+    private final AdaptiveThrottle throttle;
+    private final int maxRetries;
+    private final Bundle.BundleType bundleType;
+    private final UploadSummary summary = new UploadSummary();
+    private final ThreadLocal<Boolean> inCallback = ThreadLocal.withInitial(() -> false);
+
+    private final ReentrantLock inFlightLock = new ReentrantLock();
+    private final Condition inFlightReleased = inFlightLock.newCondition();
+    private int inFlight;
+
+    private long sequence;
+    private CompletableFuture<Void> callbacks = CompletableFuture.completedFuture(null);
+
+    public BundleUploader(IGenericClient client, int maxInFlight) {
+        this(client, maxInFlight, null, DEFAULT_MAX_RETRIES, null);
+    }
+
+    public BundleUploader(IGenericClient client, AdaptiveThrottle throttle) {
+        this(client, throttle.getMaxConcurrency(), throttle, DEFAULT_MAX_RETRIES, null);
+    }
+
+    /**
+     * @param client FHIR client
+     * @param maxInFlight maximum number of bundles in flight
+     * @param bundleType type every submitted bundle is sent as; BATCH suits
+     * bundles whose entries do not reference each other
+     */
+    public BundleUploader(IGenericClient client, int maxInFlight, Bundle.BundleType bundleType) {
+        this(client, maxInFlight, null, DEFAULT_MAX_RETRIES, bundleType);
+    }
+
+    public BundleUploader(IGenericClient client, AdaptiveThrottle throttle, Bundle.BundleType bundleType) {
+        this(client, throttle.getMaxConcurrency(), throttle, DEFAULT_MAX_RETRIES, bundleType);
+    }
+
+    private BundleUploader(IGenericClient client, int maxInFlight, AdaptiveThrottle throttle, int maxRetries, Bundle.BundleType bundleType) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("Maximum number of bundles in flight must be at least 1.");
+        }
+
+        this.client = client;
+        this.executor = Executors.newFixedThreadPool(maxInFlight, new UploaderThreadFactory());
+        this.maxInFlight = maxInFlight;
+        this.throttle = throttle;
+        this.maxRetries = maxRetries;
+        this.bundleType = bundleType;
+
+        RetryAfterInterceptor.register(client);
+    }
+
+    /**
+     * Get the number of resources to put in the next bundle.
+     *
+     * @param defaultBatchSize batch size used when uploads are not throttled
+     * @return the throttle's current batch size, or the default
+     */
+    public int getBatchSize(int defaultBatchSize) {
+        return (throttle == null) ? defaultBatchSize : throttle.getBatchSize();
+    }
+
+    public CompletableFuture<UploadResult> submit(Bundle bundle) {
+        return submit(bundle, NO_CALLBACK);
+    }
+
+    /**
+     * Queue the bundle for upload, blocking while the maximum number of
+     * bundles are already in flight.
+     *
+     * A bundle's slot is released after its callback runs, so a callback must
+     * not submit to the same uploader: it would wait for a slot that only the
+     * callbacks can release.
+     *
+     * @param bundle transaction bundle to send
+     * @param callback invoked with the result once this bundle and all the
+     * bundles submitted before it have completed
+     * @return the result of the upload, completed after the callback runs
+     * @throws IllegalStateException if called from a callback of this
+     * uploader
+     */
+    public CompletableFuture<UploadResult> submit(Bundle bundle, Consumer<UploadResult> callback) {
+        if (inCallback.get()) {
+            throw new IllegalStateException("Bundles cannot be submitted from a callback of the same uploader.");
+        }
+
+        // wait for a slot without holding the lock awaitCompletion() needs
+        acquire();
+
+        if (bundleType != null) {
+            bundle.setType(bundleType);
+        }
+
+        CompletableFuture<UploadResult> completed = new CompletableFuture<>();
+        synchronized (this) {
+            final long bundleSequence = sequence++;
+            CompletableFuture<UploadResult> upload = CompletableFuture
+                    .supplyAsync(() -> send(bundleSequence, bundle), executor);
+
+            callbacks = callbacks.thenCompose(v -> upload.thenAccept(result -> {
+                inCallback.set(true);
+                try {
+                    summary.record(result);
+                    callback.accept(result);
+                } catch (RuntimeException exception) {
+                    exception.printStackTrace(System.err);
+                } finally {
+                    inCallback.set(false);
+                    release();
+                    completed.complete(result);
+                }
+            }));
+        }
+
+        return completed;
+    }
+
+    private UploadResult send(long bundleSequence, Bundle bundle) {
+        long start = System.currentTimeMillis();
+        for (int retries = 0;; retries++) {
+            long attemptStart = System.currentTimeMillis();
+            try {
+                Bundle response = client.transaction().withBundle(bundle).execute();
+                if (throttle != null) {
+                    throttle.onSuccess(System.currentTimeMillis() - attemptStart);
+                }
+                if (bundle.getType() == Bundle.BundleType.BATCH) {
+                    retries += retryEntries(bundle, response, attemptStart);
+                }
+
+                return UploadResult.success(bundleSequence, bundle, response, System.currentTimeMillis() - start, retries);
+            } catch (BaseServerResponseException exception) {
+                if (!isThrottled(exception) || retries >= maxRetries) {
+                    return UploadResult.failure(bundleSequence, bundle, exception, System.currentTimeMillis() - start, retries);
+                }
+
+                if (throttle != null) {
+                    throttle.onThrottled(attemptStart);
+                }
+                if (!sleep(getRetryDelay(retries))) {
+                    return UploadResult.failure(bundleSequence, bundle, exception, System.currentTimeMillis() - start, retries);
+                }
+            } catch (RuntimeException exception) {
+                return UploadResult.failure(bundleSequence, bundle, exception, System.currentTimeMillis() - start, retries);
+            }
+        }
+    }
+
+    /**
+     * Resend the retryable failed entries of a batch until they succeed or
+     * the retries run out, putting their responses in the batch response.
+     *
+     * @param sentMillis time the batch was sent
+     * @return number of times entries were resent
+     */
+    private int retryEntries(Bundle request, Bundle response, long sentMillis) {
+        int retries = 0;
+        for (List<Integer> failed = getRetryableEntries(request, response); !failed.isEmpty() && retries < maxRetries; failed = getRetryableEntries(request, response)) {
+            boolean throttled = failed.stream()
+                    .anyMatch(index -> UploadResult.getStatusCode(response, index) == 429);
+            if (throttled && throttle != null) {
+                throttle.onThrottled(sentMillis);
+            }
+            if (!sleep(getRetryDelay(retries++))) {
+                break;
+            }
+
+            Bundle retry = new Bundle();
+            retry.setType(Bundle.BundleType.BATCH);
+            failed.forEach(index -> retry.addEntry(request.getEntry().get(index)));
+            sentMillis = System.currentTimeMillis();
+            try {
+                List<Bundle.BundleEntryComponent> retryEntries = client.transaction().withBundle(retry).execute().getEntry();
+                for (int i = 0; i < failed.size() && i < retryEntries.size(); i++) {
+                    response.getEntry().set(failed.get(i), retryEntries.get(i));
+                }
+            } catch (BaseServerResponseException exception) {
+                if (!isThrottled(exception)) {
+                    break;
+                }
+            } catch (RuntimeException exception) {
+                break;
+            }
+        }
+
+        return retries;
+    }
+
+    private static List<Integer> getRetryableEntries(Bundle request, Bundle response) {
+        List<Integer> retryable = new ArrayList<>();
+        int size = Math.min(request.getEntry().size(), response.getEntry().size());
+        for (int i = 0; i < size; i++) {
+            if (RETRYABLE_ENTRY_STATUSES.contains(UploadResult.getStatusCode(response, i))) {
+                retryable.add(i);
+            }
+        }
+
+        return retryable;
+    }
+
+    private static boolean isThrottled(BaseServerResponseException exception) {
+        return exception.getStatusCode() == 429 || exception.getStatusCode() == 503;
+    }
+
+    private static long getRetryDelay(int retries) {
+        long retryAfter = RetryAfterInterceptor.takeRetryAfterMillis();
+        if (retryAfter >= 0) {
+            return retryAfter;
+        }
+
+        return Math.min(MAX_BACKOFF_MILLIS, INITIAL_BACKOFF_MILLIS << Math.min(retries, 16));
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+
+            return true;
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+
+            return false;
+        }
+    }
+
+    private int getInFlightLimit() {
+        return (throttle == null) ? maxInFlight : Math.min(maxInFlight, throttle.getConcurrency());
+    }
+
+    private void acquire() {
+        inFlightLock.lock();
+        try {
+            while (inFlight >= getInFlightLimit()) {
+                inFlightReleased.awaitUninterruptibly();
+            }
+            inFlight++;
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    private void release() {
+        inFlightLock.lock();
+        try {
+            inFlight--;
+            inFlightReleased.signalAll();
+        } finally {
+            inFlightLock.unlock();
+        }
+    }
+
+    /**
+     * Wait for all submitted bundles to complete and their callbacks to run.
+     *
+     * @return aggregated results of all the bundles submitted so far
+     */
+    public UploadSummary awaitCompletion() {
+        CompletableFuture<Void> pending;
+        synchronized (this) {
+            pending = callbacks;
+        }
+        pending.join();
+
+        return summary.copy();
+    }
+
+    @Override
+    public void close() {
+        awaitCompletion();
+        executor.shutdown();
+    }
+
+    private static class UploaderThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+        private final int poolNumber = POOL_NUMBER.getAndIncrement();
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, String.format("bundle-uploader-%d-%d", poolNumber, threadNumber.getAndIncrement()));
+            thread.setDaemon(true);
+
+            return thread;
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+
+/**
+ * Fetches access tokens from an OAuth 2.0 token endpoint with the client
+ * credentials grant, as used by service principals of Azure Active
+ * Directory.
+ *
+ * Aug 22, 2022 10:37:52 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ClientCredentialsTokenSource implements RefreshingTokenInterceptor.TokenSource {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+    /**
+     * Token lifetime assumed when the response does not give one.
+     */
+    private static final long DEFAULT_EXPIRES_IN_SECONDS = 3600;
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient = HttpClient.newBuilder()
+            .connectTimeout(TIMEOUT)
+            .build();
+
+    private final URI tokenUrl;
+    private final String form;
+
+    /**
+     * @param tokenUrl token endpoint
+     * @param clientId client (application) ID
+     * @param clientSecret client secret
+     * @param scope requested scope, e.g. {@code <FHIR URL>/.default} for Azure
+     */
+    public ClientCredentialsTokenSource(String tokenUrl, String clientId, String clientSecret, String scope) {
+        this.tokenUrl = URI.create(tokenUrl);
+        this.form = String.format("grant_type=client_credentials&client_id=%s&client_secret=%s&scope=%s",
+                encode(clientId), encode(clientSecret), encode(scope));
+    }
+
+    /**
+     * Get tokens for an Azure API for FHIR or Azure Health Data Services FHIR
+     * service from the Microsoft identity platform.
+     *
+     * @param tenantId Azure AD tenant ID
+     * @param clientId client (application) ID
+     * @param clientSecret client secret
+     * @param fhirUrl FHIR service URL
+     * @return the token source
+     */
+    public static ClientCredentialsTokenSource forAzure(String tenantId, String clientId, String clientSecret, String fhirUrl) {
+        return new ClientCredentialsTokenSource(
+                String.format("https://login.microsoftonline.com/%s/oauth2/v2.0/token", tenantId),
+                clientId, clientSecret, fhirUrl.replaceAll("/+$", "") + "/.default");
+    }
+
+    @Override
+    public RefreshingTokenInterceptor.AccessToken fetch() throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(tokenUrl)
+                .timeout(TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(form, StandardCharsets.UTF_8))
+                .build();
+
+        // the lifetime counts from before the request
+        Instant issued = Instant.now();
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(exception.getMessage());
+        }
+
+        if (response.statusCode() != 200) {
+            throw new IOException(String.format("Token request to %s failed with status %d: %s", tokenUrl, response.statusCode(), response.body()));
+        }
+
+        JsonNode body = objectMapper.readTree(response.body());
+        String accessToken = body.path("access_token").asText(null);
+        if (accessToken == null || accessToken.isEmpty()) {
+            throw new IOException("Token response has no access_token.");
+        }
+
+        // Azure AD v1 endpoints send expires_in as a string
+        long expiresIn = body.path("expires_in").asLong(DEFAULT_EXPIRES_IN_SECONDS);
+
+        return new RefreshingTokenInterceptor.AccessToken(accessToken, issued.plusSeconds(expiresIn));
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Collects the source rows that could not be loaded, one per line:
+ * {@code <line number>\t<error>\t<source line>}. Removing the first two
+ * columns gives rows that can be fixed and loaded again. Rows are appended,
+ * so a resumed load adds to the rows of the earlier runs.
+ *
+ * Aug 19, 2022 10:26:33 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class DeadLetterFile implements AutoCloseable {
+
+    private final Path file;
+    private final FileChannel channel;
+    private final BufferedWriter writer;
+
+    private long count;
+
+    public DeadLetterFile(Path file, Charset charset) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.writer = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), charset));
+    }
+
+    /**
+     * Get the dead-letter file of a source file, kept in the directory under
+     * the name of the source file. It is written in UTF-8, the charset the
+     * source rows are read in.
+     */
+    public static DeadLetterFile of(Path directory, Path source) throws IOException {
+        Files.createDirectories(directory);
+
+        return new DeadLetterFile(Paths.get(directory.toString(), source.getFileName() + ".dead-letters"), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param lineNumber line number of the row in the source file, starting
+     * at 1
+     * @param error why the row was not loaded
+     * @param line the source line
+     * @throws IOException
+     */
+    public synchronized void write(long lineNumber, String error, String line) throws IOException {
+        writer.write(Long.toString(lineNumber));
+        writer.write('\t');
+        writer.write((error == null) ? "" : error.replaceAll("[\t\r\n]+", " "));
+        writer.write('\t');
+        writer.write(line);
+        writer.newLine();
+        count++;
+    }
+
+    /**
+     * Durably write the rows written so far.
+     *
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        writer.flush();
+        channel.force(false);
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        writer.close();
+    }
+
+}
@@ -21,6 +21,8 @@ package edu.pitt.dbmi.azure.fhir.client;
 import ca.uhn.fhir.rest.api.CacheControlDirective;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.UrlUtil;
+import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Encounter;
 
@@ -33,15 +35,52 @@ import org.hl7.fhir.r4.model.Encounter;
 public class EncounterResourceClient extends AbstractResourceClient {
 
     public EncounterResourceClient(IGenericClient client) {
-        super(client);
+        this(client, MetricsRegistry.NONE);
+    }
+
+    public EncounterResourceClient(IGenericClient client, MetricsRegistry metrics) {
+        super(client, metrics);
+    }
+
+    public EncounterResourceClient(IGenericClient client, MetricsRegistry metrics, UploadMode uploadMode) {
+        super(client, metrics, uploadMode);
     }
 
     public MethodOutcome deleteEncounter(Encounter encounter) {
         return client.delete().resource(encounter).execute();
     }
 
+    /**
+     * Delete all the encounters in one transaction. Every encounter ID is
+     * held in memory until the transaction is sent; see
+     * {@link #deleteAllEncounters()} for large servers.
+     */
     public Bundle deleteEncounters() {
-        return deleteResources(getEncounters());
+        return deleteResources(searchResourceIds(Encounter.class));
+    }
+
+    /**
+     * Delete all the encounters in BATCH bundles, sent while the search
+     * pages are being fetched. The deletes are not atomic.
+     */
+    public UploadSummary deleteAllEncounters() {
+        return deleteResources(searchResourceIds(Encounter.class), DEFAULT_DELETE_BATCH_SIZE);
+    }
+
+    public long deleteEncounters(String identifierSystem) {
+        return deleteResourcesConditionally(Encounter.class, "identifier=" + UrlUtil.escapeUrlParam(identifierSystem) + "|", DEFAULT_CONDITIONAL_DELETE_COUNT);
+    }
+
+    public Stream<Encounter> streamEncounters() {
+        return streamEncounters(DEFAULT_PAGE_SIZE, SearchPageIterator.DEFAULT_PREFETCH_DEPTH);
+    }
+
+    /**
+     * Stream all the encounters on the server, across all search pages. Close
+     * the stream when it is not fully consumed.
+     */
+    public Stream<Encounter> streamEncounters(int pageSize, int prefetchDepth) {
+        return iterateResources(Encounter.class, pageSize, prefetchDepth).stream();
     }
 
     public Bundle getEncounters() {
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.client.entity.GzipCompressingEntity;
+import org.apache.http.client.methods.HttpRequestBase;
+
+/**
+ * Compresses request bodies with gzip and asks for compressed responses.
+ * The request entity is wrapped so the body is compressed as it is written
+ * to the connection, instead of being compressed into a second buffer as
+ * HAPI's GZipContentInterceptor does. Compressed responses are decompressed
+ * by the Apache HTTP client.
+ *
+ * Requests made with {@link JdkRestfulClientFactory} hold their body in
+ * memory, so it is compressed into a new buffer. Requests made with other
+ * clients are sent uncompressed.
+ *
+ * Aug 11, 2022 9:26:15 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class GzipRequestInterceptor implements IClientInterceptor {
+
+    public static final long DEFAULT_MINIMUM_BYTES = 1024;
+
+    private static final String ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String CONTENT_ENCODING = "Content-Encoding";
+
+    private final long minimumBytes;
+
+    public GzipRequestInterceptor() {
+        this(DEFAULT_MINIMUM_BYTES);
+    }
+
+    /**
+     * @param minimumBytes smallest request body worth compressing
+     */
+    public GzipRequestInterceptor(long minimumBytes) {
+        this.minimumBytes = minimumBytes;
+    }
+
+    /**
+     * Register the interceptor on the client unless it already has one.
+     *
+     * @param client FHIR client
+     */
+    public static synchronized void register(IGenericClient client) {
+        boolean registered = client.getInterceptorService()
+                .getAllRegisteredInterceptors().stream()
+                .anyMatch(GzipRequestInterceptor.class::isInstance);
+        if (!registered) {
+            client.registerInterceptor(new GzipRequestInterceptor());
+        }
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        if (request instanceof JdkHttpRequest) {
+            compress((JdkHttpRequest) request);
+        }
+        if (!(request instanceof ApacheHttpRequest)) {
+            return;
+        }
+
+        HttpRequestBase apacheRequest = ((ApacheHttpRequest) request).getApacheRequest();
+        if (!apacheRequest.containsHeader(ACCEPT_ENCODING)) {
+            apacheRequest.addHeader(ACCEPT_ENCODING, "gzip");
+        }
+
+        if (apacheRequest instanceof HttpEntityEnclosingRequest) {
+            HttpEntityEnclosingRequest entityRequest = (HttpEntityEnclosingRequest) apacheRequest;
+            HttpEntity entity = entityRequest.getEntity();
+            if (entity != null && entity.getContentEncoding() == null && entity.getContentLength() >= minimumBytes) {
+                entityRequest.setEntity(new GzipCompressingEntity(entity));
+            }
+        }
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+    }
+
+    private void compress(JdkHttpRequest request) {
+        if (!request.containsHeader(ACCEPT_ENCODING)) {
+            request.addHeader(ACCEPT_ENCODING, "gzip");
+        }
+
+        byte[] body = request.getBody();
+        if (body != null && body.length >= minimumBytes && !request.containsHeader(CONTENT_ENCODING)) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 4);
+            try (GZIPOutputStream stream = new GZIPOutputStream(compressed)) {
+                stream.write(body);
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+
+            request.setBody(compressed.toByteArray());
+            request.addHeader(CONTENT_ENCODING, "gzip");
+        }
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram with fixed bucket bounds in a 1-2-5 series.
+ * Percentiles are reported as the upper bound of the bucket they fall in.
+ *
+ * Aug 10, 2022 9:40:02 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class Histogram {
+
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param maxBound largest bucket bound; larger values are counted in an
+     * overflow bucket
+     */
+    public Histogram(long maxBound) {
+        this.bounds = createBounds(maxBound);
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    private static long[] createBounds(long maxBound) {
+        int size = 0;
+        long[] series = new long[64];
+        for (long decade = 1; size < series.length; decade *= 10) {
+            for (long step : new long[]{1, 2, 5}) {
+                if (decade * step > maxBound) {
+                    long[] bounds = new long[size];
+                    System.arraycopy(series, 0, bounds, 0, size);
+
+                    return bounds;
+                }
+                series[size++] = decade * step;
+            }
+        }
+
+        return series;
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+
+        counts.incrementAndGet(bucket);
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+
+        return (n == 0) ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * @param percentile from 0 to 100
+     * @return upper bound of the bucket holding the percentile, or the
+     * maximum for the overflow bucket
+     */
+    public long getPercentile(double percentile) {
+        long n = count.sum();
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(n * percentile / 100);
+        long cumulative = 0;
+        for (int bucket = 0; bucket < bounds.length; bucket++) {
+            cumulative += counts.get(bucket);
+            if (cumulative >= rank) {
+                return Math.min(bounds[bucket], getMax());
+            }
+        }
+
+        return getMax();
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.api.SearchStyleEnum;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.util.FhirTerser;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Finds resources by identifier, searching for many identifier values per
+ * request instead of one request per value. With a {@link ResourceCache},
+ * only the values not cached are searched.
+ *
+ * The values are sent in the form body of a POST [type]/_search, so a batch
+ * of long identifiers does not run into URL length limits.
+ *
+ * Jul 29, 2022 11:02:26 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class IdentifierResolver {
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final TokenClientParam IDENTIFIER = new TokenClientParam("identifier");
+
+    private final IGenericClient client;
+    private final FhirTerser terser;
+    private final int batchSize;
+    private final ResourceCache cache;
+
+    public IdentifierResolver(IGenericClient client) {
+        this(client, DEFAULT_BATCH_SIZE);
+    }
+
+    public IdentifierResolver(IGenericClient client, int batchSize) {
+        this(client, batchSize, null);
+    }
+
+    public IdentifierResolver(IGenericClient client, int batchSize, ResourceCache cache) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least 1.");
+        }
+
+        this.client = client;
+        this.terser = client.getFhirContext().newTerser();
+        this.batchSize = batchSize;
+        this.cache = cache;
+    }
+
+    /**
+     * Find the resources having the given identifiers.
+     *
+     * @param <T> resource type
+     * @param resourceType resource type to search
+     * @param system identifier system
+     * @param values identifier values, duplicates and nulls are ignored
+     * @return resources keyed by identifier value; values with no match are
+     * absent. When several resources share a value, the first one returned by
+     * the server is kept.
+     */
+    public <T extends Resource> Map<String, T> resolve(Class<T> resourceType, String system, Collection<String> values) {
+        Map<String, T> resources = new HashMap<>();
+
+        Set<String> pending = new LinkedHashSet<>(values);
+        pending.remove(null);
+        if (cache != null) {
+            pending.removeIf(value -> resolveCached(resourceType, system, value, resources));
+        }
+
+        List<String> batch = new ArrayList<>(batchSize);
+        for (String value : pending) {
+            batch.add(value);
+            if (batch.size() == batchSize) {
+                resolve(resourceType, system, batch, resources);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            resolve(resourceType, system, batch, resources);
+        }
+
+        return resources;
+    }
+
+    private <T extends Resource> boolean resolveCached(Class<T> resourceType, String system, String value, Map<String, T> resources) {
+        List<Resource> matches = cache.getIdentifierMatches(resourceType.getSimpleName(), system, value);
+        if (matches == null) {
+            return false;
+        }
+
+        matches.stream()
+                .filter(resourceType::isInstance)
+                .map(resourceType::cast)
+                .findFirst()
+                .ifPresent(resource -> resources.put(value, resource));
+
+        return true;
+    }
+
+    private <T extends Resource> void resolve(Class<T> resourceType, String system, List<String> values, Map<String, T> resources) {
+        Set<String> requested = new LinkedHashSet<>(values);
+        Map<String, List<Resource>> matches = new HashMap<>();
+
+        Bundle searchBundle = client
+                .search()
+                .forResource(resourceType)
+                .where(IDENTIFIER.exactly().systemAndValues(system, values))
+                .count(values.size())
+                .usingStyle(SearchStyleEnum.POST)
+                .returnBundle(Bundle.class)
+                .cacheControl(new CacheControlDirective().setNoCache(true))
+                .execute();
+        collect(resourceType, system, requested, searchBundle, matches);
+
+        while (searchBundle.getLink(IBaseBundle.LINK_NEXT) != null) {
+            searchBundle = client
+                    .loadPage()
+                    .next(searchBundle)
+                    .execute();
+            collect(resourceType, system, requested, searchBundle, matches);
+        }
+
+        matches.forEach((value, valueMatches) -> {
+            resources.putIfAbsent(value, resourceType.cast(valueMatches.get(0)));
+            if (cache != null) {
+                cache.putIdentifierMatches(resourceType.getSimpleName(), system, value, valueMatches);
+            }
+        });
+    }
+
+    private <T extends Resource> void collect(Class<T> resourceType, String system, Set<String> requested, Bundle searchBundle, Map<String, List<Resource>> matches) {
+        searchBundle.getEntry().stream()
+                .map(Bundle.BundleEntryComponent::getResource)
+                .filter(resourceType::isInstance)
+                .forEach(resource -> terser.getValues(resource, "identifier", Identifier.class).stream()
+                .filter(identifier -> system.equals(identifier.getSystem()))
+                .map(Identifier::getValue)
+                .filter(requested::contains)
+                .distinct()
+                .forEach(value -> matches.computeIfAbsent(value, key -> new ArrayList<>()).add(resource)));
+    }
+
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Keeps client metrics in memory, one {@link OperationMetrics} per
+ * operation. When created with an MBean server, each operation is
+ * registered as an MXBean named
+ * {@code edu.pitt.dbmi.azure.fhir.client:type=ClientMetrics,name=<name>,operation=<operation>}.
+ *
+ * Aug 10, 2022 10:32:54 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class InMemoryMetricsRegistry implements MetricsRegistry, AutoCloseable {
+
+    private static final String JMX_DOMAIN = "edu.pitt.dbmi.azure.fhir.client";
+
+    private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+    private final MBeanServer mbeanServer;
+    private final String name;
+
+    public InMemoryMetricsRegistry() {
+        this(null, null);
+    }
+
+    public InMemoryMetricsRegistry(MBeanServer mbeanServer, String name) {
+        this.mbeanServer = mbeanServer;
+        this.name = name;
+    }
+
+    /**
+     * Create a registry exposed over the platform MBean server.
+     *
+     * @param name distinguishes the registry's MXBeans from other registries
+     * @return the registry
+     */
+    public static InMemoryMetricsRegistry withJmx(String name) {
+        return new InMemoryMetricsRegistry(ManagementFactory.getPlatformMBeanServer(), name);
+    }
+
+    public OperationMetrics getOperationMetrics(String operation) {
+        return operations.computeIfAbsent(operation, this::createOperationMetrics);
+    }
+
+    public Collection<OperationMetrics> getOperationMetrics() {
+        return Collections.unmodifiableCollection(operations.values());
+    }
+
+    private OperationMetrics createOperationMetrics(String operation) {
+        OperationMetrics metrics = new OperationMetrics(operation);
+        if (mbeanServer != null) {
+            try {
+                mbeanServer.registerMBean(metrics, getObjectName(operation));
+            } catch (JMException exception) {
+                exception.printStackTrace(System.err);
+            }
+        }
+
+        return metrics;
+    }
+
+    private ObjectName getObjectName(String operation) throws JMException {
+        return new ObjectName(String.format("%s:type=ClientMetrics,name=%s,operation=%s",
+                JMX_DOMAIN, ObjectName.quote(name), ObjectName.quote(operation)));
+    }
+
+    @Override
+    public void recordLatency(String operation, long millis) {
+        getOperationMetrics(operation).recordLatency(millis);
+    }
+
+    @Override
+    public void recordRequestBytes(String operation, long bytes) {
+        getOperationMetrics(operation).recordRequestBytes(bytes);
+    }
+
+    @Override
+    public void recordResponseBytes(String operation, long bytes) {
+        getOperationMetrics(operation).recordResponseBytes(bytes);
+    }
+
+    @Override
+    public void recordEntries(String operation, int entries) {
+        getOperationMetrics(operation).recordEntries(entries);
+    }
+
+    @Override
+    public void recordRetries(String operation, int retries) {
+        getOperationMetrics(operation).recordRetries(retries);
+    }
+
+    @Override
+    public void recordError(String operation, int statusCode) {
+        getOperationMetrics(operation).recordError(statusCode);
+    }
+
+    /**
+     * Unregister the MXBeans.
+     */
+    @Override
+    public void close() {
+        if (mbeanServer == null) {
+            return;
+        }
+
+        for (String operation : operations.keySet()) {
+            try {
+                ObjectName objectName = getObjectName(operation);
+                if (mbeanServer.isRegistered(objectName)) {
+                    mbeanServer.unregisterMBean(objectName);
+                }
+            } catch (JMException exception) {
+                exception.printStackTrace(System.err);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        operations.values().forEach(metrics -> builder.append(metrics).append(System.lineSeparator()));
+
+        return builder.toString();
+    }
+
+}
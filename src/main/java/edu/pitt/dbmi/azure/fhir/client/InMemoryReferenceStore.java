@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ *
+ * Aug 2, 2022 1:20:03 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class InMemoryReferenceStore implements ReferenceStore {
+
+    private final Map<String, Reference> references = new ConcurrentHashMap<>();
+
+    @Override
+    public Reference get(String key) {
+        return references.get(key);
+    }
+
+    @Override
+    public void put(String key, Reference reference) {
+        references.put(key, reference);
+    }
+
+    @Override
+    public boolean contains(String key) {
+        return references.containsKey(key);
+    }
+
+    @Override
+    public long size() {
+        return references.size();
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.api.EncodingEnum;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.client.api.HttpClientUtil;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.apache.BaseHttpClient;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * HAPI FHIR HTTP client creating requests for the JDK {@link java.net.http.HttpClient}
+ * of a {@link JdkRestfulClientFactory}.
+ *
+ * Aug 20, 2022 10:52:03 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class JdkHttpClient extends BaseHttpClient {
+
+    private static final String USER_AGENT = "User-Agent";
+
+    private final JdkRestfulClientFactory factory;
+
+    public JdkHttpClient(JdkRestfulClientFactory factory, StringBuilder url, Map<String, List<String>> ifNoneExistParams, String ifNoneExistString, RequestTypeEnum requestType, List<Header> headers) {
+        super(url, ifNoneExistParams, ifNoneExistString, requestType, headers);
+        this.factory = factory;
+    }
+
+    @Override
+    public void addHeadersToRequest(IHttpRequest request, EncodingEnum encoding, FhirContext context) {
+        super.addHeadersToRequest(request, encoding, context);
+
+        request.removeHeaders(USER_AGENT);
+        request.addHeader(USER_AGENT, HttpClientUtil.createUserAgentString(context, "jdk"));
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest() {
+        return createHttpRequest((byte[]) null);
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest(byte[] content) {
+        RequestTypeEnum requestType = (myRequestType == null) ? RequestTypeEnum.GET : myRequestType;
+        int socketTimeout = factory.getSocketTimeout();
+
+        return new JdkHttpRequest(factory, myUrl.toString(), requestType.name(), content,
+                (socketTimeout > 0) ? Duration.ofMillis(socketTimeout) : null);
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest(Map<String, List<String>> params) {
+        StringJoiner form = new StringJoiner("&");
+        params.forEach((name, values) -> {
+            for (String value : values) {
+                form.add(URLEncoder.encode(name, StandardCharsets.UTF_8) + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8));
+            }
+        });
+
+        IHttpRequest request = createHttpRequest(form.toString());
+        request.addHeader(Constants.HEADER_CONTENT_TYPE, Constants.CT_X_FORM_URLENCODED + Constants.CHARSET_UTF8_CTSUFFIX);
+
+        return request;
+    }
+
+    @Override
+    protected IHttpRequest createHttpRequest(String content) {
+        return createHttpRequest(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
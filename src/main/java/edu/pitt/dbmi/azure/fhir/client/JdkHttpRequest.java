@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.api.UrlSourceEnum;
+import ca.uhn.fhir.util.StopWatch;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+
+/**
+ * HAPI FHIR HTTP request sent with the JDK {@link java.net.http.HttpClient}.
+ * The body is kept as bytes until the request is executed, so interceptors
+ * can replace it.
+ *
+ * Aug 20, 2022 11:07:46 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class JdkHttpRequest implements IHttpRequest {
+
+    /**
+     * Headers set by the JDK client itself.
+     */
+    private static final Set<String> RESTRICTED_HEADERS = Set.of("connection", "content-length", "expect", "host", "upgrade");
+
+    private final JdkRestfulClientFactory factory;
+    private final String method;
+    private final Duration timeout;
+    private final Map<String, List<String>> headers = new LinkedHashMap<>();
+
+    private String uri;
+    private byte[] body;
+    private UrlSourceEnum urlSource;
+
+    public JdkHttpRequest(JdkRestfulClientFactory factory, String uri, String method, byte[] body, Duration timeout) {
+        this.factory = factory;
+        this.uri = uri;
+        this.method = method;
+        this.body = body;
+        this.timeout = timeout;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        headers.computeIfAbsent(name, key -> new ArrayList<>()).add(value);
+    }
+
+    @Override
+    public IHttpResponse execute() throws IOException {
+        URI requestUri = URI.create(uri);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(requestUri)
+                .method(method, (body == null) ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+        if (timeout != null) {
+            builder.timeout(timeout);
+        }
+        headers.forEach((name, values) -> {
+            if (!RESTRICTED_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+                values.forEach(value -> builder.header(name, value));
+            }
+        });
+        HttpRequest request = builder.build();
+
+        Semaphore permits;
+        try {
+            permits = factory.acquireRoute(requestUri);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(exception.getMessage());
+        }
+
+        StopWatch stopWatch = new StopWatch();
+        try {
+            HttpResponse<InputStream> response = factory.getNativeHttpClient().send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+            return new JdkHttpResponse(response, stopWatch, permits);
+        } catch (InterruptedException exception) {
+            permits.release();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(exception.getMessage());
+        } catch (IOException | RuntimeException exception) {
+            permits.release();
+            throw exception;
+        }
+    }
+
+    @Override
+    public Map<String, List<String>> getAllHeaders() {
+        return headers;
+    }
+
+    @Override
+    public String getRequestBodyFromStream() {
+        return (body == null) ? null : new String(body, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String getUri() {
+        return uri;
+    }
+
+    @Override
+    public void setUri(String uri) {
+        this.uri = uri;
+    }
+
+    @Override
+    public String getHttpVerbName() {
+        return method;
+    }
+
+    @Override
+    public void removeHeaders(String name) {
+        headers.keySet().removeIf(name::equalsIgnoreCase);
+    }
+
+    @Override
+    public UrlSourceEnum getUrlSource() {
+        return urlSource;
+    }
+
+    @Override
+    public void setUrlSource(UrlSourceEnum urlSource) {
+        this.urlSource = urlSource;
+    }
+
+    /**
+     * @param name header name
+     * @return true if the request has the header, whatever its case
+     */
+    public boolean containsHeader(String name) {
+        return headers.keySet().stream().anyMatch(name::equalsIgnoreCase);
+    }
+
+    /**
+     * @return the request body, or null if the request has none
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.api.Constants;
+import ca.uhn.fhir.rest.client.impl.BaseHttpResponse;
+import ca.uhn.fhir.util.StopWatch;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.net.http.HttpResponse;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.LongConsumer;
+import java.util.zip.GZIPInputStream;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+
+/**
+ * HAPI FHIR HTTP response received with the JDK
+ * {@link java.net.http.HttpClient}. Gzip-encoded bodies are decompressed, and
+ * their Content-Encoding and Content-Length headers dropped, as the Apache
+ * HTTP client does. Closing the response lets the next request to its route
+ * go.
+ *
+ * Aug 20, 2022 11:31:20 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class JdkHttpResponse extends BaseHttpResponse {
+
+    private static final String CONTENT_LENGTH = "Content-Length";
+
+    private final HttpResponse<InputStream> response;
+    private final Semaphore permits;
+    private final boolean gzip;
+    private final Map<String, List<String>> headers;
+
+    private byte[] entity;
+    private boolean entityOpened;
+    private LongConsumer entityListener;
+    private boolean closed;
+
+    public JdkHttpResponse(HttpResponse<InputStream> response, StopWatch stopWatch, Semaphore permits) {
+        super(stopWatch);
+        this.response = response;
+        this.permits = permits;
+        this.gzip = response.headers().firstValue(Constants.HEADER_CONTENT_ENCODING)
+                .map(Constants.ENCODING_GZIP::equalsIgnoreCase)
+                .orElse(false);
+
+        this.headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        this.headers.putAll(response.headers().map());
+        if (gzip) {
+            this.headers.remove(Constants.HEADER_CONTENT_ENCODING);
+            this.headers.remove(CONTENT_LENGTH);
+        }
+    }
+
+    @Override
+    public synchronized void bufferEntity() throws IOException {
+        if (entity == null) {
+            try (InputStream stream = openEntity()) {
+                entity = stream.readAllBytes();
+            }
+        }
+    }
+
+    /**
+     * Count the body bytes received, before they are decompressed.
+     *
+     * @param listener receives the count once the body is read to the end or
+     * the response is closed
+     */
+    public synchronized void countEntity(LongConsumer listener) {
+        this.entityListener = listener;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (!entityOpened && entityListener != null) {
+            entityListener.accept(0);
+        }
+
+        try {
+            response.body().close();
+        } catch (IOException exception) {
+            exception.printStackTrace(System.err);
+        } finally {
+            permits.release();
+        }
+    }
+
+    @Override
+    public Reader createReader() throws IOException {
+        return new InputStreamReader(readEntity(), getCharset());
+    }
+
+    @Override
+    public Map<String, List<String>> getAllHeaders() {
+        return headers;
+    }
+
+    @Override
+    public List<String> getHeaders(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public String getMimeType() {
+        List<String> contentType = headers.get(Constants.HEADER_CONTENT_TYPE);
+        if (contentType == null || contentType.isEmpty()) {
+            return null;
+        }
+
+        String value = contentType.get(0);
+        int separator = value.indexOf(';');
+
+        return ((separator < 0) ? value : value.substring(0, separator)).trim();
+    }
+
+    @Override
+    public HttpResponse<InputStream> getResponse() {
+        return response;
+    }
+
+    @Override
+    public int getStatus() {
+        return response.statusCode();
+    }
+
+    @Override
+    public String getStatusInfo() {
+        String reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(response.statusCode(), Locale.ENGLISH);
+
+        return (reason == null) ? "" : reason;
+    }
+
+    @Override
+    public synchronized InputStream readEntity() throws IOException {
+        return (entity == null) ? openEntity() : new ByteArrayInputStream(entity);
+    }
+
+    private InputStream openEntity() throws IOException {
+        entityOpened = true;
+        InputStream body = (entityListener == null) ? response.body() : new CountingInputStream(response.body(), entityListener);
+        if (!gzip) {
+            return body;
+        }
+
+        // an empty body, e.g. of a 304, is not a gzip stream
+        PushbackInputStream stream = new PushbackInputStream(body);
+        int first = stream.read();
+        if (first < 0) {
+            return stream;
+        }
+        stream.unread(first);
+
+        return new GZIPInputStream(stream);
+    }
+
+    private Charset getCharset() {
+        List<String> contentType = headers.get(Constants.HEADER_CONTENT_TYPE);
+        if (contentType != null && !contentType.isEmpty()) {
+            for (String parameter : contentType.get(0).split(";")) {
+                String[] pair = parameter.trim().split("=", 2);
+                if (pair.length == 2 && "charset".equalsIgnoreCase(pair[0].trim())) {
+                    try {
+                        return Charset.forName(pair[1].trim().replace("\"", ""));
+                    } catch (IllegalArgumentException exception) {
+                        // fall back to UTF-8
+                    }
+                }
+            }
+        }
+
+        return StandardCharsets.UTF_8;
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.RequestTypeEnum;
+import ca.uhn.fhir.rest.client.api.Header;
+import ca.uhn.fhir.rest.client.api.IHttpClient;
+import ca.uhn.fhir.rest.client.impl.RestfulClientFactory;
+import java.io.IOException;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.ProxySelector;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates HAPI FHIR clients that send their requests with the JDK
+ * {@link HttpClient}. The JDK client negotiates HTTP/2 with the server (ALPN
+ * over TLS, an h2c upgrade over plain HTTP) and multiplexes concurrent
+ * requests over one connection per server. With servers that only speak
+ * HTTP/1.1 it falls back to a pool of keep-alive connections. Idle HTTP/1.1
+ * connections are kept open for the time given by the
+ * jdk.httpclient.keepalive.timeout system property.
+ *
+ * The number of requests in flight to each route (scheme, host and port) is
+ * limited by the pool max per route, which also bounds the number of
+ * HTTP/1.1 connections opened to it. A request waits for the connection
+ * request timeout for its turn. The socket timeout is the time allowed until
+ * the response headers arrive. The pool max total is not used.
+ *
+ * Use it for all clients of a context with
+ * {@code fhirContext.setRestfulClientFactory(new JdkRestfulClientFactory(fhirContext))}.
+ *
+ * Aug 20, 2022 10:14:37 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class JdkRestfulClientFactory extends RestfulClientFactory {
+
+    private final Map<String, Semaphore> routePermits = new ConcurrentHashMap<>();
+
+    private HttpClient httpClient;
+    private HttpClient.Version version = HttpClient.Version.HTTP_2;
+    private InetSocketAddress proxy;
+
+    public JdkRestfulClientFactory() {
+    }
+
+    public JdkRestfulClientFactory(FhirContext fhirContext) {
+        super(fhirContext);
+    }
+
+    @Override
+    protected synchronized IHttpClient getHttpClient(String serverBase) {
+        return new JdkHttpClient(this, new StringBuilder(serverBase), null, null, null, null);
+    }
+
+    @Override
+    public synchronized IHttpClient getHttpClient(StringBuilder url, Map<String, List<String>> ifNoneExistParams, String ifNoneExistString, RequestTypeEnum requestType, List<Header> headers) {
+        return new JdkHttpClient(this, url, ifNoneExistParams, ifNoneExistString, requestType, headers);
+    }
+
+    public synchronized HttpClient getNativeHttpClient() {
+        if (httpClient == null) {
+            HttpClient.Builder builder = HttpClient.newBuilder()
+                    .version(version)
+                    .followRedirects(HttpClient.Redirect.NORMAL);
+            if (getConnectTimeout() > 0) {
+                builder.connectTimeout(Duration.ofMillis(getConnectTimeout()));
+            }
+            if (proxy != null) {
+                builder.proxy(ProxySelector.of(proxy));
+
+                String username = getProxyUsername();
+                String password = getProxyPassword();
+                if (username != null && password != null) {
+                    builder.authenticator(new Authenticator() {
+                        @Override
+                        protected PasswordAuthentication getPasswordAuthentication() {
+                            return (getRequestorType() == RequestorType.PROXY)
+                                    ? new PasswordAuthentication(username, password.toCharArray())
+                                    : null;
+                        }
+                    });
+                }
+            }
+
+            httpClient = builder.build();
+        }
+
+        return httpClient;
+    }
+
+    /**
+     * Use the given JDK client instead of building one. Pool, timeout and
+     * proxy settings still apply to the requests.
+     *
+     * @param httpClient a {@link HttpClient}
+     */
+    @Override
+    public synchronized <T> void setHttpClient(T httpClient) {
+        this.httpClient = (HttpClient) httpClient;
+    }
+
+    /**
+     * @param version HTTP version preferred by new clients; HTTP_1_1 turns off
+     * HTTP/2 negotiation
+     */
+    public synchronized void setVersion(HttpClient.Version version) {
+        this.version = version;
+        resetHttpClient();
+    }
+
+    @Override
+    public synchronized void setProxy(String host, Integer port) {
+        proxy = (host == null) ? null : InetSocketAddress.createUnresolved(host, port);
+        resetHttpClient();
+    }
+
+    @Override
+    public synchronized void setProxyCredentials(String username, String password) {
+        super.setProxyCredentials(username, password);
+        resetHttpClient();
+    }
+
+    @Override
+    protected synchronized void resetHttpClient() {
+        httpClient = null;
+        routePermits.clear();
+    }
+
+    /**
+     * Wait for a request to the route of the given URI to be allowed.
+     *
+     * @param uri request URI
+     * @return permits to release once the response is closed
+     * @throws IOException if the connection request timeout elapsed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Semaphore acquireRoute(URI uri) throws IOException, InterruptedException {
+        String route = String.format("%s://%s:%d", uri.getScheme(), uri.getHost(), uri.getPort());
+        int maxPerRoute = getPoolMaxPerRoute();
+        Semaphore permits = routePermits.computeIfAbsent(route, key -> new Semaphore(maxPerRoute, true));
+
+        int timeout = getConnectionRequestTimeout();
+        if (timeout > 0) {
+            if (!permits.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new IOException(String.format("Timeout waiting for a connection to %s.", route));
+            }
+        } else {
+            permits.acquire();
+        }
+
+        return permits;
+    }
+
+}
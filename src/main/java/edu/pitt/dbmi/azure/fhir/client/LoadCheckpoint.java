@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/**
+ * Records how far the load of a source file has been committed to the
+ * server: the byte offset and the line number following the last uploaded
+ * batch. A load restarted with the same checkpoint continues from there
+ * instead of from the start of the file.
+ *
+ * The checkpoint is written to a temporary file that is synced and then
+ * moved over the previous checkpoint, so a crash leaves either the old or the
+ * new checkpoint, never a partial one.
+ *
+ * Aug 14, 2022 10:48:05 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class LoadCheckpoint {
+
+    private static final String SOURCE = "source";
+    private static final String SOURCE_SIZE = "source.size";
+    private static final String OFFSET = "offset";
+    private static final String LINE_NUMBER = "line.number";
+
+    private final Path file;
+    private final Path source;
+    private final long sourceSize;
+
+    private long offset;
+    private long lineNumber;
+
+    /**
+     * Open the checkpoint of the source file, reading the committed position
+     * if the checkpoint file exists.
+     *
+     * @param file checkpoint file
+     * @param source file being loaded
+     * @throws IOException if the source file has changed since the
+     * checkpoint was written
+     */
+    public LoadCheckpoint(Path file, Path source) throws IOException {
+        this.file = file;
+        this.source = source;
+        this.sourceSize = Files.size(source);
+
+        if (Files.exists(file)) {
+            Properties properties = new Properties();
+            try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                properties.load(reader);
+            }
+
+            long checkpointSourceSize = Long.parseLong(properties.getProperty(SOURCE_SIZE, "-1"));
+            if (checkpointSourceSize != sourceSize) {
+                throw new IOException(String.format("%s has changed since checkpoint %s was written.", source, file));
+            }
+
+            this.offset = Long.parseLong(properties.getProperty(OFFSET, "0"));
+            this.lineNumber = Long.parseLong(properties.getProperty(LINE_NUMBER, "0"));
+        }
+    }
+
+    /**
+     * Get the checkpoint of a source file, kept in the checkpoint directory
+     * under the name of the source file.
+     */
+    public static LoadCheckpoint of(Path checkpointDirectory, Path source) throws IOException {
+        Files.createDirectories(checkpointDirectory);
+
+        return new LoadCheckpoint(Paths.get(checkpointDirectory.toString(), source.getFileName() + ".checkpoint"), source);
+    }
+
+    /**
+     * Durably record that everything before the offset has been loaded.
+     *
+     * @param offset byte offset of the first line not yet loaded
+     * @param lineNumber number of lines before the offset
+     * @throws IOException
+     */
+    public synchronized void commit(long offset, long lineNumber) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SOURCE, source.toAbsolutePath().toString());
+        properties.setProperty(SOURCE_SIZE, Long.toString(sourceSize));
+        properties.setProperty(OFFSET, Long.toString(offset));
+        properties.setProperty(LINE_NUMBER, Long.toString(lineNumber));
+
+        Path tmpFile = Paths.get(file.toString() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = Channels.newOutputStream(channel);
+            properties.store(out, null);
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        this.offset = offset;
+        this.lineNumber = lineNumber;
+    }
+
+    /**
+     * @return true if the whole source file has been loaded
+     */
+    public synchronized boolean isComplete() {
+        return offset >= sourceSize;
+    }
+
+    public synchronized long getOffset() {
+        return offset;
+    }
+
+    public synchronized long getLineNumber() {
+        return lineNumber;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s: line %d, offset %d of %d", source, lineNumber, offset, sourceSize);
+    }
+
+}
@@ -0,0 +1,547 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import edu.pitt.dbmi.fhir.resource.mapper.util.Delimiters;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Loads several TSV files at once, with the reading and mapping of each file
+ * overlapping the uploads of the others.
+ *
+ * Each file has a reader thread that maps its rows into resources. A resource
+ * whose references are all registered goes into a bounded queue of resources
+ * ready for upload. A resource referencing a resource that has not been
+ * uploaded yet is parked until that resource is registered by the upload
+ * callback, e.g. an observation waits for its own patient and encounter only,
+ * not for the whole patient and encounter files. The number of parked
+ * resources is bounded per file, so a file that gets ahead of the files it
+ * depends on is slowed down.
+ *
+ * References to resource types not loaded by the pipeline, or still missing
+ * once their file has been completely uploaded, are searched on the server. A
+ * resource whose references cannot be found is not uploaded.
+ *
+ * A pipeline runs once.
+ *
+ * Aug 16, 2022 10:21:54 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class LoadPipeline {
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10_000;
+
+    // a partial batch is sent once its first resource has waited this long
+    private static final long MAX_BATCH_DELAY_MILLIS = 100;
+
+    private final ReferenceRegistry referenceRegistry;
+    private final Resolver resolver;
+    private final BatchSubmitter submitter;
+    private final int batchSize;
+    private final int queueCapacity;
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final BlockingQueue<Item> ready;
+    private final Queue<Item> released = new ConcurrentLinkedQueue<>();
+    private final Map<String, List<Item>> parked = new HashMap<>();
+    private final AtomicLong unresolvedCount = new AtomicLong();
+
+    // counts the changes the pipeline thread waits for when it is idle
+    private final Object signal = new Object();
+    private long signalCount;
+
+    public LoadPipeline(ReferenceRegistry referenceRegistry, Resolver resolver, BatchSubmitter submitter, int batchSize) {
+        this(referenceRegistry, resolver, submitter, batchSize, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * @param referenceRegistry references of the uploaded resources
+     * @param resolver searches the server for referenced resources
+     * @param submitter uploads a batch of resources
+     * @param batchSize number of resources in each bundle
+     * @param queueCapacity maximum number of resources ready for upload, and
+     * of parked resources of each file
+     */
+    public LoadPipeline(ReferenceRegistry referenceRegistry, Resolver resolver, BatchSubmitter submitter, int batchSize, int queueCapacity) {
+        this.referenceRegistry = referenceRegistry;
+        this.resolver = resolver;
+        this.submitter = submitter;
+        this.batchSize = batchSize;
+        this.queueCapacity = queueCapacity;
+        this.ready = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Add a TSV file to load.
+     *
+     * @param resourceType type of the resources mapped from the file
+     * @param identifierSystem system of the identifiers other resources
+     * reference them by, or null if no resource references them
+     * @param tsvFile TSV file with a header line
+     * @param mapper maps a row into a resource
+     * @param dependencies references a resource needs before it is uploaded
+     * @param referenceSetter sets the references of a resource from the
+     * reference registry
+     * @return this pipeline
+     */
+    public LoadPipeline add(String resourceType, String identifierSystem, Path tsvFile, RowMapper mapper, Function<Resource, List<Dependency>> dependencies, Consumer<Resource> referenceSetter) {
+        if (stages.containsKey(resourceType)) {
+            throw new IllegalArgumentException("A file of " + resourceType + " resources has already been added.");
+        }
+        stages.put(resourceType, new Stage(resourceType, identifierSystem, tsvFile, mapper, dependencies, referenceSetter, queueCapacity));
+
+        return this;
+    }
+
+    /**
+     * Load all the files, blocking until every resource has been uploaded or
+     * given up on.
+     *
+     * @param uploader uploads the bundles
+     * @return results of the bundles
+     */
+    public UploadSummary run(BundleUploader uploader) {
+        List<Thread> readers = new LinkedList<>();
+        stages.values().forEach(stage -> {
+            Thread reader = new Thread(() -> read(stage), "load-pipeline-" + stage.resourceType);
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        });
+
+        try {
+            long signals = getSignalCount();
+            while (!isSettled()) {
+                Item item = released.poll();
+                if (item == null) {
+                    item = ready.poll();
+                } else {
+                    item.stage.parkPermits.release();
+                }
+
+                if (item == null) {
+                    resolveSettledDependencies();
+                } else {
+                    Stage stage = item.stage;
+                    stage.referenceSetter.accept(item.resource);
+                    if (stage.batch.isEmpty()) {
+                        stage.batchStart = System.currentTimeMillis();
+                    }
+                    stage.batch.add(item.resource);
+                    if (stage.batch.size() >= uploader.getBatchSize(batchSize)) {
+                        submit(stage, uploader);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                for (Stage stage : stages.values()) {
+                    if (!stage.batch.isEmpty() && (item == null || now - stage.batchStart >= MAX_BATCH_DELAY_MILLIS)) {
+                        submit(stage, uploader);
+                    }
+                }
+
+                // idle with every partial batch sent: wait for a resource, a
+                // registered reference or a finished file
+                if (item == null) {
+                    signals = awaitSignal(signals);
+                }
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            readers.forEach(Thread::interrupt);
+        }
+
+        UploadSummary summary = uploader.awaitCompletion();
+        if (unresolvedCount.get() > 0) {
+            System.err.printf("%d resources were not uploaded because their references could not be found.%n", unresolvedCount.get());
+        }
+
+        return summary;
+    }
+
+    /**
+     * @return number of resources that were not uploaded because their
+     * references could not be found
+     */
+    public long getUnresolvedCount() {
+        return unresolvedCount.get();
+    }
+
+    private void read(Stage stage) {
+        try (BufferedReader reader = Files.newBufferedReader(stage.tsvFile, StandardCharsets.UTF_8)) {
+            reader.readLine(); // skip header
+
+            List<Item> items = new ArrayList<>(batchSize);
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                try {
+                    Resource resource = stage.mapper.map(Delimiters.TAB_DELIM.split(line));
+                    items.add(new Item(stage, resource, stage.dependencies.apply(resource)));
+                    stage.pending.incrementAndGet();
+                } catch (ParseException exception) {
+                    exception.printStackTrace(System.err);
+                }
+
+                if (items.size() >= batchSize) {
+                    dispatch(items);
+                    items = new ArrayList<>(batchSize);
+                }
+            }
+            dispatch(items);
+        } catch (IOException exception) {
+            exception.printStackTrace(System.err);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stage.readDone = true;
+            signal();
+        }
+    }
+
+    /**
+     * Queue the resources for upload, or park the ones waiting for
+     * references. References that will not be registered by this pipeline
+     * are searched on the server first, for all the resources at once.
+     */
+    private void dispatch(List<Item> items) throws InterruptedException {
+        Set<String> searchedTypes = resolve(items);
+        for (Item item : items) {
+            if (getMissingDependency(item) == null) {
+                ready.put(item);
+                signal();
+            } else if (isUnresolvable(item, searchedTypes)) {
+                giveUp(item);
+            } else {
+                item.stage.parkPermits.acquire();
+                synchronized (parked) {
+                    if (park(item)) {
+                        continue;
+                    }
+                }
+                item.stage.parkPermits.release();
+                ready.put(item);
+                signal();
+            }
+        }
+    }
+
+    /**
+     * Park the resource on its first missing reference. Must hold the lock on
+     * the parked resources.
+     *
+     * @return true if the resource was parked, false if it is ready for
+     * upload
+     */
+    private boolean park(Item item) {
+        Dependency missing = getMissingDependency(item);
+        if (missing == null) {
+            return false;
+        }
+
+        item.waitingFor = missing;
+        parked.computeIfAbsent(missing.key(), key -> new LinkedList<>()).add(item);
+
+        return true;
+    }
+
+    /**
+     * Release the resources parked on the registered references.
+     */
+    private void release(List<String> keys) {
+        synchronized (parked) {
+            for (String key : keys) {
+                List<Item> items = parked.remove(key);
+                if (items != null) {
+                    items.stream()
+                            .filter(item -> !park(item))
+                            .forEach(released::add);
+                }
+            }
+        }
+        signal();
+    }
+
+    /**
+     * Search the server for the references still missing once the files
+     * that would have registered them are completely uploaded.
+     */
+    private void resolveSettledDependencies() {
+        List<Item> items = new LinkedList<>();
+        synchronized (parked) {
+            parked.values().removeIf(waiting -> {
+                if (isExternal(waiting.get(0).waitingFor.resourceType)) {
+                    items.addAll(waiting);
+
+                    return true;
+                }
+
+                return false;
+            });
+        }
+        if (items.isEmpty()) {
+            return;
+        }
+
+        Set<String> searchedTypes = resolve(items);
+        synchronized (parked) {
+            for (Item item : items) {
+                if (isUnresolvable(item, searchedTypes)) {
+                    item.stage.parkPermits.release();
+                    giveUp(item);
+                } else if (!park(item)) {
+                    released.add(item);
+                }
+            }
+        }
+        signal();
+    }
+
+    /**
+     * Search the server for the missing references of the resources to the
+     * types that will not be registered by this pipeline.
+     *
+     * @return the types searched
+     */
+    private Set<String> resolve(List<Item> items) {
+        Set<String> externalTypes = items.stream()
+                .flatMap(item -> item.dependencies.stream())
+                .map(dependency -> dependency.resourceType)
+                .filter(this::isExternal)
+                .collect(Collectors.toSet());
+
+        items.stream()
+                .flatMap(item -> item.dependencies.stream())
+                .filter(dependency -> externalTypes.contains(dependency.resourceType) && !isRegistered(dependency))
+                .collect(Collectors.groupingBy(
+                        dependency -> ResourceIndex.key(dependency.resourceType, dependency.system),
+                        Collectors.toList()))
+                .values()
+                .forEach(dependencies -> resolver.resolve(
+                        dependencies.get(0).resourceType,
+                        dependencies.get(0).system,
+                        dependencies.stream().map(dependency -> dependency.value).collect(Collectors.toSet())));
+
+        return externalTypes;
+    }
+
+    private boolean isUnresolvable(Item item, Set<String> searchedTypes) {
+        return item.dependencies.stream()
+                .anyMatch(dependency -> searchedTypes.contains(dependency.resourceType) && !isRegistered(dependency));
+    }
+
+    private void giveUp(Item item) {
+        item.stage.pending.decrementAndGet();
+        unresolvedCount.incrementAndGet();
+        signal();
+    }
+
+    private void submit(Stage stage, BundleUploader uploader) {
+        List<Resource> batch = stage.batch;
+        stage.batch = new ArrayList<>();
+        submitter.submit(batch, stage.resourceType, stage.identifierSystem, uploader, result -> {
+            try {
+                if (result.isSuccess()) {
+                    if (stage.identifierSystem != null) {
+                        release(referenceRegistry.register(result.getRequest(), result.getResponse(), stage.identifierSystem));
+                    }
+                } else {
+                    result.getException().printStackTrace(System.err);
+                }
+            } finally {
+                stage.pending.addAndGet(-result.getEntryCount());
+                signal();
+            }
+        });
+    }
+
+    /**
+     * Wake up the pipeline thread.
+     */
+    private void signal() {
+        synchronized (signal) {
+            signalCount++;
+            signal.notifyAll();
+        }
+    }
+
+    private long getSignalCount() {
+        synchronized (signal) {
+            return signalCount;
+        }
+    }
+
+    /**
+     * Wait until the pipeline is signaled after the given count was read.
+     *
+     * @return the new count
+     */
+    private long awaitSignal(long signals) throws InterruptedException {
+        synchronized (signal) {
+            while (signalCount == signals) {
+                signal.wait();
+            }
+
+            return signalCount;
+        }
+    }
+
+    private Dependency getMissingDependency(Item item) {
+        return item.dependencies.stream()
+                .filter(dependency -> !isRegistered(dependency))
+                .findFirst()
+                .orElse(null);
+    }
+
+    private boolean isRegistered(Dependency dependency) {
+        return referenceRegistry.contains(dependency.resourceType, dependency.system, dependency.value);
+    }
+
+    /**
+     * @return true if no more resources of the type will be registered by
+     * this pipeline
+     */
+    private boolean isExternal(String resourceType) {
+        Stage stage = stages.get(resourceType);
+
+        return stage == null || stage.isSettled();
+    }
+
+    private boolean isSettled() {
+        return stages.values().stream().allMatch(Stage::isSettled);
+    }
+
+    /**
+     * A reference to a resource by identifier.
+     */
+    public static class Dependency {
+
+        private final String resourceType;
+        private final String system;
+        private final String value;
+
+        public Dependency(String resourceType, String system, String value) {
+            this.resourceType = resourceType;
+            this.system = system;
+            this.value = value;
+        }
+
+        private String key() {
+            return ResourceIndex.key(resourceType, system, value);
+        }
+
+    }
+
+    @FunctionalInterface
+    public interface RowMapper {
+
+        Resource map(String[] fields) throws ParseException;
+
+    }
+
+    @FunctionalInterface
+    public interface Resolver {
+
+        /**
+         * Search the server for the resources having the identifiers and
+         * register their references.
+         */
+        void resolve(String resourceType, String system, Set<String> values);
+
+    }
+
+    @FunctionalInterface
+    public interface BatchSubmitter {
+
+        void submit(List<Resource> resources, String url, String identifierSystem, BundleUploader uploader, Consumer<UploadResult> callback);
+
+    }
+
+    private static class Item {
+
+        private final Stage stage;
+        private final Resource resource;
+        private final List<Dependency> dependencies;
+        private Dependency waitingFor;
+
+        private Item(Stage stage, Resource resource, List<Dependency> dependencies) {
+            this.stage = stage;
+            this.resource = resource;
+            this.dependencies = dependencies;
+        }
+
+    }
+
+    private static class Stage {
+
+        private final String resourceType;
+        private final String identifierSystem;
+        private final Path tsvFile;
+        private final RowMapper mapper;
+        private final Function<Resource, List<Dependency>> dependencies;
+        private final Consumer<Resource> referenceSetter;
+        private final Semaphore parkPermits;
+
+        // resources read but not yet uploaded or given up on
+        private final AtomicLong pending = new AtomicLong();
+        private volatile boolean readDone;
+
+        // used by the pipeline thread only
+        private List<Resource> batch = new ArrayList<>();
+        private long batchStart;
+
+        private Stage(String resourceType, String identifierSystem, Path tsvFile, RowMapper mapper, Function<Resource, List<Dependency>> dependencies, Consumer<Resource> referenceSetter, int maxParked) {
+            this.resourceType = resourceType;
+            this.identifierSystem = identifierSystem;
+            this.tsvFile = tsvFile;
+            this.mapper = mapper;
+            this.dependencies = dependencies;
+            this.referenceSetter = referenceSetter;
+            this.parkPermits = new Semaphore(maxParked);
+        }
+
+        private boolean isSettled() {
+            return readDone && pending.get() == 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpRequest;
+import ca.uhn.fhir.rest.client.apache.ApacheHttpResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import java.util.Set;
+import java.util.function.LongConsumer;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Records the latency, payload sizes and error status codes of every HTTP
+ * request made by a client, by operation.
+ *
+ * Payload sizes are the bytes actually written and read, so chunked and
+ * compressed bodies are counted too. An Apache request body is counted as
+ * it is written by the entity set when this interceptor runs, so register
+ * it after {@link GzipRequestInterceptor} to count compressed bytes. The
+ * Apache client decompresses responses before they reach the interceptor,
+ * so its compressed responses are counted decompressed. Requests and
+ * responses of {@link JdkRestfulClientFactory} are counted as sent and
+ * received.
+ *
+ * Aug 10, 2022 11:20:08 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class MetricsInterceptor implements IClientInterceptor {
+
+    /**
+     * Query parameters of the next-page links of HAPI (_getpages), Azure
+     * (ct) and other servers.
+     */
+    private static final Set<String> PAGING_PARAMS = Set.of("_getpages", "ct", "_page", "_offset", "_after");
+
+    private final MetricsRegistry metrics;
+    private final String serverBase;
+    private final ThreadLocal<String> operation = new ThreadLocal<>();
+    private final ThreadLocal<JdkHttpRequest> jdkRequest = new ThreadLocal<>();
+
+    public MetricsInterceptor(MetricsRegistry metrics, String serverBase) {
+        this.metrics = metrics;
+        this.serverBase = serverBase.replaceAll("/+$", "");
+    }
+
+    /**
+     * Register an interceptor on the client unless it already records to the
+     * same registry.
+     *
+     * @param client FHIR client
+     * @param metrics registry receiving the metrics
+     */
+    public static synchronized void register(IGenericClient client, MetricsRegistry metrics) {
+        boolean registered = client.getInterceptorService()
+                .getAllRegisteredInterceptors().stream()
+                .anyMatch(interceptor -> interceptor instanceof MetricsInterceptor && ((MetricsInterceptor) interceptor).metrics == metrics);
+        if (!registered) {
+            client.registerInterceptor(new MetricsInterceptor(metrics, client.getServerBase()));
+        }
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        String requestOperation = getOperation(request.getHttpVerbName(), request.getUri());
+        operation.set(requestOperation);
+
+        if (request instanceof ApacheHttpRequest) {
+            HttpRequestBase apacheRequest = ((ApacheHttpRequest) request).getApacheRequest();
+            HttpEntity entity = (apacheRequest instanceof HttpEntityEnclosingRequest) ? ((HttpEntityEnclosingRequest) apacheRequest).getEntity() : null;
+            if (entity == null) {
+                metrics.recordRequestBytes(requestOperation, 0);
+            } else {
+                ((HttpEntityEnclosingRequest) apacheRequest).setEntity(new CountingRequestEntity(entity, bytes -> metrics.recordRequestBytes(requestOperation, bytes)));
+            }
+        } else if (request instanceof JdkHttpRequest) {
+            // the body is read once the response arrives, after any interceptor
+            // registered later has replaced it
+            jdkRequest.set((JdkHttpRequest) request);
+        }
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+        String requestOperation = operation.get();
+        operation.remove();
+        if (requestOperation == null) {
+            requestOperation = MetricsRegistry.OTHER;
+        }
+        final String responseOperation = requestOperation;
+
+        JdkHttpRequest request = jdkRequest.get();
+        jdkRequest.remove();
+        if (request != null) {
+            byte[] body = request.getBody();
+            metrics.recordRequestBytes(requestOperation, (body == null) ? 0 : body.length);
+        }
+
+        metrics.recordLatency(requestOperation, response.getRequestStopWatch().getMillis());
+
+        LongConsumer responseBytes = bytes -> metrics.recordResponseBytes(responseOperation, bytes);
+        if (response instanceof ApacheHttpResponse) {
+            HttpResponse apacheResponse = ((ApacheHttpResponse) response).getResponse();
+            HttpEntity entity = apacheResponse.getEntity();
+            if (entity == null) {
+                responseBytes.accept(0);
+            } else {
+                apacheResponse.setEntity(new CountingResponseEntity(entity, responseBytes));
+            }
+        } else if (response instanceof JdkHttpResponse) {
+            ((JdkHttpResponse) response).countEntity(responseBytes);
+        } else {
+            List<String> contentLength = response.getHeaders("Content-Length");
+            if (contentLength != null && !contentLength.isEmpty()) {
+                try {
+                    responseBytes.accept(Long.parseLong(contentLength.get(0).trim()));
+                } catch (NumberFormatException exception) {
+                    // not recorded
+                }
+            }
+        }
+
+        if (response.getStatus() >= 400) {
+            metrics.recordError(requestOperation, response.getStatus());
+        }
+    }
+
+    String getOperation(String method, String uri) {
+        String path = uri.startsWith(serverBase) ? uri.substring(serverBase.length()) : URI.create(uri).getRawPath();
+        String query = "";
+        int queryStart = path.indexOf('?');
+        if (queryStart >= 0) {
+            query = path.substring(queryStart + 1);
+            path = path.substring(0, queryStart);
+        }
+
+        String[] segments = path.replaceAll("^/+|/+$", "").split("/");
+        boolean base = segments[0].isEmpty();
+        switch (method) {
+            case "GET":
+                if (isPage(query)) {
+                    return MetricsRegistry.PAGE;
+                } else if (base || "metadata".equals(segments[0]) || segments[segments.length - 1].startsWith("$")) {
+                    return MetricsRegistry.OTHER;
+                } else {
+                    return (segments.length == 1) ? MetricsRegistry.SEARCH : MetricsRegistry.READ;
+                }
+            case "POST":
+                if (segments[segments.length - 1].startsWith("$")) {
+                    return MetricsRegistry.OTHER;
+                } else if (base) {
+                    return MetricsRegistry.BUNDLE;
+                } else if (segments.length == 1) {
+                    return MetricsRegistry.CREATE;
+                } else {
+                    return "_search".equals(segments[1]) ? MetricsRegistry.SEARCH : MetricsRegistry.OTHER;
+                }
+            case "PUT":
+                return MetricsRegistry.UPDATE;
+            case "DELETE":
+                return MetricsRegistry.DELETE;
+            default:
+                return MetricsRegistry.OTHER;
+        }
+    }
+
+    private static boolean isPage(String query) {
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            if (PAGING_PARAMS.contains((separator < 0) ? param : param.substring(0, separator))) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Counts the bytes written each time the request body is sent.
+     */
+    private static class CountingRequestEntity extends HttpEntityWrapper {
+
+        private final LongConsumer listener;
+
+        private CountingRequestEntity(HttpEntity entity, LongConsumer listener) {
+            super(entity);
+            this.listener = listener;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            long[] count = new long[1];
+            super.writeTo(new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    count[0]++;
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int length) throws IOException {
+                    out.write(buffer, offset, length);
+                    count[0] += length;
+                }
+            });
+            listener.accept(count[0]);
+        }
+
+    }
+
+    /**
+     * Counts the bytes read from the response body.
+     */
+    private static class CountingResponseEntity extends HttpEntityWrapper {
+
+        private final LongConsumer listener;
+
+        private boolean counting;
+
+        private CountingResponseEntity(HttpEntity entity, LongConsumer listener) {
+            super(entity);
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized InputStream getContent() throws IOException {
+            InputStream content = super.getContent();
+            if (counting) {
+                return content;
+            }
+            counting = true;
+
+            return new CountingInputStream(content, listener);
+        }
+
+    }
+
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+/**
+ * Receives client metrics. Implement it to forward the metrics to a
+ * monitoring system, or use {@link InMemoryMetricsRegistry}, which can also
+ * expose them over JMX.
+ *
+ * HTTP requests are recorded by {@link MetricsInterceptor} under the
+ * operation of the request (create, read, update, delete, search, page or
+ * bundle). Bundles sent through {@link BundleUploader} are recorded by the
+ * resource clients under transaction or delete, with their entries and
+ * retries, and with a latency that includes the retries. Access token
+ * fetches of {@link RefreshingTokenInterceptor} are recorded under token.
+ *
+ * Aug 10, 2022 9:12:30 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public interface MetricsRegistry {
+
+    String CREATE = "create";
+    String READ = "read";
+    String UPDATE = "update";
+    String DELETE = "delete";
+    String SEARCH = "search";
+    String PAGE = "page";
+    String BUNDLE = "bundle";
+    String TRANSACTION = "transaction";
+    String RESOLVE = "resolve";
+    String TOKEN = "token";
+    String OTHER = "other";
+
+    MetricsRegistry NONE = new MetricsRegistry() {
+    };
+
+    default void recordLatency(String operation, long millis) {
+    }
+
+    default void recordRequestBytes(String operation, long bytes) {
+    }
+
+    default void recordResponseBytes(String operation, long bytes) {
+    }
+
+    default void recordEntries(String operation, int entries) {
+    }
+
+    default void recordRetries(String operation, int retries) {
+    }
+
+    default void recordError(String operation, int statusCode) {
+    }
+
+}
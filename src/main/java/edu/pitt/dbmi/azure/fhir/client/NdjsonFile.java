@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.nio.file.Path;
+
+/**
+ * An NDJSON file of resources of a single type.
+ *
+ * Aug 12, 2022 9:18:52 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class NdjsonFile {
+
+    private final String resourceType;
+    private final Path path;
+    private final long count;
+
+    public NdjsonFile(String resourceType, Path path, long count) {
+        this.resourceType = resourceType;
+        this.path = path;
+        this.count = count;
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d resources in %s", resourceType, count, path);
+    }
+
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Writes resources as they come into NDJSON files, one resource per line
+ * and one set of files per resource type. A file is closed and a new one is
+ * started once it holds the maximum number of resources, so memory use does
+ * not depend on the number of resources.
+ *
+ * Files are named {@code <type>-<sequence>.ndjson}, e.g. Observation-0001.ndjson.
+ *
+ * Aug 12, 2022 9:31:40 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class NdjsonWriter implements Consumer<Resource>, AutoCloseable {
+
+    public static final long DEFAULT_MAX_RESOURCES_PER_FILE = 1_000_000;
+
+    private final IParser parser;
+    private final Path directory;
+    private final long maxResourcesPerFile;
+
+    private final Map<String, OpenFile> openFiles = new HashMap<>();
+    private final Map<String, Integer> fileSequences = new HashMap<>();
+    private final List<NdjsonFile> files = new ArrayList<>();
+
+    public NdjsonWriter(FhirContext fhirContext, Path directory) throws IOException {
+        this(fhirContext, directory, DEFAULT_MAX_RESOURCES_PER_FILE);
+    }
+
+    public NdjsonWriter(FhirContext fhirContext, Path directory, long maxResourcesPerFile) throws IOException {
+        this.parser = fhirContext.newJsonParser().setPrettyPrint(false);
+        this.directory = Files.createDirectories(directory);
+        this.maxResourcesPerFile = maxResourcesPerFile;
+    }
+
+    @Override
+    public synchronized void accept(Resource resource) {
+        try {
+            write(resource);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    public synchronized void write(Resource resource) throws IOException {
+        String resourceType = resource.fhirType();
+        OpenFile file = openFiles.get(resourceType);
+        if (file == null || file.count >= maxResourcesPerFile) {
+            if (file != null) {
+                closeFile(file);
+            }
+
+            file = openFile(resourceType);
+            openFiles.put(resourceType, file);
+        }
+
+        parser.encodeResourceToWriter(resource, file.writer);
+        file.writer.write('\n');
+        file.count++;
+    }
+
+    /**
+     * Close the open files and get all the files written.
+     *
+     * @return the files, in the order they were started
+     * @throws IOException
+     */
+    public synchronized List<NdjsonFile> finish() throws IOException {
+        for (OpenFile file : openFiles.values()) {
+            closeFile(file);
+        }
+        openFiles.clear();
+
+        return new ArrayList<>(files);
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    private OpenFile openFile(String resourceType) throws IOException {
+        int sequence = fileSequences.merge(resourceType, 1, Integer::sum);
+        Path path = directory.resolve(String.format("%s-%04d.ndjson", resourceType, sequence));
+
+        return new OpenFile(resourceType, path, Files.newBufferedWriter(path, StandardCharsets.UTF_8));
+    }
+
+    private void closeFile(OpenFile file) throws IOException {
+        file.writer.close();
+        files.add(new NdjsonFile(file.resourceType, file.path, file.count));
+    }
+
+    private static class OpenFile {
+
+        private final String resourceType;
+        private final Path path;
+        private final BufferedWriter writer;
+        private long count;
+
+        private OpenFile(String resourceType, Path path, BufferedWriter writer) {
+            this.resourceType = resourceType;
+            this.path = path;
+            this.writer = writer;
+        }
+
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the lines of a text file while keeping track of the byte offset of
+ * the next line, so that reading can later be resumed from that offset.
+ * Lines end with \n or \r\n. The charset must encode \n as a single byte
+ * that is never part of another character, e.g. UTF-8 or ISO-8859-1.
+ *
+ * Aug 14, 2022 10:12:31 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class OffsetLineReader implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Charset charset;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    private byte[] line = new byte[1024];
+    private long offset;
+    private long lineNumber;
+
+    public OffsetLineReader(Path file, Charset charset) throws IOException {
+        this(file, charset, 0, 0);
+    }
+
+    /**
+     * @param file text file
+     * @param charset charset of the file
+     * @param offset byte offset of the first line to read
+     * @param lineNumber number of lines before the offset
+     * @throws IOException
+     */
+    public OffsetLineReader(Path file, Charset charset, long offset, long lineNumber) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.charset = charset;
+        this.offset = offset;
+        this.lineNumber = lineNumber;
+
+        channel.position(offset);
+        buffer.flip();
+    }
+
+    /**
+     * @return the next line without its line terminator, or null at the end
+     * of the file
+     * @throws IOException
+     */
+    public String readLine() throws IOException {
+        int length = 0;
+        boolean terminated = false;
+        while (!terminated) {
+            if (!buffer.hasRemaining()) {
+                buffer.clear();
+                int count = channel.read(buffer);
+                buffer.flip();
+                if (count < 0) {
+                    if (length == 0) {
+                        return null;
+                    }
+
+                    break;
+                }
+            }
+
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                offset++;
+                if (b == '\n') {
+                    terminated = true;
+                    break;
+                }
+
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = b;
+            }
+        }
+        lineNumber++;
+
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+
+        return new String(line, 0, length, charset);
+    }
+
+    /**
+     * @return the byte offset of the next line
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the number of lines read, including the lines before the
+     * starting offset
+     */
+    public long getLineNumber() {
+        return lineNumber;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+}
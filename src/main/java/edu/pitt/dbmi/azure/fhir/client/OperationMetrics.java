@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics of one client operation: latency, payload sizes, entries per
+ * bundle, retries and errors by status code.
+ *
+ * Aug 10, 2022 10:11:19 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class OperationMetrics implements OperationMetricsMXBean {
+
+    private static final long MAX_LATENCY_BOUND = 100_000;
+    private static final long MAX_BYTES_BOUND = 100_000_000;
+    private static final long MAX_ENTRIES_BOUND = 100_000;
+
+    private final String operation;
+    private final Histogram latency = new Histogram(MAX_LATENCY_BOUND);
+    private final Histogram requestBytes = new Histogram(MAX_BYTES_BOUND);
+    private final Histogram responseBytes = new Histogram(MAX_BYTES_BOUND);
+    private final Histogram entries = new Histogram(MAX_ENTRIES_BOUND);
+    private final LongAdder retries = new LongAdder();
+    private final Map<Integer, LongAdder> errors = new ConcurrentHashMap<>();
+
+    public OperationMetrics(String operation) {
+        this.operation = operation;
+    }
+
+    void recordLatency(long millis) {
+        latency.record(millis);
+    }
+
+    void recordRequestBytes(long bytes) {
+        requestBytes.record(bytes);
+    }
+
+    void recordResponseBytes(long bytes) {
+        responseBytes.record(bytes);
+    }
+
+    void recordEntries(int count) {
+        entries.record(count);
+    }
+
+    void recordRetries(int count) {
+        retries.add(count);
+    }
+
+    void recordError(int statusCode) {
+        errors.computeIfAbsent(statusCode, k -> new LongAdder()).increment();
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public Histogram getRequestSizes() {
+        return requestBytes;
+    }
+
+    public Histogram getResponseSizes() {
+        return responseBytes;
+    }
+
+    public Histogram getEntries() {
+        return entries;
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+        return latency.getMean();
+    }
+
+    @Override
+    public long getMaxLatencyMillis() {
+        return latency.getMax();
+    }
+
+    @Override
+    public long getLatencyP50Millis() {
+        return latency.getPercentile(50);
+    }
+
+    @Override
+    public long getLatencyP95Millis() {
+        return latency.getPercentile(95);
+    }
+
+    @Override
+    public long getLatencyP99Millis() {
+        return latency.getPercentile(99);
+    }
+
+    @Override
+    public long getRequestBytes() {
+        return requestBytes.getSum();
+    }
+
+    @Override
+    public long getResponseBytes() {
+        return responseBytes.getSum();
+    }
+
+    @Override
+    public long getEntryCount() {
+        return entries.getSum();
+    }
+
+    @Override
+    public double getMeanEntriesPerBundle() {
+        return entries.getMean();
+    }
+
+    @Override
+    public long getRetryCount() {
+        return retries.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.values().stream()
+                .mapToLong(LongAdder::sum)
+                .sum();
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        errors.forEach((status, count) -> counts.put(status.toString(), count.sum()));
+
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: count=%d, mean=%.1fms, p50=%dms, p95=%dms, p99=%dms, max=%dms, request=%dB, response=%dB, entries=%d, retries=%d, errors=%s",
+                operation, getCount(), getMeanLatencyMillis(), getLatencyP50Millis(), getLatencyP95Millis(), getLatencyP99Millis(), getMaxLatencyMillis(),
+                getRequestBytes(), getResponseBytes(), getEntryCount(), getRetryCount(), getErrorCounts());
+    }
+
+}
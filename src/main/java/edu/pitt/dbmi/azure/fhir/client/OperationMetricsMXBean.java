@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.Map;
+
+/**
+ * JMX view of the metrics of one client operation.
+ *
+ * Aug 10, 2022 10:05:47 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public interface OperationMetricsMXBean {
+
+    long getCount();
+
+    double getMeanLatencyMillis();
+
+    long getMaxLatencyMillis();
+
+    long getLatencyP50Millis();
+
+    long getLatencyP95Millis();
+
+    long getLatencyP99Millis();
+
+    long getRequestBytes();
+
+    long getResponseBytes();
+
+    long getEntryCount();
+
+    double getMeanEntriesPerBundle();
+
+    long getRetryCount();
+
+    long getErrorCount();
+
+    Map<String, Long> getErrorCounts();
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Reads a TSV file in parallel. The file is memory-mapped in line-aligned
+ * chunks, and the rows of each chunk are split and mapped into resources on
+ * a fork-join pool. The mapped chunks are passed back to the calling thread
+ * through a bounded queue, and the calling thread hands the resources over
+ * in batches, either in file order or in the order the chunks complete. The
+ * consumer therefore never runs on the pool, and may block, for example on
+ * an upload, without holding up the mapping of the chunks in flight.
+ *
+ * At most a few chunks per thread of the pool are mapped or queued at once,
+ * and each chunk is held as resources until it is batched, so memory is
+ * bounded by the chunk size times the parallelism, not by the file size,
+ * when the batches are consumed more slowly than they are mapped. Rows that
+ * fail to map, whether with a parse error or a runtime exception such as a
+ * missing column, are reported and skipped. By default a dedicated pool is
+ * created for each read and shut down after it.
+ *
+ * Aug 17, 2022 9:52:38 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ParallelTsvReader {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int CHUNKS_PER_THREAD = 2;
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int parallelism;
+    private final int chunkSize;
+    private final boolean ordered;
+
+    public ParallelTsvReader() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE, true);
+    }
+
+    /**
+     * Map the chunks on a dedicated pool created for each read.
+     *
+     * @param parallelism number of threads mapping the chunks
+     * @param chunkSize approximate number of bytes in each chunk
+     * @param ordered true to hand over the resources in file order
+     */
+    public ParallelTsvReader(int parallelism, int chunkSize, boolean ordered) {
+        this(null, parallelism, chunkSize, ordered);
+    }
+
+    /**
+     * Map the chunks on the given pool, which is left running.
+     *
+     * @param pool pool mapping the chunks
+     * @param chunkSize approximate number of bytes in each chunk
+     * @param ordered true to hand over the resources in file order
+     */
+    public ParallelTsvReader(ForkJoinPool pool, int chunkSize, boolean ordered) {
+        this(pool, pool.getParallelism(), chunkSize, ordered);
+    }
+
+    private ParallelTsvReader(ForkJoinPool pool, int parallelism, int chunkSize, boolean ordered) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1.");
+        }
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1.");
+        }
+
+        this.pool = pool;
+        this.parallelism = parallelism;
+        this.chunkSize = chunkSize;
+        this.ordered = ordered;
+    }
+
+    /**
+     * Map the rows of the TSV file, skipping the header line.
+     *
+     * @param tsvFile TSV file with a header line
+     * @param charset charset of the file; it must encode \n and \r as
+     * single bytes, like UTF-8 and ISO-8859-1
+     * @param batchSize number of resources in each batch
+     * @param mapper maps a row into a resource
+     * @param consumer receives the batches on the calling thread
+     * @return number of rows mapped
+     * @throws IOException
+     */
+    public long read(Path tsvFile, Charset charset, int batchSize, LoadPipeline.RowMapper mapper, Consumer<List<Resource>> consumer) throws IOException {
+        if (!(Arrays.equals("\n".getBytes(charset), new byte[]{'\n'}) && Arrays.equals("\r".getBytes(charset), new byte[]{'\r'}))) {
+            throw new IllegalArgumentException(charset + " does not encode line terminators as single bytes.");
+        }
+
+        ForkJoinPool mappingPool = (pool == null) ? new ForkJoinPool(parallelism) : pool;
+        try (FileChannel channel = FileChannel.open(tsvFile, StandardOpenOption.READ)) {
+            List<Long> boundaries = getChunkBoundaries(channel);
+            int chunkCount = boundaries.size() - 1;
+
+            // a chunk holds its slot from submission until its resources are batched
+            int maxChunksInFlight = parallelism * CHUNKS_PER_THREAD;
+            BlockingQueue<MappedChunk> mappedChunks = new ArrayBlockingQueue<>(maxChunksInFlight);
+            Batcher batcher = new Batcher(batchSize, consumer);
+            Map<Integer, List<Resource>> pending = new HashMap<>();
+
+            long count = 0;
+            int submitted = 0;
+            int inFlight = 0;
+            int nextChunk = 0;
+            while (nextChunk < chunkCount) {
+                for (; submitted < chunkCount && inFlight < maxChunksInFlight; submitted++, inFlight++) {
+                    final int chunk = submitted;
+                    final long start = boundaries.get(chunk);
+                    final long end = boundaries.get(chunk + 1);
+                    mappingPool.execute(() -> {
+                        MappedChunk mapped;
+                        try {
+                            mapped = new MappedChunk(chunk, map(channel, start, end, charset, mapper), null);
+                        } catch (IOException | RuntimeException exception) {
+                            mapped = new MappedChunk(chunk, null, exception);
+                        }
+
+                        // never blocks: the chunks in flight fit in the queue
+                        mappedChunks.add(mapped);
+                    });
+                }
+
+                MappedChunk mapped;
+                try {
+                    mapped = mappedChunks.take();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while reading " + tsvFile);
+                }
+
+                if (mapped.failure instanceof IOException) {
+                    throw (IOException) mapped.failure;
+                } else if (mapped.failure != null) {
+                    throw (RuntimeException) mapped.failure;
+                }
+                count += mapped.resources.size();
+
+                if (ordered) {
+                    pending.put(mapped.chunk, mapped.resources);
+                    for (List<Resource> next = pending.remove(nextChunk); next != null; next = pending.remove(nextChunk)) {
+                        batcher.add(next);
+                        nextChunk++;
+                        inFlight--;
+                    }
+                } else {
+                    batcher.add(mapped.resources);
+                    nextChunk++;
+                    inFlight--;
+                }
+            }
+            batcher.flush();
+
+            return count;
+        } finally {
+            if (pool == null) {
+                mappingPool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Split the file at the starts of the lines following every chunk size
+     * bytes.
+     *
+     * @return offsets of the first byte of each chunk, followed by the file
+     * size
+     */
+    private List<Long> getChunkBoundaries(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> boundaries = new ArrayList<>();
+        boundaries.add(0L);
+
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long position = chunkSize;
+        while (position < size) {
+            long lineStart = -1;
+            while (lineStart < 0 && position < size) {
+                buffer.clear();
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        lineStart = position + i + 1;
+                        break;
+                    }
+                }
+                if (lineStart < 0) {
+                    position += read;
+                }
+            }
+            if (lineStart < 0 || lineStart >= size) {
+                break;
+            }
+
+            boundaries.add(lineStart);
+            position = lineStart + chunkSize;
+        }
+        boundaries.add(size);
+
+        return boundaries;
+    }
+
+    private static List<Resource> map(FileChannel channel, long start, long end, Charset charset, LoadPipeline.RowMapper mapper) throws IOException {
+        List<Resource> resources = new ArrayList<>();
+        if (end <= start) {
+            return resources;
+        }
+
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        int limit = buffer.limit();
+        byte[] bytes = new byte[1024];
+        boolean header = (start == 0);
+        for (int lineStart = 0; lineStart < limit;) {
+            int lineEnd = lineStart;
+            while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            if (header) {
+                header = false;
+            } else {
+                int length = lineEnd - lineStart;
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                buffer.get(lineStart, bytes, 0, length);
+
+                String line = new String(bytes, 0, length, charset);
+                try {
+                    resources.add(mapper.map(split(line)));
+                } catch (ParseException | RuntimeException exception) {
+                    System.err.printf("Invalid row: %s%n%s%n", exception, line);
+                }
+            }
+
+            lineStart = next;
+        }
+
+        return resources;
+    }
+
+    /**
+     * Split a line at the tabs, like Delimiters.TAB_DELIM.split(line):
+     * trailing empty fields are removed.
+     */
+    public static String[] split(String line) {
+        List<String> fields = new ArrayList<>();
+        int start = 0;
+        for (int tab = line.indexOf('\t'); tab >= 0; tab = line.indexOf('\t', start)) {
+            fields.add(line.substring(start, tab));
+            start = tab + 1;
+        }
+        if (fields.isEmpty()) {
+            return new String[]{line};
+        }
+        fields.add(line.substring(start));
+
+        int size = fields.size();
+        while (size > 0 && fields.get(size - 1).isEmpty()) {
+            size--;
+        }
+
+        return fields.subList(0, size).toArray(new String[size]);
+    }
+
+    /**
+     * Regroups the mapped chunks into batches.
+     */
+    private static class Batcher {
+
+        private final int batchSize;
+        private final Consumer<List<Resource>> consumer;
+
+        private List<Resource> batch;
+
+        private Batcher(int batchSize, Consumer<List<Resource>> consumer) {
+            this.batchSize = batchSize;
+            this.consumer = consumer;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        private void add(List<Resource> resources) {
+            for (Resource resource : resources) {
+                batch.add(resource);
+                if (batch.size() >= batchSize) {
+                    consumer.accept(batch);
+                    batch = new ArrayList<>(batchSize);
+                }
+            }
+        }
+
+        private void flush() {
+            if (!batch.isEmpty()) {
+                consumer.accept(batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+
+    }
+
+    private static class MappedChunk {
+
+        private final int chunk;
+        private final List<Resource> resources;
+        private final Exception failure;
+
+        private MappedChunk(int chunk, List<Resource> resources, Exception failure) {
+            this.chunk = chunk;
+            this.resources = resources;
+            this.failure = failure;
+        }
+
+    }
+
+}
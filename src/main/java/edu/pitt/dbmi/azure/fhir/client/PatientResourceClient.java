@@ -21,8 +21,10 @@ package edu.pitt.dbmi.azure.fhir.client;
 import ca.uhn.fhir.rest.api.CacheControlDirective;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.UrlUtil;
 import java.util.List;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Resource;
@@ -35,8 +37,37 @@ import org.hl7.fhir.r4.model.Resource;
  */
 public class PatientResourceClient extends AbstractResourceClient {
 
+    private final ResourceCache cache;
+
     public PatientResourceClient(IGenericClient client) {
-        super(client);
+        this(client, MetricsRegistry.NONE);
+    }
+
+    public PatientResourceClient(IGenericClient client, MetricsRegistry metrics) {
+        this(client, metrics, UploadMode.CREATE);
+    }
+
+    public PatientResourceClient(IGenericClient client, MetricsRegistry metrics, UploadMode uploadMode) {
+        this(client, metrics, uploadMode, null);
+    }
+
+    /**
+     * @param client FHIR client
+     * @param metrics registry receiving the metrics
+     * @param uploadMode how uploaded patients are matched to existing ones
+     * @param cache cache for patient reads, or null to always read from the
+     * server
+     */
+    public PatientResourceClient(IGenericClient client, MetricsRegistry metrics, UploadMode uploadMode, ResourceCache cache) {
+        super(client, metrics, uploadMode);
+        this.cache = cache;
+    }
+
+    @Override
+    protected void resourcesWritten(List<Resource> resources) {
+        if (cache != null) {
+            cache.invalidate(resources);
+        }
     }
 
     public Bundle uploadPatients(List<Patient> patients) {
@@ -48,20 +79,69 @@ public class PatientResourceClient extends AbstractResourceClient {
     }
 
     public MethodOutcome deletePatient(Patient patient) {
+        if (cache != null) {
+            cache.invalidate("Patient", patient.getIdElement().getIdPart());
+        }
+
         return client.delete().resource(patient).execute();
     }
 
+    /**
+     * Delete all the patients in one transaction. Every patient ID is held
+     * in memory until the transaction is sent; see
+     * {@link #deleteAllPatients()} for large servers.
+     */
     public Bundle deletePatients() {
-        return deleteResources(getPatients());
+        if (cache != null) {
+            cache.clear();
+        }
+
+        return deleteResources(searchResourceIds(Patient.class));
+    }
+
+    /**
+     * Delete all the patients in BATCH bundles, sent while the search pages
+     * are being fetched. The deletes are not atomic.
+     */
+    public UploadSummary deleteAllPatients() {
+        if (cache != null) {
+            cache.clear();
+        }
+
+        return deleteResources(searchResourceIds(Patient.class), DEFAULT_DELETE_BATCH_SIZE);
+    }
+
+    public long deletePatients(String identifierSystem) {
+        if (cache != null) {
+            cache.clear();
+        }
+
+        return deleteResourcesConditionally(Patient.class, "identifier=" + UrlUtil.escapeUrlParam(identifierSystem) + "|", DEFAULT_CONDITIONAL_DELETE_COUNT);
     }
 
     public Patient getPatient(String id) {
+        if (cache != null) {
+            return cache.read(Patient.class, id);
+        }
+
         return client.read()
                 .resource(Patient.class)
                 .withId(id)
                 .execute();
     }
 
+    public Stream<Patient> streamPatients() {
+        return streamPatients(DEFAULT_PAGE_SIZE, SearchPageIterator.DEFAULT_PREFETCH_DEPTH);
+    }
+
+    /**
+     * Stream all the patients on the server, across all search pages. Close
+     * the stream when it is not fully consumed.
+     */
+    public Stream<Patient> streamPatients(int pageSize, int prefetchDepth) {
+        return iterateResources(Patient.class, pageSize, prefetchDepth).stream();
+    }
+
     public Bundle getPatients() {
         return client
                 .search()
@@ -0,0 +1,400 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * A reference store kept on disk so that references registered by one load
+ * can be used by the next one.
+ *
+ * References are appended to a data file. A memory-mapped hash table in a
+ * separate index file points to the latest record of each key, and the most
+ * recently used references are kept in a bounded in-memory hot set. The heap
+ * footprint therefore does not grow with the number of references. The index
+ * is rebuilt from the data file if it is missing or out of date, e.g. after
+ * the JVM was killed. A rebuilt index is written to a new file that then
+ * replaces the old one, so a mapped index file is never truncated.
+ *
+ * Aug 2, 2022 2:05:51 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class PersistentReferenceStore implements ReferenceStore {
+
+    public static final int DEFAULT_HOT_SET_SIZE = 100_000;
+
+    private static final String DATA_FILE = "references.dat";
+    private static final String INDEX_FILE = "references.idx";
+    private static final String NEW_INDEX_FILE = "references.idx.new";
+
+    private static final long MAGIC = 0x4146435245463031L;
+    private static final int HEADER_SIZE = 32;
+    private static final int MAGIC_POSITION = 0;
+    private static final int CAPACITY_POSITION = 8;
+    private static final int COUNT_POSITION = 16;
+    private static final int DATA_LENGTH_POSITION = 24;
+
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int NO_DISPLAY = -1;
+
+    private static final long INITIAL_CAPACITY = 1 << 16;
+    private static final long MAX_CAPACITY = (Integer.MAX_VALUE - HEADER_SIZE) / Long.BYTES;
+
+    // each index slot holds a 24-bit tag of the key hash and the record offset + 1
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final FileChannel data;
+    private final Path indexFile;
+    private final Path newIndexFile;
+    private final Map<String, Reference> hotSet;
+
+    private FileChannel index;
+
+    private MappedByteBuffer slots;
+    private long capacity;
+    private long count;
+    private long dataLength;
+
+    public PersistentReferenceStore(Path directory) throws IOException {
+        this(directory, DEFAULT_HOT_SET_SIZE);
+    }
+
+    public PersistentReferenceStore(Path directory, int hotSetSize) throws IOException {
+        Files.createDirectories(directory);
+
+        this.data = FileChannel.open(Paths.get(directory.toString(), DATA_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.indexFile = Paths.get(directory.toString(), INDEX_FILE);
+        this.newIndexFile = Paths.get(directory.toString(), NEW_INDEX_FILE);
+        this.index = FileChannel.open(indexFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.hotSet = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Reference> eldest) {
+                return size() > hotSetSize;
+            }
+        };
+
+        open();
+    }
+
+    @Override
+    public synchronized Reference get(String key) {
+        Reference reference = hotSet.get(key);
+        if (reference == null) {
+            long offset = find(key);
+            if (offset >= 0) {
+                reference = readReference(offset);
+                hotSet.put(key, reference);
+            }
+        }
+
+        return reference;
+    }
+
+    @Override
+    public synchronized void put(String key, Reference reference) {
+        Reference current = get(key);
+        if (current != null
+                && Objects.equals(current.getReference(), reference.getReference())
+                && Objects.equals(current.getDisplay(), reference.getDisplay())) {
+            return;
+        }
+
+        try {
+            long offset = append(key, reference);
+            insert(key, offset);
+            writeHeader();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+
+        hotSet.put(key, reference);
+    }
+
+    @Override
+    public synchronized boolean contains(String key) {
+        return hotSet.containsKey(key) || find(key) >= 0;
+    }
+
+    @Override
+    public synchronized long size() {
+        return count;
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        data.force(false);
+        slots.force();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            flush();
+            data.close();
+            index.close();
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private void open() throws IOException {
+        if (index.size() >= HEADER_SIZE) {
+            MappedByteBuffer header = index.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            long storedCapacity = header.getLong(CAPACITY_POSITION);
+            if (header.getLong(MAGIC_POSITION) == MAGIC
+                    && header.getLong(DATA_LENGTH_POSITION) == data.size()
+                    && index.size() == HEADER_SIZE + (storedCapacity * Long.BYTES)) {
+                slots = index.map(FileChannel.MapMode.READ_WRITE, 0, index.size());
+                capacity = storedCapacity;
+                count = header.getLong(COUNT_POSITION);
+                dataLength = header.getLong(DATA_LENGTH_POSITION);
+
+                return;
+            }
+        }
+
+        rebuild(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Recreate the index from the data file. A record left incomplete by an
+     * interrupted write is discarded.
+     */
+    private void rebuild(long newCapacity) throws IOException {
+        long size = data.size();
+        long expectedCount = 0;
+        long offset = 0;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (offset + RECORD_HEADER_SIZE <= size) {
+            readFully(recordHeader.clear(), offset);
+            long recordLength = recordLength(recordHeader);
+            if (offset + recordLength > size) {
+                break;
+            }
+            offset += recordLength;
+            expectedCount++;
+        }
+        data.truncate(offset);
+        dataLength = offset;
+
+        while (newCapacity < MAX_CAPACITY && expectedCount * 2 > newCapacity) {
+            newCapacity *= 2;
+        }
+
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IOException("Reference index is full.");
+        }
+
+        // fill an empty table in a new file, then put it in place of the old
+        // one, which stays mapped until the old buffer is collected
+        FileChannel newIndex = FileChannel.open(newIndexFile,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        slots = newIndex.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (newCapacity * Long.BYTES));
+        capacity = newCapacity;
+        count = 0;
+        for (long position = 0; position < dataLength;) {
+            readFully(recordHeader.clear(), position);
+            long recordLength = recordLength(recordHeader);
+            insert(readKey(position, recordHeader.getInt(0)), position);
+            position += recordLength;
+        }
+        writeHeader();
+        slots.force();
+
+        index.close();
+        Files.move(newIndexFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        index = newIndex;
+    }
+
+    private void writeHeader() {
+        slots.putLong(MAGIC_POSITION, MAGIC);
+        slots.putLong(CAPACITY_POSITION, capacity);
+        slots.putLong(COUNT_POSITION, count);
+        slots.putLong(DATA_LENGTH_POSITION, dataLength);
+    }
+
+    private void insert(String key, long offset) throws IOException {
+        if ((count + 1) * 2 > capacity) {
+            rebuild(capacity * 2);
+        }
+
+        long hash = hash(key);
+        long tag = tag(hash);
+        long mask = capacity - 1;
+        for (long i = hash & mask;; i = (i + 1) & mask) {
+            int position = slotPosition(i);
+            long slot = slots.getLong(position);
+            if (slot == 0) {
+                slots.putLong(position, (tag << OFFSET_BITS) | (offset + 1));
+                count++;
+
+                return;
+            }
+            if ((slot >>> OFFSET_BITS) == tag && key.equals(readKey((slot & OFFSET_MASK) - 1))) {
+                slots.putLong(position, (tag << OFFSET_BITS) | (offset + 1));
+
+                return;
+            }
+        }
+    }
+
+    private long find(String key) {
+        long hash = hash(key);
+        long tag = tag(hash);
+        long mask = capacity - 1;
+        for (long i = hash & mask;; i = (i + 1) & mask) {
+            long slot = slots.getLong(slotPosition(i));
+            if (slot == 0) {
+                return -1;
+            }
+
+            long offset = (slot & OFFSET_MASK) - 1;
+            if ((slot >>> OFFSET_BITS) == tag && key.equals(readKey(offset))) {
+                return offset;
+            }
+        }
+    }
+
+    private long append(String key, Reference reference) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] referenceBytes = reference.getReference().getBytes(StandardCharsets.UTF_8);
+        byte[] displayBytes = reference.hasDisplay() ? reference.getDisplay().getBytes(StandardCharsets.UTF_8) : null;
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + keyBytes.length + referenceBytes.length + ((displayBytes == null) ? 0 : displayBytes.length));
+        record.putInt(keyBytes.length);
+        record.putInt(referenceBytes.length);
+        record.putInt((displayBytes == null) ? NO_DISPLAY : displayBytes.length);
+        record.put(keyBytes);
+        record.put(referenceBytes);
+        if (displayBytes != null) {
+            record.put(displayBytes);
+        }
+        record.flip();
+
+        long offset = dataLength;
+        while (record.hasRemaining()) {
+            data.write(record, offset + record.position());
+        }
+        dataLength += record.limit();
+
+        return offset;
+    }
+
+    private String readKey(long offset) {
+        try {
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(recordHeader, offset);
+
+            return readKey(offset, recordHeader.getInt(0));
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private String readKey(long offset, int keyLength) throws IOException {
+        ByteBuffer key = ByteBuffer.allocate(keyLength);
+        readFully(key, offset + RECORD_HEADER_SIZE);
+
+        return new String(key.array(), StandardCharsets.UTF_8);
+    }
+
+    private Reference readReference(long offset) {
+        try {
+            ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+            readFully(recordHeader, offset);
+            recordHeader.flip();
+            int keyLength = recordHeader.getInt();
+            int referenceLength = recordHeader.getInt();
+            int displayLength = recordHeader.getInt();
+
+            ByteBuffer body = ByteBuffer.allocate(referenceLength + Math.max(displayLength, 0));
+            readFully(body, offset + RECORD_HEADER_SIZE + keyLength);
+
+            Reference reference = new Reference()
+                    .setReference(new String(body.array(), 0, referenceLength, StandardCharsets.UTF_8));
+            if (displayLength != NO_DISPLAY) {
+                reference.setDisplay(new String(body.array(), referenceLength, displayLength, StandardCharsets.UTF_8));
+            }
+
+            return reference;
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of reference data file.");
+            }
+        }
+    }
+
+    private static long recordLength(ByteBuffer recordHeader) {
+        int keyLength = recordHeader.getInt(0);
+        int referenceLength = recordHeader.getInt(4);
+        int displayLength = recordHeader.getInt(8);
+
+        return (long) RECORD_HEADER_SIZE + keyLength + referenceLength + Math.max(displayLength, 0);
+    }
+
+    private static int slotPosition(long slot) {
+        return (int) (HEADER_SIZE + (slot * Long.BYTES));
+    }
+
+    private static long tag(long hash) {
+        return (hash >>> OFFSET_BITS) & 0xFFFFFFL;
+    }
+
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        // finalize so that both the low (slot) and high (tag) bits are well mixed
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+
+        return hash;
+    }
+
+}
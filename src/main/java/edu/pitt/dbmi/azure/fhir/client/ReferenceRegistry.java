@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.util.FhirTerser;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Maps source identifiers to references to the resources created on the
+ * server, e.g. PERSON_ID 1 to Patient/xyz.
+ *
+ * Aug 1, 2022 9:47:12 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ReferenceRegistry implements AutoCloseable {
+
+    private final ReferenceStore references;
+    private final FhirTerser terser;
+
+    public ReferenceRegistry(FhirContext fhirContext) {
+        this(fhirContext, new InMemoryReferenceStore());
+    }
+
+    public ReferenceRegistry(FhirContext fhirContext, ReferenceStore references) {
+        this.terser = fhirContext.newTerser();
+        this.references = references;
+    }
+
+    /**
+     * Get a reference to the server resource having the identifier.
+     *
+     * @param resourceType resource type, e.g. Patient
+     * @param system identifier system
+     * @param value identifier value
+     * @return a new reference, or null if the identifier is not registered
+     */
+    public Reference get(String resourceType, String system, String value) {
+        Reference reference = references.get(ResourceIndex.key(resourceType, system, value));
+
+        return (reference == null) ? null : reference.copy();
+    }
+
+    public boolean contains(String resourceType, String system, String value) {
+        return references.contains(ResourceIndex.key(resourceType, system, value));
+    }
+
+    public void put(String resourceType, String system, String value, Reference reference) {
+        references.put(ResourceIndex.key(resourceType, system, value), reference);
+    }
+
+    /**
+     * Register resources that were found on the server.
+     *
+     * @param system identifier system
+     * @param resources server resources keyed by identifier value
+     */
+    public void register(String system, Map<String, ? extends Resource> resources) {
+        resources.forEach((value, resource) -> put(resource.fhirType(), system, value, toReference(resource, resource.getIdElement())));
+    }
+
+    /**
+     * Register the resources created by a transaction. The response entries
+     * are in the same order as the request entries, so the location of each
+     * response entry is the server ID of the resource in the matching request
+     * entry.
+     *
+     * @param request transaction bundle sent to the server
+     * @param response transaction response
+     * @param system identifier system of the source identifiers
+     * @return keys of the registered references
+     */
+    public List<String> register(Bundle request, Bundle response, String system) {
+        List<String> keys = new ArrayList<>();
+        List<Bundle.BundleEntryComponent> requestEntries = request.getEntry();
+        List<Bundle.BundleEntryComponent> responseEntries = response.getEntry();
+        int size = Math.min(requestEntries.size(), responseEntries.size());
+        for (int i = 0; i < size; i++) {
+            Resource resource = requestEntries.get(i).getResource();
+            String location = responseEntries.get(i).getResponse().getLocation();
+            if (resource == null || location == null || location.isEmpty()) {
+                continue;
+            }
+
+            String value = getIdentifierValue(resource, system);
+            if (value != null) {
+                put(resource.fhirType(), system, value, toReference(resource, new IdType(location)));
+                keys.add(ResourceIndex.key(resource.fhirType(), system, value));
+            }
+        }
+
+        return keys;
+    }
+
+    public long size() {
+        return references.size();
+    }
+
+    public void flush() throws IOException {
+        references.flush();
+    }
+
+    @Override
+    public void close() {
+        references.close();
+    }
+
+    private String getIdentifierValue(Resource resource, String system) {
+        return terser.getValues(resource, "identifier", Identifier.class).stream()
+                .filter(identifier -> system.equals(identifier.getSystem()))
+                .map(Identifier::getValue)
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static Reference toReference(Resource resource, IdType id) {
+        Reference reference = new Reference()
+                .setReference(resource.fhirType() + "/" + id.getIdPart());
+        if (resource instanceof Patient) {
+            reference.setDisplay(((Patient) resource).getNameFirstRep().getNameAsSingleString());
+        }
+
+        return reference;
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.IOException;
+import org.hl7.fhir.r4.model.Reference;
+
+/**
+ * Storage for the references held by a {@link ReferenceRegistry}.
+ *
+ * Aug 2, 2022 1:12:40 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public interface ReferenceStore extends AutoCloseable {
+
+    Reference get(String key);
+
+    void put(String key, Reference reference);
+
+    boolean contains(String key);
+
+    long size();
+
+    /**
+     * Make the references put so far durable.
+     *
+     * @throws IOException
+     */
+    default void flush() throws IOException {
+    }
+
+    @Override
+    default void close() {
+    }
+
+}
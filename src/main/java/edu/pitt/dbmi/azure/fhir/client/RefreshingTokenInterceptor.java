@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adds a bearer token to every request and keeps it fresh. The token is
+ * cached and refreshed in the background before it expires, so requests keep
+ * using the current token while a new one is fetched. A request only waits
+ * for a fetch when there is no unexpired token, e.g. the first request or
+ * after refreshes have failed until the token expired.
+ *
+ * A failed refresh is retried while the current token is still valid.
+ * Fetches are recorded under the token operation of the metrics registry,
+ * with failed fetches as errors with status 0.
+ *
+ * Aug 22, 2022 9:41:26 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class RefreshingTokenInterceptor implements IClientInterceptor, AutoCloseable {
+
+    public static final long DEFAULT_REFRESH_BEFORE_EXPIRY_MILLIS = 5 * 60 * 1000;
+    public static final long DEFAULT_RETRY_DELAY_MILLIS = 10_000;
+
+    private static final String AUTHORIZATION = "Authorization";
+
+    private final TokenSource tokenSource;
+    private final long refreshBeforeExpiryMillis;
+    private final long retryDelayMillis;
+    private final MetricsRegistry metrics;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile AccessToken token;
+    private CompletableFuture<AccessToken> pendingFetch;
+
+    public RefreshingTokenInterceptor(TokenSource tokenSource) {
+        this(tokenSource, DEFAULT_REFRESH_BEFORE_EXPIRY_MILLIS, DEFAULT_RETRY_DELAY_MILLIS, MetricsRegistry.NONE);
+    }
+
+    /**
+     * @param tokenSource fetches new tokens
+     * @param refreshBeforeExpiryMillis how long before expiry a token is
+     * refreshed; a token living less than twice as long is refreshed halfway
+     * through its life
+     * @param retryDelayMillis delay before a failed refresh is retried, and
+     * before a token fetched with no time left is refreshed
+     * @param metrics registry receiving the fetch latencies
+     */
+    public RefreshingTokenInterceptor(TokenSource tokenSource, long refreshBeforeExpiryMillis, long retryDelayMillis, MetricsRegistry metrics) {
+        this.tokenSource = tokenSource;
+        this.refreshBeforeExpiryMillis = refreshBeforeExpiryMillis;
+        this.retryDelayMillis = retryDelayMillis;
+        this.metrics = metrics;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "token-refresh");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        request.addHeader(AUTHORIZATION, "Bearer " + getToken().getValue());
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Get the current token, waiting for one to be fetched only if there is
+     * no unexpired token.
+     *
+     * @return an unexpired token
+     * @throws FhirClientConnectionException if no token could be fetched
+     */
+    public AccessToken getToken() {
+        AccessToken current = token;
+        if (current != null && !current.isExpired()) {
+            return current;
+        }
+
+        try {
+            return fetch().join();
+        } catch (CompletionException exception) {
+            throw new FhirClientConnectionException("Unable to get an access token.", exception.getCause());
+        }
+    }
+
+    /**
+     * Start fetching a token unless a fetch is already under way.
+     */
+    private synchronized CompletableFuture<AccessToken> fetch() {
+        if (pendingFetch == null) {
+            CompletableFuture<AccessToken> future = new CompletableFuture<>();
+            pendingFetch = future;
+            try {
+                scheduler.execute(() -> refresh(future));
+            } catch (RejectedExecutionException exception) {
+                pendingFetch = null;
+                future.completeExceptionally(exception);
+            }
+        }
+
+        return pendingFetch;
+    }
+
+    private void refresh(CompletableFuture<AccessToken> future) {
+        long start = System.currentTimeMillis();
+        try {
+            AccessToken fetched = tokenSource.fetch();
+            metrics.recordLatency(MetricsRegistry.TOKEN, System.currentTimeMillis() - start);
+
+            token = fetched;
+            long remainingMillis = fetched.getRemainingMillis();
+            scheduleRefresh(Math.max(remainingMillis - refreshBeforeExpiryMillis, remainingMillis / 2));
+
+            complete(future);
+            future.complete(fetched);
+        } catch (IOException | RuntimeException exception) {
+            metrics.recordLatency(MetricsRegistry.TOKEN, System.currentTimeMillis() - start);
+            metrics.recordError(MetricsRegistry.TOKEN, 0);
+            exception.printStackTrace(System.err);
+
+            AccessToken current = token;
+            if (current != null && !current.isExpired()) {
+                scheduleRefresh(Math.min(retryDelayMillis, current.getRemainingMillis() / 2));
+            }
+
+            complete(future);
+            future.completeExceptionally(exception);
+        }
+    }
+
+    private synchronized void complete(CompletableFuture<AccessToken> future) {
+        if (pendingFetch == future) {
+            pendingFetch = null;
+        }
+    }
+
+    private void scheduleRefresh(long delayMillis) {
+        // a token fetched already expired must not be refreshed in a loop
+        if (delayMillis <= 0) {
+            delayMillis = retryDelayMillis;
+        }
+        if (!scheduler.isShutdown()) {
+            scheduler.schedule(this::fetch, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Fetches access tokens, e.g. from an OAuth 2.0 token endpoint.
+     */
+    @FunctionalInterface
+    public interface TokenSource {
+
+        AccessToken fetch() throws IOException;
+
+    }
+
+    public static class AccessToken {
+
+        private final String value;
+        private final Instant expiresAt;
+
+        public AccessToken(String value, Instant expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isExpired() {
+            return !Instant.now().isBefore(expiresAt);
+        }
+
+        public long getRemainingMillis() {
+            return Math.max(0, expiresAt.toEpochMilli() - System.currentTimeMillis());
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public Instant getExpiresAt() {
+            return expiresAt;
+        }
+
+    }
+
+}
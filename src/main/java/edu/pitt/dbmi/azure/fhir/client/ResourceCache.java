@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import ca.uhn.fhir.util.FhirTerser;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Read-through cache of resources by type and ID, and of identifier search
+ * results by type, identifier system and value. Entries younger than the TTL
+ * are served without a request. Older resources are revalidated with their
+ * version as ETag (If-None-Match), so an unchanged resource costs a 304;
+ * older identifier results are searched again. The least recently used
+ * entries are evicted beyond the maximum size.
+ *
+ * Searches that find nothing are not cached, since the resource may be
+ * created at any time. The resource clients invalidate what they create,
+ * update and delete; changes made by anyone else are seen once the TTL has
+ * passed.
+ * Cached resources are copied in and out, so callers may modify them.
+ *
+ * Aug 23, 2022 9:52:14 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ResourceCache {
+
+    public static final int DEFAULT_MAX_SIZE = 10_000;
+    public static final long DEFAULT_TTL_MILLIS = 60_000;
+
+    private static final TokenClientParam IDENTIFIER = new TokenClientParam("identifier");
+
+    private final IGenericClient client;
+    private final FhirTerser terser;
+    private final int maxSize;
+    private final long ttlMillis;
+
+    private final Map<String, Entry> entries;
+
+    // keys of the entries holding each resource, by type and ID and by
+    // identifier, so invalidation does not scan the cache
+    private final Map<String, Set<String>> entryKeys = new HashMap<>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong revalidationCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    public ResourceCache(IGenericClient client) {
+        this(client, DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param client FHIR client
+     * @param maxSize maximum number of resources and identifier results
+     * @param ttlMillis time an entry is served without asking the server
+     */
+    public ResourceCache(IGenericClient client, int maxSize, long ttlMillis) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Maximum size must be at least 1.");
+        }
+
+        this.client = client;
+        this.terser = client.getFhirContext().newTerser();
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() > ResourceCache.this.maxSize) {
+                    evictionCount.incrementAndGet();
+                    unindex(eldest.getKey(), eldest.getValue());
+
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Read a resource by ID.
+     *
+     * @param <T> resource type
+     * @param resourceType resource class
+     * @param id logical ID
+     * @return the resource
+     * @throws ResourceNotFoundException if the server does not have it
+     */
+    public <T extends Resource> T read(Class<T> resourceType, String id) {
+        String key = getKey(resourceType.getSimpleName(), id);
+        Entry entry = get(key);
+        if (entry != null && entry.isFresh()) {
+            hitCount.incrementAndGet();
+
+            return resourceType.cast(entry.resources.get(0).copy());
+        }
+
+        String version = (entry == null) ? null : getVersion(entry.resources.get(0));
+        T resource;
+        try {
+            if (version == null) {
+                resource = client.read()
+                        .resource(resourceType)
+                        .withId(id)
+                        .execute();
+            } else {
+                resource = client.read()
+                        .resource(resourceType)
+                        .withId(id)
+                        .ifVersionMatches(version).returnNull()
+                        .execute();
+            }
+        } catch (ResourceNotFoundException | ResourceGoneException exception) {
+            remove(key);
+            throw exception;
+        }
+
+        if (resource == null) {
+            revalidationCount.incrementAndGet();
+            put(key, new Entry(entry.resources));
+
+            return resourceType.cast(entry.resources.get(0).copy());
+        }
+
+        missCount.incrementAndGet();
+        put(key, new Entry(Collections.singletonList(resource.copy())));
+
+        return resource;
+    }
+
+    /**
+     * Search the resources having the given identifier.
+     *
+     * @param resourceType resource class
+     * @param system identifier system
+     * @param value identifier value
+     * @return a search set of the matching resources
+     */
+    public Bundle searchByIdentifier(Class<? extends Resource> resourceType, String system, String value) {
+        List<Resource> matches = getIdentifierMatches(resourceType.getSimpleName(), system, value);
+        if (matches != null) {
+            Bundle bundle = new Bundle();
+            bundle.setType(Bundle.BundleType.SEARCHSET);
+            bundle.setTotal(matches.size());
+            matches.forEach(resource -> bundle.addEntry().setResource(resource));
+
+            return bundle;
+        }
+
+        Bundle bundle = client
+                .search()
+                .forResource(resourceType)
+                .where(IDENTIFIER.exactly().systemAndValues(system, value))
+                .returnBundle(Bundle.class)
+                .cacheControl(new CacheControlDirective().setNoCache(true))
+                .execute();
+        if (bundle.getLink(IBaseBundle.LINK_NEXT) == null) {
+            putIdentifierMatches(resourceType.getSimpleName(), system, value, bundle.getEntry().stream()
+                    .map(Bundle.BundleEntryComponent::getResource)
+                    .collect(Collectors.toList()));
+        }
+
+        return bundle;
+    }
+
+    /**
+     * Get the cached resources having the given identifier, without asking
+     * the server. A result older than the TTL counts as a miss.
+     *
+     * @param resourceType resource type, e.g. Patient
+     * @param system identifier system
+     * @param value identifier value
+     * @return copies of the matching resources, or null if not cached
+     */
+    public List<Resource> getIdentifierMatches(String resourceType, String system, String value) {
+        String key = getIdentifierKey(resourceType, system, value);
+        Entry entry = get(key);
+        if (entry != null && entry.isFresh()) {
+            hitCount.incrementAndGet();
+
+            return entry.resources.stream()
+                    .map(Resource::copy)
+                    .collect(Collectors.toList());
+        }
+
+        missCount.incrementAndGet();
+        if (entry != null) {
+            remove(key);
+        }
+
+        return null;
+    }
+
+    /**
+     * Cache the resources found by an identifier search, and each resource
+     * by its ID. Empty results are not cached.
+     *
+     * @param resourceType resource type, e.g. Patient
+     * @param system identifier system
+     * @param value identifier value
+     * @param matches all the resources the search found
+     */
+    public void putIdentifierMatches(String resourceType, String system, String value, List<? extends Resource> matches) {
+        if (matches.isEmpty()) {
+            return;
+        }
+
+        List<Resource> copies = matches.stream()
+                .map(Resource::copy)
+                .collect(Collectors.toList());
+        put(getIdentifierKey(resourceType, system, value), new Entry(copies));
+        for (Resource resource : copies) {
+            if (resource.getIdElement().hasIdPart()) {
+                put(getKey(resource.fhirType(), resource.getIdElement().getIdPart()), new Entry(Collections.singletonList(resource)));
+            }
+        }
+    }
+
+    /**
+     * Drop a resource, and the identifier results containing it.
+     *
+     * @param resourceType resource type, e.g. Patient
+     * @param id logical ID
+     */
+    public synchronized void invalidate(String resourceType, String id) {
+        removeEntriesOf(getKey(resourceType, id));
+    }
+
+    /**
+     * Drop the given resources and the resources sharing an identifier with
+     * them, and the identifier results containing any of them, e.g. once the
+     * resources have been created or updated.
+     *
+     * @param resources resources written to the server
+     */
+    public synchronized void invalidate(Collection<? extends Resource> resources) {
+        resources.stream()
+                .flatMap(this::getResourceKeys)
+                .collect(Collectors.toSet())
+                .forEach(this::removeEntriesOf);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        entryKeys.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return number of stale resources the server confirmed unchanged (304)
+     */
+    public long getRevalidationCount() {
+        return revalidationCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits: %d, revalidations: %d, misses: %d, evictions: %d, size: %d",
+                getHitCount(), getRevalidationCount(), getMissCount(), getEvictionCount(), size());
+    }
+
+    private synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        Entry replaced = entries.put(key, entry);
+        if (replaced != null) {
+            unindex(key, replaced);
+        }
+        entry.resourceKeys.forEach(resourceKey -> entryKeys.computeIfAbsent(resourceKey, k -> new HashSet<>()).add(key));
+    }
+
+    private synchronized void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            unindex(key, removed);
+        }
+    }
+
+    /**
+     * Remove the entries holding the resource with the given key.
+     */
+    private void removeEntriesOf(String resourceKey) {
+        Set<String> keys = entryKeys.get(resourceKey);
+        if (keys != null) {
+            new ArrayList<>(keys).forEach(this::remove);
+        }
+    }
+
+    private void unindex(String key, Entry entry) {
+        for (String resourceKey : entry.resourceKeys) {
+            Set<String> keys = entryKeys.get(resourceKey);
+            if (keys != null) {
+                keys.remove(key);
+                if (keys.isEmpty()) {
+                    entryKeys.remove(resourceKey);
+                }
+            }
+        }
+    }
+
+    private static String getVersion(Resource resource) {
+        if (resource.hasMeta() && resource.getMeta().hasVersionId()) {
+            return resource.getMeta().getVersionId();
+        }
+
+        return resource.getIdElement().getVersionIdPart();
+    }
+
+    private static String getKey(String resourceType, String id) {
+        return resourceType + "/" + id;
+    }
+
+    /**
+     * @return the key of the resource by type and ID, if it has an ID, and
+     * by each of its identifiers
+     */
+    private Stream<String> getResourceKeys(Resource resource) {
+        Stream<String> identifierKeys = terser.getValues(resource, "identifier", Identifier.class).stream()
+                .map(identifier -> getIdentifierKey(resource.fhirType(), identifier.getSystem(), identifier.getValue()));
+
+        return resource.getIdElement().hasIdPart()
+                ? Stream.concat(Stream.of(getKey(resource.fhirType(), resource.getIdElement().getIdPart())), identifierKeys)
+                : identifierKeys;
+    }
+
+    private static String getIdentifierKey(String resourceType, String system, String value) {
+        return ResourceIndex.key(resourceType, system, value);
+    }
+
+    private class Entry {
+
+        private final List<Resource> resources;
+        private final Set<String> resourceKeys;
+        private final long storedAt = System.currentTimeMillis();
+
+        private Entry(List<Resource> resources) {
+            this.resources = resources;
+            this.resourceKeys = resources.stream()
+                    .flatMap(ResourceCache.this::getResourceKeys)
+                    .collect(Collectors.toSet());
+        }
+
+        private boolean isFresh() {
+            return System.currentTimeMillis() - storedAt < ttlMillis;
+        }
+
+    }
+
+}
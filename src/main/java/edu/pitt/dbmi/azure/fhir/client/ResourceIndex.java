@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Groups resources by a key, such as a subject or encounter reference, so
+ * that joining one resource type to another is a hash lookup.
+ *
+ * Jul 28, 2022 2:47:51 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ResourceIndex<T extends Resource> implements Consumer<T> {
+
+    private static final String KEY_SEPARATOR = "|";
+
+    private final Map<String, List<T>> index = new HashMap<>();
+    private final Function<? super T, String> keyFunction;
+
+    public ResourceIndex(Function<? super T, String> keyFunction) {
+        this.keyFunction = keyFunction;
+    }
+
+    public static <T extends Resource> ResourceIndex<T> of(Collection<T> resources, Function<? super T, String> keyFunction) {
+        ResourceIndex<T> resourceIndex = new ResourceIndex<>(keyFunction);
+        resources.forEach(resourceIndex::add);
+
+        return resourceIndex;
+    }
+
+    /**
+     * Create a key from several values, for indexes that join on more than
+     * one reference.
+     *
+     * @param values the values making up the key
+     * @return the composite key
+     */
+    public static String key(String... values) {
+        return Stream.of(values)
+                .map(value -> Objects.toString(value, ""))
+                .collect(Collectors.joining(KEY_SEPARATOR));
+    }
+
+    public void add(T resource) {
+        index.computeIfAbsent(keyFunction.apply(resource), k -> new LinkedList<>()).add(resource);
+    }
+
+    @Override
+    public void accept(T resource) {
+        add(resource);
+    }
+
+    public List<T> get(String key) {
+        return index.getOrDefault(key, Collections.emptyList());
+    }
+
+    public boolean containsKey(String key) {
+        return index.containsKey(key);
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+}
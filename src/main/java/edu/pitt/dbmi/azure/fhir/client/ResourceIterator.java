@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Iterates the resources of a search result across all of its pages. Only
+ * the current page and the pages fetched ahead are held in memory. Resources
+ * of other types in the result, e.g. an OperationOutcome, are skipped.
+ *
+ * Aug 4, 2022 3:52:36 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ResourceIterator<T extends Resource> implements Iterator<T>, AutoCloseable {
+
+    private final SearchPageIterator pages;
+    private final Class<T> resourceType;
+
+    private Iterator<Bundle.BundleEntryComponent> entries = Collections.emptyIterator();
+    private T nextResource;
+
+    public ResourceIterator(SearchPageIterator pages, Class<T> resourceType) {
+        this.pages = pages;
+        this.resourceType = resourceType;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (nextResource == null) {
+            if (entries.hasNext()) {
+                Resource resource = entries.next().getResource();
+                if (resourceType.isInstance(resource)) {
+                    nextResource = resourceType.cast(resource);
+                }
+            } else if (pages.hasNext()) {
+                entries = pages.next().getEntry().iterator();
+            } else {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        T resource = nextResource;
+        nextResource = null;
+
+        return resource;
+    }
+
+    @Override
+    public void close() {
+        pages.close();
+    }
+
+    /**
+     * Create a sequential stream of the resources. Close the stream to stop
+     * fetching pages when it is not fully consumed.
+     *
+     * @return stream of the resources
+     */
+    public Stream<T> stream() {
+        return StreamSupport
+                .stream(Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(this::close);
+    }
+
+}
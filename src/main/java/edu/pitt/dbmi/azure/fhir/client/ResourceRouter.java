@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Dispatches resources to a consumer registered for their resource type.
+ * Resources without a registered consumer are passed to the fallback, which
+ * ignores them by default.
+ *
+ * Jul 27, 2022 10:05:33 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ResourceRouter implements Consumer<Resource> {
+
+    private final Map<Class<? extends Resource>, Consumer<Resource>> routes = new HashMap<>();
+
+    private Consumer<Resource> fallback = resource -> {
+    };
+
+    public <T extends Resource> ResourceRouter route(Class<T> resourceType, Consumer<? super T> consumer) {
+        routes.put(resourceType, resource -> consumer.accept(resourceType.cast(resource)));
+
+        return this;
+    }
+
+    public ResourceRouter otherwise(Consumer<Resource> consumer) {
+        this.fallback = consumer;
+
+        return this;
+    }
+
+    @Override
+    public void accept(Resource resource) {
+        routes.getOrDefault(resource.getClass(), fallback).accept(resource);
+    }
+
+}
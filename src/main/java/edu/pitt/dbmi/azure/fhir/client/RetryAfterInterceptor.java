@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+
+/**
+ * Remembers how long the server asked the client to wait before retrying,
+ * from the Retry-After header (or Azure's x-ms-retry-after-ms) of a 429 or
+ * 503 response. HAPI does not copy response headers into the exception it
+ * throws, so the delay is kept for the thread that made the request.
+ * {@link BundleUploader} registers it on the clients it sends with.
+ *
+ * Aug 5, 2022 1:58:44 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class RetryAfterInterceptor implements IClientInterceptor {
+
+    private static final String RETRY_AFTER = "Retry-After";
+    private static final String RETRY_AFTER_MS = "x-ms-retry-after-ms";
+
+    private static final ThreadLocal<Long> RETRY_AFTER_MILLIS = new ThreadLocal<>();
+
+    /**
+     * Register the interceptor on the client unless it already has one.
+     *
+     * @param client FHIR client
+     */
+    public static synchronized void register(IGenericClient client) {
+        boolean registered = client.getInterceptorService()
+                .getAllRegisteredInterceptors().stream()
+                .anyMatch(RetryAfterInterceptor.class::isInstance);
+        if (!registered) {
+            client.registerInterceptor(new RetryAfterInterceptor());
+        }
+    }
+
+    /**
+     * Get and clear the delay requested by the last throttled response
+     * received on this thread.
+     *
+     * @return delay in milliseconds, or -1 if the server did not specify one
+     */
+    public static long takeRetryAfterMillis() {
+        Long millis = RETRY_AFTER_MILLIS.get();
+        RETRY_AFTER_MILLIS.remove();
+
+        return (millis == null) ? -1 : millis;
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        RETRY_AFTER_MILLIS.remove();
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+        int status = response.getStatus();
+        if (status == 429 || status == 503) {
+            long millis = getRetryAfterMillis(response);
+            if (millis >= 0) {
+                RETRY_AFTER_MILLIS.set(millis);
+            }
+        }
+    }
+
+    /**
+     * Get the delay requested by the response.
+     *
+     * @param response HTTP response
+     * @return delay in milliseconds, or -1 if the response does not specify
+     * one
+     */
+    static long getRetryAfterMillis(IHttpResponse response) {
+        long millis = parseMilliseconds(response.getHeaders(RETRY_AFTER_MS));
+
+        return (millis < 0) ? parseRetryAfter(response.getHeaders(RETRY_AFTER)) : millis;
+    }
+
+    private static long parseMilliseconds(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(values.get(0).trim());
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date.
+     */
+    private static long parseRetryAfter(List<String> values) {
+        if (values == null || values.isEmpty()) {
+            return -1;
+        }
+
+        String value = values.get(0).trim();
+        try {
+            return Long.parseLong(value) * 1000;
+        } catch (NumberFormatException exception) {
+            try {
+                ZonedDateTime retryAt = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+
+                return Math.max(0, Duration.between(ZonedDateTime.now(retryAt.getZone()), retryAt).toMillis());
+            } catch (DateTimeParseException dateException) {
+                return -1;
+            }
+        }
+    }
+
+}
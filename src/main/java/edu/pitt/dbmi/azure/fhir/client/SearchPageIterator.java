@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.hl7.fhir.instance.model.api.IBaseBundle;
+import org.hl7.fhir.r4.model.Bundle;
+
+/**
+ * Iterates the pages of a search result. A background thread follows the
+ * next links and keeps up to a fixed number of pages ready, so the server
+ * returns the next page while the current one is being processed.
+ *
+ * Aug 3, 2022 10:26:14 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class SearchPageIterator implements Iterator<Bundle>, AutoCloseable {
+
+    public static final int DEFAULT_PREFETCH_DEPTH = 2;
+
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
+
+    private final IGenericClient client;
+    private final BlockingQueue<Page> pages;
+    private final Thread prefetcher;
+
+    private Page nextPage;
+
+    public SearchPageIterator(IGenericClient client, Bundle firstPage) {
+        this(client, firstPage, DEFAULT_PREFETCH_DEPTH);
+    }
+
+    public SearchPageIterator(IGenericClient client, Bundle firstPage, int prefetchDepth) {
+        this(client, () -> firstPage, prefetchDepth);
+    }
+
+    /**
+     * @param client FHIR client
+     * @param search runs the search and returns its first page, called on
+     * the background thread
+     * @param prefetchDepth maximum number of pages fetched ahead of the
+     * caller
+     */
+    public SearchPageIterator(IGenericClient client, Supplier<Bundle> search, int prefetchDepth) {
+        if (prefetchDepth < 1) {
+            throw new IllegalArgumentException("Prefetch depth must be at least 1.");
+        }
+
+        this.client = client;
+        // the page the background thread waits to queue is one of them
+        this.pages = (prefetchDepth == 1) ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(prefetchDepth - 1);
+        this.prefetcher = new Thread(() -> prefetch(search), "search-page-prefetch-" + THREAD_NUMBER.getAndIncrement());
+        this.prefetcher.setDaemon(true);
+        this.prefetcher.start();
+    }
+
+    private void prefetch(Supplier<Bundle> search) {
+        try {
+            Bundle page = search.get();
+            pages.put(new Page(page, null));
+            while (page.getLink(IBaseBundle.LINK_NEXT) != null) {
+                page = client
+                        .loadPage()
+                        .next(page)
+                        .execute();
+                pages.put(new Page(page, null));
+            }
+            pages.put(Page.LAST);
+        } catch (InterruptedException exception) {
+            // closed before all pages were read
+        } catch (Throwable throwable) {
+            // forward errors too, or the caller would wait forever
+            try {
+                pages.put(new Page(null, throwable));
+            } catch (InterruptedException exception) {
+                // closed before the failure was read
+            }
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextPage == null) {
+            try {
+                nextPage = pages.take();
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the next search page.", exception);
+            }
+        }
+
+        if (nextPage.failure instanceof RuntimeException) {
+            throw (RuntimeException) nextPage.failure;
+        } else if (nextPage.failure instanceof Error) {
+            throw (Error) nextPage.failure;
+        } else if (nextPage.failure != null) {
+            throw new IllegalStateException("Unable to fetch the next search page.", nextPage.failure);
+        }
+
+        return nextPage != Page.LAST;
+    }
+
+    @Override
+    public Bundle next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        Bundle page = nextPage.bundle;
+        nextPage = null;
+
+        return page;
+    }
+
+    @Override
+    public void close() {
+        prefetcher.interrupt();
+    }
+
+    private static class Page {
+
+        private static final Page LAST = new Page(null, null);
+
+        private final Bundle bundle;
+        private final Throwable failure;
+
+        private Page(Bundle bundle, Throwable failure) {
+            this.bundle = bundle;
+            this.failure = failure;
+        }
+
+    }
+
+}
@@ -0,0 +1,353 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * Reads the resources of a JSON bundle one entry at a time. The bundle text
+ * is scanned in a single pass, and the text of each entry resource is handed
+ * to the HAPI parser through a reader that ends with the resource. Only the
+ * entry being parsed is held in memory, so bundles of any size can be read.
+ *
+ * Jul 27, 2022 10:18:09 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class StreamingBundleReader {
+
+    private static final String ENTRY = "entry";
+    private static final String FULL_URL = "fullUrl";
+    private static final String RESOURCE = "resource";
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final FhirContext fhirContext;
+
+    public StreamingBundleReader(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    public void read(Path bundleFile, Charset charset, Consumer<Resource> consumer) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(bundleFile, charset)) {
+            read(reader, consumer);
+        }
+    }
+
+    /**
+     * Pass each resource in the bundle's entries to the consumer, in document
+     * order.
+     *
+     * @param reader JSON bundle
+     * @param consumer receives each entry resource
+     * @throws IOException if the bundle can not be read or is not a JSON
+     * object
+     */
+    public void read(Reader reader, Consumer<Resource> consumer) throws IOException {
+        IParser resourceParser = fhirContext.newJsonParser();
+        JsonSource source = new JsonSource(reader);
+        if (source.skipWhitespace() != '{') {
+            throw new IOException("Bundle must be a JSON object.");
+        }
+        source.read();
+
+        if (source.skipWhitespace() == '}') {
+            return;
+        }
+        do {
+            String fieldName = source.readFieldName();
+            if (ENTRY.equals(fieldName) && source.skipWhitespace() == '[') {
+                readEntries(source, resourceParser, consumer);
+            } else {
+                source.skipValue();
+            }
+        } while (source.readSeparator('}'));
+    }
+
+    private void readEntries(JsonSource source, IParser resourceParser, Consumer<Resource> consumer) throws IOException {
+        source.read();
+        if (source.skipWhitespace() == ']') {
+            source.read();
+
+            return;
+        }
+
+        do {
+            if (source.skipWhitespace() == '{') {
+                readEntry(source, resourceParser, consumer);
+            } else {
+                source.skipValue();
+            }
+        } while (source.readSeparator(']'));
+    }
+
+    /**
+     * Parse the entry resource. Like a full bundle parse, the resource takes
+     * the entry's full URL as its ID so that references between entries
+     * still match. The full URL may come before or after the resource.
+     */
+    private void readEntry(JsonSource source, IParser resourceParser, Consumer<Resource> consumer) throws IOException {
+        source.read();
+        if (source.skipWhitespace() == '}') {
+            source.read();
+
+            return;
+        }
+
+        Resource resource = null;
+        String fullUrl = null;
+        do {
+            String fieldName = source.readFieldName();
+            int next = source.skipWhitespace();
+            if (RESOURCE.equals(fieldName) && next == '{') {
+                try (Reader resourceReader = new ValueReader(source)) {
+                    resource = (Resource) resourceParser.parseResource(resourceReader);
+                } catch (DataFormatException exception) {
+                    // HAPI wraps failures to read the bundle itself
+                    for (Throwable cause = exception.getCause(); cause != null; cause = cause.getCause()) {
+                        if (cause instanceof IOException) {
+                            throw (IOException) cause;
+                        }
+                    }
+                    throw exception;
+                }
+            } else if (FULL_URL.equals(fieldName) && next == '"') {
+                fullUrl = source.readString();
+            } else {
+                source.skipValue();
+            }
+        } while (source.readSeparator('}'));
+
+        if (resource != null) {
+            if (fullUrl != null && !fullUrl.isEmpty()) {
+                resource.setId(fullUrl);
+            }
+            consumer.accept(resource);
+        }
+    }
+
+    /**
+     * Buffered characters of the bundle with one character of lookahead.
+     */
+    private static final class JsonSource {
+
+        private final Reader reader;
+        private final char[] buffer = new char[BUFFER_SIZE];
+        private int position;
+        private int limit;
+
+        private JsonSource(Reader reader) {
+            this.reader = reader;
+        }
+
+        private int peek() throws IOException {
+            while (position == limit) {
+                int read = reader.read(buffer, 0, buffer.length);
+                if (read < 0) {
+                    return -1;
+                }
+                position = 0;
+                limit = read;
+            }
+
+            return buffer[position];
+        }
+
+        private int read() throws IOException {
+            int c = peek();
+            if (c < 0) {
+                throw new EOFException("Unexpected end of bundle.");
+            }
+            position++;
+
+            return c;
+        }
+
+        /**
+         * @return the next character that is not white space, without
+         * consuming it
+         */
+        private int skipWhitespace() throws IOException {
+            for (int c = peek(); c >= 0; c = peek()) {
+                if (!(c == ' ' || c == '\t' || c == '\n' || c == '\r')) {
+                    return c;
+                }
+                position++;
+            }
+
+            return -1;
+        }
+
+        private void expect(char expected) throws IOException {
+            int c = skipWhitespace();
+            if (c != expected) {
+                throw new IOException(String.format("Expected '%c' in bundle but found '%c'.", expected, (char) c));
+            }
+            position++;
+        }
+
+        /**
+         * Read a field name and the colon after it.
+         */
+        private String readFieldName() throws IOException {
+            skipWhitespace();
+            String name = readString();
+            expect(':');
+
+            return name;
+        }
+
+        /**
+         * Read the comma between two members, or the closing character.
+         *
+         * @return true if another member follows
+         */
+        private boolean readSeparator(char close) throws IOException {
+            int c = skipWhitespace();
+            if (c == ',') {
+                position++;
+
+                return true;
+            }
+            expect(close);
+
+            return false;
+        }
+
+        private String readString() throws IOException {
+            expect('"');
+
+            StringBuilder value = new StringBuilder();
+            for (int c = read(); c != '"'; c = read()) {
+                if (c == '\\') {
+                    c = read();
+                    switch (c) {
+                        case 'b':
+                            c = '\b';
+                            break;
+                        case 'f':
+                            c = '\f';
+                            break;
+                        case 'n':
+                            c = '\n';
+                            break;
+                        case 'r':
+                            c = '\r';
+                            break;
+                        case 't':
+                            c = '\t';
+                            break;
+                        case 'u':
+                            c = Integer.parseInt(new String(new char[]{(char) read(), (char) read(), (char) read(), (char) read()}), 16);
+                            break;
+                        default:
+                            // \" \\ and \/
+                            break;
+                    }
+                }
+                value.append((char) c);
+            }
+
+            return value.toString();
+        }
+
+        private void skipValue() throws IOException {
+            int c = skipWhitespace();
+            if (c == '"') {
+                readString();
+            } else if (c == '{' || c == '[') {
+                new ValueReader(this).close();
+            } else {
+                // number, true, false or null
+                for (c = peek(); c >= 0 && c != ',' && c != '}' && c != ']' && c != ' ' && c != '\t' && c != '\n' && c != '\r'; c = peek()) {
+                    position++;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Reads one JSON object or array from the source and ends after its
+     * closing character. Closing the reader skips what was not read.
+     */
+    private static final class ValueReader extends Reader {
+
+        private final JsonSource source;
+        private int depth;
+        private boolean inString;
+        private boolean escaped;
+        private boolean done;
+
+        private ValueReader(JsonSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read(char[] chars, int offset, int length) throws IOException {
+            if (done) {
+                return -1;
+            }
+
+            int count = 0;
+            while (count < length && !done) {
+                int c = source.read();
+                chars[offset + count++] = (char) c;
+                if (inString) {
+                    if (escaped) {
+                        escaped = false;
+                    } else if (c == '\\') {
+                        escaped = true;
+                    } else if (c == '"') {
+                        inString = false;
+                    }
+                } else if (c == '"') {
+                    inString = true;
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    done = (--depth == 0);
+                }
+            }
+
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            char[] skipped = new char[BUFFER_SIZE];
+            while (read(skipped, 0, skipped.length) >= 0) {
+                // skip the rest of the value
+            }
+        }
+
+    }
+
+}
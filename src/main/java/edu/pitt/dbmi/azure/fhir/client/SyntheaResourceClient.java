@@ -18,9 +18,9 @@
  */
 package edu.pitt.dbmi.azure.fhir.client;
 
-import ca.uhn.fhir.rest.api.CacheControlDirective;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.util.FhirTerser;
 import edu.pitt.dbmi.fhir.resource.mapper.util.JsonResourceConverterR4;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -33,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Identifier;
 import org.hl7.fhir.r4.model.Observation;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Reference;
@@ -46,27 +47,48 @@ import org.hl7.fhir.r4.model.Resource;
  */
 public class SyntheaResourceClient extends AbstractResourceClient {
 
+    /**
+     * System of identifiers whose value is a URI, here the fullUrl of the
+     * resource in its Synthea bundle.
+     */
+    public static final String FULL_URL_IDENTIFIER_SYSTEM = "urn:ietf:rfc:3986";
+
+    private static final String URN_UUID = "urn:uuid:";
+
+    /**
+     * Bounds of the throttle used when deleting the resources of a bundle.
+     */
+    private static final int MIN_DELETE_BATCH_SIZE = 50;
+    private static final int INITIAL_DELETE_BATCH_SIZE = 100;
+    private static final int DELETE_BATCH_SIZE_INCREMENT = 25;
+    private static final int MAX_DELETE_PARALLELISM = 16;
+
+    private final StreamingBundleReader bundleReader;
+    private final FhirTerser terser;
+
     public SyntheaResourceClient(IGenericClient client) {
-        super(client);
+        this(client, MetricsRegistry.NONE);
+    }
+
+    public SyntheaResourceClient(IGenericClient client, MetricsRegistry metrics) {
+        this(client, metrics, UploadMode.CREATE);
+    }
+
+    public SyntheaResourceClient(IGenericClient client, MetricsRegistry metrics, UploadMode uploadMode) {
+        super(client, metrics, uploadMode);
+        this.bundleReader = new StreamingBundleReader(client.getFhirContext());
+        this.terser = client.getFhirContext().newTerser();
     }
 
     public void deleteAllResourceBundle(Path bundleFile) throws IOException {
         Map<Class, Resource> resourceClasses = new HashMap<>();
-        try (BufferedReader reader = Files.newBufferedReader(bundleFile, Charset.defaultCharset())) {
-            Bundle bundle = (Bundle) JsonResourceConverterR4.parseResource(reader);
-            bundle.getEntry().forEach(e -> resourceClasses.put(e.getResource().getClass(), e.getResource()));
-        }
+        bundleReader.read(bundleFile, Charset.defaultCharset(), resource -> resourceClasses.put(resource.getClass(), resource));
 
         resourceClasses.values()
                 .forEach(resource -> {
-                    Bundle searchBundle = client
-                            .search()
-                            .forResource(resource.getClass())
-                            .returnBundle(Bundle.class)
-                            .cacheControl(new CacheControlDirective().setNoCache(true))
-                            .execute();
-
-                    deleteResources(searchBundle, 500);
+                    AdaptiveThrottle throttle = new AdaptiveThrottle(MIN_DELETE_BATCH_SIZE, INITIAL_DELETE_BATCH_SIZE, DEFAULT_DELETE_BATCH_SIZE,
+                            DELETE_BATCH_SIZE_INCREMENT, DEFAULT_DELETE_PARALLELISM, MAX_DELETE_PARALLELISM, AdaptiveThrottle.DEFAULT_TARGET_LATENCY_MILLIS);
+                    deleteResources(searchResourceIds(resource.getClass()), throttle);
                 });
 
     }
@@ -74,46 +96,102 @@ public class SyntheaResourceClient extends AbstractResourceClient {
     public Bundle addAllResourceBundle(Path bundleFile) throws IOException {
         try (BufferedReader reader = Files.newBufferedReader(bundleFile, Charset.defaultCharset())) {
             Bundle bundle = (Bundle) JsonResourceConverterR4.parseResource(reader);
+            if (uploadMode != UploadMode.CREATE) {
+                bundle.getEntry().stream()
+                        .filter(entry -> entry.getRequest().getMethod() == Bundle.HTTPVerb.POST)
+                        .forEach(entry -> {
+                            addFullUrlIdentifier(entry.getResource(), entry.getFullUrl());
+                            setRequest(entry, entry.getRequest().getUrl(), null);
+                        });
+            }
 
             return client.transaction().withBundle(bundle).execute();
         }
     }
 
+    /**
+     * Write the resources of the bundle into NDJSON files for bulk import.
+     * Temporary IDs (urn:uuid:...) become the resource IDs and references to
+     * them are rewritten as Type/ID. The bundle is read twice, first to find
+     * the type of each temporary ID, so it is never held in memory.
+     *
+     * @param bundleFile Synthea bundle
+     * @param writer NDJSON output
+     * @return number of resources written
+     * @throws IOException
+     */
+    public long writeNdjson(Path bundleFile, NdjsonWriter writer) throws IOException {
+        Map<String, String> resolvedIds = new HashMap<>();
+        bundleReader.read(bundleFile, Charset.defaultCharset(), resource -> {
+            String fullUrl = resource.getIdElement().getValue();
+            if (fullUrl != null && fullUrl.startsWith(URN_UUID)) {
+                resolvedIds.put(fullUrl, resource.fhirType() + "/" + fullUrl.substring(URN_UUID.length()));
+            }
+        });
+
+        FhirTerser terser = client.getFhirContext().newTerser();
+        long[] count = {0};
+        bundleReader.read(bundleFile, Charset.defaultCharset(), resource -> {
+            String resolvedId = resolvedIds.get(resource.getIdElement().getValue());
+            if (resolvedId != null) {
+                resource.setId(resolvedId.substring(resolvedId.indexOf('/') + 1));
+            }
+            for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+                String resolvedReference = resolvedIds.get(reference.getReference());
+                if (resolvedReference != null) {
+                    reference.setReference(resolvedReference);
+                }
+            }
+
+            writer.accept(resource);
+            count[0]++;
+        });
+
+        return count[0];
+    }
+
     public void addResourceBundle(Path bundleFile) throws IOException {
-        List<Patient> patients = getPatients(bundleFile);
-        List<Encounter> encounters = getEncounters(bundleFile);
-        List<Observation> observations = getObservations(bundleFile);
+        List<Patient> patients = new LinkedList<>();
+        ResourceIndex<Encounter> encountersByPatient = new ResourceIndex<>(encounter -> encounter.getSubject().getReference());
+        ResourceIndex<Observation> observationsByEncounter = new ResourceIndex<>(observation -> ResourceIndex.key(
+                observation.getSubject().getReference(),
+                observation.getEncounter().getReference()));
+        bundleReader.read(bundleFile, Charset.defaultCharset(), new ResourceRouter()
+                .route(Patient.class, patients::add)
+                .route(Encounter.class, encountersByPatient)
+                .route(Observation.class, observationsByEncounter));
 
         patients.forEach(patient -> {
+            // a conditional create that matches an existing patient returns no
+            // body, so reference the ID of the outcome and the local name
             MethodOutcome patientOutcome = addResource(patient);
-            final Patient uploadedPatient = (Patient) patientOutcome.getResource();
+            final String patientId = patientOutcome.getId().getIdPart();
+            final String patientName = patient.getNameFirstRep().getNameAsSingleString();
 
-            encounters.stream()
-                    .filter(encounter -> patient.getIdElement().getIdPart().equals(encounter.getSubject().getReference()))
+            encountersByPatient.get(patient.getIdElement().getIdPart())
                     .forEach(encounter -> {
+                        String observationKey = ResourceIndex.key(patient.getIdElement().getIdPart(), encounter.getIdElement().getIdPart());
+
                         encounter.setSubject(new Reference()
-                                .setReference("Patient/" + uploadedPatient.getIdElement().getIdPart())
-                                .setDisplay(uploadedPatient.getNameFirstRep().getNameAsSingleString()));
+                                .setReference("Patient/" + patientId)
+                                .setDisplay(patientName));
+                        addFullUrlIdentifier(encounter, encounter.getIdElement().getValue());
 
                         MethodOutcome encounterOutcome = addResource(encounter);
-                        final Encounter uploadedEncounter = (Encounter) encounterOutcome.getResource();
+                        final String encounterId = encounterOutcome.getId().getIdPart();
 
                         final Bundle bundle = new Bundle();
                         bundle.setType(Bundle.BundleType.TRANSACTION);
-                        observations.stream()
-                                .filter(observation -> patient.getIdElement().getIdPart().equals(observation.getSubject().getReference()) && encounter.getIdElement().getIdPart().equals(observation.getEncounter().getReference()))
+                        observationsByEncounter.get(observationKey)
                                 .forEach(observation -> {
                                     observation.setSubject(new Reference()
-                                            .setReference("Patient/" + uploadedPatient.getIdElement().getIdPart())
-                                            .setDisplay(uploadedPatient.getNameFirstRep().getNameAsSingleString()));
+                                            .setReference("Patient/" + patientId)
+                                            .setDisplay(patientName));
                                     observation.setEncounter(new Reference()
-                                            .setReference("Encounter/" + uploadedEncounter.getIdElement().getIdPart()));
+                                            .setReference("Encounter/" + encounterId));
+                                    addFullUrlIdentifier(observation, observation.getIdElement().getValue());
 
-                                    bundle.addEntry()
-                                            .setResource(observation)
-                                            .getRequest()
-                                            .setUrl("Observation")
-                                            .setMethod(Bundle.HTTPVerb.POST);
+                                    setRequest(bundle.addEntry().setResource(observation), "Observation", null);
                                 });
 
                         client.transaction().withBundle(bundle).execute();
@@ -122,6 +200,29 @@ public class SyntheaResourceClient extends AbstractResourceClient {
         });
     }
 
+    /**
+     * Synthea gives most resources other than patients no identifier, so the
+     * conditional upload modes would create them again on every upload. Give
+     * such a resource its bundle fullUrl (urn:uuid:...) as identifier, which
+     * is the same each time the bundle file is uploaded, for the upload to be
+     * matched on.
+     */
+    private void addFullUrlIdentifier(Resource resource, String fullUrl) {
+        if (uploadMode == UploadMode.CREATE || resource == null || fullUrl == null || !fullUrl.startsWith(URN_UUID)) {
+            return;
+        }
+        if (client.getFhirContext().getResourceDefinition(resource).getChildByName("identifier") == null) {
+            return;
+        }
+
+        boolean identified = terser.getValues(resource, "identifier", Identifier.class).stream()
+                .anyMatch(identifier -> identifier.hasSystem() && identifier.hasValue());
+        if (!identified) {
+            Identifier identifier = terser.addElement(resource, "identifier");
+            identifier.setSystem(FULL_URL_IDENTIFIER_SYSTEM).setValue(fullUrl);
+        }
+    }
+
     public Bundle addEncounters(List<Encounter> encounters, Patient patient) {
         Bundle bundle = new Bundle();
         bundle.setType(Bundle.BundleType.TRANSACTION);
@@ -131,11 +232,7 @@ public class SyntheaResourceClient extends AbstractResourceClient {
                     .setReference("Patient/" + patient.getIdElement().getIdPart())
                     .setDisplay(patient.getNameFirstRep().getNameAsSingleString()));
 
-            bundle.addEntry()
-                    .setResource(encounter)
-                    .getRequest()
-                    .setUrl("Encounter")
-                    .setMethod(Bundle.HTTPVerb.POST);
+            setRequest(bundle.addEntry().setResource(encounter), "Encounter", null);
         });
 
         return client.transaction().withBundle(bundle).execute();
@@ -143,42 +240,24 @@ public class SyntheaResourceClient extends AbstractResourceClient {
 
     public List<Observation> getObservations(Path bundleFile) throws IOException {
         List<Observation> observations = new LinkedList<>();
-
-        try (BufferedReader reader = Files.newBufferedReader(bundleFile, Charset.defaultCharset())) {
-            Bundle bundle = (Bundle) JsonResourceConverterR4.parseResource(reader);
-            bundle.getEntry().stream()
-                    .filter(e -> e.getResource().fhirType().equals("Observation"))
-                    .map(e -> (Observation) e.getResource())
-                    .forEach(observations::add);
-        }
+        bundleReader.read(bundleFile, Charset.defaultCharset(), new ResourceRouter()
+                .route(Observation.class, observations::add));
 
         return observations;
     }
 
     public List<Encounter> getEncounters(Path bundleFile) throws IOException {
         List<Encounter> encounters = new LinkedList<>();
-
-        try (BufferedReader reader = Files.newBufferedReader(bundleFile, Charset.defaultCharset())) {
-            Bundle bundle = (Bundle) JsonResourceConverterR4.parseResource(reader);
-            bundle.getEntry().stream()
-                    .filter(e -> e.getResource().fhirType().equals("Encounter"))
-                    .map(e -> (Encounter) e.getResource())
-                    .forEach(encounters::add);
-        }
+        bundleReader.read(bundleFile, Charset.defaultCharset(), new ResourceRouter()
+                .route(Encounter.class, encounters::add));
 
         return encounters;
     }
 
     public List<Patient> getPatients(Path bundleFile) throws IOException {
         List<Patient> patients = new LinkedList<>();
-
-        try (BufferedReader reader = Files.newBufferedReader(bundleFile, Charset.defaultCharset())) {
-            Bundle bundle = (Bundle) JsonResourceConverterR4.parseResource(reader);
-            bundle.getEntry().stream()
-                    .filter(e -> e.getResource().fhirType().equals("Patient"))
-                    .map(e -> (Patient) e.getResource())
-                    .forEach(patients::add);
-        }
+        bundleReader.read(bundleFile, Charset.defaultCharset(), new ResourceRouter()
+                .route(Patient.class, patients::add));
 
         return patients;
     }
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+/**
+ * How uploaded resources are written to the server. The conditional modes
+ * match resources by their source identifier, so uploading the same data
+ * again does not create duplicates. Resources without an identifier are
+ * always created, so uploading them again duplicates them. Synthea bundles
+ * leave most resources without an identifier; {@link SyntheaResourceClient}
+ * gives those their bundle fullUrl as identifier, which holds as long as the
+ * same bundle file is uploaded again.
+ *
+ * Aug 15, 2022 9:36:12 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public enum UploadMode {
+
+    /**
+     * POST every resource.
+     */
+    CREATE,
+    /**
+     * POST with If-None-Exist: identifier=system|value. A resource already
+     * on the server is left unchanged.
+     */
+    CONDITIONAL_CREATE,
+    /**
+     * PUT Type?identifier=system|value. A resource already on the server is
+     * replaced by the uploaded one.
+     */
+    CONDITIONAL_UPDATE
+
+}
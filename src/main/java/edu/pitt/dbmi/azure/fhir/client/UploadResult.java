@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * The outcome of a single bundle sent by a {@link BundleUploader}.
+ *
+ * Jul 26, 2022 9:14:02 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class UploadResult {
+
+    private final long sequence;
+    private final Bundle request;
+    private final Bundle response;
+    private final RuntimeException exception;
+    private final long elapsedMillis;
+    private final int retries;
+
+    private UploadResult(long sequence, Bundle request, Bundle response, RuntimeException exception, long elapsedMillis, int retries) {
+        this.sequence = sequence;
+        this.request = request;
+        this.response = response;
+        this.exception = exception;
+        this.elapsedMillis = elapsedMillis;
+        this.retries = retries;
+    }
+
+    public static UploadResult success(long sequence, Bundle request, Bundle response, long elapsedMillis, int retries) {
+        return new UploadResult(sequence, request, response, null, elapsedMillis, retries);
+    }
+
+    public static UploadResult failure(long sequence, Bundle request, RuntimeException exception, long elapsedMillis, int retries) {
+        return new UploadResult(sequence, request, null, exception, elapsedMillis, retries);
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+
+    public int getEntryCount() {
+        return request.getEntry().size();
+    }
+
+    /**
+     * Get the entries that were not processed: all the entries of a failed
+     * bundle, or the entries of a BATCH bundle whose response status is not
+     * 2xx.
+     *
+     * @return indexes of the failed request entries, in order
+     */
+    public List<Integer> getFailedEntries() {
+        if (!isSuccess()) {
+            return IntStream.range(0, getEntryCount()).boxed().collect(Collectors.toList());
+        }
+        if (request.getType() != Bundle.BundleType.BATCH) {
+            return new ArrayList<>();
+        }
+
+        List<Integer> failedEntries = new ArrayList<>();
+        for (int i = 0; i < getEntryCount(); i++) {
+            if (!isSuccessful(getStatusCode(response, i))) {
+                failedEntries.add(i);
+            }
+        }
+
+        return failedEntries;
+    }
+
+    public boolean hasFailedEntries() {
+        return !getFailedEntries().isEmpty();
+    }
+
+    /**
+     * Describe why an entry failed, from the response status and the
+     * diagnostics of its OperationOutcome, or from the exception of a failed
+     * bundle.
+     *
+     * @param index index of the request entry
+     * @return the error, e.g. 400 Bad Request: Invalid resource
+     */
+    public String getEntryError(int index) {
+        if (!isSuccess()) {
+            return exception.getMessage();
+        }
+        if (index >= response.getEntry().size()) {
+            return "No response";
+        }
+
+        Bundle.BundleEntryResponseComponent entryResponse = response.getEntry().get(index).getResponse();
+        Resource outcome = entryResponse.getOutcome();
+        String diagnostics = (outcome instanceof OperationOutcome)
+                ? ((OperationOutcome) outcome).getIssue().stream()
+                        .filter(OperationOutcome.OperationOutcomeIssueComponent::hasDiagnostics)
+                        .map(OperationOutcome.OperationOutcomeIssueComponent::getDiagnostics)
+                        .collect(Collectors.joining("; "))
+                : "";
+
+        return diagnostics.isEmpty() ? entryResponse.getStatus() : entryResponse.getStatus() + ": " + diagnostics;
+    }
+
+    /**
+     * @return the status code of the response entry, or 0 if it has none
+     */
+    static int getStatusCode(Bundle response, int index) {
+        if (response == null || index >= response.getEntry().size()) {
+            return 0;
+        }
+
+        String status = response.getEntry().get(index).getResponse().getStatus();
+        if (status == null) {
+            return 0;
+        }
+
+        int end = status.indexOf(' ');
+        try {
+            return Integer.parseInt((end < 0) ? status.trim() : status.substring(0, end));
+        } catch (NumberFormatException exception) {
+            return 0;
+        }
+    }
+
+    static boolean isSuccessful(int statusCode) {
+        return statusCode >= 200 && statusCode < 300;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Bundle getRequest() {
+        return request;
+    }
+
+    public Bundle getResponse() {
+        return response;
+    }
+
+    public RuntimeException getException() {
+        return exception;
+    }
+
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+}
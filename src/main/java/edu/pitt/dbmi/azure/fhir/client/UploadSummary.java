@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Aggregated results of all the bundles sent by a {@link BundleUploader}.
+ *
+ * Failures keep the bundle sequence and the index and error of each failed
+ * entry, not the bundles themselves. Only the first
+ * {@link #MAX_RECORDED_FAILURES} failed bundles are kept; the counts cover
+ * all of them.
+ *
+ * Jul 26, 2022 9:20:45 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class UploadSummary {
+
+    public static final int MAX_RECORDED_FAILURES = 1000;
+
+    private long bundleCount;
+    private long entryCount;
+    private long failedBundleCount;
+    private long failedEntryCount;
+    private long totalElapsedMillis;
+    private long retryCount;
+    private final List<Failure> failures = new LinkedList<>();
+
+    synchronized void record(UploadResult result) {
+        bundleCount++;
+        entryCount += result.getEntryCount();
+        totalElapsedMillis += result.getElapsedMillis();
+        retryCount += result.getRetries();
+        if (!result.isSuccess()) {
+            failedBundleCount++;
+        }
+
+        int failedEntries = result.getFailedEntries().size();
+        if (!result.isSuccess() || failedEntries > 0) {
+            failedEntryCount += failedEntries;
+            if (failures.size() < MAX_RECORDED_FAILURES) {
+                failures.add(new Failure(result));
+            }
+        }
+    }
+
+    synchronized UploadSummary copy() {
+        UploadSummary summary = new UploadSummary();
+        summary.bundleCount = bundleCount;
+        summary.entryCount = entryCount;
+        summary.failedBundleCount = failedBundleCount;
+        summary.failedEntryCount = failedEntryCount;
+        summary.totalElapsedMillis = totalElapsedMillis;
+        summary.retryCount = retryCount;
+        summary.failures.addAll(failures);
+
+        return summary;
+    }
+
+    /**
+     * @return true if a bundle failed or, for BATCH bundles, any entry failed
+     */
+    public boolean hasFailures() {
+        return failedBundleCount > 0 || failedEntryCount > 0;
+    }
+
+    public long getBundleCount() {
+        return bundleCount;
+    }
+
+    public long getEntryCount() {
+        return entryCount;
+    }
+
+    public long getFailedBundleCount() {
+        return failedBundleCount;
+    }
+
+    public long getFailedEntryCount() {
+        return failedEntryCount;
+    }
+
+    public long getTotalElapsedMillis() {
+        return totalElapsedMillis;
+    }
+
+    public long getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * @return the first {@link #MAX_RECORDED_FAILURES} failed bundles, in the
+     * order their callbacks ran
+     */
+    public List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bundles: %d (%d failed), entries: %d (%d failed), retries: %d, elapsed: %d ms",
+                bundleCount, failedBundleCount, entryCount, failedEntryCount, retryCount, totalElapsedMillis);
+    }
+
+    /**
+     * A bundle that failed, or a BATCH bundle with failed entries.
+     */
+    public static class Failure {
+
+        private final long sequence;
+        private final List<Integer> failedEntries;
+        private final List<String> errors;
+
+        private Failure(UploadResult result) {
+            this.sequence = result.getSequence();
+            this.failedEntries = Collections.unmodifiableList(result.getFailedEntries());
+            this.errors = Collections.unmodifiableList(failedEntries.stream()
+                    .map(result::getEntryError)
+                    .collect(Collectors.toList()));
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * @return indexes of the failed request entries, in order
+         */
+        public List<Integer> getFailedEntries() {
+            return failedEntries;
+        }
+
+        /**
+         * @return the error of each failed entry, in the order of
+         * {@link #getFailedEntries()}
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 26, 2022 10:21:47 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class AdaptiveThrottleTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testGrowWithinTargetLatency() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            AdaptiveThrottle throttle = new AdaptiveThrottle(1, 10, 50, 1, 4, 10_000);
+
+            UploadSummary summary = upload(client, throttle, 10);
+
+            assertFalse(summary.hasFailures());
+            assertEquals(10 * 5, server.count("Patient"));
+            assertEquals(20, throttle.getBatchSize());
+            assertTrue(throttle.getConcurrency() > 1, throttle.toString());
+            assertTrue(throttle.getConcurrency() <= 4, throttle.toString());
+        }
+    }
+
+    @Test
+    public void testShrinkAboveTargetLatency() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            server.injectLatency(100);
+            AdaptiveThrottle throttle = new AdaptiveThrottle(10, 40, 100, 4, 8, 20);
+
+            upload(client, throttle, 1);
+
+            assertEquals(36, throttle.getBatchSize());
+            assertEquals(3, throttle.getConcurrency());
+
+            // never below the minimums
+            upload(client, throttle, 30);
+            assertEquals(10, throttle.getBatchSize());
+            assertEquals(1, throttle.getConcurrency());
+        }
+    }
+
+    @Test
+    public void testHalveOnThrottling() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            server.injectThrottling(0, 10);
+            server.throttleNextRequests(1);
+            AdaptiveThrottle throttle = new AdaptiveThrottle(1, 40, 100, 4, 8, 10_000);
+
+            UploadSummary summary = upload(client, throttle, 1);
+
+            // halved by the 429, then grown once by the retry that succeeded
+            assertFalse(summary.hasFailures());
+            assertEquals(1, server.getThrottledCount());
+            assertEquals(5, server.count("Patient"));
+            assertEquals(24, throttle.getBatchSize());
+            assertEquals(2, throttle.getConcurrency());
+        }
+    }
+
+    @Test
+    public void testBatchSizeIncrement() {
+        AdaptiveThrottle throttle = new AdaptiveThrottle(10, 20, 100, 15, 1, 4, 10_000);
+        throttle.onSuccess(0);
+        throttle.onSuccess(0);
+
+        assertEquals(50, throttle.getBatchSize());
+    }
+
+    @Test
+    public void testBackOffOncePerWindow() {
+        AdaptiveThrottle throttle = new AdaptiveThrottle(1, 80, 100, 8, 8, 10_000);
+        long sent = System.currentTimeMillis() - 1000;
+
+        // requests sent together and throttled together back off once
+        throttle.onThrottled(sent);
+        throttle.onThrottled(sent);
+        throttle.onSuccess(20_000);
+        assertEquals(40, throttle.getBatchSize());
+        assertEquals(4, throttle.getConcurrency());
+
+        // a request sent after the decrease backs off again
+        throttle.onThrottled(System.currentTimeMillis() + 1000);
+        assertEquals(20, throttle.getBatchSize());
+        assertEquals(2, throttle.getConcurrency());
+    }
+
+    private static UploadSummary upload(IGenericClient client, AdaptiveThrottle throttle, int bundleCount) {
+        try (BundleUploader uploader = new BundleUploader(client, throttle)) {
+            for (int i = 0; i < bundleCount; i++) {
+                uploader.submit(createBundle(i));
+            }
+
+            return uploader.awaitCompletion();
+        }
+    }
+
+    private static Bundle createBundle(int batch) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < 5; i++) {
+            Patient patient = new Patient();
+            patient.addName().setFamily("Batch" + batch).addGiven("Patient" + i);
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+
+        return bundle;
+    }
+
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * Aug 19, 2022 2:38:10 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BatchUploadTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @TempDir
+    public Path directory;
+
+    @Test
+    public void testRetryFailedEntries() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            server.injectEntryFailures(0.1);
+
+            List<UploadResult> results = new ArrayList<>();
+            UploadSummary summary;
+            try (BundleUploader uploader = new BundleUploader(client, 4, Bundle.BundleType.BATCH)) {
+                for (int i = 0; i < 5; i++) {
+                    uploader.submit(createBundle(i), results::add);
+                }
+                summary = uploader.awaitCompletion();
+            }
+
+            // good entries are created once, the bad entry of each batch fails for good
+            assertEquals(45, server.count("Patient"));
+            assertEquals(0, summary.getFailedBundleCount());
+            assertEquals(5, summary.getFailedEntryCount());
+            assertTrue(summary.hasFailures());
+            assertTrue(summary.getRetryCount() > 0);
+            for (UploadResult result : results) {
+                assertTrue(result.isSuccess());
+                assertEquals(Bundle.BundleType.BATCH, result.getRequest().getType());
+                assertEquals(List.of(9), result.getFailedEntries());
+                assertTrue(result.getEntryError(9).startsWith("400 Bad Request: Expected Patient"), result.getEntryError(9));
+            }
+        }
+    }
+
+    @Test
+    public void testWriteDeadLetters() throws IOException {
+        Path tsvFile = Paths.get(directory.toString(), "observations.tsv");
+        Path fixture = Paths.get(BatchUploadTest.class.getResource("/data/brainai/observations.tsv").getFile());
+        List<String> lines = new ArrayList<>(Files.readAllLines(fixture, StandardCharsets.UTF_8));
+        String invalidRow = "obs-invalid\tnot a date \u00e9\u4e2d\t1\tenc1\t8302-2\tBody Height\t160\tcm\tnumeric\tlaboratory";
+        lines.add(invalidRow);
+        Files.write(tsvFile, lines, StandardCharsets.UTF_8);
+
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+
+            // two matches make the conditional create of obs1 fail with 412
+            for (int i = 0; i < 2; i++) {
+                Observation duplicate = new Observation();
+                duplicate.addIdentifier().setSystem(BrainAiResourceClient.OBSERVATION_IDENTIFIER_SYSTEM).setValue("obs1");
+                client.create().resource(duplicate).execute();
+            }
+            server.injectEntryFailures(0.1);
+
+            BrainAiResourceClient brainAiClient = new BrainAiResourceClient(client, new ReferenceRegistry(fhirContext), MetricsRegistry.NONE, UploadMode.CONDITIONAL_CREATE);
+            LoadCheckpoint checkpoint = LoadCheckpoint.of(directory, tsvFile);
+            Path deadLetterFile;
+            try (DeadLetterFile deadLetters = DeadLetterFile.of(directory, tsvFile)) {
+                brainAiClient.addObservations(tsvFile, 10, 2, checkpoint, deadLetters);
+                assertEquals(2, deadLetters.getCount());
+                deadLetterFile = deadLetters.getFile();
+            }
+
+            assertTrue(checkpoint.isComplete());
+            assertEquals(2 + 49, server.count("Observation"));
+
+            List<String> deadLetters = Files.readAllLines(deadLetterFile, StandardCharsets.UTF_8);
+            assertEquals(2, deadLetters.size());
+
+            String[] conflict = deadLetters.get(0).split("\t", 3);
+            assertEquals("2", conflict[0]);
+            assertTrue(conflict[1].startsWith("412 "), conflict[1]);
+            assertEquals(lines.get(1), conflict[2]);
+
+            String[] invalid = deadLetters.get(1).split("\t", 3);
+            assertEquals(Integer.toString(lines.size()), invalid[0]);
+            assertTrue(invalid[1].startsWith("Invalid row"), invalid[1]);
+            assertEquals(invalidRow, invalid[2]);
+        }
+    }
+
+    private static Bundle createBundle(int batch) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < 9; i++) {
+            Patient patient = new Patient();
+            patient.addName().setFamily("Batch" + batch).addGiven("Patient" + i);
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+
+        // never succeeds
+        bundle.addEntry().setResource(new Observation().setStatus(Observation.ObservationStatus.FINAL))
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+
+        return bundle;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Group;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 24, 2022 2:41:12 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BulkExportClientTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testSystemExport() throws IOException, InterruptedException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            server.setExportFileSize(7);
+            server.compressResponses(true);
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            List<String> patientIds = createPatients(client, 20, 3);
+
+            BulkExportClient exportClient = new BulkExportClient(client, new AsyncOperationClient(client, 10, 100), 3);
+            BulkExportManifest manifest = exportClient.awaitCompletion(exportClient.kickOffSystemExport(Collections.emptyList(), null));
+            assertEquals(3, manifest.getOutputs("Patient").size());
+            assertEquals(9, manifest.getOutputs("Encounter").size());
+            assertEquals(80, manifest.getCount());
+
+            Set<String> exportedIds = new HashSet<>();
+            long count = exportClient.read(manifest, Patient.class, patient -> exportedIds.add(patient.getIdElement().getIdPart()));
+            assertEquals(20, count);
+            assertEquals(new HashSet<>(patientIds), exportedIds);
+
+            int[] encounters = new int[1];
+            assertEquals(80, exportClient.read(manifest, resource -> {
+                if (resource instanceof Encounter) {
+                    encounters[0]++;
+                }
+            }));
+            assertEquals(60, encounters[0]);
+        }
+    }
+
+    @Test
+    public void testGroupExportWithToken() throws IOException, InterruptedException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            server.setExportFileSize(2);
+            server.requireTokens(60000);
+
+            ClientCredentialsTokenSource tokenSource = new ClientCredentialsTokenSource(server.getTokenUrl(), "client", "secret", server.getBaseUrl() + "/.default");
+            try (RefreshingTokenInterceptor interceptor = new RefreshingTokenInterceptor(tokenSource, 1000, 100, new InMemoryMetricsRegistry())) {
+                IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+                client.registerInterceptor(interceptor);
+                List<String> patientIds = createPatients(client, 5, 2);
+
+                Group group = new Group();
+                group.setType(Group.GroupType.PERSON).setActual(true);
+                patientIds.subList(0, 2).forEach(id -> group.addMember().setEntity(new Reference("Patient/" + id)));
+                String groupId = client.create().resource(group).execute().getId().getIdPart();
+
+                BulkExportClient exportClient = new BulkExportClient(client, new AsyncOperationClient(client, 10, 100), 2);
+                BulkExportManifest manifest = exportClient.awaitCompletion(exportClient.kickOffGroupExport(groupId, List.of("Encounter"), null));
+                assertTrue(manifest.isRequiresAccessToken());
+                assertTrue(manifest.getOutputs("Patient").isEmpty());
+                assertEquals(2, manifest.getOutputs("Encounter").size());
+
+                Set<String> subjects = new HashSet<>();
+                assertEquals(4, exportClient.read(manifest, Encounter.class, encounter -> subjects.add(encounter.getSubject().getReference())));
+                assertEquals(Set.of("Patient/" + patientIds.get(0), "Patient/" + patientIds.get(1)), subjects);
+            }
+        }
+    }
+
+    private List<String> createPatients(IGenericClient client, int patients, int encountersPerPatient) {
+        List<String> patientIds = new ArrayList<>();
+        for (int i = 0; i < patients; i++) {
+            Patient patient = new Patient();
+            patient.addIdentifier().setSystem("urn:mrn").setValue("mrn-" + i);
+            String patientId = client.create().resource(patient).execute().getId().getIdPart();
+            patientIds.add(patientId);
+
+            for (int j = 0; j < encountersPerPatient; j++) {
+                Encounter encounter = new Encounter();
+                encounter.setStatus(Encounter.EncounterStatus.FINISHED);
+                encounter.setSubject(new Reference("Patient/" + patientId));
+                client.create().resource(encounter).execute();
+            }
+        }
+
+        return patientIds;
+    }
+
+}
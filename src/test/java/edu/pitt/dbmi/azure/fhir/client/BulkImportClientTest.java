@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Resource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * Aug 13, 2022 2:18:46 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BulkImportClientTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testImportSyntheaBundle() throws IOException, InterruptedException {
+        Path file = Paths.get(BulkImportClientTest.class.getResource("/data/synthea/Aaron697_Brekke496_2fa15bc7-8866-461a-9000-f739e425860a.json").getFile());
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+
+            List<NdjsonFile> files;
+            long count;
+            try (NdjsonWriter writer = new NdjsonWriter(fhirContext, tempDir, 100)) {
+                count = (new SyntheaResourceClient(client)).writeNdjson(file, writer);
+                files = writer.finish();
+            }
+
+            BulkImportClient importClient = new BulkImportClient(client, BulkImportClient.INCREMENTAL_LOAD, new AsyncOperationClient(client, 10, 100));
+            BulkImportResult result = importClient.importFiles(files, ndjsonFile -> ndjsonFile.getPath().toUri());
+
+            assertEquals(count, result.getImportedCount());
+            assertEquals(0, result.getErrorCount());
+            assertEquals(files.size(), result.getFileOutcomes().size());
+            for (String resourceType : files.stream().map(NdjsonFile::getResourceType).collect(Collectors.toSet())) {
+                long written = files.stream()
+                        .filter(ndjsonFile -> ndjsonFile.getResourceType().equals(resourceType))
+                        .mapToLong(NdjsonFile::getCount)
+                        .sum();
+                assertEquals(written, server.count(resourceType), resourceType);
+            }
+
+            Set<String> patientIds = server.getResources("Patient").stream()
+                    .map(resource -> resource.getIdElement().getIdPart())
+                    .collect(Collectors.toSet());
+            List<Resource> encounters = server.getResources("Encounter");
+            assertTrue(encounters.size() > 0);
+            for (Resource resource : encounters) {
+                String subject = ((Encounter) resource).getSubject().getReference();
+                assertTrue(patientIds.contains(subject.substring(subject.indexOf('/') + 1)), subject);
+            }
+        }
+    }
+
+}
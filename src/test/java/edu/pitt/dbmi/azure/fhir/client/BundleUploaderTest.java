@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 26, 2022 2:05:13 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class BundleUploaderTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testLimitBundlesInFlight() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            InFlightCounter counter = new InFlightCounter();
+            client.registerInterceptor(counter);
+            server.injectLatency(50);
+
+            UploadSummary summary;
+            try (BundleUploader uploader = new BundleUploader(client, 3)) {
+                for (int i = 0; i < 12; i++) {
+                    uploader.submit(createBundle(i, 5));
+                }
+                summary = uploader.awaitCompletion();
+            }
+
+            assertFalse(summary.hasFailures());
+            assertEquals(12, summary.getBundleCount());
+            assertEquals(12 * 5, server.count("Patient"));
+            assertEquals(3, counter.maxInFlight.get());
+        }
+    }
+
+    @Test
+    public void testCallbacksInSubmissionOrder() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext, 8)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+
+            List<Long> sequences = Collections.synchronizedList(new ArrayList<>());
+            List<String> families = Collections.synchronizedList(new ArrayList<>());
+            try (BundleUploader uploader = new BundleUploader(client, 4)) {
+                // earlier bundles are bigger, so they tend to complete later
+                for (int i = 0; i < 16; i++) {
+                    uploader.submit(createBundle(i, 5 * (16 - i)), result -> {
+                        sequences.add(result.getSequence());
+                        families.add(((Patient) result.getRequest().getEntryFirstRep().getResource()).getNameFirstRep().getFamily());
+                    });
+                }
+                uploader.awaitCompletion();
+            }
+
+            assertEquals(LongStream.range(0, 16).boxed().collect(Collectors.toList()), sequences);
+            for (int i = 0; i < 16; i++) {
+                assertEquals("Batch" + i, families.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testAwaitCompletionWhileSubmitBlocks() throws Exception {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            server.injectLatency(300);
+
+            try (BundleUploader uploader = new BundleUploader(client, 1)) {
+                uploader.submit(createBundle(0, 5));
+
+                // blocks until the first bundle completes
+                Thread submitter = new Thread(() -> uploader.submit(createBundle(1, 5)));
+                submitter.start();
+                Thread.sleep(50);
+                assertTrue(submitter.isAlive());
+
+                // only waits for the bundle already submitted
+                UploadSummary summary = uploader.awaitCompletion();
+                assertEquals(1, summary.getBundleCount());
+
+                submitter.join();
+                assertEquals(2, uploader.awaitCompletion().getBundleCount());
+            }
+        }
+    }
+
+    @Test
+    public void testSubmitFromCallbackIsRejected() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+
+            AtomicReference<RuntimeException> rejected = new AtomicReference<>();
+            try (BundleUploader uploader = new BundleUploader(client, 1)) {
+                uploader.submit(createBundle(0, 5), result -> {
+                    try {
+                        uploader.submit(createBundle(1, 5));
+                    } catch (RuntimeException exception) {
+                        rejected.set(exception);
+                    }
+                });
+                assertEquals(1, uploader.awaitCompletion().getBundleCount());
+
+                // the slot was released, so submitting from here still works
+                uploader.submit(createBundle(2, 5)).join();
+            }
+
+            assertTrue(rejected.get() instanceof IllegalStateException);
+            assertEquals(10, server.count("Patient"));
+        }
+    }
+
+    @Test
+    public void testSummaryKeepsFailedEntries() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            server.injectFailures(1);
+
+            UploadSummary summary;
+            try (BundleUploader uploader = new BundleUploader(client, 2)) {
+                for (int i = 0; i < 3; i++) {
+                    uploader.submit(createBundle(i, 5));
+                }
+                summary = uploader.awaitCompletion();
+            }
+
+            assertEquals(3, summary.getFailedBundleCount());
+            assertEquals(15, summary.getFailedEntryCount());
+            assertEquals(3, summary.getFailures().size());
+            for (int i = 0; i < 3; i++) {
+                UploadSummary.Failure failure = summary.getFailures().get(i);
+                assertEquals(i, failure.getSequence());
+                assertEquals(List.of(0, 1, 2, 3, 4), failure.getFailedEntries());
+                assertEquals(5, failure.getErrors().size());
+                assertNotNull(failure.getErrors().get(0));
+            }
+        }
+    }
+
+    private static Bundle createBundle(int batch, int size) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < size; i++) {
+            Patient patient = new Patient();
+            patient.addName().setFamily("Batch" + batch).addGiven("Patient" + i);
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+
+        return bundle;
+    }
+
+    /**
+     * Counts the requests in flight on the client.
+     */
+    private static class InFlightCounter implements IClientInterceptor {
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+            inFlight.decrementAndGet();
+        }
+
+    }
+
+}
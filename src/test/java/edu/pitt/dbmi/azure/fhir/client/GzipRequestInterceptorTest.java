@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 11, 2022 11:02:37 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class GzipRequestInterceptorTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testBundlesAreCompressed() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            server.compressResponses(true);
+
+            IGenericClient plainClient = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            Bundle plainResponse = plainClient.transaction().withBundle(createBundle(500)).execute();
+            long plainBytes = server.getRequestBytes();
+
+            IGenericClient gzipClient = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            GzipRequestInterceptor.register(gzipClient);
+            GzipRequestInterceptor.register(gzipClient);
+            Bundle gzipResponse = gzipClient.transaction().withBundle(createBundle(500)).execute();
+            long gzipBytes = server.getRequestBytes() - plainBytes;
+
+            assertEquals(500, plainResponse.getEntry().size());
+            assertEquals(500, gzipResponse.getEntry().size());
+            assertEquals(1000, server.count("Patient"));
+            assertTrue(gzipBytes * 5 < plainBytes, String.format("%d compressed bytes, %d uncompressed", gzipBytes, plainBytes));
+        }
+    }
+
+    private static Bundle createBundle(int size) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < size; i++) {
+            Patient patient = new Patient();
+            patient.addIdentifier().setSystem("urn:test:patient").setValue(Integer.toString(i));
+            patient.addName().setFamily("Family" + i).addGiven("Given" + i);
+            patient.addAddress().setCity("Pittsburgh").setState("PA").setPostalCode("15260");
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+
+        return bundle;
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 26, 2022 3:40:18 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class IdentifierResolverTest {
+
+    private static final String SYSTEM = "urn:test:patient";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testResolveInBatches() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            addPatients(client, 250, 1);
+
+            RequestRecorder recorder = new RequestRecorder();
+            client.registerInterceptor(recorder);
+
+            List<String> values = IntStream.range(0, 250)
+                    .mapToObj(i -> "p" + i)
+                    .collect(Collectors.toList());
+            values.add("p0");
+            values.add(null);
+            values.add("missing");
+            Map<String, Patient> patients = new IdentifierResolver(client).resolve(Patient.class, SYSTEM, values);
+
+            assertEquals(250, patients.size());
+            assertFalse(patients.containsKey("missing"));
+            assertEquals("p42", patients.get("p42").getIdentifierFirstRep().getValue());
+
+            // 251 distinct values, searched 100 at a time in form bodies
+            assertEquals(3, recorder.uris.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals("POST", recorder.verbs.get(i));
+                assertTrue(recorder.uris.get(i).endsWith("/Patient/_search"), recorder.uris.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testFollowNextLinks() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+
+            // three patients per identifier, so a batch of 4 values has 12 matches
+            addPatients(client, 4, 3);
+
+            RequestRecorder recorder = new RequestRecorder();
+            client.registerInterceptor(recorder);
+
+            Map<String, Patient> patients = new IdentifierResolver(client, 4).resolve(Patient.class, SYSTEM, Arrays.asList("p0", "p1", "p2", "p3"));
+
+            assertEquals(4, patients.size());
+            patients.forEach((value, patient) -> assertEquals(value, patient.getIdentifierFirstRep().getValue()));
+
+            // the first page and two next pages
+            assertEquals(3, recorder.uris.size());
+            assertEquals(List.of("POST", "GET", "GET"), recorder.verbs);
+            assertTrue(recorder.uris.get(1).contains("_count=4"), recorder.uris.get(1));
+        }
+    }
+
+    private static void addPatients(IGenericClient client, int count, int copies) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int copy = 0; copy < copies; copy++) {
+            for (int i = 0; i < count; i++) {
+                Patient patient = new Patient();
+                patient.addIdentifier().setSystem(SYSTEM).setValue("p" + i);
+                bundle.addEntry().setResource(patient)
+                        .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+            }
+        }
+        client.transaction().withBundle(bundle).execute();
+    }
+
+    /**
+     * Records the methods and URIs of the requests sent by the client.
+     */
+    private static class RequestRecorder implements IClientInterceptor {
+
+        private final List<String> verbs = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> uris = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            verbs.add(request.getHttpVerbName());
+            uris.add(request.getUri());
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+        }
+
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 10, 2022 2:26:41 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class InMemoryMetricsRegistryTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testClientOperationsAreRecorded() throws IOException, JMException {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext);
+                InMemoryMetricsRegistry metrics = new InMemoryMetricsRegistry(mbeanServer, "test")) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            PatientResourceClient patientClient = new PatientResourceClient(client, metrics);
+
+            server.throttleNextRequests(1);
+            server.injectThrottling(0, 10);
+            try (BundleUploader uploader = new BundleUploader(client, 2)) {
+                for (int i = 0; i < 3; i++) {
+                    List<Resource> patients = new ArrayList<>();
+                    for (int j = 0; j < 20; j++) {
+                        patients.add(new Patient().addIdentifier(new Identifier().setSystem("urn:test").setValue(i + "-" + j)));
+                    }
+                    patientClient.addResources(patients, "Patient", uploader);
+                }
+                uploader.awaitCompletion();
+            }
+
+            try (Stream<Patient> patients = patientClient.streamPatients(25, 1)) {
+                assertEquals(60, patients.count());
+            }
+            patientClient.deleteAllPatients();
+
+            OperationMetrics transaction = metrics.getOperationMetrics(MetricsRegistry.TRANSACTION);
+            assertEquals(3, transaction.getCount());
+            assertEquals(60, transaction.getEntryCount());
+            assertEquals(1, transaction.getRetryCount());
+
+            OperationMetrics bundle = metrics.getOperationMetrics(MetricsRegistry.BUNDLE);
+            assertTrue(bundle.getRequestBytes() > 0);
+            assertEquals(Long.valueOf(1), bundle.getErrorCounts().get("429"));
+
+            assertEquals(2, metrics.getOperationMetrics(MetricsRegistry.SEARCH).getCount());
+            assertTrue(metrics.getOperationMetrics(MetricsRegistry.PAGE).getCount() > 0);
+            assertEquals(60, metrics.getOperationMetrics(MetricsRegistry.DELETE).getEntryCount());
+
+            ObjectName objectName = new ObjectName("edu.pitt.dbmi.azure.fhir.client:type=ClientMetrics,name=\"test\",operation=\"transaction\"");
+            assertEquals(60L, mbeanServer.getAttribute(objectName, "EntryCount"));
+        }
+
+        assertFalse(mbeanServer.queryNames(new ObjectName("edu.pitt.dbmi.azure.fhir.client:name=\"test\",*"), null).iterator().hasNext());
+    }
+
+}
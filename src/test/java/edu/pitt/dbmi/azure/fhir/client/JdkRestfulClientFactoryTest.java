@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 20, 2022 1:46:18 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class JdkRestfulClientFactoryTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testUploadAndSearch() throws IOException {
+        fhirContext.setRestfulClientFactory(new JdkRestfulClientFactory(fhirContext));
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            server.compressResponses(true);
+
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            GzipRequestInterceptor.register(client);
+            Bundle response = client.transaction().withBundle(createBundle(200)).execute();
+
+            assertEquals(200, response.getEntry().size());
+            assertEquals(200, server.count("Patient"));
+            assertTrue(server.getRequestBytes() < 10_000, server.getRequestBytes() + " request bytes");
+
+            Bundle searchResult = client.search()
+                    .forResource(Patient.class)
+                    .where(Patient.IDENTIFIER.exactly().systemAndCode("urn:test:patient", "42"))
+                    .returnBundle(Bundle.class)
+                    .execute();
+            assertEquals(1, searchResult.getEntry().size());
+
+            IdType id = searchResult.getEntryFirstRep().getResource().getIdElement();
+            Patient patient = client.read().resource(Patient.class).withId(id.getIdPart()).execute();
+            assertEquals("Family42", patient.getNameFirstRep().getFamily());
+
+            assertThrows(ResourceNotFoundException.class, () -> client.read().resource(Patient.class).withId("missing").execute());
+        }
+    }
+
+    @Test
+    public void testPoolMaxPerRoute() throws Exception {
+        JdkRestfulClientFactory factory = new JdkRestfulClientFactory(fhirContext);
+        factory.setPoolMaxPerRoute(2);
+        fhirContext.setRestfulClientFactory(factory);
+
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext, 8)) {
+            server.injectLatency(100);
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+
+            long start = System.nanoTime();
+            List<Future<Bundle>> searches = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                searches.add(executor.submit(() -> client.search().forResource(Patient.class).returnBundle(Bundle.class).execute()));
+            }
+            for (Future<Bundle> search : searches) {
+                search.get();
+            }
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // six requests, two at a time
+            assertTrue(elapsedMillis >= 300, elapsedMillis + " ms");
+
+            // a request waiting longer than the connection request timeout fails
+            factory.setConnectionRequestTimeout(50);
+            server.injectLatency(500);
+            searches.clear();
+            for (int i = 0; i < 3; i++) {
+                searches.add(executor.submit(() -> client.search().forResource(Patient.class).returnBundle(Bundle.class).execute()));
+            }
+            int timedOut = 0;
+            for (Future<Bundle> search : searches) {
+                try {
+                    search.get();
+                } catch (ExecutionException exception) {
+                    assertTrue(exception.getCause() instanceof FhirClientConnectionException, exception.getCause().toString());
+                    timedOut++;
+                }
+            }
+            assertEquals(1, timedOut);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Bundle createBundle(int size) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < size; i++) {
+            Patient patient = new Patient();
+            patient.addIdentifier().setSystem("urn:test:patient").setValue(Integer.toString(i));
+            patient.addName().setFamily("Family" + i).addGiven("Given" + i);
+            patient.addAddress().setCity("Pittsburgh").setState("PA").setPostalCode("15260");
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+
+        return bundle;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * Aug 14, 2022 2:26:50 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class LoadCheckpointTest {
+
+    @TempDir
+    public Path directory;
+
+    @Test
+    public void testResumeFromCheckpoint() throws IOException {
+        Path tsvFile = Paths.get(directory.toString(), "observations.tsv");
+        Files.write(tsvFile, "id\tvalue\r\n1\t\u00e9\n2\t\u00fc\r\n3\t\u03b3\n4\t\u4e2d".getBytes(StandardCharsets.UTF_8));
+
+        LoadCheckpoint checkpoint = LoadCheckpoint.of(directory, tsvFile);
+        assertEquals(0, checkpoint.getOffset());
+        assertFalse(checkpoint.isComplete());
+
+        try (OffsetLineReader reader = new OffsetLineReader(tsvFile, StandardCharsets.UTF_8)) {
+            assertEquals("id\tvalue", reader.readLine());
+            assertEquals("1\t\u00e9", reader.readLine());
+            assertEquals("2\t\u00fc", reader.readLine());
+            checkpoint.commit(reader.getOffset(), reader.getLineNumber());
+            assertEquals("3\t\u03b3", reader.readLine());
+        }
+
+        // restart
+        checkpoint = LoadCheckpoint.of(directory, tsvFile);
+        assertEquals(3, checkpoint.getLineNumber());
+        List<String> lines = new ArrayList<>();
+        try (OffsetLineReader reader = new OffsetLineReader(tsvFile, StandardCharsets.UTF_8, checkpoint.getOffset(), checkpoint.getLineNumber())) {
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lines.add(line);
+            }
+            assertNull(reader.readLine());
+            assertEquals(5, reader.getLineNumber());
+
+            checkpoint.commit(reader.getOffset(), reader.getLineNumber());
+        }
+        assertEquals(List.of("3\t\u03b3", "4\t\u4e2d"), lines);
+        assertTrue(checkpoint.isComplete());
+        assertTrue(LoadCheckpoint.of(directory, tsvFile).isComplete());
+        assertFalse(Files.exists(Paths.get(checkpoint.getFile().toString() + ".tmp")));
+    }
+
+    @Test
+    public void testResumeRequiresConditionalUploads() throws IOException {
+        Path tsvFile = Paths.get(directory.toString(), "patients.tsv");
+        Files.write(tsvFile, "id\n1\n2\n".getBytes(StandardCharsets.UTF_8));
+
+        FhirContext fhirContext = FhirContext.forR4();
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            BrainAiResourceClient brainAiClient = new BrainAiResourceClient(client, new ReferenceRegistry(fhirContext), MetricsRegistry.NONE, UploadMode.CREATE);
+
+            LoadCheckpoint checkpoint = LoadCheckpoint.of(directory, tsvFile);
+            checkpoint.commit(5, 2);
+            assertThrows(IllegalStateException.class, () -> brainAiClient.addPatients(tsvFile, 10, 2, checkpoint));
+            assertEquals(0, server.getRequestCount());
+        }
+    }
+
+    @Test
+    public void testChangedSourceIsRejected() throws IOException {
+        Path tsvFile = Paths.get(directory.toString(), "patients.tsv");
+        Files.write(tsvFile, "id\n1\n2\n".getBytes(StandardCharsets.UTF_8));
+
+        LoadCheckpoint.of(directory, tsvFile).commit(5, 2);
+        Files.write(tsvFile, "3\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+        assertThrows(IOException.class, () -> LoadCheckpoint.of(directory, tsvFile));
+    }
+
+}
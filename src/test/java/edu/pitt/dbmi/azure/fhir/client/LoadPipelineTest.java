@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * Aug 16, 2022 3:47:12 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class LoadPipelineTest {
+
+    private static final String SYSTEM = "urn:test:id";
+    private static final int NUMBER_OF_PATIENTS = 200;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @TempDir
+    public Path directory;
+
+    @Test
+    public void testLoadOverlappingFiles() throws IOException {
+        // rows are in reverse dependency order, so most resources have to wait
+        List<String> patients = new ArrayList<>();
+        List<String> encounters = new ArrayList<>();
+        List<String> observations = new ArrayList<>();
+        for (int i = NUMBER_OF_PATIENTS - 1; i >= 0; i--) {
+            patients.add("p" + i);
+            for (int j = 0; j < 2; j++) {
+                encounters.add(String.format("e%d-%d\tp%d", i, j, i));
+                for (int k = 0; k < 5; k++) {
+                    observations.add(String.format("o%d-%d-%d\tp%d\te%d-%d", i, j, k, i, i, j));
+                }
+            }
+        }
+        encounters.add("e-existing\tp-existing");
+        observations.add("o-unknown\tp0\te-unknown");
+
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            Patient existing = new Patient();
+            existing.addIdentifier().setSystem(SYSTEM).setValue("p-existing");
+            client.create().resource(existing).execute();
+
+            ReferenceRegistry referenceRegistry = new ReferenceRegistry(fhirContext);
+            IdentifierResolver identifierResolver = new IdentifierResolver(client);
+            ResourceClient resourceClient = new ResourceClient(client);
+            LoadPipeline pipeline = new LoadPipeline(referenceRegistry,
+                    (resourceType, system, values) -> referenceRegistry.register(system, identifierResolver
+                    .resolve(fhirContext.getResourceDefinition(resourceType).getImplementingClass().asSubclass(Resource.class), system, values)),
+                    resourceClient::addResources, 20, 50)
+                    .add("Observation", SYSTEM, writeTsv("observations.tsv", observations),
+                            fields -> {
+                                Observation observation = new Observation();
+                                observation.addIdentifier().setSystem(SYSTEM).setValue(fields[0]);
+                                observation.setSubject(new Reference(fields[1]));
+                                observation.setEncounter(new Reference(fields[2]));
+
+                                return observation;
+                            },
+                            resource -> List.of(
+                                    new LoadPipeline.Dependency("Patient", SYSTEM, ((Observation) resource).getSubject().getReference()),
+                                    new LoadPipeline.Dependency("Encounter", SYSTEM, ((Observation) resource).getEncounter().getReference())),
+                            resource -> {
+                                Observation observation = (Observation) resource;
+                                observation.setSubject(referenceRegistry.get("Patient", SYSTEM, observation.getSubject().getReference()));
+                                observation.setEncounter(referenceRegistry.get("Encounter", SYSTEM, observation.getEncounter().getReference()));
+                            })
+                    .add("Encounter", SYSTEM, writeTsv("encounters.tsv", encounters),
+                            fields -> {
+                                Encounter encounter = new Encounter();
+                                encounter.addIdentifier().setSystem(SYSTEM).setValue(fields[0]);
+                                encounter.setSubject(new Reference(fields[1]));
+
+                                return encounter;
+                            },
+                            resource -> List.of(new LoadPipeline.Dependency("Patient", SYSTEM, ((Encounter) resource).getSubject().getReference())),
+                            resource -> {
+                                Encounter encounter = (Encounter) resource;
+                                encounter.setSubject(referenceRegistry.get("Patient", SYSTEM, encounter.getSubject().getReference()));
+                            })
+                    .add("Patient", SYSTEM, writeTsv("patients.tsv", patients),
+                            fields -> {
+                                Patient patient = new Patient();
+                                patient.addIdentifier().setSystem(SYSTEM).setValue(fields[0]);
+
+                                return patient;
+                            },
+                            resource -> Collections.emptyList(),
+                            resource -> {
+                            });
+
+            UploadSummary summary;
+            try (BundleUploader uploader = new BundleUploader(client, 4)) {
+                summary = pipeline.run(uploader);
+            }
+
+            assertEquals(0, summary.getFailedBundleCount());
+            assertEquals(1, pipeline.getUnresolvedCount());
+            assertEquals(NUMBER_OF_PATIENTS + 1, server.count("Patient"));
+            assertEquals(NUMBER_OF_PATIENTS * 2 + 1, server.count("Encounter"));
+            assertEquals(NUMBER_OF_PATIENTS * 10, server.count("Observation"));
+
+            Map<String, Resource> encountersById = server.getResources("Encounter").stream()
+                    .collect(Collectors.toMap(resource -> "Encounter/" + resource.getIdElement().getIdPart(), Function.identity()));
+            Map<String, String> patientIdentifiers = server.getResources("Patient").stream()
+                    .collect(Collectors.toMap(resource -> "Patient/" + resource.getIdElement().getIdPart(), resource -> ((Patient) resource).getIdentifierFirstRep().getValue()));
+            for (Resource resource : server.getResources("Observation")) {
+                Observation observation = (Observation) resource;
+                Encounter encounter = (Encounter) encountersById.get(observation.getEncounter().getReference());
+                String identifier = observation.getIdentifierFirstRep().getValue();
+                assertEquals(identifier.substring(1, identifier.lastIndexOf('-')), encounter.getIdentifierFirstRep().getValue().substring(1));
+                assertEquals(encounter.getSubject().getReference(), observation.getSubject().getReference());
+                assertEquals(identifier.substring(1, identifier.indexOf('-')), patientIdentifiers.get(observation.getSubject().getReference()).substring(1));
+            }
+        }
+    }
+
+    private Path writeTsv(String fileName, List<String> rows) throws IOException {
+        List<String> lines = new ArrayList<>();
+        lines.add("header");
+        lines.addAll(rows);
+
+        return Files.write(Paths.get(directory.toString(), fileName), lines);
+    }
+
+    private static class ResourceClient extends AbstractResourceClient {
+
+        ResourceClient(IGenericClient client) {
+            super(client);
+        }
+
+    }
+
+}
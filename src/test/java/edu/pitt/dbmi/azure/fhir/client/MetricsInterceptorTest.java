@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 27, 2022 11:02:54 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class MetricsInterceptorTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testCountCompressedRequests() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            ByteCounter counter = new ByteCounter();
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            GzipRequestInterceptor.register(client);
+            client.registerInterceptor(new MetricsInterceptor(counter, server.getBaseUrl()));
+
+            uploadAndSearch(client);
+
+            // the gzip entity is chunked, so it has no content length
+            assertTrue(counter.requestBytes.get() > 0);
+            assertEquals(server.getRequestBytes(), counter.requestBytes.get());
+            assertEquals(server.getResponseBytes(), counter.responseBytes.get());
+        }
+    }
+
+    @Test
+    public void testCountJdkRequests() throws IOException {
+        fhirContext.setRestfulClientFactory(new JdkRestfulClientFactory(fhirContext));
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            server.compressResponses(true);
+
+            ByteCounter counter = new ByteCounter();
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            client.registerInterceptor(new MetricsInterceptor(counter, server.getBaseUrl()));
+            GzipRequestInterceptor.register(client);
+
+            uploadAndSearch(client);
+
+            // compressed on both sides, whatever the interceptor order
+            assertTrue(counter.requestBytes.get() > 0);
+            assertEquals(server.getRequestBytes(), counter.requestBytes.get());
+            assertEquals(server.getResponseBytes(), counter.responseBytes.get());
+        }
+    }
+
+    private static void uploadAndSearch(IGenericClient client) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < 100; i++) {
+            Patient patient = new Patient();
+            patient.addIdentifier().setSystem("urn:test:patient").setValue(Integer.toString(i));
+            patient.addName().setFamily("Family" + i);
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+        client.transaction().withBundle(bundle).execute();
+
+        client.search()
+                .forResource(Patient.class)
+                .count(50)
+                .returnBundle(Bundle.class)
+                .execute();
+    }
+
+    /**
+     * Adds up the request and response bytes of all the operations.
+     */
+    private static class ByteCounter implements MetricsRegistry {
+
+        private final AtomicLong requestBytes = new AtomicLong();
+        private final AtomicLong responseBytes = new AtomicLong();
+
+        @Override
+        public void recordRequestBytes(String operation, long bytes) {
+            requestBytes.addAndGet(bytes);
+        }
+
+        @Override
+        public void recordResponseBytes(String operation, long bytes) {
+            responseBytes.addAndGet(bytes);
+        }
+
+    }
+
+}
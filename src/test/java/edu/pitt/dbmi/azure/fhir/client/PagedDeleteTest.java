@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 26, 2022 4:48:05 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class PagedDeleteTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testDeleteInBatches() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            addPatients(client, 250);
+            AbstractResourceClient resourceClient = new AbstractResourceClient(client) {
+            };
+
+            UploadSummary summary = resourceClient.deleteResources(resourceClient.searchResourceIds(Patient.class), 40, 2);
+
+            assertFalse(summary.hasFailures());
+            assertEquals(7, summary.getBundleCount());
+            assertEquals(250, summary.getEntryCount());
+            assertEquals(0, server.count("Patient"));
+        }
+    }
+
+    @Test
+    public void testSplitBatchesBySize() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            addPatients(client, 30);
+            AbstractResourceClient resourceClient = new AbstractResourceClient(client) {
+            };
+
+            // room for a single entry per bundle
+            UploadSummary summary = resourceClient.deleteResources(resourceClient.searchResourceIds(Patient.class), 40, 1, 2);
+
+            assertFalse(summary.hasFailures());
+            assertEquals(30, summary.getBundleCount());
+            assertEquals(0, server.count("Patient"));
+        }
+    }
+
+    @Test
+    public void testDeleteWhileFetchingPages() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            addPatients(client, 250);
+            server.injectLatency(20);
+
+            RequestRecorder recorder = new RequestRecorder();
+            client.registerInterceptor(recorder);
+            AbstractResourceClient resourceClient = new AbstractResourceClient(client) {
+            };
+
+            UploadSummary summary = resourceClient.deleteResources(resourceClient.searchResourceIds(Patient.class), 10, 1);
+
+            assertFalse(summary.hasFailures());
+            assertEquals(0, server.count("Patient"));
+
+            // the first delete bundle goes out before the last search page is fetched
+            int firstDelete = recorder.requests.indexOf("POST");
+            int lastPage = recorder.requests.lastIndexOf("GET");
+            assertTrue(firstDelete > 0 && firstDelete < lastPage, recorder.requests.toString());
+        }
+    }
+
+    private static void addPatients(IGenericClient client, int count) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.addName().setFamily("Delete").addGiven("Patient" + i);
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+        client.transaction().withBundle(bundle).execute();
+    }
+
+    /**
+     * Records the methods of the requests sent by the client.
+     */
+    private static class RequestRecorder implements IClientInterceptor {
+
+        private final List<String> requests = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            requests.add(request.getHttpVerbName());
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+        }
+
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * Aug 17, 2022 11:20:04 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ParallelTsvReaderTest {
+
+    private static final Pattern TAB_DELIM = Pattern.compile("\t");
+
+    private static final LoadPipeline.RowMapper MAPPER = fields -> {
+        if (fields.length > 0 && fields[0].equals("bad")) {
+            throw new ParseException("Bad row.", 0);
+        }
+        if (fields.length > 0 && fields[0].equals("short")) {
+            // a missing column fails with a runtime exception
+            return new Patient().setGender(Enumerations.AdministrativeGender.fromCode(fields[1]));
+        }
+
+        Patient patient = new Patient();
+        patient.setId(String.join("|", fields));
+
+        return patient;
+    };
+
+    @TempDir
+    public Path directory;
+
+    private final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @AfterEach
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void testSplit() {
+        String[] lines = {"", "a", "a\tb", "a\t\tb", "a\tb\t\t", "\t", "\t\t", "\ta", "a\t\u00e9\t\u4e2d"};
+        for (String line : lines) {
+            assertArrayEquals(TAB_DELIM.split(line), ParallelTsvReader.split(line), line);
+        }
+    }
+
+    @Test
+    public void testOrderedRead() throws IOException {
+        StringBuilder tsv = new StringBuilder("id\tname\r\n");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String name = (i % 3 == 0) ? "\u00e9\u03b3\u4e2d" : "n" + i;
+            tsv.append(i).append('\t').append(name).append((i % 2 == 0) ? "\r\n" : "\n");
+            expected.add(i + "|" + name);
+            if (i == 500) {
+                tsv.append("bad\trow\n");
+            }
+            if (i == 700) {
+                tsv.append("short\n");
+            }
+        }
+        tsv.append("1000\tlast");
+        expected.add("1000|last");
+
+        Path tsvFile = Paths.get(directory.toString(), "patients.tsv");
+        Files.write(tsvFile, tsv.toString().getBytes(StandardCharsets.UTF_8));
+
+        List<List<Resource>> batches = new ArrayList<>();
+        long count = new ParallelTsvReader(pool, 97, true).read(tsvFile, StandardCharsets.UTF_8, 64, MAPPER, batches::add);
+
+        assertEquals(expected.size(), count);
+        assertEquals(expected, getIds(batches));
+        assertTrue(batches.stream().limit(batches.size() - 1).allMatch(batch -> batch.size() == 64));
+    }
+
+    @Test
+    public void testUnorderedRead() throws IOException {
+        StringBuilder tsv = new StringBuilder("id\n");
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tsv.append(i).append('\n');
+            expected.add(String.valueOf(i));
+        }
+
+        Path tsvFile = Paths.get(directory.toString(), "patients.tsv");
+        Files.write(tsvFile, tsv.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        List<List<Resource>> batches = new ArrayList<>();
+        long count = new ParallelTsvReader(pool, 50, false).read(tsvFile, StandardCharsets.ISO_8859_1, 100, MAPPER, batches::add);
+
+        assertEquals(expected.size(), count);
+        assertEquals(10, batches.size());
+
+        List<String> ids = getIds(batches);
+        Collections.sort(ids);
+        Collections.sort(expected);
+        assertEquals(expected, ids);
+    }
+
+    @Test
+    public void testConsumerOnCallingThread() throws IOException {
+        StringBuilder tsv = new StringBuilder("id\n");
+        for (int i = 0; i < 500; i++) {
+            tsv.append(i).append('\n');
+        }
+
+        Path tsvFile = Paths.get(directory.toString(), "patients.tsv");
+        Files.write(tsvFile, tsv.toString().getBytes(StandardCharsets.UTF_8));
+
+        Thread caller = Thread.currentThread();
+        List<Thread> consumerThreads = new ArrayList<>();
+        long count = new ParallelTsvReader(2, 40, true).read(tsvFile, StandardCharsets.UTF_8, 50, MAPPER, batch -> {
+            consumerThreads.add(Thread.currentThread());
+            try {
+                // a slow consumer, like a full uploader, holds back the reader only
+                Thread.sleep(5);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertEquals(500, count);
+        assertEquals(10, consumerThreads.size());
+        assertTrue(consumerThreads.stream().allMatch(thread -> thread == caller));
+    }
+
+    private static List<String> getIds(List<List<Resource>> batches) {
+        return batches.stream()
+                .flatMap(List::stream)
+                .map(resource -> resource.getIdElement().getIdPart())
+                .collect(Collectors.toList());
+    }
+
+}
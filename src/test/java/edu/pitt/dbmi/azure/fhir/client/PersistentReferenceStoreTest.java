@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import org.hl7.fhir.r4.model.Reference;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * Aug 2, 2022 4:31:08 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class PersistentReferenceStoreTest {
+
+    private static final int NUMBER_OF_REFERENCES = 200_000;
+
+    @TempDir
+    public Path directory;
+
+    @Test
+    public void testReferencesSurviveRestart() throws IOException {
+        try (PersistentReferenceStore store = new PersistentReferenceStore(directory, 100)) {
+            for (int i = 0; i < NUMBER_OF_REFERENCES; i++) {
+                store.put("Patient|system|" + i, new Reference("Patient/" + i).setDisplay("Patient " + i));
+            }
+            store.put("Patient|system|7", new Reference("Patient/seven"));
+        }
+
+        try (PersistentReferenceStore store = new PersistentReferenceStore(directory, 100)) {
+            assertEquals(NUMBER_OF_REFERENCES, store.size());
+            for (int i = 0; i < NUMBER_OF_REFERENCES; i += 997) {
+                Reference reference = store.get("Patient|system|" + i);
+                assertEquals("Patient/" + i, reference.getReference());
+                assertEquals("Patient " + i, reference.getDisplay());
+            }
+
+            Reference replaced = store.get("Patient|system|7");
+            assertEquals("Patient/seven", replaced.getReference());
+            assertFalse(replaced.hasDisplay());
+
+            assertNull(store.get("Patient|system|unknown"));
+            assertFalse(store.contains("Encounter|system|1"));
+        }
+    }
+
+    @Test
+    public void testRecoverFromIncompleteWrite() throws IOException {
+        try (PersistentReferenceStore store = new PersistentReferenceStore(directory)) {
+            store.put("Encounter|system|enc1", new Reference("Encounter/abc"));
+            store.put("Encounter|system|enc2", new Reference("Encounter/def"));
+        }
+
+        // simulate a record cut short by the JVM being killed
+        try (FileChannel channel = FileChannel.open(Paths.get(directory.toString(), "references.dat"), StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 9, 0, 0}));
+        }
+
+        try (PersistentReferenceStore store = new PersistentReferenceStore(directory)) {
+            assertEquals(2, store.size());
+            assertTrue(store.contains("Encounter|system|enc1"));
+            assertEquals("Encounter/def", store.get("Encounter|system|enc2").getReference());
+
+            store.put("Encounter|system|enc3", new Reference("Encounter/ghi"));
+        }
+
+        try (PersistentReferenceStore store = new PersistentReferenceStore(directory)) {
+            assertEquals(3, store.size());
+            assertEquals("Encounter/ghi", store.get("Encounter|system|enc3").getReference());
+        }
+    }
+
+    @Test
+    public void testSkipUnchangedReference() throws IOException {
+        Path dataFile = Paths.get(directory.toString(), "references.dat");
+        try (PersistentReferenceStore store = new PersistentReferenceStore(directory)) {
+            store.put("Patient|system|1", new Reference("Patient/abc").setDisplay("Patient 1"));
+            long size = Files.size(dataFile);
+
+            store.put("Patient|system|1", new Reference("Patient/abc").setDisplay("Patient 1"));
+            assertEquals(size, Files.size(dataFile));
+
+            store.put("Patient|system|1", new Reference("Patient/abc"));
+            assertTrue(Files.size(dataFile) > size);
+            assertFalse(store.get("Patient|system|1").hasDisplay());
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 26, 2022 4:12:50 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ReferenceRegistryTest {
+
+    private static final String SYSTEM = "urn:test:person";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testRegisterTransactionResponse() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+
+            Bundle request = new Bundle();
+            request.setType(Bundle.BundleType.TRANSACTION);
+            Patient patient = new Patient();
+            patient.addIdentifier().setSystem(SYSTEM).setValue("1");
+            patient.addName().setFamily("Smith").addGiven("Jane");
+            addEntry(request, patient);
+            Encounter encounter = new Encounter();
+            encounter.addIdentifier().setSystem("urn:test:other").setValue("x");
+            encounter.addIdentifier().setSystem(SYSTEM).setValue("2");
+            addEntry(request, encounter);
+            // no identifier of the system, not registered
+            Patient other = new Patient();
+            other.addIdentifier().setSystem("urn:test:other").setValue("3");
+            addEntry(request, other);
+
+            Bundle response = client.transaction().withBundle(request).execute();
+
+            ReferenceRegistry registry = new ReferenceRegistry(fhirContext);
+            List<String> keys = registry.register(request, response, SYSTEM);
+
+            assertEquals(List.of(ResourceIndex.key("Patient", SYSTEM, "1"), ResourceIndex.key("Encounter", SYSTEM, "2")), keys);
+            assertEquals(2, registry.size());
+            assertFalse(registry.contains("Patient", "urn:test:other", "3"));
+
+            // the references point to the IDs the server assigned
+            Reference patientReference = registry.get("Patient", SYSTEM, "1");
+            assertEquals(getReference(server.getResources("Patient"), "1"), patientReference.getReference());
+            assertEquals("Jane Smith", patientReference.getDisplay());
+            assertEquals(getReference(server.getResources("Encounter"), "2"), registry.get("Encounter", SYSTEM, "2").getReference());
+            assertNull(registry.get("Encounter", SYSTEM, "1"));
+        }
+    }
+
+    @Test
+    public void testSkipEntriesWithoutLocation() {
+        Bundle request = new Bundle();
+        request.setType(Bundle.BundleType.BATCH);
+        Patient created = new Patient();
+        created.addIdentifier().setSystem(SYSTEM).setValue("1");
+        addEntry(request, created);
+        Patient failed = new Patient();
+        failed.addIdentifier().setSystem(SYSTEM).setValue("2");
+        addEntry(request, failed);
+
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+        response.addEntry().getResponse().setStatus("201 Created").setLocation("Patient/abc/_history/1");
+        response.addEntry().getResponse().setStatus("400 Bad Request");
+
+        ReferenceRegistry registry = new ReferenceRegistry(fhirContext);
+        registry.register(request, response, SYSTEM);
+
+        assertNotNull(registry.get("Patient", SYSTEM, "1"));
+        assertEquals("Patient/abc", registry.get("Patient", SYSTEM, "1").getReference());
+        assertFalse(registry.contains("Patient", SYSTEM, "2"));
+    }
+
+    private static void addEntry(Bundle bundle, Resource resource) {
+        bundle.addEntry().setResource(resource)
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl(resource.fhirType());
+    }
+
+    private static String getReference(List<Resource> resources, String value) {
+        return resources.stream()
+                .filter(resource -> value.equals(getIdentifierValue(resource)))
+                .map(resource -> resource.fhirType() + "/" + resource.getIdElement().getIdPart())
+                .findFirst()
+                .orElse(null);
+    }
+
+    private static String getIdentifierValue(Resource resource) {
+        List<Identifier> identifiers = (resource instanceof Patient)
+                ? ((Patient) resource).getIdentifier()
+                : ((Encounter) resource).getIdentifier();
+
+        return identifiers.stream()
+                .filter(identifier -> SYSTEM.equals(identifier.getSystem()))
+                .map(Identifier::getValue)
+                .findFirst()
+                .orElse(null);
+    }
+
+}
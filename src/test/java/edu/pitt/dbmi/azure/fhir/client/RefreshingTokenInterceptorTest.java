@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.exceptions.FhirClientConnectionException;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 22, 2022 1:18:05 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class RefreshingTokenInterceptorTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testRefreshInBackground() throws Exception {
+        InMemoryMetricsRegistry metrics = new InMemoryMetricsRegistry();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext, 4)) {
+            server.requireTokens(2000);
+            server.injectTokenLatency(500);
+
+            ClientCredentialsTokenSource tokenSource = new ClientCredentialsTokenSource(server.getTokenUrl(), "client", "secret", server.getBaseUrl() + "/.default");
+            try (RefreshingTokenInterceptor interceptor = new RefreshingTokenInterceptor(tokenSource, 1000, 100, metrics)) {
+                IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+                client.registerInterceptor(interceptor);
+                client.search().forResource(Patient.class).returnBundle(Bundle.class).execute();
+
+                // several tokens expire while the requests run, none of them waiting for a refresh
+                long end = System.currentTimeMillis() + 5000;
+                List<Future<Long>> slowestRequests = new ArrayList<>();
+                for (int i = 0; i < 4; i++) {
+                    slowestRequests.add(executor.submit(() -> {
+                        long slowest = 0;
+                        while (System.currentTimeMillis() < end) {
+                            long start = System.nanoTime();
+                            client.search().forResource(Patient.class).returnBundle(Bundle.class).execute();
+                            slowest = Math.max(slowest, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                        }
+
+                        return slowest;
+                    }));
+                }
+                for (Future<Long> slowestRequest : slowestRequests) {
+                    long slowest = slowestRequest.get();
+                    assertTrue(slowest < 500, "request took " + slowest + " ms");
+                }
+            }
+
+            assertTrue(server.getTokenCount() >= 4, server.getTokenCount() + " tokens");
+
+            OperationMetrics tokenMetrics = metrics.getOperationMetrics(MetricsRegistry.TOKEN);
+            assertEquals(server.getTokenCount(), tokenMetrics.getCount());
+            assertTrue(tokenMetrics.getLatencyP50Millis() >= 500);
+            assertEquals(0, tokenMetrics.getErrorCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedRefresh() throws Exception {
+        InMemoryMetricsRegistry metrics = new InMemoryMetricsRegistry();
+        AtomicInteger fetches = new AtomicInteger();
+        RefreshingTokenInterceptor.TokenSource tokenSource = () -> {
+            if (fetches.incrementAndGet() > 1) {
+                throw new IOException("Token endpoint unavailable");
+            }
+
+            return new RefreshingTokenInterceptor.AccessToken("token", Instant.now().plusMillis(1000));
+        };
+
+        try (RefreshingTokenInterceptor interceptor = new RefreshingTokenInterceptor(tokenSource, 800, 100, metrics)) {
+            RefreshingTokenInterceptor.AccessToken token = interceptor.getToken();
+
+            // failed refreshes keep the current token until it expires
+            Thread.sleep(700);
+            assertSame(token, interceptor.getToken());
+            assertTrue(fetches.get() > 1);
+
+            Thread.sleep(400);
+            assertThrows(FhirClientConnectionException.class, interceptor::getToken);
+        }
+
+        assertTrue(metrics.getOperationMetrics(MetricsRegistry.TOKEN).getErrorCount() > 0);
+    }
+
+    @Test
+    public void testExpiredTokenRefreshDelay() throws Exception {
+        AtomicInteger fetches = new AtomicInteger();
+        RefreshingTokenInterceptor.TokenSource tokenSource = () -> {
+            fetches.incrementAndGet();
+
+            return new RefreshingTokenInterceptor.AccessToken("token", Instant.now());
+        };
+
+        try (RefreshingTokenInterceptor interceptor = new RefreshingTokenInterceptor(tokenSource, 800, 300, MetricsRegistry.NONE)) {
+            interceptor.getToken();
+
+            // a token with no time left is refreshed after the retry delay
+            Thread.sleep(150);
+            assertEquals(1, fetches.get());
+
+            Thread.sleep(300);
+            assertEquals(2, fetches.get());
+        }
+    }
+
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 23, 2022 2:27:40 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class ResourceCacheTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testReadAndRevalidate() throws Exception {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            ResourceCache cache = new ResourceCache(client, 2, 300);
+            PatientResourceClient patientClient = new PatientResourceClient(client, MetricsRegistry.NONE, UploadMode.CREATE, cache);
+            String id = createPatient(client, "1");
+
+            long requests = server.getRequestCount();
+            Patient patient = patientClient.getPatient(id);
+            patient.getNameFirstRep().setFamily("Changed");
+            assertEquals("Family1", patientClient.getPatient(id).getNameFirstRep().getFamily());
+            assertEquals(1, server.getRequestCount() - requests);
+            assertEquals(1, cache.getMissCount());
+            assertEquals(1, cache.getHitCount());
+
+            // stale and unchanged: a 304
+            Thread.sleep(400);
+            assertEquals("Family1", patientClient.getPatient(id).getNameFirstRep().getFamily());
+            assertEquals(1, cache.getRevalidationCount());
+
+            // stale and changed: read again
+            client.update().resource(patient).execute();
+            Thread.sleep(400);
+            assertEquals("Changed", patientClient.getPatient(id).getNameFirstRep().getFamily());
+            assertEquals(2, cache.getMissCount());
+
+            // the least recently used patient is evicted
+            patientClient.getPatient(createPatient(client, "2"));
+            patientClient.getPatient(createPatient(client, "3"));
+            assertEquals(2, cache.size());
+            assertEquals(1, cache.getEvictionCount());
+
+            patientClient.deletePatient(patient);
+            assertThrows(ResourceNotFoundException.class, () -> patientClient.getPatient(id));
+        }
+    }
+
+    @Test
+    public void testIdentifierLookups() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            ResourceCache cache = new ResourceCache(client);
+            List<String> values = new ArrayList<>();
+            for (int i = 1; i <= 5; i++) {
+                createPatient(client, Integer.toString(i));
+                values.add(Integer.toString(i));
+            }
+
+            BrainAiResourceClient brainAiClient = new BrainAiResourceClient(client, new ReferenceRegistry(fhirContext), MetricsRegistry.NONE, UploadMode.CREATE, cache);
+            long requests = server.getRequestCount();
+            Bundle bundle = brainAiClient.findPatientBySubject(new Reference("3"));
+            assertEquals(1, bundle.getEntry().size());
+            assertEquals(1, brainAiClient.findPatientBySubject(new Reference("3")).getEntry().size());
+            assertEquals(1, server.getRequestCount() - requests);
+
+            // only the values not cached are searched, and patients not found are not cached
+            IdentifierResolver resolver = new IdentifierResolver(client, IdentifierResolver.DEFAULT_BATCH_SIZE, cache);
+            values.add("6");
+            Map<String, Patient> patients = resolver.resolve(Patient.class, BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM, values);
+            assertEquals(5, patients.size());
+            assertEquals(2, server.getRequestCount() - requests);
+
+            patients = resolver.resolve(Patient.class, BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM, values);
+            assertEquals(5, patients.size());
+            assertEquals(3, server.getRequestCount() - requests);
+
+            // patients found by identifier are cached by ID too
+            String id = patients.get("3").getIdElement().getIdPart();
+            new PatientResourceClient(client, MetricsRegistry.NONE, UploadMode.CREATE, cache).getPatient(id);
+            assertEquals(3, server.getRequestCount() - requests);
+        }
+    }
+
+    @Test
+    public void testInvalidateOnWrite() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            ResourceCache cache = new ResourceCache(client);
+            String id = createPatient(client, "1");
+
+            BrainAiResourceClient brainAiClient = new BrainAiResourceClient(client, new ReferenceRegistry(fhirContext), MetricsRegistry.NONE, UploadMode.CREATE, cache);
+            PatientResourceClient updateClient = new PatientResourceClient(client, MetricsRegistry.NONE, UploadMode.CONDITIONAL_UPDATE, cache);
+            PatientResourceClient createClient = new PatientResourceClient(client, MetricsRegistry.NONE, UploadMode.CREATE, cache);
+            assertEquals("Family1", getFamily(brainAiClient.findPatientBySubject(new Reference("1"))));
+            assertEquals("Family1", updateClient.getPatient(id).getNameFirstRep().getFamily());
+
+            // a conditional update drops the cached patient and its identifier result
+            Patient update = new Patient();
+            update.addIdentifier().setSystem(BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM).setValue("1");
+            update.addName().setFamily("Updated");
+            updateClient.uploadPatients(List.of(update));
+            assertEquals("Updated", getFamily(brainAiClient.findPatientBySubject(new Reference("1"))));
+            assertEquals("Updated", updateClient.getPatient(id).getNameFirstRep().getFamily());
+
+            // so does a create adding a match
+            Patient duplicate = new Patient();
+            duplicate.addIdentifier().setSystem(BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM).setValue("1");
+            createClient.uploadPatients(List.of(duplicate));
+            assertEquals(2, brainAiClient.findPatientBySubject(new Reference("1")).getEntry().size());
+        }
+    }
+
+    @Test
+    public void testInvalidateByIdentifier() {
+        IGenericClient client = fhirContext.newRestfulGenericClient("http://localhost:1/fhir");
+        ResourceCache cache = new ResourceCache(client, 3, ResourceCache.DEFAULT_TTL_MILLIS);
+        for (String value : List.of("1", "2")) {
+            Patient patient = new Patient();
+            patient.setId("p" + value);
+            patient.addIdentifier().setSystem(BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM).setValue(value);
+            cache.putIdentifierMatches("Patient", BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM, value, List.of(patient));
+        }
+        // the identifier result of p1 was evicted
+        assertEquals(3, cache.size());
+
+        Patient written = new Patient();
+        written.addIdentifier().setSystem(BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM).setValue("2");
+        cache.invalidate(List.of(written));
+        assertEquals(1, cache.size());
+        assertNull(cache.getIdentifierMatches("Patient", BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM, "2"));
+
+        cache.invalidate("Patient", "p1");
+        assertEquals(0, cache.size());
+    }
+
+    private static String getFamily(Bundle bundle) {
+        return ((Patient) bundle.getEntryFirstRep().getResource()).getNameFirstRep().getFamily();
+    }
+
+    private static String createPatient(IGenericClient client, String value) {
+        Patient patient = new Patient();
+        patient.addIdentifier().setSystem(BrainAiResourceClient.PERSON_IDENTIFIER_SYSTEM).setValue(value);
+        patient.addName().setFamily("Family" + value);
+
+        return client.create().resource(patient).execute().getId().getIdPart();
+    }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.api.CacheControlDirective;
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 26, 2022 5:20:31 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class SearchPageIteratorTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testStreamAllPages() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            addPatients(client, 35);
+
+            RequestRecorder recorder = new RequestRecorder(null);
+            client.registerInterceptor(recorder);
+            PatientResourceClient patientClient = new PatientResourceClient(client);
+
+            List<Patient> patients;
+            try (Stream<Patient> stream = patientClient.streamPatients(10, 2)) {
+                patients = stream.collect(Collectors.toList());
+            }
+
+            assertEquals(35, patients.size());
+            assertEquals(35, patients.stream().map(patient -> patient.getIdElement().getIdPart()).distinct().count());
+            assertEquals(4, recorder.takenAtRequest.size());
+        }
+    }
+
+    @Test
+    public void testPrefetchDepth() throws Exception {
+        for (int depth = 1; depth <= 3; depth++) {
+            try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+                IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+                addPatients(client, 100);
+
+                AtomicInteger taken = new AtomicInteger();
+                CountDownLatch prefetched = new CountDownLatch(depth);
+                RequestRecorder recorder = new RequestRecorder(taken, prefetched);
+                client.registerInterceptor(recorder);
+
+                List<Thread> before = getPrefetchThreads();
+                try (SearchPageIterator pages = new SearchPageIterator(client, search(client, 10), depth)) {
+                    // before anything is taken, the prefetch thread stops at depth pages
+                    assertTrue(prefetched.await(10, TimeUnit.SECONDS));
+                    awaitParked(getPrefetchThreads().stream()
+                            .filter(thread -> !before.contains(thread))
+                            .findFirst()
+                            .orElseThrow());
+                    assertEquals(depth, recorder.takenAtRequest.size());
+
+                    int count = 0;
+                    while (true) {
+                        // counted before the take, which lets the next page be fetched
+                        taken.incrementAndGet();
+                        if (!pages.hasNext()) {
+                            break;
+                        }
+                        pages.next();
+                        count++;
+                    }
+                    assertEquals(10, count);
+                }
+
+                // page n is only fetched once the caller takes page n - depth
+                List<Integer> takenAtRequest = recorder.takenAtRequest;
+                assertEquals(10, takenAtRequest.size());
+                for (int page = depth; page < takenAtRequest.size(); page++) {
+                    assertTrue(takenAtRequest.get(page) >= page - depth + 1, "depth " + depth + ": " + takenAtRequest);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCloseStopsFetching() throws Exception {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            addPatients(client, 100);
+
+            RequestRecorder recorder = new RequestRecorder(null);
+            client.registerInterceptor(recorder);
+            PatientResourceClient patientClient = new PatientResourceClient(client);
+
+            List<Thread> before = getPrefetchThreads();
+            try (Stream<Patient> stream = patientClient.streamPatients(10, 1)) {
+                assertEquals(5, stream.limit(5).count());
+            }
+
+            // the prefetch thread ends without fetching the remaining pages
+            for (Thread thread : getPrefetchThreads()) {
+                if (!before.contains(thread)) {
+                    thread.join(10_000);
+                    assertFalse(thread.isAlive());
+                }
+            }
+            assertTrue(recorder.takenAtRequest.size() <= 2, recorder.takenAtRequest.toString());
+        }
+    }
+
+    @Test
+    public void testForwardErrors() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (SearchPageIterator pages = new SearchPageIterator(fhirContext.newRestfulGenericClient("http://localhost"), () -> {
+            throw new StackOverflowError("search failed");
+        }, 1)) {
+            Future<Boolean> hasNext = executor.submit(pages::hasNext);
+            try {
+                hasNext.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException exception) {
+                assertTrue(exception.getCause() instanceof StackOverflowError, exception.getCause().toString());
+                assertEquals("search failed", exception.getCause().getMessage());
+
+                return;
+            }
+            throw new AssertionError("The error was not forwarded.");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Supplier<Bundle> search(IGenericClient client, int pageSize) {
+        return () -> client
+                .search()
+                .forResource(Patient.class)
+                .count(pageSize)
+                .returnBundle(Bundle.class)
+                .cacheControl(new CacheControlDirective().setNoCache(true))
+                .execute();
+    }
+
+    /**
+     * Wait for the thread to block, e.g. on a full queue.
+     */
+    private static void awaitParked(Thread thread) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10_000;
+        while (thread.getState() != Thread.State.WAITING) {
+            assertTrue(System.currentTimeMillis() < end, thread.getState().toString());
+            Thread.sleep(1);
+        }
+    }
+
+    private static List<Thread> getPrefetchThreads() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .filter(thread -> thread.getName().startsWith("search-page-prefetch-"))
+                .collect(Collectors.toList());
+    }
+
+    private static void addPatients(IGenericClient client, int count) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.addName().setFamily("Page").addGiven("Patient" + i);
+            bundle.addEntry().setResource(patient)
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+        client.transaction().withBundle(bundle).execute();
+    }
+
+    /**
+     * Records, for each request sent by the client, the number of pages the
+     * caller had taken.
+     */
+    private static class RequestRecorder implements IClientInterceptor {
+
+        private final AtomicInteger taken;
+        private final CountDownLatch requests;
+        private final List<Integer> takenAtRequest = Collections.synchronizedList(new ArrayList<>());
+
+        private RequestRecorder(AtomicInteger taken) {
+            this(taken, new CountDownLatch(0));
+        }
+
+        private RequestRecorder(AtomicInteger taken, CountDownLatch requests) {
+            this.taken = taken;
+            this.requests = requests;
+        }
+
+        @Override
+        public void interceptRequest(IHttpRequest request) {
+            takenAtRequest.add((taken == null) ? 0 : taken.get());
+            requests.countDown();
+        }
+
+        @Override
+        public void interceptResponse(IHttpResponse response) {
+        }
+
+    }
+
+}
@@ -0,0 +1,1518 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.BaseRuntimeChildDefinition;
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CapabilityStatement;
+import org.hl7.fhir.r4.model.Enumerations;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.InstantType;
+import org.hl7.fhir.r4.model.OperationOutcome;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+/**
+ * An in-process FHIR R4 server standing in for Azure FHIR in tests and
+ * benchmarks. Resources are kept in memory. It supports create, read,
+ * update and delete (including conditional create, update and delete),
+ * transaction and batch bundles, and searches by _id, identifier, subject,
+ * patient and encounter with _count, _elements, _summary=count and paging.
+ * Reads honor If-None-Match with the version ETag.
+ * Request bodies may be gzip-compressed, and responses can be. Bulk $import
+ * of NDJSON files and bulk $export at the system, patient and group level
+ * are run asynchronously; exported NDJSON files are served from memory.
+ * Bearer tokens can be required, with a client credentials token endpoint
+ * issuing them.
+ *
+ * Latency, throttling (429 with Retry-After and x-ms-retry-after-ms) and
+ * server failures can be injected while the server is running.
+ *
+ * Aug 9, 2022 10:04:37 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class StandInFhirServer implements AutoCloseable {
+
+    public static final int DEFAULT_PAGE_SIZE = 10;
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private static final String FHIR_JSON = "application/fhir+json;charset=utf-8";
+    private static final String NDJSON = "application/fhir+ndjson";
+    private static final String AFTER_PARAM = "_after";
+    private static final String TOKEN_PATH = "oauth2/token";
+
+    private static final Map<String, String> REFERENCE_PARAMS = Map.of(
+            "subject", "subject",
+            "patient", "subject",
+            "encounter", "encounter");
+
+    private final FhirContext fhirContext;
+    private final FhirTerser terser;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final String baseUrl;
+
+    private final Map<String, NavigableMap<String, Resource>> resources = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> identifierIndex = new ConcurrentHashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final Map<String, BulkJob> importJobs = new ConcurrentHashMap<>();
+    private final Map<String, BulkJob> exportJobs = new ConcurrentHashMap<>();
+    private final AtomicLong nextJobId = new AtomicLong(1);
+    private final Map<String, Long> tokens = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong throttledCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong requestBytes = new AtomicLong();
+    private final AtomicLong responseBytes = new AtomicLong();
+    private final AtomicLong tokenCount = new AtomicLong();
+
+    private final Random random = new Random(0);
+    private final AtomicInteger throttleNext = new AtomicInteger();
+    private volatile long latencyMillis;
+    private volatile double throttleRate;
+    private volatile long retryAfterMillis = 100;
+    private volatile double failureRate;
+    private volatile double entryFailureRate;
+    private volatile long bytesPerSecond;
+    private volatile boolean compressResponses;
+    private volatile long tokenLifetimeMillis;
+    private volatile long tokenLatencyMillis;
+    private volatile int exportFileSize = 1000;
+
+    public StandInFhirServer(FhirContext fhirContext) throws IOException {
+        this(fhirContext, 16);
+    }
+
+    public StandInFhirServer(FhirContext fhirContext, int threads) throws IOException {
+        this.fhirContext = fhirContext;
+        this.terser = fhirContext.newTerser();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "stand-in-fhir-server");
+            thread.setDaemon(true);
+
+            return thread;
+        });
+        this.baseUrl = String.format("http://localhost:%d", server.getAddress().getPort());
+
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Delay every request by the given time before it is handled.
+     *
+     * @param latencyMillis delay in milliseconds
+     */
+    public void injectLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Reject a fraction of the requests with 429 Too Many Requests.
+     *
+     * @param rate fraction of requests to reject, from 0 to 1
+     * @param retryAfterMillis delay the client is asked to wait
+     */
+    public void injectThrottling(double rate, long retryAfterMillis) {
+        this.throttleRate = rate;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Reject the next requests with 429 Too Many Requests.
+     *
+     * @param count number of requests to reject
+     */
+    public void throttleNextRequests(int count) {
+        throttleNext.set(count);
+    }
+
+    /**
+     * Fail a fraction of the requests with 500 Internal Server Error.
+     *
+     * @param rate fraction of requests to fail, from 0 to 1
+     */
+    public void injectFailures(double rate) {
+        this.failureRate = rate;
+    }
+
+    /**
+     * Fail a fraction of the entries of batch bundles with 500 Internal
+     * Server Error, leaving the rest of the batch to succeed.
+     *
+     * @param rate fraction of entries to fail, from 0 to 1
+     */
+    public void injectEntryFailures(double rate) {
+        this.entryFailureRate = rate;
+    }
+
+    /**
+     * Limit the rate request and response bodies are transferred at, as on a
+     * network-bound link.
+     *
+     * @param bytesPerSecond transfer rate, or 0 for no limit
+     */
+    public void injectBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Compress response bodies with gzip when the client accepts it.
+     *
+     * @param compressResponses true to compress responses
+     */
+    public void compressResponses(boolean compressResponses) {
+        this.compressResponses = compressResponses;
+    }
+
+    /**
+     * Require a bearer token from the token endpoint on every request other
+     * than metadata. Requests without an unexpired token get 401.
+     *
+     * @param lifetimeMillis lifetime of the issued tokens, in whole seconds
+     */
+    public void requireTokens(long lifetimeMillis) {
+        this.tokenLifetimeMillis = lifetimeMillis;
+    }
+
+    /**
+     * Delay every token request by the given time.
+     *
+     * @param latencyMillis delay in milliseconds
+     */
+    public void injectTokenLatency(long latencyMillis) {
+        this.tokenLatencyMillis = latencyMillis;
+    }
+
+    /**
+     * Get the URL of the client credentials token endpoint.
+     *
+     * @return token URL
+     */
+    public String getTokenUrl() {
+        return baseUrl + "/" + TOKEN_PATH;
+    }
+
+    /**
+     * Set the maximum number of resources per exported NDJSON file.
+     *
+     * @param exportFileSize resources per file
+     */
+    public void setExportFileSize(int exportFileSize) {
+        this.exportFileSize = exportFileSize;
+    }
+
+    public long getTokenCount() {
+        return tokenCount.get();
+    }
+
+    /**
+     * Get the number of request body bytes received, as sent on the wire.
+     *
+     * @return number of bytes
+     */
+    public long getRequestBytes() {
+        return requestBytes.get();
+    }
+
+    /**
+     * Get the number of response body bytes sent, as sent on the wire.
+     *
+     * @return number of bytes
+     */
+    public long getResponseBytes() {
+        return responseBytes.get();
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getThrottledCount() {
+        return throttledCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * Get the number of stored resources of the given type.
+     *
+     * @param resourceType resource type, e.g. Patient
+     * @return number of resources
+     */
+    public int count(String resourceType) {
+        NavigableMap<String, Resource> typeResources = resources.get(resourceType);
+
+        return (typeResources == null) ? 0 : typeResources.size();
+    }
+
+    /**
+     * Get a copy of all the stored resources of the given type.
+     *
+     * @param resourceType resource type, e.g. Patient
+     * @return resources ordered by ID
+     */
+    public List<Resource> getResources(String resourceType) {
+        NavigableMap<String, Resource> typeResources = resources.get(resourceType);
+        if (typeResources == null) {
+            return Collections.emptyList();
+        }
+
+        return typeResources.values().stream()
+                .map(Resource::copy)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Delete all the stored resources.
+     */
+    public void clear() {
+        synchronized (writeLock) {
+            resources.clear();
+            identifierIndex.clear();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Outcome outcome;
+            try {
+                outcome = handleRequest(exchange);
+            } catch (ServerException exception) {
+                outcome = Outcome.error(exception.status, exception.getMessage());
+            } catch (DataFormatException | IllegalArgumentException exception) {
+                outcome = Outcome.error(400, exception.getMessage());
+            } catch (RuntimeException exception) {
+                outcome = Outcome.error(500, exception.toString());
+            }
+
+            send(exchange, outcome);
+        }
+    }
+
+    private Outcome handleRequest(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getRawPath().replaceAll("^/+|/+$", "");
+        Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+        if ("metadata".equals(path)) {
+            return new Outcome(200, null, createCapabilityStatement());
+        }
+        if (TOKEN_PATH.equals(path) && "POST".equals(method)) {
+            return issueToken(exchange);
+        }
+        if (tokenLifetimeMillis > 0 && !isAuthorized(exchange)) {
+            return Outcome.error(401, "Missing or expired access token");
+        }
+
+        requestCount.incrementAndGet();
+        sleep(latencyMillis);
+        if (throttleNext.getAndUpdate(n -> Math.max(0, n - 1)) > 0 || chance(throttleRate)) {
+            throttledCount.incrementAndGet();
+
+            Outcome outcome = Outcome.error(429, "Request rate too large");
+            outcome.headers.put("Retry-After", Long.toString(Math.max(1, TimeUnit.MILLISECONDS.toSeconds(retryAfterMillis + 999))));
+            outcome.headers.put("x-ms-retry-after-ms", Long.toString(retryAfterMillis));
+
+            return outcome;
+        }
+        if (chance(failureRate)) {
+            failedCount.incrementAndGet();
+
+            return Outcome.error(500, "Injected failure");
+        }
+
+        String[] segments = path.isEmpty() ? new String[0] : path.split("/");
+        if (segments.length == 0) {
+            if (!"POST".equals(method)) {
+                throw new ServerException(405, "Only bundles can be posted to the base URL.");
+            }
+
+            return new Outcome(200, null, processBundle(readResource(exchange, Bundle.class)));
+        }
+
+        if ("$import".equals(segments[0]) && "POST".equals(method)) {
+            return startImport(readResource(exchange, Parameters.class));
+        }
+        if (segments.length == 3 && "_operations".equals(segments[0]) && "import".equals(segments[1])) {
+            return getJobStatus(importJobs, segments[2]);
+        }
+        if ("GET".equals(method) && "$export".equals(segments[segments.length - 1])) {
+            return startExport(path, Arrays.copyOf(segments, segments.length - 1), params);
+        }
+        if (segments.length == 3 && "_operations".equals(segments[0]) && "export".equals(segments[1])) {
+            return getJobStatus(exportJobs, segments[2]);
+        }
+        if (segments.length == 3 && "_exports".equals(segments[0])) {
+            return getExportFile(segments[1], segments[2]);
+        }
+
+        String resourceType = segments[0];
+        if (!fhirContext.getResourceTypes().contains(resourceType)) {
+            throw new ServerException(404, "Unknown resource type " + resourceType);
+        }
+
+        if (segments.length == 1) {
+            switch (method) {
+                case "GET":
+                    return new Outcome(200, null, search(resourceType, params));
+                case "POST":
+                    return create(resourceType, readResource(exchange, Resource.class), exchange.getRequestHeaders().getFirst("If-None-Exist"), null);
+                case "PUT":
+                    return conditionalUpdate(resourceType, params, readResource(exchange, Resource.class), null);
+                case "DELETE":
+                    return conditionalDelete(resourceType, params, null);
+                default:
+                    throw new ServerException(405, "Method not allowed: " + method);
+            }
+        }
+
+        if ("_search".equals(segments[1]) && "POST".equals(method)) {
+            return new Outcome(200, null, search(resourceType, readSearchForm(exchange, params)));
+        }
+
+        String id = segments[1];
+        switch (method) {
+            case "GET":
+                return read(resourceType, id, exchange.getRequestHeaders().getFirst("If-None-Match"));
+            case "PUT":
+                return update(resourceType, id, readResource(exchange, Resource.class), null);
+            case "DELETE":
+                return delete(resourceType, id, null);
+            default:
+                throw new ServerException(405, "Method not allowed: " + method);
+        }
+    }
+
+    /**
+     * Add the parameters of a POST _search form body to the query
+     * parameters.
+     */
+    private static Map<String, List<String>> readSearchForm(HttpExchange exchange, Map<String, List<String>> params) throws IOException {
+        String form;
+        try (InputStream body = exchange.getRequestBody()) {
+            form = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+
+        Map<String, List<String>> searchParams = new LinkedHashMap<>(params);
+        parseQuery(form).forEach((name, values) -> searchParams.computeIfAbsent(name, k -> new ArrayList<>()).addAll(values));
+
+        return searchParams;
+    }
+
+    /**
+     * Issue a bearer token for the client credentials grant. Any client ID
+     * and secret are accepted.
+     */
+    private Outcome issueToken(HttpExchange exchange) throws IOException {
+        String form;
+        try (InputStream body = exchange.getRequestBody()) {
+            form = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        sleep(tokenLatencyMillis);
+
+        Map<String, List<String>> params = parseQuery(form);
+        if (!params.getOrDefault("grant_type", Collections.emptyList()).contains("client_credentials")
+                || !params.containsKey("client_id") || !params.containsKey("client_secret")) {
+            throw new ServerException(400, "Expected the client credentials grant.");
+        }
+
+        long lifetimeMillis = tokenLifetimeMillis;
+        String token = UUID.randomUUID().toString();
+        tokenCount.incrementAndGet();
+        tokens.put(token, System.currentTimeMillis() + lifetimeMillis);
+
+        ObjectNode response = new ObjectMapper().createObjectNode();
+        response.put("token_type", "Bearer");
+        response.put("expires_in", TimeUnit.MILLISECONDS.toSeconds(lifetimeMillis));
+        response.put("access_token", token);
+
+        Outcome outcome = new Outcome(200, null, null);
+        outcome.json = response.toString();
+
+        return outcome;
+    }
+
+    private boolean isAuthorized(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith("Bearer ")) {
+            return false;
+        }
+
+        Long expiresAt = tokens.get(authorization.substring("Bearer ".length()));
+
+        return expiresAt != null && expiresAt > System.currentTimeMillis();
+    }
+
+    /**
+     * Start a bulk $import of NDJSON files. The input URLs are read by the
+     * server, so file: URLs work.
+     */
+    private Outcome startImport(Parameters parameters) {
+        List<String[]> inputs = new ArrayList<>();
+        for (Parameters.ParametersParameterComponent parameter : parameters.getParameter()) {
+            if ("input".equals(parameter.getName())) {
+                String type = null;
+                String url = null;
+                for (Parameters.ParametersParameterComponent part : parameter.getPart()) {
+                    if ("type".equals(part.getName())) {
+                        type = part.getValue().primitiveValue();
+                    } else if ("url".equals(part.getName())) {
+                        url = part.getValue().primitiveValue();
+                    }
+                }
+                inputs.add(new String[]{type, url});
+            }
+        }
+        if (inputs.isEmpty()) {
+            throw new ServerException(400, "No input to import.");
+        }
+
+        String jobId = Long.toString(nextJobId.getAndIncrement());
+        BulkJob job = new BulkJob(baseUrl + "/$import");
+        importJobs.put(jobId, job);
+        executor.execute(() -> runImport(job, inputs));
+
+        Outcome outcome = new Outcome(202, null, null);
+        outcome.headers.put("Content-Location", baseUrl + "/_operations/import/" + jobId);
+
+        return outcome;
+    }
+
+    private void runImport(BulkJob job, List<String[]> inputs) {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectNode status = objectMapper.createObjectNode();
+        status.put("transactionTime", new InstantType(new Date()).getValueAsString());
+        status.put("request", job.request);
+        ArrayNode output = status.putArray("output");
+        ArrayNode error = status.putArray("error");
+
+        IParser parser = fhirContext.newJsonParser();
+        for (String[] input : inputs) {
+            String type = input[0];
+            String url = input[1];
+            long imported = 0;
+            long failed = 0;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(URI.create(url).toURL().openStream(), StandardCharsets.UTF_8))) {
+                for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    if (line.isBlank()) {
+                        continue;
+                    }
+
+                    try {
+                        Resource resource = (Resource) parser.parseResource(line);
+                        if (!resource.fhirType().equals(type)) {
+                            throw new ServerException(400, "Unexpected resource type " + resource.fhirType());
+                        }
+                        if (resource.hasIdElement() && resource.getIdElement().hasIdPart()) {
+                            update(type, resource.getIdElement().getIdPart(), resource, null);
+                        } else {
+                            create(type, resource, null, null);
+                        }
+                        imported++;
+                    } catch (ServerException | DataFormatException | ClassCastException exception) {
+                        failed++;
+                    }
+                }
+            } catch (IOException | IllegalArgumentException exception) {
+                failed++;
+            }
+
+            output.addObject().put("type", type).put("count", imported).put("inputUrl", url);
+            if (failed > 0) {
+                error.addObject().put("type", type).put("count", failed).put("inputUrl", url);
+            }
+        }
+
+        job.status = status.toString();
+    }
+
+    private Outcome getJobStatus(Map<String, BulkJob> jobs, String jobId) {
+        BulkJob job = jobs.get(jobId);
+        if (job == null) {
+            throw new ServerException(404, "Unknown job " + jobId);
+        }
+
+        if (job.status == null) {
+            return new Outcome(202, null, null);
+        }
+
+        Outcome outcome = new Outcome(200, null, null);
+        outcome.json = job.status;
+
+        return outcome;
+    }
+
+    /**
+     * Start a bulk $export. The scope is the whole server, all patients
+     * (Patient/$export) or the members of a group (Group/{id}/$export).
+     */
+    private Outcome startExport(String path, String[] scope, Map<String, List<String>> params) {
+        String outputFormat = getParam(params, "_outputFormat");
+        if (outputFormat != null && !outputFormat.startsWith(NDJSON) && !"ndjson".equals(outputFormat)) {
+            throw new ServerException(400, "Unsupported output format " + outputFormat);
+        }
+
+        String typeParam = getParam(params, "_type");
+        Set<String> types = (typeParam == null)
+                ? null
+                : Arrays.stream(typeParam.split(",")).map(String::trim).collect(Collectors.toSet());
+        String sinceParam = getParam(params, "_since");
+        Date since = (sinceParam == null) ? null : new InstantType(sinceParam).getValue();
+
+        Set<String> patientIds;
+        if (scope.length == 0) {
+            patientIds = null;
+        } else if (scope.length == 1 && "Patient".equals(scope[0])) {
+            NavigableMap<String, Resource> patients = resources.get("Patient");
+            patientIds = (patients == null) ? Collections.emptySet() : Set.copyOf(patients.keySet());
+        } else if (scope.length == 2 && "Group".equals(scope[0])) {
+            Resource group = get("Group", scope[1]);
+            if (group == null) {
+                throw new ServerException(404, "Unknown group " + scope[1]);
+            }
+
+            patientIds = terser.getValues(group, "member.entity", Reference.class).stream()
+                    .map(reference -> stripBaseUrl(reference.getReference()))
+                    .filter(reference -> reference.startsWith("Patient/"))
+                    .map(reference -> reference.substring(reference.indexOf('/') + 1))
+                    .collect(Collectors.toSet());
+        } else {
+            throw new ServerException(404, "Unknown export " + path);
+        }
+
+        String jobId = Long.toString(nextJobId.getAndIncrement());
+        BulkJob job = new BulkJob(baseUrl + "/" + path);
+        exportJobs.put(jobId, job);
+        executor.execute(() -> runExport(jobId, job, types, since, patientIds));
+
+        Outcome outcome = new Outcome(202, null, null);
+        outcome.headers.put("Content-Location", baseUrl + "/_operations/export/" + jobId);
+
+        return outcome;
+    }
+
+    private void runExport(String jobId, BulkJob job, Set<String> types, Date since, Set<String> patientIds) {
+        ObjectMapper objectMapper = new ObjectMapper();
+        ObjectNode status = objectMapper.createObjectNode();
+        status.put("transactionTime", new InstantType(new Date()).getValueAsString());
+        status.put("request", job.request);
+        status.put("requiresAccessToken", tokenLifetimeMillis > 0);
+        ArrayNode output = status.putArray("output");
+        status.putArray("error");
+
+        IParser parser = fhirContext.newJsonParser();
+        int fileSize = Math.max(1, exportFileSize);
+        for (String type : new TreeMap<>(resources).keySet()) {
+            if (types != null && !types.contains(type)) {
+                continue;
+            }
+
+            List<Resource> exported = resources.get(type).values().stream()
+                    .filter(resource -> since == null || !resource.getMeta().getLastUpdated().before(since))
+                    .filter(resource -> patientIds == null || inCompartment(resource, patientIds))
+                    .collect(Collectors.toList());
+            for (int start = 0; start < exported.size(); start += fileSize) {
+                List<Resource> file = exported.subList(start, Math.min(start + fileSize, exported.size()));
+                StringBuilder ndjson = new StringBuilder();
+                file.forEach(resource -> ndjson.append(parser.encodeResourceToString(resource)).append('\n'));
+
+                String name = job.files.size() + ".ndjson";
+                job.files.put(name, ndjson.toString());
+                output.addObject()
+                        .put("type", type)
+                        .put("url", baseUrl + "/_exports/" + jobId + "/" + name)
+                        .put("count", file.size());
+            }
+        }
+
+        job.status = status.toString();
+    }
+
+    private boolean inCompartment(Resource resource, Set<String> patientIds) {
+        if ("Patient".equals(resource.fhirType())) {
+            return patientIds.contains(resource.getIdElement().getIdPart());
+        }
+
+        return patientIds.stream()
+                .anyMatch(patientId -> matchesReference(resource, "subject", "Patient/" + patientId));
+    }
+
+    private Outcome getExportFile(String jobId, String name) {
+        BulkJob job = exportJobs.get(jobId);
+        String ndjson = (job == null) ? null : job.files.get(name);
+        if (ndjson == null) {
+            throw new ServerException(404, String.format("Unknown export file %s/%s", jobId, name));
+        }
+
+        Outcome outcome = new Outcome(200, null, null);
+        outcome.json = ndjson;
+        outcome.headers.put("Content-Type", NDJSON);
+
+        return outcome;
+    }
+
+    private Bundle processBundle(Bundle bundle) {
+        switch (bundle.getType()) {
+            case TRANSACTION:
+                return processTransaction(bundle);
+            case BATCH:
+                return processBatch(bundle);
+            default:
+                throw new ServerException(400, "Bundle type must be transaction or batch.");
+        }
+    }
+
+    private Bundle processBatch(Bundle bundle) {
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.BATCHRESPONSE);
+
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Outcome outcome;
+            if (chance(entryFailureRate)) {
+                outcome = Outcome.error(500, "Injected entry failure");
+            } else {
+                try {
+                    synchronized (writeLock) {
+                        outcome = processEntry(entry, null);
+                    }
+                } catch (ServerException exception) {
+                    outcome = Outcome.error(exception.status, exception.getMessage());
+                } catch (DataFormatException | IllegalArgumentException exception) {
+                    outcome = Outcome.error(400, exception.getMessage());
+                }
+            }
+
+            response.addEntry(outcome.toEntry());
+        }
+
+        return response;
+    }
+
+    /**
+     * Process the entries of a transaction all or nothing, in the order
+     * required by the specification: DELETE, POST, PUT, then GET. Temporary
+     * IDs (urn:uuid:...) of created resources are replaced in references.
+     */
+    private Bundle processTransaction(Bundle bundle) {
+        List<Bundle.BundleEntryComponent> entries = bundle.getEntry();
+        Outcome[] outcomes = new Outcome[entries.size()];
+        List<Runnable> undoLog = new ArrayList<>();
+
+        synchronized (writeLock) {
+            try {
+                for (int i = 0; i < entries.size(); i++) {
+                    if (entries.get(i).getRequest().getMethod() == Bundle.HTTPVerb.DELETE) {
+                        outcomes[i] = processEntry(entries.get(i), undoLog);
+                    }
+                }
+
+                // assign IDs to new resources before any reference is resolved
+                Map<String, String> resolvedIds = new HashMap<>();
+                Map<Integer, String> existingIds = new HashMap<>();
+                for (int i = 0; i < entries.size(); i++) {
+                    Bundle.BundleEntryComponent entry = entries.get(i);
+                    if (entry.getRequest().getMethod() == Bundle.HTTPVerb.POST) {
+                        String resourceType = getResourceType(entry);
+                        String ifNoneExist = entry.getRequest().getIfNoneExist();
+
+                        String id;
+                        List<Resource> matches = (ifNoneExist == null) ? Collections.emptyList() : match(resourceType, parseCondition(ifNoneExist), 2);
+                        if (matches.size() > 1) {
+                            throw new ServerException(412, "Multiple matches for " + ifNoneExist);
+                        } else if (matches.size() == 1) {
+                            id = matches.get(0).getIdElement().getIdPart();
+                            existingIds.put(i, id);
+                        } else {
+                            id = Long.toString(nextId.getAndIncrement());
+                            entry.getResource().setId(id);
+                        }
+
+                        if (entry.hasFullUrl()) {
+                            resolvedIds.put(entry.getFullUrl(), resourceType + "/" + id);
+                        }
+                    }
+                }
+
+                for (Bundle.BundleEntryComponent entry : entries) {
+                    if (entry.hasResource()) {
+                        resolveReferences(entry.getResource(), resolvedIds);
+                    }
+                }
+
+                for (int i = 0; i < entries.size(); i++) {
+                    Bundle.BundleEntryComponent entry = entries.get(i);
+                    if (entry.getRequest().getMethod() == Bundle.HTTPVerb.POST) {
+                        String resourceType = getResourceType(entry);
+                        outcomes[i] = existingIds.containsKey(i)
+                                ? new Outcome(200, location(resourceType, get(resourceType, existingIds.get(i))), null)
+                                : store(resourceType, entry.getResource(), undoLog, 201);
+                    }
+                }
+
+                for (int i = 0; i < entries.size(); i++) {
+                    Bundle.HTTPVerb method = entries.get(i).getRequest().getMethod();
+                    if (method == Bundle.HTTPVerb.PUT || method == Bundle.HTTPVerb.GET) {
+                        outcomes[i] = processEntry(entries.get(i), undoLog);
+                    }
+                }
+            } catch (RuntimeException exception) {
+                for (int i = undoLog.size() - 1; i >= 0; i--) {
+                    undoLog.get(i).run();
+                }
+
+                throw exception;
+            }
+        }
+
+        Bundle response = new Bundle();
+        response.setType(Bundle.BundleType.TRANSACTIONRESPONSE);
+        for (Outcome outcome : outcomes) {
+            response.addEntry(outcome.toEntry());
+        }
+
+        return response;
+    }
+
+    private Outcome processEntry(Bundle.BundleEntryComponent entry, List<Runnable> undoLog) {
+        Bundle.BundleEntryRequestComponent request = entry.getRequest();
+        String url = stripBaseUrl(request.getUrl());
+        int queryStart = url.indexOf('?');
+        String[] segments = ((queryStart < 0) ? url : url.substring(0, queryStart)).split("/");
+        Map<String, List<String>> params = parseQuery((queryStart < 0) ? null : url.substring(queryStart + 1));
+
+        String resourceType = segments[0];
+        if (!fhirContext.getResourceTypes().contains(resourceType)) {
+            throw new ServerException(404, "Unknown resource type " + resourceType);
+        }
+
+        String id = (segments.length > 1) ? segments[1] : null;
+        switch (request.getMethod()) {
+            case GET:
+                return (id == null)
+                        ? new Outcome(200, null, search(resourceType, params))
+                        : read(resourceType, id, request.getIfNoneMatch());
+            case POST:
+                return create(resourceType, entry.getResource(), request.getIfNoneExist(), undoLog);
+            case PUT:
+                return (id == null)
+                        ? conditionalUpdate(resourceType, params, entry.getResource(), undoLog)
+                        : update(resourceType, id, entry.getResource(), undoLog);
+            case DELETE:
+                return (id == null)
+                        ? conditionalDelete(resourceType, params, undoLog)
+                        : delete(resourceType, id, undoLog);
+            default:
+                throw new ServerException(405, "Method not allowed: " + request.getMethod());
+        }
+    }
+
+    private Outcome create(String resourceType, Resource resource, String ifNoneExist, List<Runnable> undoLog) {
+        checkResourceType(resourceType, resource);
+        synchronized (writeLock) {
+            if (ifNoneExist != null) {
+                List<Resource> matches = match(resourceType, parseCondition(ifNoneExist), 2);
+                if (matches.size() > 1) {
+                    throw new ServerException(412, "Multiple matches for " + ifNoneExist);
+                } else if (matches.size() == 1) {
+                    return new Outcome(200, location(resourceType, matches.get(0)), null);
+                }
+            }
+
+            resource.setId(Long.toString(nextId.getAndIncrement()));
+
+            return store(resourceType, resource, undoLog, 201);
+        }
+    }
+
+    private Outcome update(String resourceType, String id, Resource resource, List<Runnable> undoLog) {
+        checkResourceType(resourceType, resource);
+        synchronized (writeLock) {
+            resource.setId(id);
+
+            return store(resourceType, resource, undoLog, (get(resourceType, id) == null) ? 201 : 200);
+        }
+    }
+
+    private Outcome conditionalUpdate(String resourceType, Map<String, List<String>> params, Resource resource, List<Runnable> undoLog) {
+        synchronized (writeLock) {
+            List<Resource> matches = match(resourceType, params, 2);
+            if (matches.size() > 1) {
+                throw new ServerException(412, "Multiple matches for conditional update.");
+            } else if (matches.size() == 1) {
+                return update(resourceType, matches.get(0).getIdElement().getIdPart(), resource, undoLog);
+            } else {
+                return create(resourceType, resource, null, undoLog);
+            }
+        }
+    }
+
+    private Outcome delete(String resourceType, String id, List<Runnable> undoLog) {
+        synchronized (writeLock) {
+            remove(resourceType, id, undoLog);
+        }
+
+        return new Outcome(204, null, null);
+    }
+
+    /**
+     * Delete the resources matching the search parameters. As on Azure, up
+     * to _count resources are deleted per request; without _count, more than
+     * one match is an error.
+     */
+    private Outcome conditionalDelete(String resourceType, Map<String, List<String>> params, List<Runnable> undoLog) {
+        int count = getIntParam(params, "_count", 1);
+        synchronized (writeLock) {
+            List<Resource> matches = match(resourceType, params, count + 1);
+            if (matches.size() > count && !params.containsKey("_count")) {
+                throw new ServerException(412, "Multiple matches for conditional delete.");
+            }
+
+            matches.stream()
+                    .limit(count)
+                    .forEach(resource -> remove(resourceType, resource.getIdElement().getIdPart(), undoLog));
+        }
+
+        return new Outcome(204, null, null);
+    }
+
+    /**
+     * Read a resource, or answer 304 Not Modified if the version given in
+     * If-None-Match is still current.
+     */
+    private Outcome read(String resourceType, String id, String ifNoneMatch) {
+        Resource resource = get(resourceType, id);
+        if (resource == null) {
+            throw new ServerException(404, String.format("Resource %s/%s is not known", resourceType, id));
+        }
+
+        if (ifNoneMatch != null && resource.getMeta().hasVersionId()
+                && ifNoneMatch.replaceAll("^W/|\"", "").trim().equals(resource.getMeta().getVersionId())) {
+            return new Outcome(304, null, null);
+        }
+
+        return new Outcome(200, null, resource);
+    }
+
+    private Bundle search(String resourceType, Map<String, List<String>> params) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.SEARCHSET);
+
+        if ("count".equals(getParam(params, "_summary"))) {
+            bundle.setTotal(match(resourceType, params, Integer.MAX_VALUE).size());
+
+            return bundle;
+        }
+
+        int pageSize = Math.min(MAX_PAGE_SIZE, getIntParam(params, "_count", DEFAULT_PAGE_SIZE));
+        List<Resource> matches = match(resourceType, params, pageSize + 1);
+        List<String> elements = params.containsKey("_elements")
+                ? Arrays.asList(getParam(params, "_elements").split(","))
+                : null;
+
+        matches.stream()
+                .limit(pageSize)
+                .forEach(resource -> bundle.addEntry()
+                .setFullUrl(baseUrl + "/" + resourceType + "/" + resource.getIdElement().getIdPart())
+                .setResource((elements == null) ? resource : subset(resource, elements))
+                .getSearch().setMode(Bundle.SearchEntryMode.MATCH));
+
+        bundle.addLink().setRelation("self").setUrl(searchUrl(resourceType, params));
+        if (matches.size() > pageSize) {
+            Map<String, List<String>> nextParams = new LinkedHashMap<>(params);
+            nextParams.put(AFTER_PARAM, List.of(matches.get(pageSize - 1).getIdElement().getIdPart()));
+            bundle.addLink().setRelation("next").setUrl(searchUrl(resourceType, nextParams));
+        }
+
+        return bundle;
+    }
+
+    /**
+     * Find up to the given number of resources matching the search
+     * parameters, in ID order, starting after the _after cursor. Paging with
+     * a cursor rather than an offset keeps pages stable while resources are
+     * being deleted.
+     */
+    private List<Resource> match(String resourceType, Map<String, List<String>> params, int limit) {
+        NavigableMap<String, Resource> typeResources = resources.get(resourceType);
+        if (typeResources == null) {
+            return Collections.emptyList();
+        }
+
+        String after = getParam(params, AFTER_PARAM);
+        NavigableMap<String, Resource> candidates = (after == null) ? typeResources : typeResources.tailMap(after, false);
+        NavigableMap<String, Resource> indexed = lookUpIdentifiers(resourceType, params, candidates);
+        if (indexed != null) {
+            candidates = indexed;
+        }
+
+        List<Resource> matches = new ArrayList<>();
+        for (Resource resource : candidates.values()) {
+            if (matches.size() >= limit) {
+                break;
+            }
+            if (matches(resource, params)) {
+                matches.add(resource);
+            }
+        }
+
+        return matches;
+    }
+
+    /**
+     * Look up the candidates of an identifier search in the index when every
+     * token has both a system and a value.
+     *
+     * @return the indexed candidates, or null if the index cannot be used
+     */
+    private NavigableMap<String, Resource> lookUpIdentifiers(String resourceType, Map<String, List<String>> params, NavigableMap<String, Resource> candidates) {
+        List<String> identifiers = params.get("identifier");
+        if (identifiers == null || identifiers.size() != 1) {
+            return null;
+        }
+
+        NavigableMap<String, Resource> indexed = new TreeMap<>();
+        for (String token : identifiers.get(0).split(",")) {
+            int separator = token.indexOf('|');
+            if (separator <= 0 || separator == token.length() - 1) {
+                return null;
+            }
+
+            String key = ResourceIndex.key(resourceType, token.substring(0, separator), token.substring(separator + 1));
+            for (String id : identifierIndex.getOrDefault(key, Collections.emptySet())) {
+                Resource resource = candidates.get(id);
+                if (resource != null) {
+                    indexed.put(id, resource);
+                }
+            }
+        }
+
+        return indexed;
+    }
+
+    private boolean matches(Resource resource, Map<String, List<String>> params) {
+        for (Map.Entry<String, List<String>> param : params.entrySet()) {
+            String name = param.getKey();
+            for (String value : param.getValue()) {
+                List<String> alternatives = Arrays.asList(value.split(","));
+                boolean matched;
+                if ("_id".equals(name)) {
+                    matched = alternatives.contains(resource.getIdElement().getIdPart());
+                } else if ("identifier".equals(name)) {
+                    matched = alternatives.stream().anyMatch(token -> matchesIdentifier(resource, token));
+                } else if (REFERENCE_PARAMS.containsKey(name)) {
+                    matched = alternatives.stream().anyMatch(reference -> matchesReference(resource, REFERENCE_PARAMS.get(name), reference));
+                } else {
+                    // result parameters and unsupported parameters are ignored
+                    matched = true;
+                }
+
+                if (!matched) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private boolean matchesIdentifier(Resource resource, String token) {
+        if (!hasChild(resource, "identifier")) {
+            return false;
+        }
+
+        int separator = token.indexOf('|');
+        String system = (separator < 0) ? null : token.substring(0, separator);
+        String value = (separator < 0) ? token : token.substring(separator + 1);
+
+        return terser.getValues(resource, "identifier", Identifier.class).stream()
+                .anyMatch(identifier -> (system == null || system.equals(identifier.hasSystem() ? identifier.getSystem() : ""))
+                && (value.isEmpty() || value.equals(identifier.getValue())));
+    }
+
+    private boolean matchesReference(Resource resource, String element, String reference) {
+        if (!hasChild(resource, element)) {
+            return false;
+        }
+
+        String target = stripBaseUrl(reference);
+        String targetId = target.substring(target.lastIndexOf('/') + 1);
+
+        return terser.getValues(resource, element, Reference.class).stream()
+                .map(Reference::getReference)
+                .filter(value -> value != null)
+                .map(this::stripBaseUrl)
+                .anyMatch(value -> value.equals(target) || (target.indexOf('/') < 0 && value.endsWith("/" + targetId)));
+    }
+
+    private boolean hasChild(Resource resource, String element) {
+        return fhirContext.getResourceDefinition(resource).getChildByName(element) != null;
+    }
+
+    private Resource subset(Resource resource, List<String> elements) {
+        RuntimeResourceDefinition definition = fhirContext.getResourceDefinition(resource);
+        Resource subset = (Resource) definition.newInstance();
+        subset.setId(resource.getIdElement().getIdPart());
+        subset.setMeta(resource.getMeta().copy());
+        for (String element : elements) {
+            BaseRuntimeChildDefinition child = definition.getChildByName(element.trim());
+            if (child != null && !"id".equals(element.trim())) {
+                for (IBase value : child.getAccessor().getValues(resource)) {
+                    child.getMutator().addValue(subset, value);
+                }
+            }
+        }
+
+        return subset;
+    }
+
+    private void resolveReferences(Resource resource, Map<String, String> resolvedIds) {
+        for (Reference reference : terser.getAllPopulatedChildElementsOfType(resource, Reference.class)) {
+            String resolvedId = resolvedIds.get(reference.getReference());
+            if (resolvedId != null) {
+                reference.setReference(resolvedId);
+            }
+        }
+    }
+
+    private Outcome store(String resourceType, Resource resource, List<Runnable> undoLog, int status) {
+        String id = resource.getIdElement().getIdPart();
+        Resource previous = get(resourceType, id);
+
+        int version = (previous == null) ? 1 : Integer.parseInt(previous.getMeta().getVersionId()) + 1;
+        resource.setId(id);
+        resource.getMeta()
+                .setVersionId(Integer.toString(version))
+                .setLastUpdated(new Date());
+
+        if (previous != null) {
+            unindex(resourceType, previous);
+        }
+        resources.computeIfAbsent(resourceType, k -> new ConcurrentSkipListMap<>()).put(id, resource);
+        index(resourceType, resource);
+
+        if (undoLog != null) {
+            undoLog.add(() -> {
+                unindex(resourceType, resource);
+                if (previous == null) {
+                    resources.get(resourceType).remove(id);
+                } else {
+                    resources.get(resourceType).put(id, previous);
+                    index(resourceType, previous);
+                }
+            });
+        }
+
+        return new Outcome(status, location(resourceType, resource), null);
+    }
+
+    private void remove(String resourceType, String id, List<Runnable> undoLog) {
+        NavigableMap<String, Resource> typeResources = resources.get(resourceType);
+        Resource previous = (typeResources == null) ? null : typeResources.remove(id);
+        if (previous != null) {
+            unindex(resourceType, previous);
+            if (undoLog != null) {
+                undoLog.add(() -> {
+                    typeResources.put(id, previous);
+                    index(resourceType, previous);
+                });
+            }
+        }
+    }
+
+    private Resource get(String resourceType, String id) {
+        NavigableMap<String, Resource> typeResources = resources.get(resourceType);
+
+        return (typeResources == null) ? null : typeResources.get(id);
+    }
+
+    private void index(String resourceType, Resource resource) {
+        identifierKeys(resourceType, resource).forEach(key -> identifierIndex
+                .computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet())
+                .add(resource.getIdElement().getIdPart()));
+    }
+
+    private void unindex(String resourceType, Resource resource) {
+        identifierKeys(resourceType, resource).forEach(key -> {
+            Set<String> ids = identifierIndex.get(key);
+            if (ids != null) {
+                ids.remove(resource.getIdElement().getIdPart());
+            }
+        });
+    }
+
+    private List<String> identifierKeys(String resourceType, Resource resource) {
+        if (!hasChild(resource, "identifier")) {
+            return Collections.emptyList();
+        }
+
+        return terser.getValues(resource, "identifier", Identifier.class).stream()
+                .map(identifier -> ResourceIndex.key(resourceType, identifier.getSystem(), identifier.getValue()))
+                .collect(Collectors.toList());
+    }
+
+    private String location(String resourceType, Resource resource) {
+        return String.format("%s/%s/_history/%s", resourceType, resource.getIdElement().getIdPart(), resource.getMeta().getVersionId());
+    }
+
+    private String getResourceType(Bundle.BundleEntryComponent entry) {
+        String url = stripBaseUrl(entry.getRequest().getUrl());
+        int end = url.indexOf('?');
+
+        return ((end < 0) ? url : url.substring(0, end)).split("/")[0];
+    }
+
+    private void checkResourceType(String resourceType, Resource resource) {
+        if (resource == null) {
+            throw new ServerException(400, "Missing resource.");
+        }
+        if (!resourceType.equals(resource.fhirType())) {
+            throw new ServerException(400, String.format("Expected %s but got %s.", resourceType, resource.fhirType()));
+        }
+    }
+
+    private String stripBaseUrl(String url) {
+        String relativeUrl = url.startsWith(baseUrl) ? url.substring(baseUrl.length()) : url;
+
+        return relativeUrl.replaceAll("^/+", "");
+    }
+
+    private String searchUrl(String resourceType, Map<String, List<String>> params) {
+        String query = params.entrySet().stream()
+                .flatMap(param -> param.getValue().stream()
+                .map(value -> encode(param.getKey()) + "=" + encode(value)))
+                .collect(Collectors.joining("&"));
+
+        return baseUrl + "/" + resourceType + (query.isEmpty() ? "" : "?" + query);
+    }
+
+    private CapabilityStatement createCapabilityStatement() {
+        CapabilityStatement capabilityStatement = new CapabilityStatement();
+        capabilityStatement.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        capabilityStatement.setDate(new Date());
+        capabilityStatement.setKind(CapabilityStatement.CapabilityStatementKind.INSTANCE);
+        capabilityStatement.setFhirVersion(Enumerations.FHIRVersion._4_0_1);
+        capabilityStatement.addFormat("json");
+
+        return capabilityStatement;
+    }
+
+    private <T extends Resource> T readResource(HttpExchange exchange, Class<T> type) throws IOException {
+        byte[] bytes;
+        try (InputStream body = exchange.getRequestBody()) {
+            bytes = body.readAllBytes();
+        }
+        requestBytes.addAndGet(bytes.length);
+        throttleTransfer(bytes.length);
+
+        InputStream body = new ByteArrayInputStream(bytes);
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            body = new GZIPInputStream(body);
+        }
+
+        IBaseResource resource = fhirContext.newJsonParser().parseResource(body);
+        if (!type.isInstance(resource)) {
+            throw new ServerException(400, "Expected " + type.getSimpleName());
+        }
+
+        return type.cast(resource);
+    }
+
+    private void send(HttpExchange exchange, Outcome outcome) throws IOException {
+        outcome.headers.forEach((name, value) -> exchange.getResponseHeaders().add(name, value));
+        if (outcome.location != null) {
+            exchange.getResponseHeaders().add("Location", baseUrl + "/" + outcome.location);
+        }
+
+        if (outcome.json != null) {
+            byte[] bytes = compress(exchange, outcome.json.getBytes(StandardCharsets.UTF_8));
+            responseBytes.addAndGet(bytes.length);
+            throttleTransfer(bytes.length);
+            if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+                exchange.getResponseHeaders().add("Content-Type", "application/json;charset=utf-8");
+            }
+            exchange.sendResponseHeaders(outcome.status, bytes.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(bytes);
+            }
+
+            return;
+        }
+
+        Resource body = outcome.resource;
+        if (body == null) {
+            exchange.sendResponseHeaders(outcome.status, -1);
+
+            return;
+        }
+
+        if (body.hasMeta() && body.getMeta().hasVersionId() && !(body instanceof Bundle)) {
+            exchange.getResponseHeaders().add("ETag", String.format("W/\"%s\"", body.getMeta().getVersionId()));
+        }
+
+        IParser parser = fhirContext.newJsonParser();
+        byte[] bytes = compress(exchange, parser.encodeResourceToString(body).getBytes(StandardCharsets.UTF_8));
+        responseBytes.addAndGet(bytes.length);
+        throttleTransfer(bytes.length);
+
+        exchange.getResponseHeaders().add("Content-Type", FHIR_JSON);
+        exchange.sendResponseHeaders(outcome.status, bytes.length);
+        try (OutputStream responseBody = exchange.getResponseBody()) {
+            responseBody.write(bytes);
+        }
+    }
+
+    private byte[] compress(HttpExchange exchange, byte[] bytes) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        if (!compressResponses || acceptEncoding == null || !acceptEncoding.contains("gzip")) {
+            return bytes;
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        }
+        exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+
+        return compressed.toByteArray();
+    }
+
+    private void throttleTransfer(long bytes) {
+        long rate = bytesPerSecond;
+        if (rate > 0) {
+            sleep(bytes * 1000 / rate);
+        }
+    }
+
+    private boolean chance(double rate) {
+        return rate > 0 && random.nextDouble() < rate;
+    }
+
+    private static void sleep(long millis) {
+        if (millis > 0) {
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Parse an If-None-Exist condition, given either as a query or as a
+     * search URL, e.g. Patient?identifier=system|value.
+     */
+    private static Map<String, List<String>> parseCondition(String condition) {
+        int queryStart = condition.indexOf('?');
+
+        return parseQuery((queryStart < 0) ? condition : condition.substring(queryStart + 1));
+    }
+
+    private static Map<String, List<String>> parseQuery(String query) {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        if (query == null || query.isEmpty()) {
+            return params;
+        }
+
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            String name = URLDecoder.decode((separator < 0) ? param : param.substring(0, separator), StandardCharsets.UTF_8);
+            String value = (separator < 0) ? "" : URLDecoder.decode(param.substring(separator + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+
+        return params;
+    }
+
+    private static String getParam(Map<String, List<String>> params, String name) {
+        List<String> values = params.get(name);
+
+        return (values == null || values.isEmpty()) ? null : values.get(0);
+    }
+
+    private static int getIntParam(Map<String, List<String>> params, String name, int defaultValue) {
+        String value = getParam(params, name);
+
+        return (value == null) ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static class Outcome {
+
+        private final int status;
+        private final String location;
+        private final Resource resource;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private String json;
+
+        private Outcome(int status, String location, Resource resource) {
+            this.status = status;
+            this.location = location;
+            this.resource = resource;
+        }
+
+        private static Outcome error(int status, String message) {
+            OperationOutcome operationOutcome = new OperationOutcome();
+            operationOutcome.addIssue()
+                    .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                    .setCode(OperationOutcome.IssueType.PROCESSING)
+                    .setDiagnostics(message);
+
+            return new Outcome(status, null, operationOutcome);
+        }
+
+        private static String getReasonPhrase(int status) {
+            switch (status) {
+                case 200:
+                    return "OK";
+                case 201:
+                    return "Created";
+                case 204:
+                    return "No Content";
+                case 304:
+                    return "Not Modified";
+                case 400:
+                    return "Bad Request";
+                case 401:
+                    return "Unauthorized";
+                case 404:
+                    return "Not Found";
+                case 405:
+                    return "Method Not Allowed";
+                case 412:
+                    return "Precondition Failed";
+                case 429:
+                    return "Too Many Requests";
+                default:
+                    return "Internal Server Error";
+            }
+        }
+
+        private Bundle.BundleEntryComponent toEntry() {
+            Bundle.BundleEntryComponent entry = new Bundle.BundleEntryComponent();
+            entry.getResponse().setStatus(String.format("%d %s", status, getReasonPhrase(status)));
+            if (location != null) {
+                entry.getResponse().setLocation(location);
+            }
+            if (resource instanceof OperationOutcome) {
+                entry.getResponse().setOutcome(resource);
+            } else if (resource != null) {
+                entry.setResource(resource);
+            }
+
+            return entry;
+        }
+
+    }
+
+    private static class BulkJob {
+
+        private final String request;
+        private final Map<String, String> files = new ConcurrentHashMap<>();
+        private volatile String status;
+
+        private BulkJob(String request) {
+            this.request = request;
+        }
+
+    }
+
+    private static class ServerException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        private ServerException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+
+    }
+
+}
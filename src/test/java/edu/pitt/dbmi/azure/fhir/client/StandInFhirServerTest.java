@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.jupiter.api.AfterEach;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Runs the resource clients end to end against {@link StandInFhirServer}.
+ *
+ * Aug 9, 2022 3:45:12 PM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class StandInFhirServerTest {
+
+    private static final String IDENTIFIER_SYSTEM = "urn:test:patient";
+    private static final int NUMBER_OF_PATIENTS = 250;
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    private StandInFhirServer server;
+    private IGenericClient client;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        server = new StandInFhirServer(fhirContext);
+        client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        server.close();
+    }
+
+    @Test
+    public void testUploadSearchAndDelete() {
+        PatientResourceClient patientClient = new PatientResourceClient(client);
+        uploadPatients(patientClient);
+        assertEquals(NUMBER_OF_PATIENTS, server.count("Patient"));
+
+        List<String> values = IntStream.range(0, 120)
+                .mapToObj(Integer::toString)
+                .collect(Collectors.toList());
+        Map<String, Patient> patients = new IdentifierResolver(client, 50).resolve(Patient.class, IDENTIFIER_SYSTEM, values);
+        assertEquals(120, patients.size());
+        assertEquals("7", patients.get("7").getIdentifierFirstRep().getValue());
+
+        try (Stream<Patient> stream = patientClient.streamPatients(40, 2)) {
+            assertEquals(NUMBER_OF_PATIENTS, stream.count());
+        }
+
+        UploadSummary summary = patientClient.deleteAllPatients();
+        assertEquals(0, summary.getFailedBundleCount());
+        assertEquals(0, server.count("Patient"));
+    }
+
+    @Test
+    public void testConditionalDelete() {
+        PatientResourceClient patientClient = new PatientResourceClient(client);
+        uploadPatients(patientClient);
+
+        assertEquals(NUMBER_OF_PATIENTS, patientClient.deletePatients(IDENTIFIER_SYSTEM));
+        assertEquals(0, server.count("Patient"));
+    }
+
+    @Test
+    public void testConditionalDeleteEscapesSystem() {
+        String system = "urn:test?site=a&unit=b#c";
+        for (String value : List.of("1", "2")) {
+            Patient patient = new Patient();
+            patient.addIdentifier().setSystem(system).setValue(value);
+            client.create().resource(patient).execute();
+        }
+        client.create().resource(createPatient(3)).execute();
+
+        assertEquals(2, new PatientResourceClient(client).deletePatients(system));
+        assertEquals(1, server.count("Patient"));
+    }
+
+    @Test
+    public void testDeleteInOneTransaction() {
+        PatientResourceClient patientClient = new PatientResourceClient(client);
+        uploadPatients(patientClient);
+
+        Bundle response = patientClient.deletePatients();
+        assertEquals(Bundle.BundleType.TRANSACTIONRESPONSE, response.getType());
+        assertEquals(NUMBER_OF_PATIENTS, response.getEntry().size());
+        assertEquals(0, server.count("Patient"));
+    }
+
+    @Test
+    public void testThrottledBundleIsRetried() {
+        server.injectThrottling(0, 10);
+        server.throttleNextRequests(2);
+
+        try (BundleUploader uploader = new BundleUploader(client, 1)) {
+            UploadResult result = uploader.submit(createPatientBundle(0, 10)).join();
+            assertTrue(result.isSuccess());
+            assertEquals(2, result.getRetries());
+        }
+        assertEquals(10, server.count("Patient"));
+        assertEquals(2, server.getThrottledCount());
+    }
+
+    @Test
+    public void testTransactionIsAllOrNothing() {
+        Patient patient = createPatient(1);
+        Encounter encounter = new Encounter();
+        encounter.setSubject(new Reference("urn:uuid:patient-1"));
+
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        bundle.addEntry().setFullUrl("urn:uuid:patient-1").setResource(patient)
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        bundle.addEntry().setResource(encounter)
+                .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Encounter");
+
+        Bundle response = client.transaction().withBundle(bundle).execute();
+        String patientLocation = response.getEntry().get(0).getResponse().getLocation();
+        Encounter stored = (Encounter) server.getResources("Encounter").get(0);
+        assertTrue(patientLocation.startsWith(stored.getSubject().getReference() + "/"));
+
+        // the second entry fails, so the first one is rolled back
+        Bundle failing = createPatientBundle(100, 1);
+        failing.addEntry().setResource(createPatient(1))
+                .getRequest().setMethod(Bundle.HTTPVerb.PUT).setUrl("Observation/1");
+        try (BundleUploader uploader = new BundleUploader(client, 1)) {
+            assertFalse(uploader.submit(failing).join().isSuccess());
+        }
+        assertEquals(1, server.count("Patient"));
+    }
+
+    private void uploadPatients(PatientResourceClient patientClient) {
+        try (BundleUploader uploader = new BundleUploader(client, 4)) {
+            for (int i = 0; i < NUMBER_OF_PATIENTS; i += 50) {
+                List<Resource> resources = new ArrayList<>();
+                for (int j = i; j < i + 50; j++) {
+                    resources.add(createPatient(j));
+                }
+                patientClient.addResources(resources, "Patient", uploader);
+            }
+
+            assertEquals(0, uploader.awaitCompletion().getFailedBundleCount());
+        }
+    }
+
+    private Bundle createPatientBundle(int start, int count) {
+        Bundle bundle = new Bundle();
+        bundle.setType(Bundle.BundleType.TRANSACTION);
+        for (int i = start; i < start + count; i++) {
+            bundle.addEntry().setResource(createPatient(i))
+                    .getRequest().setMethod(Bundle.HTTPVerb.POST).setUrl("Patient");
+        }
+
+        return bundle;
+    }
+
+    private static Patient createPatient(int i) {
+        Patient patient = new Patient();
+        patient.addIdentifier().setSystem(IDENTIFIER_SYSTEM).setValue(Integer.toString(i));
+        patient.addName().setFamily("Family" + i).addGiven("Given" + i);
+
+        return patient;
+    }
+
+}
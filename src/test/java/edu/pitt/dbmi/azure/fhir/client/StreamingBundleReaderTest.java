@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 25, 2022 9:14:36 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class StreamingBundleReaderTest {
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testReadLikeFullParse() throws IOException {
+        Path file = Paths.get(StreamingBundleReaderTest.class.getResource("/data/synthea/Aaron697_Brekke496_2fa15bc7-8866-461a-9000-f739e425860a.json").getFile());
+        IParser parser = fhirContext.newJsonParser();
+        Bundle bundle = parser.parseResource(Bundle.class, Files.readString(file, StandardCharsets.UTF_8));
+
+        List<Resource> resources = new ArrayList<>();
+        new StreamingBundleReader(fhirContext).read(file, StandardCharsets.UTF_8, resources::add);
+
+        assertEquals(bundle.getEntry().size(), resources.size());
+        for (int i = 0; i < resources.size(); i++) {
+            assertEquals(parser.encodeResourceToString(bundle.getEntry().get(i).getResource()), parser.encodeResourceToString(resources.get(i)));
+        }
+    }
+
+    @Test
+    public void testEntryFieldsInAnyOrder() throws IOException {
+        String json = "{\"resourceType\":\"Bundle\",\"meta\":{\"tag\":[{\"code\":\"a]}\"}]},\"total\":2,\"entry\":["
+                + "{\"search\":{\"mode\":\"match\"},\"resource\":{\"resourceType\":\"Patient\",\"name\":[{\"family\":\"O\\\"Brien \\u00e9}\"}]},\"fullUrl\":\"urn:uuid:1\"},"
+                + "{},"
+                + "{\"fullUrl\":\"urn:uuid:2\",\"resource\":{\"resourceType\":\"Patient\",\"active\":true}}"
+                + "],\"type\":\"collection\"}";
+
+        List<Resource> resources = new ArrayList<>();
+        new StreamingBundleReader(fhirContext).read(new StringReader(json), resources::add);
+
+        assertEquals(2, resources.size());
+        assertEquals("urn:uuid:1", resources.get(0).getIdElement().getValue());
+        assertEquals("O\"Brien \u00e9}", ((Patient) resources.get(0)).getNameFirstRep().getFamily());
+        assertEquals("urn:uuid:2", resources.get(1).getIdElement().getValue());
+        assertEquals(true, ((Patient) resources.get(1)).getActive());
+    }
+
+    @Test
+    public void testTruncatedBundle() {
+        String json = "{\"entry\":[{\"resource\":{\"resourceType\":\"Patient\",\"active\":true";
+
+        assertThrows(IOException.class, () -> new StreamingBundleReader(fhirContext).read(new StringReader(json), resource -> {
+        }));
+    }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2022 University of Pittsburgh.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston,
+ * MA 02110-1301  USA
+ */
+package edu.pitt.dbmi.azure.fhir.client;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Encounter;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * Aug 15, 2022 11:04:27 AM
+ *
+ * @author Kevin V. Bui (kvb2univpitt@gmail.com)
+ */
+public class UploadModeTest {
+
+    private static final String IDENTIFIER_SYSTEM = "urn:test:patient";
+
+    private final FhirContext fhirContext = FhirContext.forR4();
+
+    @Test
+    public void testConditionalCreateIsIdempotent() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            PatientResourceClient patientClient = new PatientResourceClient(client, MetricsRegistry.NONE, UploadMode.CONDITIONAL_CREATE);
+
+            Bundle first = patientClient.uploadPatients(createPatients(10, "Family"));
+            Bundle second = patientClient.uploadPatients(createPatients(10, "Changed"));
+
+            assertEquals(10, server.count("Patient"));
+            assertEquals(10, getStatuses(first, "201 Created"));
+            assertEquals(10, getStatuses(second, "200 OK"));
+            assertEquals(getLocations(first), getLocations(second));
+            server.getResources("Patient")
+                    .forEach(resource -> assertEquals("Family", ((Patient) resource).getNameFirstRep().getFamily()));
+
+            // resources without an identifier cannot be matched
+            Patient anonymous = new Patient();
+            anonymous.addName().setFamily("Anonymous");
+            patientClient.uploadPatients(List.of(anonymous.copy()));
+            patientClient.uploadPatients(List.of(anonymous.copy()));
+            assertEquals(12, server.count("Patient"));
+        }
+    }
+
+    @Test
+    public void testConditionalUpdateReplacesResources() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            PatientResourceClient patientClient = new PatientResourceClient(client, MetricsRegistry.NONE, UploadMode.CONDITIONAL_UPDATE);
+
+            Bundle first = patientClient.uploadPatients(createPatients(10, "Family"));
+            Bundle second = patientClient.uploadPatients(createPatients(10, "Changed"));
+
+            assertEquals(10, server.count("Patient"));
+            assertEquals(10, getStatuses(first, "201 Created"));
+            assertEquals(10, getStatuses(second, "200 OK"));
+            server.getResources("Patient")
+                    .forEach(resource -> assertEquals("Changed", ((Patient) resource).getNameFirstRep().getFamily()));
+        }
+    }
+
+    @Test
+    public void testConditionalCreateOfSyntheaBundle() throws IOException {
+        Path file = Paths.get(UploadModeTest.class.getResource("/data/synthea/Aaron697_Brekke496_2fa15bc7-8866-461a-9000-f739e425860a.json").getFile());
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            SyntheaResourceClient syntheaClient = new SyntheaResourceClient(client, MetricsRegistry.NONE, UploadMode.CONDITIONAL_CREATE);
+
+            // the second upload matches the stored patient and gets no body back
+            syntheaClient.addResourceBundle(file);
+            int observationCount = server.count("Observation");
+            syntheaClient.addResourceBundle(file);
+
+            assertEquals(1, server.count("Patient"));
+            String patientReference = "Patient/" + server.getResources("Patient").get(0).getIdElement().getIdPart();
+            List<Resource> encounters = server.getResources("Encounter");
+            assertEquals(21, encounters.size());
+            encounters.forEach(resource -> assertEquals(patientReference, ((Encounter) resource).getSubject().getReference()));
+
+            // encounters and observations have no identifier and are matched on their fullUrl
+            assertTrue(observationCount > 0);
+            assertEquals(observationCount, server.count("Observation"));
+        }
+    }
+
+    @Test
+    public void testCreateDuplicates() throws IOException {
+        try (StandInFhirServer server = new StandInFhirServer(fhirContext)) {
+            IGenericClient client = fhirContext.newRestfulGenericClient(server.getBaseUrl());
+            PatientResourceClient patientClient = new PatientResourceClient(client);
+
+            patientClient.uploadPatients(createPatients(10, "Family"));
+            patientClient.uploadPatients(createPatients(10, "Family"));
+
+            assertEquals(20, server.count("Patient"));
+        }
+    }
+
+    private static List<Patient> createPatients(int size, String family) {
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Patient patient = new Patient();
+            patient.addIdentifier().setSystem(IDENTIFIER_SYSTEM).setValue("MRN " + i + "&" + i);
+            patient.addName().setFamily(family).addGiven("Given" + i);
+            patients.add(patient);
+        }
+
+        return patients;
+    }
+
+    private static long getStatuses(Bundle response, String status) {
+        return response.getEntry().stream()
+                .filter(entry -> entry.getResponse().getStatus().startsWith(status))
+                .count();
+    }
+
+    private static List<String> getLocations(Bundle response) {
+        return response.getEntry().stream()
+                .map(entry -> entry.getResponse().getLocation())
+                .map(location -> location.substring(0, location.indexOf("/_history")))
+                .collect(Collectors.toList());
+    }
+
+}